@@ -179,6 +179,42 @@ public abstract class AppConfig {
                                 + "' should be either 'true' or 'false'");
         }
 
+        /**
+         * Get an optional property as int, falling back to a default when the
+         * property is not set.
+         * 
+         * @param name
+         *                the property name
+         * @param defaultValue
+         *                value to return when the property is missing or empty
+         * @return an int value
+         */
+        public final int getPropertyAsInt(final String name, final int defaultValue) {
+                String value = getProperty(name);
+                if (value == null || value.trim().length() == 0) {
+                        return defaultValue;
+                }
+                return Integer.parseInt(value.trim());
+        }
+
+        /**
+         * Get an optional property as boolean, falling back to a default when
+         * the property is not set.
+         * 
+         * @param name
+         *                the property name
+         * @param defaultValue
+         *                value to return when the property is missing or empty
+         * @return a boolean value
+         */
+        public final boolean getPropertyAsBoolean(final String name, final boolean defaultValue) {
+                String value = getProperty(name);
+                if (value == null || value.trim().length() == 0) {
+                        return defaultValue;
+                }
+                return getPropertyAsBoolean(name);
+        }
+
         /**
          * Extract the DB name from URL.
          * 
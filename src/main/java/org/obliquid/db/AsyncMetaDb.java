@@ -0,0 +1,280 @@
+package org.obliquid.db;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.obliquid.config.AppConfig;
+
+/**
+ * Run MetaDb work in a bounded pool of threads, each task with its own
+ * connection, so that independent queries run concurrently instead of one
+ * after the other. Connections are pooled when dbUsePool or dbUseEmbeddedPool
+ * is set. There are as many threads as connections in the pool; when all the
+ * threads are busy tasks are queued, and when the queue is full the caller
+ * runs the task itself, slowing it down rather than failing.
+ * 
+ * <pre>
+ * List&lt;DbTask&lt;Object&gt;&gt; lookups = ...;
+ * List&lt;Object&gt; results = AsyncMetaDb.getInstance().invokeAll(lookups);
+ * </pre>
+ * 
+ * @author stivlo
+ */
+public class AsyncMetaDb {
+
+        /** Default number of tasks queued per thread. */
+        public static final int DEFAULT_QUEUE_PER_THREAD = 16;
+
+        /** The instance configured from AppConfig. */
+        private static volatile AsyncMetaDb singleton = null;
+
+        /** Runs the tasks. */
+        private final ExecutorService executor;
+
+        /**
+         * Run tasks with the given executor, for instance one with a thread per
+         * task on runtimes that have cheap threads. The executor should not run
+         * more tasks at once than there are connections in the pool.
+         * 
+         * @param executorIn
+         *                runs the tasks
+         */
+        public AsyncMetaDb(final ExecutorService executorIn) {
+                executor = executorIn;
+        }
+
+        /**
+         * Run tasks with a bounded pool of daemon threads.
+         * 
+         * @param threads
+         *                maximum number of tasks running at once
+         * @param queueSize
+         *                maximum number of tasks waiting
+         */
+        public AsyncMetaDb(final int threads, final int queueSize) {
+                this(createExecutor(threads, queueSize));
+        }
+
+        /**
+         * Get the shared instance. The number of threads is read from the
+         * optional property dbAsyncThreads, default dbPoolMaxSize.
+         * 
+         * @return the shared AsyncMetaDb instance
+         */
+        public static AsyncMetaDb getInstance() {
+                if (singleton != null) {
+                        return singleton;
+                }
+                synchronized (AsyncMetaDb.class) {
+                        if (singleton != null) { //check again inside synchronized
+                                return singleton;
+                        }
+                        AppConfig conf = AppConfig.getInstance();
+                        int threads = ConnectionPool.DEFAULT_MAX_SIZE;
+                        if (conf != null) {
+                                threads = conf.getPropertyAsInt("dbPoolMaxSize", threads);
+                                threads = conf.getPropertyAsInt("dbAsyncThreads", threads);
+                        }
+                        singleton = new AsyncMetaDb(threads, threads * DEFAULT_QUEUE_PER_THREAD);
+                }
+                return singleton;
+        }
+
+        /**
+         * Create the default executor.
+         * 
+         * @param threads
+         *                maximum number of tasks running at once
+         * @param queueSize
+         *                maximum number of tasks waiting
+         * @return a bounded executor
+         */
+        private static ExecutorService createExecutor(final int threads, final int queueSize) {
+                final AtomicInteger count = new AtomicInteger();
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                                        @Override
+                                        public Thread newThread(final Runnable runnable) {
+                                                Thread thread = new Thread(runnable, "AsyncMetaDb-"
+                                                                + count.incrementAndGet());
+                                                thread.setDaemon(true);
+                                                return thread;
+                                        }
+                                }, new ThreadPoolExecutor.CallerRunsPolicy());
+                pool.allowCoreThreadTimeOut(true);
+                return pool;
+        }
+
+        /**
+         * Run a task in the background. The Future throws an
+         * ExecutionException wrapping the SQLException of a failed task.
+         * 
+         * @param <T>
+         *                the type of the result
+         * @param task
+         *                the task
+         * @return the pending result
+         */
+        public final <T> Future<T> submit(final DbTask<T> task) {
+                return executor.submit(new Callable<T>() {
+                        @Override
+                        public T call() throws SQLException {
+                                MetaDb db = connect();
+                                try {
+                                        return task.run(db);
+                                } finally {
+                                        db.releaseConnection();
+                                }
+                        }
+                });
+        }
+
+        /**
+         * Run a query in the background.
+         * 
+         * @param sql
+         *                the SELECT query statement to be executed
+         * @param param
+         *                List with IN parameters to be set in the query
+         * @return the pending rows of the result
+         */
+        public final Future<List<List<Object>>> selectAll(final String sql, final List<?> param) {
+                return submit(new DbTask<List<List<Object>>>() {
+                        @Override
+                        public List<List<Object>> run(final MetaDb db) throws SQLException {
+                                return db.selectAll(sql, param);
+                        }
+                });
+        }
+
+        /**
+         * Run a query returning a single row in the background.
+         * 
+         * @param sql
+         *                the SELECT query statement to be executed
+         * @param param
+         *                List with IN parameters to be set in the query
+         * @return the pending row, null if not found
+         */
+        public final Future<List<Object>> selectRow(final String sql, final List<?> param) {
+                return submit(new DbTask<List<Object>>() {
+                        @Override
+                        public List<Object> run(final MetaDb db) throws SQLException {
+                                return db.selectRow(sql, param);
+                        }
+                });
+        }
+
+        /**
+         * Run a query returning a single field in the background.
+         * 
+         * @param sql
+         *                the SELECT query statement to be executed
+         * @param param
+         *                List with IN parameters to be set in the query
+         * @return the pending field, null if not found
+         */
+        public final Future<Object> selectField(final String sql, final List<?> param) {
+                return submit(new DbTask<Object>() {
+                        @Override
+                        public Object run(final MetaDb db) throws SQLException {
+                                return db.selectField(sql, param);
+                        }
+                });
+        }
+
+        /**
+         * Run independent tasks concurrently and wait for all of them.
+         * 
+         * @param <T>
+         *                the type of the results
+         * @param tasks
+         *                the tasks
+         * @return the results, in the order of the tasks
+         * @throws SQLException
+         *                 the exception of the first failed task, in task
+         *                 order, after all the tasks have ended
+         */
+        public final <T> List<T> invokeAll(final List<? extends DbTask<? extends T>> tasks)
+                        throws SQLException {
+                List<Future<? extends T>> futures = new ArrayList<Future<? extends T>>(tasks.size());
+                for (DbTask<? extends T> task : tasks) {
+                        futures.add(submit(task));
+                }
+                List<T> results = new ArrayList<T>(tasks.size());
+                SQLException failure = null;
+                for (Future<? extends T> future : futures) {
+                        try {
+                                results.add(getResult(future));
+                        } catch (SQLException ex) {
+                                if (failure == null) {
+                                        failure = ex;
+                                }
+                                results.add(null);
+                        }
+                }
+                if (failure != null) {
+                        throw failure;
+                }
+                return results;
+        }
+
+        /**
+         * Wait for a result, unwrapping the SQLException of a failed task.
+         * 
+         * @param <T>
+         *                the type of the result
+         * @param future
+         *                the pending result
+         * @return the result
+         * @throws SQLException
+         *                 when the task failed or the wait was interrupted
+         */
+        public static <T> T getResult(final Future<T> future) throws SQLException {
+                try {
+                        return future.get();
+                } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a query", ex);
+                } catch (ExecutionException ex) {
+                        if (ex.getCause() instanceof SQLException) {
+                                throw (SQLException) ex.getCause();
+                        }
+                        if (ex.getCause() instanceof RuntimeException) {
+                                throw (RuntimeException) ex.getCause();
+                        }
+                        throw new SQLException(ex.getCause());
+                }
+        }
+
+        /**
+         * Stop accepting tasks. Tasks already submitted are run.
+         */
+        public final void shutdown() {
+                executor.shutdown();
+        }
+
+        /**
+         * Create a connected MetaDb for a task.
+         * 
+         * @return a MetaDb with a connection, pooled if so configured
+         * @throws SQLException
+         *                 when the connection can't be obtained
+         */
+        protected MetaDb connect() throws SQLException {
+                MetaDb db = new MetaDbImpl();
+                db.getConnection();
+                return db;
+        }
+
+}
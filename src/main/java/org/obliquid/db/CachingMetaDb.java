@@ -0,0 +1,643 @@
+package org.obliquid.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.obliquid.helpers.ArrayHelper;
+import org.obliquid.helpers.StringHelper;
+
+/**
+ * A MetaDb caching the results of selectField(), selectRow(), selectColumn(),
+ * selectAll() and their HashMap variants in a QueryCache, and invalidating
+ * them when execute(), insert() or update() modify a table they read. Results
+ * are shared with other threads and must not be modified. Raw, streamed,
+ * columnar and BLOB queries are not cached. Inside a transaction nothing is
+ * cached, and the tables written are invalidated again at commit. Like
+ * MetaDbImpl, an instance is meant to be used by a single thread.
+ * 
+ * @author stivlo
+ */
+public class CachingMetaDb implements MetaDb {
+
+        /** The MetaDb running the queries. */
+        private final MetaDb db;
+
+        /** The cache, usually shared. */
+        private final QueryCache cache;
+
+        /** Whether a transaction is open. */
+        private boolean inTransaction = false;
+
+        /** Tables written in the current transaction. */
+        private final Set<String> writtenInTransaction = new HashSet<String>();
+
+        /** Whether SELECT DISTINCT is in use. */
+        private boolean distinct = false;
+
+        /**
+         * Cache the queries of a MetaDb.
+         * 
+         * @param dbIn
+         *                the MetaDb running the queries
+         * @param cacheIn
+         *                where results are cached
+         */
+        public CachingMetaDb(final MetaDb dbIn, final QueryCache cacheIn) {
+                db = dbIn;
+                cache = cacheIn;
+        }
+
+        /**
+         * Return a cached result or run the query, unless in a transaction.
+         * 
+         * @param <T>
+         *                the type of the result
+         * @param kind
+         *                the kind of result
+         * @param sql
+         *                the SQL text
+         * @param param
+         *                the parameters, or null
+         * @param query
+         *                runs the query
+         * @return the result
+         * @throws SQLException
+         *                 when the query fails
+         */
+        private <T> T cached(final String kind, final String sql, final List<?> param, final DbTask<T> query)
+                        throws SQLException {
+                if (inTransaction) {
+                        return query.run(db);
+                }
+                return cache.get(kind, sql, param, query, db);
+        }
+
+        /**
+         * Invalidate the results depending on the tables written.
+         * 
+         * @param tables
+         *                the tables written
+         */
+        private void written(final Collection<String> tables) {
+                cache.invalidate(tables);
+                if (inTransaction) {
+                        writtenInTransaction.addAll(tables);
+                }
+        }
+
+        /**
+         * Invalidate the results depending on a table.
+         * 
+         * @param tablename
+         *                the table written
+         */
+        private void written(final String tablename) {
+                written(Collections.singleton(QueryCache.normalise(tablename)));
+        }
+
+        /**
+         * Build the SQL of the methods taking a list of fields.
+         * 
+         * @param fields
+         *                the fields
+         * @param query
+         *                the rest of the query
+         * @return the SQL text used as key
+         */
+        private String fieldsSql(final String[] fields, final String query) {
+                return "SELECT " + (distinct ? "DISTINCT " : "") + StringHelper.implode(", ", fields) + " "
+                                + query;
+        }
+
+        /**
+         * Wrap a parameter in a List.
+         * 
+         * @param param
+         *                the parameter
+         * @return a List with param
+         */
+        private static List<Object> single(final Object param) {
+                List<Object> list = new ArrayList<Object>(1);
+                list.add(param);
+                return list;
+        }
+
+        @Override
+        public final ResultSet executeRawQuery(final String sql) throws SQLException {
+                return db.executeRawQuery(sql);
+        }
+
+        @Override
+        public final Connection getConnection(final boolean usePool) throws SQLException {
+                return db.getConnection(usePool);
+        }
+
+        @Override
+        public final Connection getConnection() throws SQLException {
+                return db.getConnection();
+        }
+
+        @Override
+        public final void releaseConnection() {
+                inTransaction = false;
+                writtenInTransaction.clear();
+                db.releaseConnection();
+        }
+
+        @Override
+        public final int execute(final String sql) throws SQLException {
+                int rowCount = db.execute(sql);
+                written(QueryCache.getTablesWritten(sql));
+                return rowCount;
+        }
+
+        @Override
+        public final int execute(final String sql, final List<?> param) throws SQLException {
+                int rowCount = db.execute(sql, param);
+                written(QueryCache.getTablesWritten(sql));
+                return rowCount;
+        }
+
+        @Override
+        public final int execute(final String sql, final String[] param) throws SQLException {
+                return execute(sql, ArrayHelper.buildArrayList(param));
+        }
+
+        @Override
+        public final <T> int execute(final String sql, final T param) throws SQLException {
+                return execute(sql, single(param));
+        }
+
+        @Override
+        public final int execute(final String sql, final Map<String, Object> param) throws SQLException {
+                return execute(sql, ArrayHelper.buildArrayList(param));
+        }
+
+        @Override
+        public final int execute(final String sql, final int[] param) throws SQLException {
+                return execute(sql, ArrayHelper.buildArrayList(param));
+        }
+
+        @Override
+        public final Object selectField(final String sql) throws SQLException {
+                return cached("field", sql, null, new DbTask<Object>() {
+                        @Override
+                        public Object run(final MetaDb metaDb) throws SQLException {
+                                return metaDb.selectField(sql);
+                        }
+                });
+        }
+
+        @Override
+        public final Object selectField(final String sql, final List<?> param) throws SQLException {
+                return cached("field", sql, param, new DbTask<Object>() {
+                        @Override
+                        public Object run(final MetaDb metaDb) throws SQLException {
+                                return metaDb.selectField(sql, param);
+                        }
+                });
+        }
+
+        @Override
+        public final Object selectField(final String sql, final String[] param) throws SQLException {
+                return selectField(sql, ArrayHelper.buildArrayList(param));
+        }
+
+        @Override
+        public final Object selectField(final String sql, final int[] param) throws SQLException {
+                return selectField(sql, ArrayHelper.buildArrayList(param));
+        }
+
+        @Override
+        public final <T> Object selectField(final String sql, final T param) throws SQLException {
+                return selectField(sql, single(param));
+        }
+
+        @Override
+        public final List<Object> selectRow(final String sql) throws SQLException {
+                return cached("row", sql, null, new DbTask<List<Object>>() {
+                        @Override
+                        public List<Object> run(final MetaDb metaDb) throws SQLException {
+                                return metaDb.selectRow(sql);
+                        }
+                });
+        }
+
+        @Override
+        public final List<Object> selectRow(final String sql, final List<?> param) throws SQLException {
+                return cached("row", sql, param, new DbTask<List<Object>>() {
+                        @Override
+                        public List<Object> run(final MetaDb metaDb) throws SQLException {
+                                return metaDb.selectRow(sql, param);
+                        }
+                });
+        }
+
+        @Override
+        public final List<Object> selectRow(final String sql, final int param) throws SQLException {
+                return selectRow(sql, single(param));
+        }
+
+        @Override
+        public final List<Object> selectRow(final String sql, final String param) throws SQLException {
+                return selectRow(sql, single(param));
+        }
+
+        @Override
+        public final List<Object> selectRow(final String sql, final String[] param) throws SQLException {
+                return selectRow(sql, ArrayHelper.buildArrayList(param));
+        }
+
+        @Override
+        public final List<Object> selectRow(final String sql, final int[] param) throws SQLException {
+                return selectRow(sql, ArrayHelper.buildArrayList(param));
+        }
+
+        @Override
+        public final List<Object> selectColumn(final String sql) throws SQLException {
+                return cached("column", sql, null, new DbTask<List<Object>>() {
+                        @Override
+                        public List<Object> run(final MetaDb metaDb) throws SQLException {
+                                return metaDb.selectColumn(sql);
+                        }
+                });
+        }
+
+        @Override
+        public final String[] selectColumnToStringArray(final String sql) throws SQLException {
+                return cached("strings", sql, null, new DbTask<String[]>() {
+                        @Override
+                        public String[] run(final MetaDb metaDb) throws SQLException {
+                                return metaDb.selectColumnToStringArray(sql);
+                        }
+                });
+        }
+
+        @Override
+        public final int[] selectColumnToIntArray(final String sql) throws SQLException {
+                return cached("ints", sql, null, new DbTask<int[]>() {
+                        @Override
+                        public int[] run(final MetaDb metaDb) throws SQLException {
+                                return metaDb.selectColumnToIntArray(sql);
+                        }
+                });
+        }
+
+        @Override
+        public final List<Object> selectColumn(final String sql, final int[] param) throws SQLException {
+                return selectColumn(sql, ArrayHelper.buildArrayList(param));
+        }
+
+        @Override
+        public final List<Object> selectColumn(final String sql, final int param) throws SQLException {
+                return selectColumn(sql, single(param));
+        }
+
+        @Override
+        public final List<Object> selectColumn(final String sql, final List<?> param) throws SQLException {
+                return cached("column", sql, param, new DbTask<List<Object>>() {
+                        @Override
+                        public List<Object> run(final MetaDb metaDb) throws SQLException {
+                                return metaDb.selectColumn(sql, param);
+                        }
+                });
+        }
+
+        @Override
+        public final List<List<Object>> selectAll(final String sql) throws SQLException {
+                return cached("all", sql, null, new DbTask<List<List<Object>>>() {
+                        @Override
+                        public List<List<Object>> run(final MetaDb metaDb) throws SQLException {
+                                return metaDb.selectAll(sql);
+                        }
+                });
+        }
+
+        @Override
+        public final List<List<Object>> selectAll(final String sql, final List<?> param) throws SQLException {
+                return cached("all", sql, param, new DbTask<List<List<Object>>>() {
+                        @Override
+                        public List<List<Object>> run(final MetaDb metaDb) throws SQLException {
+                                return metaDb.selectAll(sql, param);
+                        }
+                });
+        }
+
+        @Override
+        public final List<List<Object>> selectAll(final String sql, final String[] param)
+                        throws SQLException {
+                return selectAll(sql, ArrayHelper.buildArrayList(param));
+        }
+
+        @Override
+        public final List<List<Object>> selectAll(final String sql, final int[] param) throws SQLException {
+                return selectAll(sql, ArrayHelper.buildArrayList(param));
+        }
+
+        @Override
+        public final <T> List<List<Object>> selectAll(final String sql, final T param) throws SQLException {
+                return selectAll(sql, single(param));
+        }
+
+        @Override
+        public final int selectAll(final String sql, final List<?> param, final RowHandler handler)
+                        throws SQLException {
+                return db.selectAll(sql, param, handler);
+        }
+
+        @Override
+        public final void setFetchSize(final int fetchSize) {
+                db.setFetchSize(fetchSize);
+        }
+
+        @Override
+        public final ColumnarResult selectColumnar(final String sql) throws SQLException {
+                return db.selectColumnar(sql);
+        }
+
+        @Override
+        public final ColumnarResult selectColumnar(final String sql, final List<?> param)
+                        throws SQLException {
+                return db.selectColumnar(sql, param);
+        }
+
+        @Override
+        public final String insertDelayed(final String tablename, final Map<String, Object> fields)
+                        throws SQLException {
+                String sql = db.insertDelayed(tablename, fields);
+                written(tablename);
+                return sql;
+        }
+
+        @Override
+        public final String insert(final String tablename, final Map<String, Object> fields)
+                        throws SQLException {
+                String sql = db.insert(tablename, fields);
+                written(tablename);
+                return sql;
+        }
+
+        @Override
+        public final int update(final String tablename, final Map<String, Object> fields,
+                        final Map<String, Object> priKeys) throws SQLException {
+                int rowCount = db.update(tablename, fields, priKeys);
+                written(tablename);
+                return rowCount;
+        }
+
+        @Override
+        public final <T> int update(final String tablename, final Map<String, Object> fields,
+                        final String priName, final T priValue) throws SQLException {
+                int rowCount = db.update(tablename, fields, priName, priValue);
+                written(tablename);
+                return rowCount;
+        }
+
+        @Override
+        public final int[] insertBatch(final String tablename, final List<Map<String, Object>> rows)
+                        throws SQLException {
+                int[] counts = db.insertBatch(tablename, rows);
+                written(tablename);
+                return counts;
+        }
+
+        @Override
+        public final int[] updateBatch(final String tablename, final List<Map<String, Object>> fields,
+                        final List<Map<String, Object>> priKeys) throws SQLException {
+                int[] counts = db.updateBatch(tablename, fields, priKeys);
+                written(tablename);
+                return counts;
+        }
+
+        @Override
+        public final void setBatchSize(final int batchSize) {
+                db.setBatchSize(batchSize);
+        }
+
+        @Override
+        public final void setRewriteBatchedInserts(final boolean rewrite) {
+                db.setRewriteBatchedInserts(rewrite);
+        }
+
+        @Override
+        public final void setReadYourWrites(final boolean readYourWrites) {
+                db.setReadYourWrites(readYourWrites);
+        }
+
+        @Override
+        public final List<Object> selectRow(final String[] fields, final String query) throws SQLException {
+                return cached("row", fieldsSql(fields, query), null, new DbTask<List<Object>>() {
+                        @Override
+                        public List<Object> run(final MetaDb metaDb) throws SQLException {
+                                return metaDb.selectRow(fields, query);
+                        }
+                });
+        }
+
+        @Override
+        public final List<Object> selectRow(final String[] fields, final String query, final List<?> param)
+                        throws SQLException {
+                return cached("row", fieldsSql(fields, query), param, new DbTask<List<Object>>() {
+                        @Override
+                        public List<Object> run(final MetaDb metaDb) throws SQLException {
+                                return metaDb.selectRow(fields, query, param);
+                        }
+                });
+        }
+
+        @Override
+        public final List<Object> selectRow(final String[] fields, final String query, final int param)
+                        throws SQLException {
+                return selectRow(fields, query, single(param));
+        }
+
+        @Override
+        public final Map<String, Object> selectRowHashMap(final String[] fields, final String query)
+                        throws SQLException {
+                return cached("rowMap", fieldsSql(fields, query), null, new DbTask<Map<String, Object>>() {
+                        @Override
+                        public Map<String, Object> run(final MetaDb metaDb) throws SQLException {
+                                return metaDb.selectRowHashMap(fields, query);
+                        }
+                });
+        }
+
+        @Override
+        public final Map<String, Object> selectRowHashMap(final String[] fields, final String query,
+                        final List<?> param) throws SQLException {
+                return cached("rowMap", fieldsSql(fields, query), param, new DbTask<Map<String, Object>>() {
+                        @Override
+                        public Map<String, Object> run(final MetaDb metaDb) throws SQLException {
+                                return metaDb.selectRowHashMap(fields, query, param);
+                        }
+                });
+        }
+
+        @Override
+        public final Map<String, Object> selectRowHashMap(final String[] fields, final String query,
+                        final int param) throws SQLException {
+                return selectRowHashMap(fields, query, single(param));
+        }
+
+        @Override
+        public final Map<String, Object> selectRowHashMap(final List<String> fields, final String query,
+                        final int param) throws SQLException {
+                return selectRowHashMap(fields.toArray(new String[0]), query, single(param));
+        }
+
+        @Override
+        public final Map<String, Object> selectRowHashMap(final List<String> fields, final String query,
+                        final String param) throws SQLException {
+                return selectRowHashMap(fields.toArray(new String[0]), query, single(param));
+        }
+
+        @Override
+        public final Map<String, Object> selectRowHashMap(final String[] fields, final String query,
+                        final String param) throws SQLException {
+                return selectRowHashMap(fields, query, single(param));
+        }
+
+        @Override
+        public final Map<String, Object> selectRowHashMap(final String[] fields, final String query,
+                        final int[] param) throws SQLException {
+                return selectRowHashMap(fields, query, ArrayHelper.buildArrayList(param));
+        }
+
+        @Override
+        public final List<List<Object>> selectAll(final String[] fields, final String query)
+                        throws SQLException {
+                return cached("allQuoted", fieldsSql(fields, query), null, new DbTask<List<List<Object>>>() {
+                        @Override
+                        public List<List<Object>> run(final MetaDb metaDb) throws SQLException {
+                                return metaDb.selectAll(fields, query);
+                        }
+                });
+        }
+
+        @Override
+        public final List<List<Object>> selectAll(final List<String> fields, final String sql)
+                        throws SQLException {
+                return selectAll(fields.toArray(new String[0]), sql);
+        }
+
+        @Override
+        public final List<List<Object>> selectAll(final String[] fields, final String query,
+                        final List<?> param) throws SQLException {
+                return cached("all", fieldsSql(fields, query), param, new DbTask<List<List<Object>>>() {
+                        @Override
+                        public List<List<Object>> run(final MetaDb metaDb) throws SQLException {
+                                return metaDb.selectAll(fields, query, param);
+                        }
+                });
+        }
+
+        @Override
+        public final List<List<Object>> selectAll(final String[] fields, final String query, final int param)
+                        throws SQLException {
+                return selectAll(fields, query, single(param));
+        }
+
+        @Override
+        public final List<Map<String, Object>> selectAllHashMap(final List<String> fields, final String query)
+                        throws SQLException {
+                return selectAllHashMap(fields.toArray(new String[0]), query);
+        }
+
+        @Override
+        public final List<Map<String, Object>> selectAllHashMap(final String[] fields, final String query)
+                        throws SQLException {
+                String sql = fieldsSql(fields, query);
+                return cached("allMap", sql, null, new DbTask<List<Map<String, Object>>>() {
+                        @Override
+                        public List<Map<String, Object>> run(final MetaDb metaDb) throws SQLException {
+                                return metaDb.selectAllHashMap(fields, query);
+                        }
+                });
+        }
+
+        @Override
+        public final List<Map<String, Object>> selectAllHashMap(final String[] fields, final String query,
+                        final List<?> param) throws SQLException {
+                String sql = fieldsSql(fields, query);
+                return cached("allMap", sql, param, new DbTask<List<Map<String, Object>>>() {
+                        @Override
+                        public List<Map<String, Object>> run(final MetaDb metaDb) throws SQLException {
+                                return metaDb.selectAllHashMap(fields, query, param);
+                        }
+                });
+        }
+
+        @Override
+        public final List<Map<String, Object>> selectAllHashMap(final String[] fields, final String query,
+                        final int[] param) throws SQLException {
+                return selectAllHashMap(fields, query, ArrayHelper.buildArrayList(param));
+        }
+
+        @Override
+        public final <T> List<Map<String, Object>> selectAllHashMap(final String[] fields, final String query,
+                        final T param) throws SQLException {
+                return selectAllHashMap(fields, query, single(param));
+        }
+
+        @Override
+        public final void autoCommitTransactions(final boolean autoCommit) throws SQLException {
+                db.autoCommitTransactions(autoCommit);
+                inTransaction = !autoCommit;
+                if (autoCommit) {
+                        endTransaction(); //MySQL commits when autocommit is turned back on
+                }
+        }
+
+        @Override
+        public final void commitTransaction() throws SQLException {
+                db.commitTransaction();
+                endTransaction();
+        }
+
+        @Override
+        public final void rollbackTransaction() throws SQLException {
+                db.rollbackTransaction();
+                writtenInTransaction.clear();
+        }
+
+        /**
+         * Invalidate the tables written in the transaction again, since other
+         * threads may have cached the old data before the commit.
+         */
+        private void endTransaction() {
+                if (!writtenInTransaction.isEmpty()) {
+                        cache.invalidate(writtenInTransaction);
+                        writtenInTransaction.clear();
+                }
+        }
+
+        @Override
+        public final byte[] selectBlobField(final String sql) throws SQLException {
+                return db.selectBlobField(sql);
+        }
+
+        @Override
+        public final void closeResultSetAndStatement() {
+                db.closeResultSetAndStatement();
+        }
+
+        @Override
+        public final int newIdUsingSequence(final String tablename) throws SQLException {
+                return db.newIdUsingSequence(tablename);
+        }
+
+        @Override
+        public final void setDistinct(final boolean distinctStatus) {
+                distinct = distinctStatus;
+                db.setDistinct(distinctStatus);
+        }
+
+}
@@ -0,0 +1,734 @@
+package org.obliquid.db;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact, read-only query result stored column by column. Column names are
+ * kept once in a shared index instead of once per row, Integer, Long and
+ * Double columns are kept in primitive arrays and String columns of few
+ * distinct values are dictionary encoded, so repeated values (countries,
+ * statuses, ...) are stored once; String columns of mostly distinct values
+ * (ids, names, free text) are kept in plain arrays. Values are read by row and
+ * column, or through light Row views.
+ * 
+ * @author stivlo
+ */
+public final class ColumnarResult {
+
+        /** Initial capacity of the column arrays. */
+        private static final int INITIAL_CAPACITY = 64;
+
+        /** Rows read before checking the distinct values of a String column. */
+        private static final int DICTIONARY_MIN_ROWS = 64;
+
+        /** Maximum percentage of distinct values of a dictionary encoded column. */
+        private static final int DICTIONARY_MAX_DISTINCT_PERCENT = 50;
+
+        /** Column names in order. */
+        private final String[] names;
+
+        /** Column position by name. */
+        private final Map<String, Integer> index;
+
+        /** The column data. */
+        private final Column[] columns;
+
+        /** Number of rows. */
+        private int rowCount = 0;
+
+        /**
+         * Create an empty result with the given columns.
+         * 
+         * @param namesIn
+         *                column names
+         * @param classNames
+         *                Java class name of each column, as returned by
+         *                ResultSetMetaData.getColumnClassName()
+         */
+        ColumnarResult(final String[] namesIn, final String[] classNames) {
+                names = namesIn.clone();
+                index = new HashMap<String, Integer>(names.length * 2);
+                columns = new Column[names.length];
+                for (int i = 0; i < names.length; i++) {
+                        index.put(names[i], i);
+                        columns[i] = createColumn(classNames[i]);
+                }
+        }
+
+        /**
+         * Read all the rows of a ResultSet. Primitive columns are read with
+         * getInt(), getLong() and getDouble(), without boxing.
+         * 
+         * @param res
+         *                the ResultSet, positioned before the first row
+         * @return a new ColumnarResult
+         * @throws SQLException
+         *                 when there are DB problems
+         */
+        public static ColumnarResult fromResultSet(final ResultSet res) throws SQLException {
+                ResultSetMetaData meta = res.getMetaData();
+                int numCols = meta.getColumnCount();
+                String[] names = new String[numCols];
+                String[] classNames = new String[numCols];
+                for (int i = 0; i < numCols; i++) {
+                        names[i] = meta.getColumnLabel(i + 1);
+                        classNames[i] = meta.getColumnClassName(i + 1);
+                }
+                ColumnarResult result = new ColumnarResult(names, classNames);
+                while (res.next()) {
+                        for (int i = 0; i < numCols; i++) {
+                                result.columns[i].read(res, i + 1, result.rowCount);
+                        }
+                        result.rowCount++;
+                }
+                for (Column column : result.columns) {
+                        column.trim(result.rowCount);
+                }
+                return result;
+        }
+
+        /**
+         * Choose the storage for a column.
+         * 
+         * @param className
+         *                the Java class of the column values
+         * @return an empty Column
+         */
+        private static Column createColumn(final String className) {
+                if (Integer.class.getName().equals(className)) {
+                        return new IntColumn();
+                }
+                if (Long.class.getName().equals(className)) {
+                        return new LongColumn();
+                }
+                if (Double.class.getName().equals(className)) {
+                        return new DoubleColumn();
+                }
+                if (String.class.getName().equals(className)) {
+                        return new StringColumn();
+                }
+                return new ObjectColumn();
+        }
+
+        /**
+         * Return the number of rows.
+         * 
+         * @return number of rows
+         */
+        public int size() {
+                return rowCount;
+        }
+
+        /**
+         * Return the number of columns.
+         * 
+         * @return number of columns
+         */
+        public int getColumnCount() {
+                return names.length;
+        }
+
+        /**
+         * Return the column names in order.
+         * 
+         * @return a copy of the column names
+         */
+        public String[] getColumnNames() {
+                return names.clone();
+        }
+
+        /**
+         * Return the position of a column.
+         * 
+         * @param name
+         *                the column name or label
+         * @return the 0-based position of the column
+         * @throws IllegalArgumentException
+         *                 if there is no such column
+         */
+        public int getColumnIndex(final String name) throws IllegalArgumentException {
+                Integer position = index.get(name);
+                if (position == null) {
+                        throw new IllegalArgumentException("No column '" + name + "' in " + Arrays.toString(names));
+                }
+                return position;
+        }
+
+        /**
+         * Get a value, boxed as ResultSet.getObject() would return it.
+         * 
+         * @param row
+         *                0-based row
+         * @param col
+         *                0-based column
+         * @return the value, or null
+         */
+        public Object get(final int row, final int col) {
+                checkRow(row);
+                return columns[col].get(row);
+        }
+
+        /**
+         * Get a numeric value as int without boxing, 0 for NULL.
+         * 
+         * @param row
+         *                0-based row
+         * @param col
+         *                0-based column
+         * @return the value as int
+         */
+        public int getInt(final int row, final int col) {
+                checkRow(row);
+                return (int) columns[col].getLong(row);
+        }
+
+        /**
+         * Get a numeric value as long without boxing, 0 for NULL.
+         * 
+         * @param row
+         *                0-based row
+         * @param col
+         *                0-based column
+         * @return the value as long
+         */
+        public long getLong(final int row, final int col) {
+                checkRow(row);
+                return columns[col].getLong(row);
+        }
+
+        /**
+         * Get a numeric value as double without boxing, 0 for NULL.
+         * 
+         * @param row
+         *                0-based row
+         * @param col
+         *                0-based column
+         * @return the value as double
+         */
+        public double getDouble(final int row, final int col) {
+                checkRow(row);
+                return columns[col].getDouble(row);
+        }
+
+        /**
+         * Get a value as String.
+         * 
+         * @param row
+         *                0-based row
+         * @param col
+         *                0-based column
+         * @return the value as String, or null
+         */
+        public String getString(final int row, final int col) {
+                Object value = get(row, col);
+                if (value == null) {
+                        return null;
+                }
+                return value.toString();
+        }
+
+        /**
+         * Whether a value is NULL.
+         * 
+         * @param row
+         *                0-based row
+         * @param col
+         *                0-based column
+         * @return true for NULL
+         */
+        public boolean isNull(final int row, final int col) {
+                checkRow(row);
+                return columns[col].isNull(row);
+        }
+
+        /**
+         * Return a view of a row. The view doesn't copy any data.
+         * 
+         * @param row
+         *                0-based row
+         * @return a Row view
+         */
+        public Row getRow(final int row) {
+                checkRow(row);
+                return new Row(row);
+        }
+
+        /**
+         * Copy a row into a List, as returned by MetaDb.selectRow().
+         * 
+         * @param row
+         *                0-based row
+         * @return a new List with the row values
+         */
+        public List<Object> getRowAsList(final int row) {
+                checkRow(row);
+                List<Object> list = new ArrayList<Object>(columns.length);
+                for (Column column : columns) {
+                        list.add(column.get(row));
+                }
+                return list;
+        }
+
+        /**
+         * Check a row number.
+         * 
+         * @param row
+         *                0-based row
+         */
+        private void checkRow(final int row) {
+                if (row < 0 || row >= rowCount) {
+                        throw new IndexOutOfBoundsException("Row " + row + ", size " + rowCount);
+                }
+        }
+
+        /**
+         * A view of one row, reading values by column name or position.
+         */
+        public final class Row {
+
+                /** The row number. */
+                private final int row;
+
+                /**
+                 * Create a view.
+                 * 
+                 * @param rowIn
+                 *                0-based row
+                 */
+                private Row(final int rowIn) {
+                        row = rowIn;
+                }
+
+                /**
+                 * Get a value by position.
+                 * 
+                 * @param col
+                 *                0-based column
+                 * @return the value, or null
+                 */
+                public Object get(final int col) {
+                        return ColumnarResult.this.get(row, col);
+                }
+
+                /**
+                 * Get a value by column name.
+                 * 
+                 * @param name
+                 *                the column name or label
+                 * @return the value, or null
+                 */
+                public Object get(final String name) {
+                        return ColumnarResult.this.get(row, getColumnIndex(name));
+                }
+
+                /**
+                 * Get a numeric value as int, 0 for NULL.
+                 * 
+                 * @param name
+                 *                the column name or label
+                 * @return the value as int
+                 */
+                public int getInt(final String name) {
+                        return ColumnarResult.this.getInt(row, getColumnIndex(name));
+                }
+
+                /**
+                 * Get a numeric value as long, 0 for NULL.
+                 * 
+                 * @param name
+                 *                the column name or label
+                 * @return the value as long
+                 */
+                public long getLong(final String name) {
+                        return ColumnarResult.this.getLong(row, getColumnIndex(name));
+                }
+
+                /**
+                 * Get a numeric value as double, 0 for NULL.
+                 * 
+                 * @param name
+                 *                the column name or label
+                 * @return the value as double
+                 */
+                public double getDouble(final String name) {
+                        return ColumnarResult.this.getDouble(row, getColumnIndex(name));
+                }
+
+                /**
+                 * Get a value as String.
+                 * 
+                 * @param name
+                 *                the column name or label
+                 * @return the value as String, or null
+                 */
+                public String getString(final String name) {
+                        return ColumnarResult.this.getString(row, getColumnIndex(name));
+                }
+
+        }
+
+        /**
+         * Storage of the values of one column.
+         */
+        private abstract static class Column {
+
+                /** Rows holding NULL. */
+                private final BitSet nulls = new BitSet();
+
+                /**
+                 * Read the value of the current row from the ResultSet.
+                 * 
+                 * @param res
+                 *                the ResultSet
+                 * @param col
+                 *                1-based column
+                 * @param row
+                 *                0-based row being read
+                 * @throws SQLException
+                 *                 when there are DB problems
+                 */
+                abstract void read(ResultSet res, int col, int row) throws SQLException;
+
+                /**
+                 * Get a value boxed.
+                 * 
+                 * @param row
+                 *                0-based row
+                 * @return the value or null
+                 */
+                abstract Object get(int row);
+
+                /**
+                 * Shrink the storage to the final number of rows.
+                 * 
+                 * @param size
+                 *                number of rows
+                 */
+                abstract void trim(int size);
+
+                /**
+                 * Get a numeric value as long, overridden by numeric columns.
+                 * 
+                 * @param row
+                 *                0-based row
+                 * @return the value as long
+                 */
+                long getLong(final int row) {
+                        Object value = get(row);
+                        if (value == null) {
+                                return 0;
+                        }
+                        return ((Number) value).longValue();
+                }
+
+                /**
+                 * Get a numeric value as double, overridden by numeric columns.
+                 * 
+                 * @param row
+                 *                0-based row
+                 * @return the value as double
+                 */
+                double getDouble(final int row) {
+                        Object value = get(row);
+                        if (value == null) {
+                                return 0;
+                        }
+                        return ((Number) value).doubleValue();
+                }
+
+                /**
+                 * Record whether the value just read was NULL.
+                 * 
+                 * @param res
+                 *                the ResultSet
+                 * @param row
+                 *                0-based row
+                 * @throws SQLException
+                 *                 when there are DB problems
+                 */
+                final void checkNull(final ResultSet res, final int row) throws SQLException {
+                        if (res.wasNull()) {
+                                nulls.set(row);
+                        }
+                }
+
+                /**
+                 * @param row
+                 *                0-based row
+                 * @return true if the value is NULL
+                 */
+                final boolean isNull(final int row) {
+                        return nulls.get(row);
+                }
+
+                /**
+                 * Compute the capacity needed to store one more row.
+                 * 
+                 * @param length
+                 *                current capacity
+                 * @param row
+                 *                row to be stored
+                 * @return the new capacity
+                 */
+                static int grow(final int length, final int row) {
+                        if (row < length) {
+                                return length;
+                        }
+                        return Math.max(INITIAL_CAPACITY, length * 2);
+                }
+
+        }
+
+        /** An INTEGER column. */
+        private static final class IntColumn extends Column {
+
+                /** Values. */
+                private int[] values = new int[0];
+
+                @Override
+                void read(final ResultSet res, final int col, final int row) throws SQLException {
+                        if (row >= values.length) {
+                                values = Arrays.copyOf(values, grow(values.length, row));
+                        }
+                        values[row] = res.getInt(col);
+                        checkNull(res, row);
+                }
+
+                @Override
+                Object get(final int row) {
+                        if (isNull(row)) {
+                                return null;
+                        }
+                        return values[row];
+                }
+
+                @Override
+                long getLong(final int row) {
+                        return values[row];
+                }
+
+                @Override
+                double getDouble(final int row) {
+                        return values[row];
+                }
+
+                @Override
+                void trim(final int size) {
+                        values = Arrays.copyOf(values, size);
+                }
+
+        }
+
+        /** A BIGINT column. */
+        private static final class LongColumn extends Column {
+
+                /** Values. */
+                private long[] values = new long[0];
+
+                @Override
+                void read(final ResultSet res, final int col, final int row) throws SQLException {
+                        if (row >= values.length) {
+                                values = Arrays.copyOf(values, grow(values.length, row));
+                        }
+                        values[row] = res.getLong(col);
+                        checkNull(res, row);
+                }
+
+                @Override
+                Object get(final int row) {
+                        if (isNull(row)) {
+                                return null;
+                        }
+                        return values[row];
+                }
+
+                @Override
+                long getLong(final int row) {
+                        return values[row];
+                }
+
+                @Override
+                double getDouble(final int row) {
+                        return values[row];
+                }
+
+                @Override
+                void trim(final int size) {
+                        values = Arrays.copyOf(values, size);
+                }
+
+        }
+
+        /** A DOUBLE column. */
+        private static final class DoubleColumn extends Column {
+
+                /** Values. */
+                private double[] values = new double[0];
+
+                @Override
+                void read(final ResultSet res, final int col, final int row) throws SQLException {
+                        if (row >= values.length) {
+                                values = Arrays.copyOf(values, grow(values.length, row));
+                        }
+                        values[row] = res.getDouble(col);
+                        checkNull(res, row);
+                }
+
+                @Override
+                Object get(final int row) {
+                        if (isNull(row)) {
+                                return null;
+                        }
+                        return values[row];
+                }
+
+                @Override
+                long getLong(final int row) {
+                        return (long) values[row];
+                }
+
+                @Override
+                double getDouble(final int row) {
+                        return values[row];
+                }
+
+                @Override
+                void trim(final int size) {
+                        values = Arrays.copyOf(values, size);
+                }
+
+        }
+
+        /**
+         * A String column, dictionary encoded: each distinct value is stored
+         * once and rows hold its code, NULL being code -1. When more than
+         * DICTIONARY_MAX_DISTINCT_PERCENT of the rows have distinct values, the
+         * dictionary saves nothing and the column switches to a plain array.
+         */
+        private static final class StringColumn extends Column {
+
+                /** Code of each row, null when not encoded. */
+                private int[] codes = new int[0];
+
+                /** Distinct values by code. */
+                private List<String> dictionary = new ArrayList<String>();
+
+                /** Code by value, only needed while reading. */
+                private Map<String, Integer> lookup = new HashMap<String, Integer>();
+
+                /** The dictionary as an array, after trim(). */
+                private String[] table;
+
+                /** The values, when not encoded. */
+                private String[] values;
+
+                @Override
+                void read(final ResultSet res, final int col, final int row) throws SQLException {
+                        String value = res.getString(col);
+                        checkNull(res, row);
+                        if (values != null) {
+                                if (row >= values.length) {
+                                        values = Arrays.copyOf(values, grow(values.length, row));
+                                }
+                                values[row] = value;
+                                return;
+                        }
+                        if (row >= codes.length) {
+                                codes = Arrays.copyOf(codes, grow(codes.length, row));
+                        }
+                        if (value == null) {
+                                codes[row] = -1;
+                                return;
+                        }
+                        Integer code = lookup.get(value);
+                        if (code == null) {
+                                code = dictionary.size();
+                                dictionary.add(value);
+                                lookup.put(value, code);
+                        }
+                        codes[row] = code;
+                        int size = row + 1;
+                        if (size >= DICTIONARY_MIN_ROWS
+                                        && dictionary.size() * 100L > (long) size * DICTIONARY_MAX_DISTINCT_PERCENT) {
+                                decode(size);
+                        }
+                }
+
+                /**
+                 * Switch to a plain array, for too many distinct values.
+                 * 
+                 * @param size
+                 *                number of rows read
+                 */
+                private void decode(final int size) {
+                        values = new String[codes.length];
+                        for (int i = 0; i < size; i++) {
+                                values[i] = codes[i] < 0 ? null : dictionary.get(codes[i]);
+                        }
+                        codes = null;
+                        dictionary = null;
+                        lookup = null;
+                }
+
+                @Override
+                Object get(final int row) {
+                        if (values != null) {
+                                return values[row];
+                        }
+                        int code = codes[row];
+                        if (code < 0) {
+                                return null;
+                        }
+                        return table[code];
+                }
+
+                @Override
+                void trim(final int size) {
+                        if (values != null) {
+                                values = Arrays.copyOf(values, size);
+                                return;
+                        }
+                        codes = Arrays.copyOf(codes, size);
+                        table = dictionary.toArray(new String[dictionary.size()]);
+                        dictionary = null;
+                        lookup = null;
+                }
+
+        }
+
+        /** Any other type, kept as returned by getObject(). */
+        private static final class ObjectColumn extends Column {
+
+                /** Values. */
+                private Object[] values = new Object[0];
+
+                @Override
+                void read(final ResultSet res, final int col, final int row) throws SQLException {
+                        if (row >= values.length) {
+                                values = Arrays.copyOf(values, grow(values.length, row));
+                        }
+                        values[row] = res.getObject(col);
+                        checkNull(res, row);
+                }
+
+                @Override
+                Object get(final int row) {
+                        return values[row];
+                }
+
+                @Override
+                void trim(final int size) {
+                        values = Arrays.copyOf(values, size);
+                }
+
+        }
+
+}
@@ -0,0 +1,199 @@
+package org.obliquid.db;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.obliquid.config.AppConfig;
+
+/**
+ * Keep track of the connections borrowed by MetaDb and of where they were
+ * borrowed, and report the ones held for longer than a threshold. This
+ * replaces the old finalize() safety net in ConnectionManager: instead of
+ * waiting for a garbage collection, a leaked connection is reported with the
+ * stack trace of the code that borrowed it.
+ * 
+ * @author stivlo
+ */
+public final class ConnectionLeakDetector {
+
+        /** Default threshold in seconds. */
+        public static final int DEFAULT_THRESHOLD = 300;
+
+        /** How many milliseconds in a second (1000). */
+        private static final int MS_IN_A_SEC = 1000;
+
+        /** The detector configured from AppConfig. */
+        private static volatile ConnectionLeakDetector singleton = null;
+
+        /** Connections held for longer than this (milliseconds) are reported. */
+        private final long thresholdMs;
+
+        /** Borrowed connections and where they were borrowed. */
+        private final Map<Connection, Borrow> borrowed = new ConcurrentHashMap<Connection, Borrow>();
+
+        /** Runs the periodic check, created on first use. */
+        private Timer timer;
+
+        /** Log4j instance. */
+        private static final Logger LOG = Logger.getLogger(ConnectionLeakDetector.class);
+
+        /**
+         * Create a detector.
+         * 
+         * @param thresholdSeconds
+         *                report connections held longer than this, 0 disables
+         *                the tracking
+         */
+        public ConnectionLeakDetector(final int thresholdSeconds) {
+                thresholdMs = (long) thresholdSeconds * MS_IN_A_SEC;
+        }
+
+        /**
+         * Get the detector used by ConnectionManager. The threshold is read
+         * from the optional property dbLeakThreshold, in seconds, 0 disables
+         * the detection.
+         * 
+         * @return the shared ConnectionLeakDetector instance
+         */
+        public static ConnectionLeakDetector getInstance() {
+                if (singleton != null) {
+                        return singleton;
+                }
+                synchronized (ConnectionLeakDetector.class) {
+                        if (singleton != null) { //check again inside synchronized
+                                return singleton;
+                        }
+                        AppConfig conf = AppConfig.getInstance();
+                        int threshold = DEFAULT_THRESHOLD;
+                        if (conf != null) {
+                                threshold = conf.getPropertyAsInt("dbLeakThreshold", DEFAULT_THRESHOLD);
+                        }
+                        singleton = new ConnectionLeakDetector(threshold);
+                }
+                return singleton;
+        }
+
+        /**
+         * Whether the detector is tracking connections.
+         * 
+         * @return false when the threshold is 0
+         */
+        public boolean isEnabled() {
+                return thresholdMs > 0;
+        }
+
+        /**
+         * Start tracking a borrowed connection, recording the current stack.
+         * 
+         * @param conn
+         *                the borrowed connection
+         */
+        void track(final Connection conn) {
+                if (!isEnabled() || conn == null) {
+                        return;
+                }
+                startTimer();
+                borrowed.put(conn, new Borrow());
+        }
+
+        /**
+         * Stop tracking a connection that was released.
+         * 
+         * @param conn
+         *                the released connection
+         */
+        void untrack(final Connection conn) {
+                if (conn != null) {
+                        borrowed.remove(conn);
+                }
+        }
+
+        /**
+         * Schedule the periodic check the first time a connection is tracked.
+         */
+        private synchronized void startTimer() {
+                if (timer != null) {
+                        return;
+                }
+                timer = new Timer("ConnectionLeakDetector", true);
+                long period = Math.max(1L, thresholdMs / 2);
+                timer.schedule(new TimerTask() {
+                        @Override
+                        public void run() {
+                                checkForLeaks();
+                        }
+                }, period, period);
+        }
+
+        /**
+         * Log an error with the borrowing stack trace for every connection held
+         * past the threshold. Each connection is reported only once.
+         * 
+         * @return the number of connections reported by this call
+         */
+        public int checkForLeaks() {
+                long oldestAllowed = System.currentTimeMillis() - thresholdMs;
+                int reported = 0;
+                for (Iterator<Map.Entry<Connection, Borrow>> it = borrowed.entrySet().iterator(); it.hasNext();) {
+                        Map.Entry<Connection, Borrow> entry = it.next();
+                        Borrow borrow = entry.getValue();
+                        if (!borrow.reported && borrow.time <= oldestAllowed) {
+                                borrow.reported = true;
+                                reported++;
+                                LOG.error("Connection " + entry.getKey() + " held for "
+                                                + (System.currentTimeMillis() - borrow.time) / MS_IN_A_SEC
+                                                + "s, possible leak", borrow.site);
+                        }
+                }
+                return reported;
+        }
+
+        /**
+         * Return where the connections held past the threshold were borrowed.
+         * 
+         * @return a list of stack traces, one per suspected leak
+         */
+        public List<StackTraceElement[]> getSuspectedLeaks() {
+                long oldestAllowed = System.currentTimeMillis() - thresholdMs;
+                List<StackTraceElement[]> leaks = new ArrayList<StackTraceElement[]>();
+                for (Borrow borrow : borrowed.values()) {
+                        if (borrow.time <= oldestAllowed) {
+                                leaks.add(borrow.site.getStackTrace());
+                        }
+                }
+                return leaks;
+        }
+
+        /**
+         * Return the number of connections currently tracked.
+         * 
+         * @return connections borrowed and not released
+         */
+        public int getTrackedCount() {
+                return borrowed.size();
+        }
+
+        /**
+         * When and where a connection was borrowed.
+         */
+        private static final class Borrow {
+
+                /** The borrowing stack, captured at construction. */
+                private final Throwable site = new Throwable("Connection borrowed here");
+
+                /** When the connection was borrowed. */
+                private final long time = System.currentTimeMillis();
+
+                /** Whether the leak was already logged. */
+                private volatile boolean reported = false;
+
+        }
+
+}
@@ -20,12 +20,24 @@ import org.obliquid.config.AppConfig;
  */
 class ConnectionManager {
 
-        /** Number of open connections, or pool connections we're using. */
-        private static volatile int nOpen = 0;
+        /** Counters shared by all connections. */
+        private static final ConnectionMetrics METRICS = ConnectionMetrics.getInstance();
 
         /** DB Connection. */
         private Connection conn = null;
 
+        /** Whether conn is a stand-alone connection, closed for real on release. */
+        private boolean standalone = false;
+
+        /** Connection to a replica for read-only queries, null if none. */
+        private Connection readConn = null;
+
+        /** The replica readConn is connected to. */
+        private ReplicaSet.Replica readReplica = null;
+
+        /** The read replicas, null to read from the primary. */
+        private ReplicaSet replicas;
+
         /**
          * Configuration parameters.
          */
@@ -36,6 +48,12 @@ class ConnectionManager {
          */
         private boolean usePool;
 
+        /**
+         * Whether the pool is the embedded ConnectionPool instead of a JNDI
+         * DataSource.
+         */
+        private boolean useEmbeddedPool;
+
         /** A reference to application configuration. */
         private final AppConfig conf;
 
@@ -105,6 +123,27 @@ class ConnectionManager {
                 usePool = usePoolArg;
         }
 
+        /**
+         * Use the embedded ConnectionPool rather than a JNDI DataSource when a
+         * pooled connection is requested.
+         * 
+         * @param useEmbeddedPoolArg
+         *                whether to use the embedded connection pool
+         */
+        public void setUseEmbeddedPool(final boolean useEmbeddedPoolArg) {
+                useEmbeddedPool = useEmbeddedPoolArg;
+        }
+
+        /**
+         * Set the read replicas.
+         * 
+         * @param replicasArg
+         *                the replicas, null to read from the primary
+         */
+        public void setReplicaSet(final ReplicaSet replicasArg) {
+                replicas = replicasArg;
+        }
+
         /**
          * Default constructor.
          */
@@ -117,6 +156,8 @@ class ConnectionManager {
                         password = null;
                         dataSourceName = null;
                         usePool = false;
+                        useEmbeddedPool = false;
+                        replicas = null;
                 } else {
                         driver = conf.getProperty("dbDriver");
                         url = conf.getProperty("dbUrl");
@@ -124,6 +165,8 @@ class ConnectionManager {
                         password = conf.getProperty("dbPassword");
                         dataSourceName = conf.getProperty("dbDataSourceName");
                         usePool = conf.getPropertyAsBoolean("dbUsePool");
+                        useEmbeddedPool = conf.getPropertyAsBoolean("dbUseEmbeddedPool", false);
+                        replicas = ReplicaSet.getInstance();
                 }
         }
 
@@ -226,7 +269,9 @@ class ConnectionManager {
          * JFig parameter database.usePool ("true"/"false"), or from the
          * internal instance variable holding a Connection. Default: false In
          * order to use this method, you've to extend this class and override
-         * getDataSourceName() method.
+         * getDataSourceName() method. When dbUseEmbeddedPool is "true" the
+         * connection comes from the embedded ConnectionPool, with no need of a
+         * container.
          * 
          * @return a Connection to the DB that should be used only to handle
          *         special cases, normally methods from this class should be
@@ -238,7 +283,10 @@ class ConnectionManager {
                 if (conn != null && !conn.isClosed()) {
                         return conn;
                 }
-                if (usePool) {
+                if (conn != null) {
+                        releaseConnection(); //closed behind our back, update the counters
+                }
+                if (usePool || useEmbeddedPool) {
                         return getPoolableConnection();
                 }
                 return getStandaloneConnection();
@@ -260,22 +308,27 @@ class ConnectionManager {
                 } catch (Exception ex) {
                         throw new SQLException(ex);
                 }
-                synchronized (ConnectionManager.class) {
-                        nOpen++;
-                }
-                LOG.info("getStandaloneConnection() nOpen=" + nOpen);
-                // Thread.dumpStack();
+                standalone = true;
+                METRICS.recordOpened();
+                recordBorrowed(conn);
                 return conn;
         }
 
         /**
-         * Really get a new Pool-able Connection.
+         * Really get a new Pool-able Connection, from the embedded pool or from
+         * the JNDI DataSource.
          * 
          * @return a pool-able Connection
          * @throws SQLException
          *                 in case the connection can't be established
          */
         private Connection getPoolableConnection() throws SQLException {
+                if (useEmbeddedPool) {
+                        conn = ConnectionPool.getInstance().borrow();
+                        standalone = false;
+                        recordBorrowed(conn);
+                        return conn;
+                }
                 if (ds == null) {
                         try {
                                 InitialContext ctx = new InitialContext();
@@ -285,52 +338,118 @@ class ConnectionManager {
                         }
                 }
                 conn = ds.getConnection();
-                synchronized (ConnectionManager.class) {
-                        nOpen++;
-                }
-                LOG.info("getPoolableConnection() nOpen=" + nOpen);
+                standalone = false;
+                recordBorrowed(conn);
                 return conn;
         }
 
         /**
-         * Release a connection. If it's a stand-alone Connection, the
-         * connection is closed, otherwise is returned to the pool. In any case
-         * always remember to close open connections to avoid connections
-         * leaking. Connections should be closed in the finally clause to be
-         * able to close them even when an Exception is raised.
+         * Update the counters and start tracking the connection just obtained
+         * for leaks.
+         * 
+         * @param borrowed
+         *                the connection
+         */
+        private void recordBorrowed(final Connection borrowed) {
+                METRICS.recordBorrowed();
+                ConnectionLeakDetector.getInstance().track(borrowed);
+        }
+
+        /**
+         * Get a connection to a replica for read-only queries, kept until
+         * releaseConnection(). A replica that can't be connected to is taken
+         * out of rotation and the next one is tried. When there are no
+         * replicas in rotation, the connection to the primary is returned.
          * 
+         * @return a Connection to a replica, or to the primary
          * @throws SQLException
-         *                 in case of problems
+         *                 in case the connection to the primary fails
          */
-        public void releaseConnection() throws SQLException {
-                if (conn != null && !conn.isClosed()) {
-                        conn.close();
-                        synchronized (ConnectionManager.class) {
-                                nOpen--;
+        public Connection getReadConnection() throws SQLException {
+                if (readConn != null && !readConn.isClosed()) {
+                        return readConn;
+                }
+                if (readConn != null) {
+                        releaseReadConnection(); //closed behind our back, update the counters
+                }
+                for (int i = 0; replicas != null && i < replicas.size(); i++) {
+                        ReplicaSet.Replica replica = replicas.choose();
+                        if (replica == null) {
+                                break;
                         }
+                        try {
+                                readConn = replicas.open(replica);
+                        } catch (SQLException ex) {
+                                LOG.warn("Can't connect to replica " + replica.getUrl() + ": "
+                                                + ex.getMessage());
+                                replicas.release(replica, true);
+                                continue;
+                        }
+                        readReplica = replica;
+                        if (!replica.isPooled()) {
+                                METRICS.recordOpened();
+                        }
+                        recordBorrowed(readConn);
+                        return readConn;
                 }
-                conn = null;
-                LOG.info("releaseConnection() nOpen=" + nOpen);
+                return getConnection();
         }
 
         /**
-         * Close the Connection if it was forgot open, when the Object is
-         * garbage collected. DO NOT RELY ON THIS! Always close your own
-         * connections. Objects in a running Java program might not get garbage
-         * collected and the connection left open indefinitely. Also, do not
-         * call finalise() directly, use releaseConnection() instead. In case
-         * finalise is forced to close a connection will write to stdout the
-         * following message: "*** ERROR: Db.finalize() - OPEN CONNECTION"
+         * Release the connection to the replica, if any.
+         * 
+         * @throws SQLException
+         *                 in case of problems
          */
-        @Override
-        protected void finalize() {
-                if (conn != null) {
-                        LOG.error("Db.finalize() - OPEN CONNECTION");
+        private void releaseReadConnection() throws SQLException {
+                if (readConn == null) {
+                        return;
                 }
+                Connection released = readConn;
+                ReplicaSet.Replica replica = readReplica;
+                readConn = null;
+                readReplica = null;
+                replicas.release(replica, false);
+                ConnectionLeakDetector.getInstance().untrack(released);
+                METRICS.recordReturned();
+                if (!replica.isPooled()) {
+                        METRICS.recordClosed();
+                }
+                if (!released.isClosed()) {
+                        released.close();
+                }
+        }
+
+        /**
+         * Release a connection. If it's a stand-alone Connection, the
+         * connection is closed, otherwise is returned to the pool. In any case
+         * always remember to close open connections to avoid connections
+         * leaking. Connections should be closed in the finally clause to be
+         * able to close them even when an Exception is raised. Connections
+         * that are never released are reported by ConnectionLeakDetector, with
+         * the stack trace of the code that obtained them.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        public void releaseConnection() throws SQLException {
                 try {
-                        releaseConnection();
+                        releaseReadConnection();
                 } catch (SQLException ex) {
-                        LOG.error(ex.toString());
+                        LOG.error(ex.getMessage());
+                }
+                if (conn == null) {
+                        return;
+                }
+                Connection released = conn;
+                conn = null;
+                ConnectionLeakDetector.getInstance().untrack(released);
+                METRICS.recordReturned();
+                if (standalone) {
+                        METRICS.recordClosed();
+                }
+                if (!released.isClosed()) {
+                        released.close();
                 }
         }
 
@@ -347,6 +466,9 @@ class ConnectionManager {
                 if (conn != null && !conn.isClosed()) {
                         return conn;
                 }
+                if (conn != null) {
+                        releaseConnection(); //closed behind our back, update the counters
+                }
                 if (usePoolIn) {
                         return getPoolableConnection();
                 }
@@ -355,12 +477,13 @@ class ConnectionManager {
 
         /**
          * Return the number of currently open connections. Useful to check that
-         * all opened connections have been closed.
+         * all opened connections have been closed. See ConnectionMetrics for
+         * more counters.
          * 
          * @return number of currently opened connections.
          */
         public static int getNumberOfOpenConnections() {
-                return nOpen;
+                return METRICS.getBorrowedConnections();
         }
 
         /**
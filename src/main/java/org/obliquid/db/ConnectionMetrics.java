@@ -0,0 +1,200 @@
+package org.obliquid.db;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counters about the connections used by MetaDb: physical
+ * connections open, connections currently borrowed, the peak of borrowed
+ * connections and a histogram of the time spent waiting for a pooled
+ * connection. All the methods are thread safe and never block.
+ * 
+ * @author stivlo
+ */
+public final class ConnectionMetrics {
+
+        /**
+         * Upper bounds (exclusive, in milliseconds) of the wait time histogram
+         * buckets. The last bucket counts everything from 10 seconds on.
+         */
+        private static final long[] WAIT_BUCKET_BOUNDS = { 1, 10, 100, 1000, 10000 };
+
+        /** Nanoseconds in a millisecond. */
+        private static final long NANOS_IN_A_MS = 1000000L;
+
+        /** The metrics shared by ConnectionManager and ConnectionPool. */
+        private static final ConnectionMetrics INSTANCE = new ConnectionMetrics();
+
+        /** Physical connections currently open. */
+        private final AtomicInteger open = new AtomicInteger(0);
+
+        /** Connections currently handed out to MetaDb instances. */
+        private final AtomicInteger borrowed = new AtomicInteger(0);
+
+        /** The highest value reached by borrowed. */
+        private final AtomicInteger peakBorrowed = new AtomicInteger(0);
+
+        /** Total number of borrows since start. */
+        private final AtomicLong totalBorrows = new AtomicLong(0);
+
+        /** Total time spent waiting for a pooled connection, in nanoseconds. */
+        private final AtomicLong totalWaitNanos = new AtomicLong(0);
+
+        /** Wait time histogram, one slot more than the bounds. */
+        private final AtomicLongArray waitHistogram = new AtomicLongArray(WAIT_BUCKET_BOUNDS.length + 1);
+
+        /**
+         * Create an empty set of counters. Normally the shared instance
+         * returned by getInstance() is used.
+         */
+        ConnectionMetrics() {
+                //all counters start from zero
+        }
+
+        /**
+         * Get the metrics shared by all the connections managed by MetaDb.
+         * 
+         * @return the shared ConnectionMetrics instance
+         */
+        public static ConnectionMetrics getInstance() {
+                return INSTANCE;
+        }
+
+        /** Record a new physical connection. */
+        void recordOpened() {
+                open.incrementAndGet();
+        }
+
+        /** Record that a physical connection was closed. */
+        void recordClosed() {
+                open.decrementAndGet();
+        }
+
+        /** Record that a connection was handed out. */
+        void recordBorrowed() {
+                totalBorrows.incrementAndGet();
+                int current = borrowed.incrementAndGet();
+                int peak = peakBorrowed.get();
+                while (current > peak && !peakBorrowed.compareAndSet(peak, current)) {
+                        peak = peakBorrowed.get();
+                }
+        }
+
+        /** Record that a borrowed connection was given back. */
+        void recordReturned() {
+                borrowed.decrementAndGet();
+        }
+
+        /**
+         * Record the time a borrower waited for a pooled connection.
+         * 
+         * @param waitNanos
+         *                the wait time in nanoseconds
+         */
+        void recordWait(final long waitNanos) {
+                totalWaitNanos.addAndGet(waitNanos);
+                long waitMs = waitNanos / NANOS_IN_A_MS;
+                int bucket = 0;
+                while (bucket < WAIT_BUCKET_BOUNDS.length && waitMs >= WAIT_BUCKET_BOUNDS[bucket]) {
+                        bucket++;
+                }
+                waitHistogram.incrementAndGet(bucket);
+        }
+
+        /**
+         * Return the number of physical connections currently open, stand-alone
+         * or held by the embedded pool (idle or borrowed).
+         * 
+         * @return physical connections open
+         */
+        public int getOpenConnections() {
+                return open.get();
+        }
+
+        /**
+         * Return the number of connections currently in use by MetaDb
+         * instances, whatever their origin (stand-alone, JNDI or embedded pool).
+         * 
+         * @return connections borrowed and not yet released
+         */
+        public int getBorrowedConnections() {
+                return borrowed.get();
+        }
+
+        /**
+         * Return the highest number of connections borrowed at the same time.
+         * 
+         * @return the peak of borrowed connections
+         */
+        public int getPeakBorrowedConnections() {
+                return peakBorrowed.get();
+        }
+
+        /**
+         * Return the number of connections borrowed since start.
+         * 
+         * @return total borrows
+         */
+        public long getTotalBorrows() {
+                return totalBorrows.get();
+        }
+
+        /**
+         * Return the total time spent waiting for a pooled connection.
+         * 
+         * @return total wait time in milliseconds
+         */
+        public long getTotalWaitMillis() {
+                return totalWaitNanos.get() / NANOS_IN_A_MS;
+        }
+
+        /**
+         * Return the upper bounds of the wait time histogram buckets, in
+         * milliseconds. Bucket i counts waits shorter than bound i (and not
+         * shorter than bound i-1), the last bucket counts all longer waits.
+         * 
+         * @return a copy of the bucket bounds
+         */
+        public long[] getWaitBucketBounds() {
+                return WAIT_BUCKET_BOUNDS.clone();
+        }
+
+        /**
+         * Return a copy of the wait time histogram, with one element more than
+         * getWaitBucketBounds().
+         * 
+         * @return wait counts per bucket
+         */
+        public long[] getWaitHistogram() {
+                long[] copy = new long[waitHistogram.length()];
+                for (int i = 0; i < copy.length; i++) {
+                        copy[i] = waitHistogram.get(i);
+                }
+                return copy;
+        }
+
+        @Override
+        public String toString() {
+                StringBuilder sb = new StringBuilder();
+                sb.append("open=").append(getOpenConnections());
+                sb.append(" borrowed=").append(getBorrowedConnections());
+                sb.append(" peak=").append(getPeakBorrowedConnections());
+                sb.append(" totalBorrows=").append(getTotalBorrows());
+                sb.append(" waitHistogram=");
+                long[] histogram = getWaitHistogram();
+                for (int i = 0; i < histogram.length; i++) {
+                        if (i > 0) {
+                                sb.append(',');
+                        }
+                        if (i < WAIT_BUCKET_BOUNDS.length) {
+                                sb.append("<").append(WAIT_BUCKET_BOUNDS[i]).append("ms:");
+                        } else {
+                                sb.append(">=").append(WAIT_BUCKET_BOUNDS[i - 1]).append("ms:");
+                        }
+                        sb.append(histogram[i]);
+                }
+                return sb.toString();
+        }
+
+}
@@ -0,0 +1,583 @@
+package org.obliquid.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.obliquid.config.AppConfig;
+
+/**
+ * A small bounded JDBC connection pool for programs running outside a
+ * container, where no JNDI DataSource is available (batch jobs, scripts such
+ * as RecodeDb). Connections handed out are proxies: calling close() returns the
+ * physical connection to the pool instead of closing it. Idle connections are
+ * reused in LIFO order, validated on borrow and evicted after they've been idle
+ * for longer than the idle timeout, always keeping at least minSize of them.
+ * 
+ * @author stivlo
+ */
+public class ConnectionPool {
+
+        /** Default maximum number of physical connections. */
+        public static final int DEFAULT_MAX_SIZE = 10;
+
+        /** Default idle timeout in seconds. */
+        public static final int DEFAULT_IDLE_TIMEOUT = 300;
+
+        /** Default time to wait for a free connection in milliseconds. */
+        public static final int DEFAULT_BORROW_TIMEOUT = 30000;
+
+        /** Default timeout in seconds for the validation on borrow. */
+        public static final int DEFAULT_VALIDATION_TIMEOUT = 2;
+
+        /** How many milliseconds in a second (1000). */
+        private static final int MS_IN_A_SEC = 1000;
+
+        /** The pool configured from AppConfig, shared by all ConnectionManagers. */
+        private static volatile ConnectionPool singleton = null;
+
+        /** Connection parameters. */
+        private final String driver, url, username, password;
+
+        /** Minimum number of connections to keep open. */
+        private int minSize = 0;
+
+        /** Maximum number of connections open at the same time. */
+        private int maxSize = DEFAULT_MAX_SIZE;
+
+        /** Idle connections older than this (seconds) are closed. */
+        private int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+        /** How long to wait for a free connection (milliseconds). */
+        private int borrowTimeout = DEFAULT_BORROW_TIMEOUT;
+
+        /** Timeout passed to Connection.isValid() on borrow (seconds). */
+        private int validationTimeout = DEFAULT_VALIDATION_TIMEOUT;
+
+        /** Idle connections, the most recently returned first. */
+        private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<PooledConnection>();
+
+        /** One permit for each connection that can be borrowed. */
+        private Semaphore permits;
+
+        /** Number of physical connections currently open. */
+        private final AtomicInteger physicalCount = new AtomicInteger(0);
+
+        /** Runs the idle eviction. */
+        private Timer evictionTimer;
+
+        /** Whether start() was called. */
+        private volatile boolean started = false;
+
+        /** Whether shutdown() was called. */
+        private volatile boolean shutdown = false;
+
+        /** Counters shared with ConnectionManager. */
+        private static final ConnectionMetrics METRICS = ConnectionMetrics.getInstance();
+
+        /** Log4j instance. */
+        private static final Logger LOG = Logger.getLogger(ConnectionPool.class);
+
+        /**
+         * Create a new pool, not started yet. It starts on the first borrow or
+         * with an explicit call to start().
+         * 
+         * @param driverIn
+         *                fully qualified driver class
+         * @param urlIn
+         *                connection URL
+         * @param usernameIn
+         *                the connection username
+         * @param passwordIn
+         *                the connection password
+         */
+        public ConnectionPool(final String driverIn, final String urlIn, final String usernameIn,
+                        final String passwordIn) {
+                driver = driverIn;
+                url = urlIn;
+                username = usernameIn;
+                password = passwordIn;
+        }
+
+        /**
+         * Get the pool configured with the application configuration, creating
+         * it the first time. The following properties are used: dbDriver,
+         * dbUrl, dbUsername, dbPassword and the optional dbPoolMinSize,
+         * dbPoolMaxSize, dbPoolIdleTimeout (seconds), dbPoolBorrowTimeout
+         * (milliseconds), dbPoolValidationTimeout (seconds).
+         * 
+         * @return the shared ConnectionPool instance
+         */
+        public static ConnectionPool getInstance() {
+                if (singleton != null) {
+                        return singleton;
+                }
+                synchronized (ConnectionPool.class) {
+                        if (singleton != null) { //check again inside synchronized
+                                return singleton;
+                        }
+                        AppConfig conf = AppConfig.getInstance();
+                        ConnectionPool pool = new ConnectionPool(conf.getProperty("dbDriver"),
+                                        conf.getProperty("dbUrl"), conf.getProperty("dbUsername"),
+                                        conf.getProperty("dbPassword"));
+                        pool.setMinSize(conf.getPropertyAsInt("dbPoolMinSize", 0));
+                        pool.setMaxSize(conf.getPropertyAsInt("dbPoolMaxSize", DEFAULT_MAX_SIZE));
+                        pool.setIdleTimeout(conf.getPropertyAsInt("dbPoolIdleTimeout", DEFAULT_IDLE_TIMEOUT));
+                        pool.setBorrowTimeout(conf.getPropertyAsInt("dbPoolBorrowTimeout",
+                                        DEFAULT_BORROW_TIMEOUT));
+                        pool.setValidationTimeout(conf.getPropertyAsInt("dbPoolValidationTimeout",
+                                        DEFAULT_VALIDATION_TIMEOUT));
+                        singleton = pool;
+                }
+                return singleton;
+        }
+
+        /**
+         * Set the minimum number of connections to keep open.
+         * 
+         * @param minSizeIn
+         *                minimum number of connections, 0 or more
+         */
+        public final void setMinSize(final int minSizeIn) {
+                checkNotStarted();
+                if (minSizeIn < 0) {
+                        throw new IllegalArgumentException("minSize can't be negative");
+                }
+                minSize = minSizeIn;
+        }
+
+        /**
+         * Set the maximum number of connections open at the same time.
+         * 
+         * @param maxSizeIn
+         *                maximum number of connections, at least 1
+         */
+        public final void setMaxSize(final int maxSizeIn) {
+                checkNotStarted();
+                if (maxSizeIn < 1) {
+                        throw new IllegalArgumentException("maxSize should be at least 1");
+                }
+                maxSize = maxSizeIn;
+        }
+
+        /**
+         * Set after how many seconds an idle connection is closed.
+         * 
+         * @param idleTimeoutIn
+         *                idle timeout in seconds, 0 to never evict
+         */
+        public final void setIdleTimeout(final int idleTimeoutIn) {
+                checkNotStarted();
+                idleTimeout = idleTimeoutIn;
+        }
+
+        /**
+         * Set how long borrow() waits for a free connection.
+         * 
+         * @param borrowTimeoutIn
+         *                timeout in milliseconds
+         */
+        public final void setBorrowTimeout(final int borrowTimeoutIn) {
+                checkNotStarted();
+                borrowTimeout = borrowTimeoutIn;
+        }
+
+        /**
+         * Set the timeout used to validate a connection on borrow.
+         * 
+         * @param validationTimeoutIn
+         *                timeout in seconds, 0 to skip validation
+         */
+        public final void setValidationTimeout(final int validationTimeoutIn) {
+                checkNotStarted();
+                validationTimeout = validationTimeoutIn;
+        }
+
+        /**
+         * Configuration can't be changed once the pool is running.
+         */
+        private void checkNotStarted() {
+                if (started) {
+                        throw new IllegalStateException("The pool is already started");
+                }
+        }
+
+        /**
+         * Start the pool: open minSize connections and schedule the idle
+         * eviction. Calling it more than once has no effect.
+         * 
+         * @throws SQLException
+         *                 when the driver can't be loaded or the connections
+         *                 can't be established
+         */
+        public final synchronized void start() throws SQLException {
+                if (started) {
+                        return;
+                }
+                if (minSize > maxSize) {
+                        throw new IllegalStateException("minSize " + minSize + " is greater than maxSize "
+                                        + maxSize);
+                }
+                try {
+                        Class.forName(driver);
+                } catch (ClassNotFoundException ex) {
+                        throw new SQLException(ex);
+                }
+                permits = new Semaphore(maxSize, true);
+                for (int i = 0; i < minSize; i++) {
+                        idle.offerLast(openPhysicalConnection());
+                }
+                if (idleTimeout > 0) {
+                        evictionTimer = new Timer("ConnectionPool-evictor", true);
+                        long period = Math.max(1L, (long) idleTimeout * MS_IN_A_SEC / 2);
+                        evictionTimer.schedule(new TimerTask() {
+                                @Override
+                                public void run() {
+                                        evictIdleConnections();
+                                }
+                        }, period, period);
+                }
+                started = true;
+        }
+
+        /**
+         * Borrow a connection, waiting up to the borrow timeout when all
+         * connections are in use. Call close() on the returned connection to
+         * give it back to the pool.
+         * 
+         * @return a pooled Connection
+         * @throws SQLException
+         *                 when no connection is available in time, or a new
+         *                 connection can't be established
+         */
+        public final Connection borrow() throws SQLException {
+                if (!started) {
+                        start();
+                }
+                if (shutdown) {
+                        throw new SQLException("The connection pool has been shut down");
+                }
+                long waitStart = System.nanoTime();
+                try {
+                        boolean acquired = permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS);
+                        METRICS.recordWait(System.nanoTime() - waitStart);
+                        if (!acquired) {
+                                throw new SQLException("Timeout waiting " + borrowTimeout
+                                                + "ms for a connection, maxSize=" + maxSize);
+                        }
+                } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException(ex);
+                }
+                try {
+                        return wrap(takeIdleOrOpen());
+                } catch (SQLException ex) {
+                        permits.release();
+                        throw ex;
+                } catch (RuntimeException ex) {
+                        permits.release();
+                        throw ex;
+                }
+        }
+
+        /**
+         * Take a valid idle connection, or open a new one if there are none.
+         * 
+         * @return a physical connection
+         * @throws SQLException
+         *                 when a new connection can't be established
+         */
+        private PooledConnection takeIdleOrOpen() throws SQLException {
+                PooledConnection pooled = idle.pollFirst();
+                while (pooled != null) {
+                        if (isValid(pooled)) {
+                                return pooled;
+                        }
+                        LOG.warn("Discarding invalid pooled connection");
+                        closePhysicalConnection(pooled);
+                        pooled = idle.pollFirst();
+                }
+                return openPhysicalConnection();
+        }
+
+        /**
+         * Validate a connection before handing it out.
+         * 
+         * @param pooled
+         *                the connection to validate
+         * @return true if the connection is usable
+         */
+        private boolean isValid(final PooledConnection pooled) {
+                if (validationTimeout <= 0) {
+                        return true;
+                }
+                try {
+                        return pooled.getPhysical().isValid(validationTimeout);
+                } catch (SQLException ex) {
+                        return false;
+                }
+        }
+
+        /**
+         * Give back a connection to the pool, called by the proxy on close().
+         * 
+         * @param pooled
+         *                the physical connection to return
+         */
+        private void giveBack(final PooledConnection pooled) {
+                try {
+                        if (shutdown || !resetState(pooled.getPhysical())) {
+                                closePhysicalConnection(pooled);
+                        } else {
+                                pooled.touch();
+                                idle.offerFirst(pooled);
+                        }
+                } finally {
+                        permits.release();
+                }
+        }
+
+        /**
+         * Bring a returned connection back to auto-commit mode, rolling back
+         * any pending transaction.
+         * 
+         * @param physical
+         *                the connection to reset
+         * @return false if the connection is broken and should be closed
+         */
+        private boolean resetState(final Connection physical) {
+                try {
+                        if (physical.isClosed()) {
+                                return false;
+                        }
+                        if (!physical.getAutoCommit()) {
+                                physical.rollback();
+                                physical.setAutoCommit(true);
+                        }
+                        return true;
+                } catch (SQLException ex) {
+                        LOG.warn("Can't reset pooled connection: " + ex.getMessage());
+                        return false;
+                }
+        }
+
+        /**
+         * Close connections idle for longer than idleTimeout, keeping at least
+         * minSize connections open, and open new ones if we're below minSize.
+         */
+        final void evictIdleConnections() {
+                long oldestAllowed = System.currentTimeMillis() - (long) idleTimeout * MS_IN_A_SEC;
+                while (physicalCount.get() > minSize) {
+                        PooledConnection candidate = idle.pollLast();
+                        if (candidate == null) {
+                                break;
+                        }
+                        if (candidate.getLastUsed() > oldestAllowed) {
+                                idle.offerLast(candidate);
+                                break;
+                        }
+                        closePhysicalConnection(candidate);
+                }
+                while (!shutdown && physicalCount.get() < minSize && permits.tryAcquire()) {
+                        try {
+                                idle.offerLast(openPhysicalConnection());
+                        } catch (SQLException ex) {
+                                LOG.warn("Can't refill the connection pool: " + ex.getMessage());
+                                break;
+                        } finally {
+                                permits.release();
+                        }
+                }
+        }
+
+        /**
+         * Open a new physical connection.
+         * 
+         * @return the new connection
+         * @throws SQLException
+         *                 when the connection can't be established
+         */
+        private PooledConnection openPhysicalConnection() throws SQLException {
+                Connection physical = DriverManager.getConnection(url, username, password);
+                physicalCount.incrementAndGet();
+                METRICS.recordOpened();
+                return new PooledConnection(physical);
+        }
+
+        /**
+         * Close a physical connection, ignoring errors.
+         * 
+         * @param pooled
+         *                the connection to close
+         */
+        private void closePhysicalConnection(final PooledConnection pooled) {
+                physicalCount.decrementAndGet();
+                METRICS.recordClosed();
+                try {
+                        pooled.getPhysical().close();
+                } catch (SQLException ex) {
+                        LOG.warn("Error closing pooled connection: " + ex.getMessage());
+                }
+        }
+
+        /**
+         * Close all idle connections and refuse new borrows. Borrowed
+         * connections are closed when they're given back.
+         */
+        public final synchronized void shutdown() {
+                shutdown = true;
+                if (evictionTimer != null) {
+                        evictionTimer.cancel();
+                }
+                PooledConnection pooled = idle.pollFirst();
+                while (pooled != null) {
+                        closePhysicalConnection(pooled);
+                        pooled = idle.pollFirst();
+                }
+        }
+
+        /**
+         * Return the number of physical connections open, idle or borrowed.
+         * 
+         * @return number of open connections
+         */
+        public final int getSize() {
+                return physicalCount.get();
+        }
+
+        /**
+         * Return the number of idle connections ready to be borrowed.
+         * 
+         * @return number of idle connections
+         */
+        public final int getIdleCount() {
+                return idle.size();
+        }
+
+        /**
+         * Wrap a physical connection in a proxy that returns it to the pool
+         * when closed.
+         * 
+         * @param pooled
+         *                the physical connection
+         * @return a Connection proxy
+         */
+        private Connection wrap(final PooledConnection pooled) {
+                return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                new Class<?>[] { Connection.class }, new ConnectionHandle(pooled));
+        }
+
+        /**
+         * A physical connection with the time it was last given back.
+         */
+        private static final class PooledConnection {
+
+                /** The real JDBC connection. */
+                private final Connection physical;
+
+                /** When the connection was last returned to the pool. */
+                private volatile long lastUsed;
+
+                /**
+                 * Wrap a physical connection.
+                 * 
+                 * @param physicalIn
+                 *                the real connection
+                 */
+                PooledConnection(final Connection physicalIn) {
+                        physical = physicalIn;
+                        lastUsed = System.currentTimeMillis();
+                }
+
+                /**
+                 * @return the real connection
+                 */
+                Connection getPhysical() {
+                        return physical;
+                }
+
+                /**
+                 * @return when the connection was last returned
+                 */
+                long getLastUsed() {
+                        return lastUsed;
+                }
+
+                /** Mark the connection as used now. */
+                void touch() {
+                        lastUsed = System.currentTimeMillis();
+                }
+
+        }
+
+        /**
+         * The borrower's view of a pooled connection: close() gives the
+         * connection back, any other call after close() fails.
+         */
+        private final class ConnectionHandle implements InvocationHandler {
+
+                /** The connection borrowed. */
+                private final PooledConnection pooled;
+
+                /** Whether close() was already called. */
+                private boolean closed = false;
+
+                /**
+                 * Create a handle for a borrowed connection.
+                 * 
+                 * @param pooledIn
+                 *                the connection borrowed
+                 */
+                ConnectionHandle(final PooledConnection pooledIn) {
+                        pooled = pooledIn;
+                }
+
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args)
+                                throws Throwable {
+                        String name = method.getName();
+                        if (name.equals("close")) {
+                                synchronized (this) {
+                                        if (!closed) {
+                                                closed = true;
+                                                giveBack(pooled);
+                                        }
+                                }
+                                return null;
+                        }
+                        if (name.equals("isClosed")) {
+                                return closed || pooled.getPhysical().isClosed();
+                        }
+                        if (name.equals("equals")) {
+                                return proxy == args[0];
+                        }
+                        if (name.equals("hashCode")) {
+                                return System.identityHashCode(proxy);
+                        }
+                        if (name.equals("toString")) {
+                                return "Pooled" + pooled.getPhysical();
+                        }
+                        if (closed) {
+                                throw new SQLException("Connection already returned to the pool");
+                        }
+                        try {
+                                return method.invoke(pooled.getPhysical(), args);
+                        } catch (InvocationTargetException ex) {
+                                throw ex.getCause();
+                        }
+                }
+
+        }
+
+}
@@ -0,0 +1,26 @@
+package org.obliquid.db;
+
+import java.sql.SQLException;
+
+/**
+ * Work done with a MetaDb by AsyncMetaDb, in a pool thread with its own
+ * connection.
+ * 
+ * @param <T>
+ *                the type of the result
+ * @author stivlo
+ */
+public interface DbTask<T> {
+
+        /**
+         * Run the task.
+         * 
+         * @param db
+         *                a connected MetaDb, released when the task ends
+         * @return the result of the task
+         * @throws SQLException
+         *                 in case of problems
+         */
+        T run(MetaDb db) throws SQLException;
+
+}
@@ -0,0 +1,27 @@
+package org.obliquid.db;
+
+import java.sql.SQLException;
+
+/**
+ * Reserves blocks of consecutive ids for SequenceAllocator.
+ * 
+ * @author stivlo
+ */
+public interface IdBlockSource {
+
+        /**
+         * Reserve blockSize consecutive ids of a sequence. Once reserved, the
+         * ids must never be returned again by any caller, in any process.
+         * 
+         * @param sequenceName
+         *                the sequence
+         * @param blockSize
+         *                how many ids to reserve
+         * @return the first id of the block, the block being [first, first +
+         *         blockSize)
+         * @throws SQLException
+         *                 when the block can't be reserved
+         */
+        long reserve(String sequenceName, int blockSize) throws SQLException;
+
+}
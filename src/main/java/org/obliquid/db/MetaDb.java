@@ -13,6 +13,15 @@ import java.util.Map;
  */
 public interface MetaDb {
 
+        /**
+         * Fetch size asking MySQL Connector/J to stream the result one row at
+         * a time instead of reading it all in memory.
+         */
+        int FETCH_ROW_BY_ROW = Integer.MIN_VALUE;
+
+        /** Default number of rows sent to the database in a single batch. */
+        int DEFAULT_BATCH_SIZE = 100;
+
         /**
          * Execute a raw query. Remember to close the created ResultSet and
          * Statement by calling the method closeResultSetAndStatement().
@@ -479,6 +488,66 @@ public interface MetaDb {
          */
         <T> List<List<Object>> selectAll(String sql, T param) throws SQLException;
 
+        /**
+         * Executes the specified query and hands the rows to the handler one
+         * at a time, as they're read from the database, so memory usage
+         * doesn't depend on the size of the result. The statement uses the
+         * fetch size set with setFetchSize(). With FETCH_ROW_BY_ROW, the
+         * default with MySQL, MySQL streams the result and the connection
+         * can't be used for other queries until this method returns, so the
+         * handler must not use this MetaDb.
+         * 
+         * @param sql
+         *                the SELECT query statement to be executed
+         * @param param
+         *                List with IN parameters to be set in the query
+         * @param handler
+         *                receives each row
+         * @return the number of rows handled
+         * @throws SQLException
+         *                 in case of problems, or thrown by the handler
+         */
+        int selectAll(String sql, List<?> param, RowHandler handler) throws SQLException;
+
+        /**
+         * Set the fetch size used by selectAll() with a RowHandler. Default
+         * FETCH_ROW_BY_ROW with MySQL, for streaming results, and 0 with the
+         * other drivers, which reject a negative fetch size; with them, or
+         * with MySQL and useCursorFetch=true, use a positive number of rows.
+         * 
+         * @param fetchSize
+         *                rows fetched per round trip, 0 for the driver default
+         */
+        void setFetchSize(int fetchSize);
+
+        /**
+         * Executes the specified query and returns the result in a compact
+         * columnar form: column names are stored once, numeric columns in
+         * primitive arrays and strings in a shared table, so large results
+         * need much less memory than with selectAll().
+         * 
+         * @param sql
+         *                the SELECT query statement to be executed
+         * @return the result of the query
+         * @throws SQLException
+         *                 in case of problems
+         */
+        ColumnarResult selectColumnar(String sql) throws SQLException;
+
+        /**
+         * Executes the specified parametric query and returns the result in a
+         * compact columnar form.
+         * 
+         * @param sql
+         *                the SELECT query statement to be executed
+         * @param param
+         *                List with IN parameters to be set in the query
+         * @return the result of the query
+         * @throws SQLException
+         *                 in case of problems
+         */
+        ColumnarResult selectColumnar(String sql, List<?> param) throws SQLException;
+
         /**
          * Build a SQL Insert Statement for the table specified using the
          * contents of the HashMap as data, using the INSERT DELAYED statement.
@@ -545,6 +614,80 @@ public interface MetaDb {
         <T> int update(String tablename, Map<String, Object> fields, String priName, T priValue)
                         throws SQLException;
 
+        /**
+         * Insert many rows in the table, sending them to the database in
+         * batches instead of one statement per row. Rows are grouped by their
+         * set of columns, one INSERT statement per group, so within a group
+         * rows are inserted in order, but groups are inserted one after the
+         * other.
+         * 
+         * @param tablename
+         *                name of the database table
+         * @param rows
+         *                one Map of field names and values per row
+         * @return the number of rows inserted for each element of rows, or
+         *         Statement.SUCCESS_NO_INFO when the driver doesn't tell
+         * @throws SQLException
+         *                 in case of problems, a BatchUpdateException when a
+         *                 row of a batch fails
+         */
+        int[] insertBatch(String tablename, List<Map<String, Object>> rows) throws SQLException;
+
+        /**
+         * Update many rows of the table in batches, like calling update() for
+         * each element of fields with the corresponding element of priKeys.
+         * Rows are grouped by their set of field and primary key names.
+         * 
+         * @param tablename
+         *                name of the database table
+         * @param fields
+         *                one Map of field names and new values per row
+         * @param priKeys
+         *                one Map of primary key names and values per row, same
+         *                size as fields
+         * @return the number of rows affected for each element of fields, or
+         *         Statement.SUCCESS_NO_INFO when the driver doesn't tell
+         * @throws SQLException
+         *                 in case of problems, a BatchUpdateException when a
+         *                 row of a batch fails
+         */
+        int[] updateBatch(String tablename, List<Map<String, Object>> fields,
+                        List<Map<String, Object>> priKeys) throws SQLException;
+
+        /**
+         * Set how many rows insertBatch() and updateBatch() send to the
+         * database at once. Default DEFAULT_BATCH_SIZE.
+         * 
+         * @param batchSize
+         *                rows per batch, at least 1
+         */
+        void setBatchSize(int batchSize);
+
+        /**
+         * When enabled, insertBatch() sends each batch as a single multi-row
+         * INSERT INTO t(a, b) VALUES (?, ?), (?, ?), ... statement, which MySQL
+         * executes much faster than a JDBC batch of single-row statements.
+         * Connector/J can do the same on its own with
+         * rewriteBatchedStatements=true in the JDBC URL. Default false.
+         * 
+         * @param rewrite
+         *                true to use multi-row VALUES
+         */
+        void setRewriteBatchedInserts(boolean rewrite);
+
+        /**
+         * When read replicas are configured with dbReplicaUrls, SELECT queries
+         * are sent to a replica. With read-your-writes enabled, once this
+         * instance has executed a write every following query goes to the
+         * primary until releaseConnection(), so that it sees its own changes
+         * regardless of the replication lag. Queries in a transaction always
+         * go to the primary. Default from dbReadYourWrites, true if missing.
+         * 
+         * @param readYourWrites
+         *                true to read from the primary after a write
+         */
+        void setReadYourWrites(boolean readYourWrites);
+
         /**
          * Build a SELECT query as SELECT <fields> <query>. <fields> is a comma
          * separated list of fields built from the String Array.
@@ -922,7 +1065,9 @@ public interface MetaDb {
 
         /**
          * Creates a new Id to use in an INSERT statement. The returned Id won't
-         * be returned again, even if it's not used.
+         * be returned again, even if it's not used. Each call costs three
+         * statements, when many ids are needed SequenceAllocator reserves them
+         * in blocks.
          * 
          * @param tablename
          *                the name of the table for which we are requesting a
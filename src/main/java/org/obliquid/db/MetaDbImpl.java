@@ -6,12 +6,16 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 import org.apache.log4j.Logger;
+import org.obliquid.config.AppConfig;
 import org.obliquid.helpers.ArrayHelper;
 import org.obliquid.helpers.SqlHelper;
 import org.obliquid.helpers.StringHelper;
@@ -41,15 +45,172 @@ public class MetaDbImpl implements MetaDb {
 	/** Whether or not to use SELECT DISTINCT. */
 	private boolean distinctStatus = false;
 
+	/** Fetch size for streamed queries, null to choose it by driver. */
+	private Integer fetchSize = null;
+
+	/** Rows per batch for insertBatch() and updateBatch(). */
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	/** Whether insertBatch() uses multi-row VALUES. */
+	private boolean rewriteBatchedInserts = false;
+
+	/** SQL text built by the helper methods, shared by all instances. */
+	private final SqlTemplateCache sqlTemplates = SqlTemplateCache.getInstance();
+
+	/** PreparedStatements reused on the current connection. */
+	private final StatementCache statementCache;
+
+	/** PreparedStatements reused on the connection to the read replica. */
+	private final StatementCache readStatementCache;
+
+	/** Whether queries go to the primary after a write. */
+	private boolean readYourWrites = true;
+
+	/** Whether this instance executed a write since getting the connection. */
+	private boolean wrote = false;
+
+	/** Whether autocommit is off. */
+	private boolean inTransaction = false;
+
 	/** Log4j instance. */
 	private static final Logger LOG = Logger.getLogger(MetaDbImpl.class);
 
 	/**
-	 * Create a new instance of DB.
+	 * Create a new instance of DB. The optional property dbStatementCacheSize
+	 * sets how many PreparedStatements are kept open for reuse on the
+	 * connection, 0 disables the statement cache. dbBatchSize,
+	 * dbRewriteBatchedInserts and dbReadYourWrites set the defaults of
+	 * setBatchSize(), setRewriteBatchedInserts() and setReadYourWrites().
 	 * 
 	 */
 	public MetaDbImpl() {
 		connectionManager = new ConnectionManager();
+		AppConfig conf = AppConfig.getInstance();
+		int cacheSize = StatementCache.DEFAULT_SIZE;
+		if (conf != null) {
+			cacheSize = conf.getPropertyAsInt("dbStatementCacheSize", StatementCache.DEFAULT_SIZE);
+		}
+		statementCache = new StatementCache(cacheSize);
+		readStatementCache = new StatementCache(cacheSize);
+		if (conf != null) {
+			batchSize = conf.getPropertyAsInt("dbBatchSize", DEFAULT_BATCH_SIZE);
+			rewriteBatchedInserts = conf.getPropertyAsBoolean("dbRewriteBatchedInserts", false);
+			readYourWrites = conf.getPropertyAsBoolean("dbReadYourWrites", true);
+		}
+	}
+
+	/**
+	 * Return the PreparedStatement cache of this instance, to check its hit
+	 * and miss statistics.
+	 * 
+	 * @return the StatementCache
+	 */
+	public final StatementCache getStatementCache() {
+		return statementCache;
+	}
+
+	/**
+	 * Get a PreparedStatement for sql, from the cache if possible, with the
+	 * parameters already bound. Give it back with releaseStatement().
+	 * 
+	 * @param sql
+	 *            parametric SQL
+	 * @param param
+	 *            parameters to be substituted
+	 * @return a PreparedStatement ready to be executed
+	 * @throws SQLException
+	 *             when there are DB problems
+	 */
+	private PreparedStatement prepareStatement(final String sql, final List<?> param)
+			throws SQLException {
+		return prepareStatement(conn, sql, param);
+	}
+
+	/**
+	 * Get a PreparedStatement for sql on the given connection, from the cache
+	 * of that connection if possible, with the parameters already bound.
+	 * Give it back with releaseStatement() passing the same connection.
+	 * 
+	 * @param connection
+	 *            the primary connection, or the one returned by
+	 *            readConnection()
+	 * @param sql
+	 *            parametric SQL
+	 * @param param
+	 *            parameters to be substituted
+	 * @return a PreparedStatement ready to be executed
+	 * @throws SQLException
+	 *             when there are DB problems
+	 */
+	private PreparedStatement prepareStatement(final Connection connection, final String sql,
+			final List<?> param) throws SQLException {
+		PreparedStatement stmt = cacheOf(connection).prepare(connection, sql);
+		try {
+			SqlHelper.bindParameters(stmt, param);
+		} catch (SQLException ex) {
+			SqlHelper.close(stmt);
+			throw ex;
+		}
+		return stmt;
+	}
+
+	/**
+	 * Give back a PreparedStatement obtained with prepareStatement().
+	 * 
+	 * @param sql
+	 *            the SQL of the statement
+	 * @param stmt
+	 *            the statement, can be null
+	 */
+	private void releaseStatement(final String sql, final PreparedStatement stmt) {
+		statementCache.release(sql, stmt);
+	}
+
+	/**
+	 * Give back a PreparedStatement obtained with prepareStatement() on the
+	 * given connection.
+	 * 
+	 * @param connection
+	 *            the connection passed to prepareStatement()
+	 * @param sql
+	 *            the SQL of the statement
+	 * @param stmt
+	 *            the statement, can be null
+	 */
+	private void releaseStatement(final Connection connection, final String sql,
+			final PreparedStatement stmt) {
+		cacheOf(connection).release(sql, stmt);
+	}
+
+	/**
+	 * Return the statement cache of a connection.
+	 * 
+	 * @param connection
+	 *            the primary connection or the one to the replica
+	 * @return the StatementCache of the connection
+	 */
+	private StatementCache cacheOf(final Connection connection) {
+		return connection == conn ? statementCache : readStatementCache;
+	}
+
+	/**
+	 * Return the connection to run a query on: a read replica when there is
+	 * one and the query can run there, otherwise the primary. Transactions,
+	 * and with read-your-writes the queries following a write, stay on the
+	 * primary.
+	 * 
+	 * @param sql
+	 *            the query
+	 * @return the connection to use
+	 * @throws SQLException
+	 *             when there are DB problems
+	 */
+	private Connection readConnection(final String sql) throws SQLException {
+		if (conn == null || inTransaction || (readYourWrites && wrote)
+				|| !ReplicaSet.isReplicaSafe(sql)) {
+			return conn;
+		}
+		return connectionManager.getReadConnection();
 	}
 
 	@Override
@@ -81,7 +242,11 @@ public class MetaDbImpl implements MetaDb {
 
 	@Override
 	public final void releaseConnection() {
+		statementCache.clear();
+		readStatementCache.clear();
 		conn = null;
+		wrote = false;
+		inTransaction = false;
 		try {
 			connectionManager.releaseConnection();
 		} catch (SQLException ex) {
@@ -93,6 +258,7 @@ public class MetaDbImpl implements MetaDb {
 	public final int execute(final String sql) throws SQLException {
 		Statement stmt = null;
 		int rowCount = 0;
+		wrote = true;
 		try {
 			stmt = conn.createStatement();
 			rowCount = stmt.executeUpdate(sql);
@@ -106,11 +272,12 @@ public class MetaDbImpl implements MetaDb {
 	public final int execute(final String sql, final List<?> param) throws SQLException {
 		PreparedStatement st = null;
 		int rowCount = 0;
+		wrote = true;
 		try {
-			st = SqlHelper.buildPreparedStatement(conn, sql, param);
+			st = prepareStatement(sql, param);
 			rowCount = st.executeUpdate();
 		} finally {
-			SqlHelper.close(st);
+			releaseStatement(sql, st);
 		}
 		return rowCount;
 	}
@@ -146,7 +313,7 @@ public class MetaDbImpl implements MetaDb {
 		ResultSet result = null;
 		Object field = null;
 		try {
-			stmt = conn.createStatement();
+			stmt = readConnection(sql).createStatement();
 			result = stmt.executeQuery(sql);
 			if (result.next()) {
 				field = result.getObject(1);
@@ -165,8 +332,9 @@ public class MetaDbImpl implements MetaDb {
 		PreparedStatement stmt = null;
 		ResultSet result = null;
 		Object field = null;
+		Connection reader = readConnection(sql);
 		try {
-			stmt = SqlHelper.buildPreparedStatement(conn, sql, param);
+			stmt = prepareStatement(reader, sql, param);
 			result = stmt.executeQuery();
 			if (result.next()) {
 				field = result.getObject(1);
@@ -174,7 +342,7 @@ public class MetaDbImpl implements MetaDb {
 				return null;
 			}
 		} finally {
-			SqlHelper.close(stmt);
+			releaseStatement(reader, sql, stmt);
 			SqlHelper.close(result);
 		}
 		return field;
@@ -205,7 +373,7 @@ public class MetaDbImpl implements MetaDb {
 		ResultSet result = null;
 		List<Object> row = null;
 		try {
-			stat = conn.createStatement();
+			stat = readConnection(sql).createStatement();
 			result = stat.executeQuery(sql);
 			int numCols = SqlHelper.getColumnCount(result);
 			if (result.next()) {
@@ -223,8 +391,9 @@ public class MetaDbImpl implements MetaDb {
 		PreparedStatement stmt = null;
 		ResultSet result = null;
 		List<Object> row = null;
+		Connection reader = readConnection(sql);
 		try {
-			stmt = SqlHelper.buildPreparedStatement(conn, sql, param);
+			stmt = prepareStatement(reader, sql, param);
 			result = stmt.executeQuery();
 			int numCols = SqlHelper.getColumnCount(result);
 			if (result.next()) {
@@ -232,7 +401,7 @@ public class MetaDbImpl implements MetaDb {
 			}
 		} finally {
 			SqlHelper.close(result);
-			SqlHelper.close(stmt);
+			releaseStatement(reader, sql, stmt);
 		}
 		return row;
 	}
@@ -269,7 +438,7 @@ public class MetaDbImpl implements MetaDb {
 		ResultSet result = null;
 		ArrayList<Object> column = new ArrayList<Object>();
 		try {
-			stmt = conn.createStatement();
+			stmt = readConnection(sql).createStatement();
 			result = stmt.executeQuery(sql);
 			while (result.next()) {
 				result.getRow();
@@ -321,8 +490,9 @@ public class MetaDbImpl implements MetaDb {
 		PreparedStatement stmt = null;
 		ResultSet result = null;
 		ArrayList<Object> row = new ArrayList<Object>();
+		Connection reader = readConnection(sql);
 		try {
-			stmt = SqlHelper.buildPreparedStatement(conn, sql, param);
+			stmt = prepareStatement(reader, sql, param);
 			result = stmt.executeQuery();
 			while (result.next()) {
 				result.getRow();
@@ -330,7 +500,7 @@ public class MetaDbImpl implements MetaDb {
 			}
 		} finally {
 			SqlHelper.close(result);
-			SqlHelper.close(stmt);
+			releaseStatement(reader, sql, stmt);
 		}
 		return row;
 	}
@@ -341,7 +511,7 @@ public class MetaDbImpl implements MetaDb {
 		ResultSet result = null;
 		List<List<Object>> matrix = null;
 		try {
-			st = conn.createStatement();
+			st = readConnection(sql).createStatement();
 			result = st.executeQuery(sql);
 			matrix = SqlHelper.extractMatrixFromResultSet(result);
 		} finally {
@@ -357,13 +527,14 @@ public class MetaDbImpl implements MetaDb {
 		PreparedStatement stmt = null;
 		ResultSet result = null;
 		List<List<Object>> matrix = null;
+		Connection reader = readConnection(sql);
 		try {
-			stmt = SqlHelper.buildPreparedStatement(conn, sql, param);
+			stmt = prepareStatement(reader, sql, param);
 			result = stmt.executeQuery();
 			matrix = SqlHelper.extractMatrixFromResultSet(result);
 		} finally {
 			SqlHelper.close(result);
-			SqlHelper.close(stmt);
+			releaseStatement(reader, sql, stmt);
 		}
 		return matrix;
 	}
@@ -390,6 +561,86 @@ public class MetaDbImpl implements MetaDb {
 		return selectAll(sql, arList);
 	}
 
+	@Override
+	public final int selectAll(final String sql, final List<?> param, final RowHandler handler)
+			throws SQLException {
+		PreparedStatement stmt = null;
+		ResultSet result = null;
+		int rowCount = 0;
+		try {
+			Connection reader = readConnection(sql);
+			stmt = reader.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+					ResultSet.CONCUR_READ_ONLY);
+			stmt.setFetchSize(fetchSize == null ? defaultFetchSize(reader) : fetchSize);
+			SqlHelper.bindParameters(stmt, param);
+			result = stmt.executeQuery();
+			int numCols = SqlHelper.getColumnCount(result);
+			boolean goOn = true;
+			while (goOn && result.next()) {
+				rowCount++;
+				goOn = handler.handleRow(SqlHelper.extractRowFromResultSet(result, numCols));
+			}
+		} finally {
+			SqlHelper.close(result);
+			SqlHelper.close(stmt);
+		}
+		return rowCount;
+	}
+
+	/**
+	 * Choose the fetch size of a streamed query when not set: FETCH_ROW_BY_ROW
+	 * with MySQL, since other drivers reject a negative fetch size, 0 for the
+	 * driver default otherwise.
+	 * 
+	 * @param connection
+	 *            the connection running the query
+	 * @return the fetch size
+	 * @throws SQLException
+	 *             when the driver name can't be read
+	 */
+	private static int defaultFetchSize(final Connection connection) throws SQLException {
+		String driver = connection.getMetaData().getDriverName();
+		if (driver != null && driver.toLowerCase(Locale.US).contains("mysql")) {
+			return FETCH_ROW_BY_ROW;
+		}
+		return 0;
+	}
+
+	@Override
+	public final void setFetchSize(final int fetchSizeArg) {
+		fetchSize = fetchSizeArg;
+	}
+
+	@Override
+	public final ColumnarResult selectColumnar(final String sql) throws SQLException {
+		Statement st = null;
+		ResultSet result = null;
+		try {
+			st = readConnection(sql).createStatement();
+			result = st.executeQuery(sql);
+			return ColumnarResult.fromResultSet(result);
+		} finally {
+			SqlHelper.close(result);
+			SqlHelper.close(st);
+		}
+	}
+
+	@Override
+	public final ColumnarResult selectColumnar(final String sql, final List<?> param)
+			throws SQLException {
+		PreparedStatement stmt = null;
+		ResultSet result = null;
+		Connection reader = readConnection(sql);
+		try {
+			stmt = prepareStatement(reader, sql, param);
+			result = stmt.executeQuery();
+			return ColumnarResult.fromResultSet(result);
+		} finally {
+			SqlHelper.close(result);
+			releaseStatement(reader, sql, stmt);
+		}
+	}
+
 	@Override
 	public final int newIdUsingSequence(final String tablename) throws SQLException {
 		String sql = "INSERT INTO _sequence_" + tablename + " VALUES (null)";
@@ -414,7 +665,7 @@ public class MetaDbImpl implements MetaDb {
 		String sql = "SELECT nextval FROM sequence WHERE sequencename=? FOR UPDATE";
 		List<Object> result = selectRow(sql, sequenceName);
 		if (result == null) {
-			sql = "INSERT INTO equence(nextval, sequencename) VALUES (2, ?)";
+			sql = "INSERT INTO sequence(nextval, sequencename) VALUES (2, ?)";
 			execute(sql, sequenceName);
 			return 1;
 		}
@@ -427,16 +678,7 @@ public class MetaDbImpl implements MetaDb {
 	@Override
 	public final String insertDelayed(final String tablename, final Map<String, Object> fields)
 			throws SQLException {
-		final int initialBufferSize = 128;
-		StringBuilder sb = new StringBuilder(initialBufferSize);
-		sb.append("INSERT DELAYED INTO ");
-		sb.append(tablename);
-		sb.append("(");
-		sb.append(StringHelper.implode(", ", fields));
-		sb.append(") VALUES (");
-		sb.append(StringHelper.repeatWithSeparator("?", fields.size(), ","));
-		sb.append(")");
-		String sql = sb.toString();
+		String sql = sqlTemplates.getInsert(tablename, columnsOf(fields), true);
 		execute(sql, fields);
 		return sql;
 	}
@@ -444,17 +686,7 @@ public class MetaDbImpl implements MetaDb {
 	@Override
 	public final String insert(final String tablename, final Map<String, Object> fields)
 			throws SQLException {
-		final int initialBufferSize = 128;
-		String sql;
-		StringBuilder sqlB = new StringBuilder(initialBufferSize);
-		sqlB.append("INSERT INTO ");
-		sqlB.append(tablename);
-		sqlB.append("(");
-		sqlB.append(StringHelper.implode(", ", fields));
-		sqlB.append(") VALUES (");
-		sqlB.append(StringHelper.repeatWithSeparator("?", fields.size(), ","));
-		sqlB.append(")");
-		sql = sqlB.toString();
+		String sql = sqlTemplates.getInsert(tablename, columnsOf(fields), false);
 		execute(sql, fields);
 		return sql;
 	}
@@ -462,13 +694,23 @@ public class MetaDbImpl implements MetaDb {
 	@Override
 	public final int update(final String tablename, final Map<String, Object> fields,
 			final Map<String, Object> priKeys) throws SQLException {
-		String sql = "UPDATE " + tablename + " SET "
-				+ StringHelper.implodeAndQuote("=?, ", fields, "`") + "=? WHERE "
-				+ StringHelper.implode("=? AND ", priKeys) + "=?";
+		String sql = sqlTemplates.getUpdate(tablename, columnsOf(fields), columnsOf(priKeys));
 		ArrayList<Object> arList = ArrayHelper.buildArrayList(fields, priKeys);
 		return execute(sql, arList);
 	}
 
+	/**
+	 * Return the keys of a Map in iteration order, which is the order of the
+	 * values bound by ArrayHelper.buildArrayList().
+	 * 
+	 * @param fields
+	 *            field names and values
+	 * @return the field names
+	 */
+	private static String[] columnsOf(final Map<String, Object> fields) {
+		return fields.keySet().toArray(new String[fields.size()]);
+	}
+
 	@Override
 	public final <T> int update(final String tablename, final Map<String, Object> fields,
 			final String priName, final T priValue) throws SQLException {
@@ -477,10 +719,214 @@ public class MetaDbImpl implements MetaDb {
 		return update(tablename, fields, priKeys);
 	}
 
+	@Override
+	public final int[] insertBatch(final String tablename, final List<Map<String, Object>> rows)
+			throws SQLException {
+		int[] counts = new int[rows.size()];
+		Map<List<String>, List<Integer>> groups = groupByColumns(rows, null);
+		for (Map.Entry<List<String>, List<Integer>> group : groups.entrySet()) {
+			List<String> columns = group.getKey();
+			List<Integer> rowNumbers = group.getValue();
+			String placeholders = "(" + StringHelper.repeatWithSeparator("?", columns.size(), ",") + ")";
+			String head = "INSERT INTO " + tablename + "(" + StringHelper.implode(", ", columns)
+					+ ") VALUES ";
+			List<List<Object>> params = new ArrayList<List<Object>>(rowNumbers.size());
+			for (int rowNumber : rowNumbers) {
+				params.add(ArrayHelper.buildArrayList(orderByColumns(columns, rows.get(rowNumber))));
+			}
+			if (rewriteBatchedInserts) {
+				executeMultiRowInsert(head, placeholders, params, rowNumbers, counts);
+			} else {
+				executeBatch(head + placeholders, params, rowNumbers, counts);
+			}
+		}
+		return counts;
+	}
+
+	@Override
+	public final int[] updateBatch(final String tablename, final List<Map<String, Object>> fields,
+			final List<Map<String, Object>> priKeys) throws SQLException {
+		if (fields.size() != priKeys.size()) {
+			throw new IllegalArgumentException("fields has " + fields.size() + " rows, priKeys has "
+					+ priKeys.size());
+		}
+		int[] counts = new int[fields.size()];
+		Map<List<String>, List<Integer>> groups = groupByColumns(fields, priKeys);
+		for (Map.Entry<List<String>, List<Integer>> group : groups.entrySet()) {
+			List<Integer> rowNumbers = group.getValue();
+			int first = rowNumbers.get(0);
+			List<String> fieldNames = sortedKeys(fields.get(first));
+			List<String> priNames = sortedKeys(priKeys.get(first));
+			String sql = sqlTemplates.getUpdate(tablename, fieldNames.toArray(new String[fieldNames.size()]),
+					priNames.toArray(new String[priNames.size()]));
+			List<List<Object>> params = new ArrayList<List<Object>>(rowNumbers.size());
+			for (int rowNumber : rowNumbers) {
+				Map<String, Object> rowFields = orderByColumns(fieldNames, fields.get(rowNumber));
+				Map<String, Object> rowPriKeys = orderByColumns(priNames, priKeys.get(rowNumber));
+				params.add(ArrayHelper.buildArrayList(rowFields, rowPriKeys));
+			}
+			executeBatch(sql, params, rowNumbers, counts);
+		}
+		return counts;
+	}
+
+	@Override
+	public final void setBatchSize(final int batchSizeArg) {
+		if (batchSizeArg < 1) {
+			throw new IllegalArgumentException("batchSize must be at least 1, was " + batchSizeArg);
+		}
+		batchSize = batchSizeArg;
+	}
+
+	@Override
+	public final void setReadYourWrites(final boolean readYourWritesArg) {
+		readYourWrites = readYourWritesArg;
+	}
+
+	@Override
+	public final void setRewriteBatchedInserts(final boolean rewrite) {
+		rewriteBatchedInserts = rewrite;
+	}
+
+	/**
+	 * Group the rows having the same column names, keeping the order in which
+	 * each group is first seen.
+	 * 
+	 * @param rows
+	 *            the rows to be grouped
+	 * @param priKeys
+	 *            the primary keys of each row, null for inserts
+	 * @return the row numbers of each group, by sorted column names
+	 */
+	private static Map<List<String>, List<Integer>> groupByColumns(final List<Map<String, Object>> rows,
+			final List<Map<String, Object>> priKeys) {
+		Map<List<String>, List<Integer>> groups = new LinkedHashMap<List<String>, List<Integer>>();
+		for (int i = 0; i < rows.size(); i++) {
+			List<String> key = sortedKeys(rows.get(i));
+			if (priKeys != null) {
+				key.add(null); //separates the field names from the primary key names
+				key.addAll(sortedKeys(priKeys.get(i)));
+			}
+			List<Integer> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<Integer>();
+				groups.put(key, group);
+			}
+			group.add(i);
+		}
+		return groups;
+	}
+
+	/**
+	 * Return the keys of a row in alphabetical order.
+	 * 
+	 * @param row
+	 *            a row
+	 * @return a new List with the sorted keys
+	 */
+	private static List<String> sortedKeys(final Map<String, Object> row) {
+		List<String> keys = new ArrayList<String>(row.keySet());
+		Collections.sort(keys);
+		return keys;
+	}
+
+	/**
+	 * Copy a row into a Map iterating in the given column order.
+	 * 
+	 * @param columns
+	 *            the column names
+	 * @param row
+	 *            the row
+	 * @return a LinkedHashMap with the row values in column order
+	 */
+	private static Map<String, Object> orderByColumns(final List<String> columns,
+			final Map<String, Object> row) {
+		Map<String, Object> ordered = new LinkedHashMap<String, Object>();
+		for (String column : columns) {
+			ordered.put(column, row.get(column));
+		}
+		return ordered;
+	}
+
+	/**
+	 * Execute a parametric statement with JDBC batches of batchSize rows.
+	 * 
+	 * @param sql
+	 *            parametric SQL
+	 * @param params
+	 *            the parameters of each row
+	 * @param rowNumbers
+	 *            the position in counts of each row
+	 * @param counts
+	 *            receives the update count of each row
+	 * @throws SQLException
+	 *             when there are DB problems
+	 */
+	private void executeBatch(final String sql, final List<List<Object>> params,
+			final List<Integer> rowNumbers, final int[] counts) throws SQLException {
+		wrote = true;
+		PreparedStatement stmt = statementCache.prepare(conn, sql);
+		boolean success = false;
+		try {
+			int done = 0;
+			for (int i = 0; i < params.size(); i++) {
+				SqlHelper.bindParameters(stmt, params.get(i));
+				stmt.addBatch();
+				if (i + 1 - done == batchSize || i == params.size() - 1) {
+					int[] result = stmt.executeBatch();
+					for (int j = 0; j < result.length; j++) {
+						counts[rowNumbers.get(done + j)] = result[j];
+					}
+					done = i + 1;
+				}
+			}
+			success = true;
+		} finally {
+			if (success) {
+				releaseStatement(sql, stmt);
+			} else {
+				SqlHelper.close(stmt); //it may still hold part of a batch
+			}
+		}
+	}
+
+	/**
+	 * Execute a multi-row INSERT for each batchSize rows.
+	 * 
+	 * @param head
+	 *            INSERT INTO table(columns) VALUES
+	 * @param placeholders
+	 *            the placeholders of one row, as (?,?)
+	 * @param params
+	 *            the parameters of each row
+	 * @param rowNumbers
+	 *            the position in counts of each row
+	 * @param counts
+	 *            receives the update count of each row
+	 * @throws SQLException
+	 *             when there are DB problems
+	 */
+	private void executeMultiRowInsert(final String head, final String placeholders,
+			final List<List<Object>> params, final List<Integer> rowNumbers, final int[] counts)
+			throws SQLException {
+		for (int start = 0; start < params.size(); start += batchSize) {
+			int end = Math.min(start + batchSize, params.size());
+			String sql = head + StringHelper.repeatWithSeparator(placeholders, end - start, ",");
+			List<Object> allParams = new ArrayList<Object>();
+			for (List<Object> rowParams : params.subList(start, end)) {
+				allParams.addAll(rowParams);
+			}
+			int inserted = execute(sql, allParams);
+			for (int i = start; i < end; i++) {
+				counts[rowNumbers.get(i)] = inserted == end - start ? 1 : Statement.SUCCESS_NO_INFO;
+			}
+		}
+	}
+
 	@Override
 	public final List<Object> selectRow(final String[] fields, final String query)
 			throws SQLException {
-		String sql = "SELECT " + StringHelper.implode(", ", fields) + " " + query;
+		String sql = "SELECT " + sqlTemplates.getFieldList(fields, false) + " " + query;
 		List<Object> row = selectRow(sql);
 		return row;
 	}
@@ -488,7 +934,7 @@ public class MetaDbImpl implements MetaDb {
 	@Override
 	public final List<Object> selectRow(final String[] fields, final String query,
 			final List<?> param) throws SQLException {
-		String sql = "SELECT " + StringHelper.implode(", ", fields) + " " + query;
+		String sql = "SELECT " + sqlTemplates.getFieldList(fields, false) + " " + query;
 		List<Object> row = selectRow(sql, param);
 		return row;
 	}
@@ -496,7 +942,7 @@ public class MetaDbImpl implements MetaDb {
 	@Override
 	public final List<Object> selectRow(final String[] fields, final String query, final int param)
 			throws SQLException {
-		String sql = "SELECT " + StringHelper.implode(", ", fields) + " " + query;
+		String sql = "SELECT " + sqlTemplates.getFieldList(fields, false) + " " + query;
 		List<Object> row = selectRow(sql, param);
 		return row;
 	}
@@ -505,13 +951,14 @@ public class MetaDbImpl implements MetaDb {
 	public final Map<String, Object> selectRowHashMap(final String[] fields, final String query)
 			throws SQLException {
 		Map<String, Object> result = new HashMap<String, Object>();
-		String sql = "SELECT " + StringHelper.implode(", ", fields) + " " + query;
+		String sql = "SELECT " + sqlTemplates.getFieldList(fields, false) + " " + query;
 		List<Object> row = selectRow(sql);
 		if (row == null) {
 			return null;
 		}
-		for (int i = 0; i < fields.length; i++) {
-			result.put(SqlHelper.extractFieldName(fields[i]), row.get(i));
+		String[] fieldNames = sqlTemplates.getFieldNames(fields);
+		for (int i = 0; i < fieldNames.length; i++) {
+			result.put(fieldNames[i], row.get(i));
 		}
 		return result;
 	}
@@ -520,13 +967,14 @@ public class MetaDbImpl implements MetaDb {
 	public final Map<String, Object> selectRowHashMap(final String[] fields, final String query,
 			final List<?> param) throws SQLException {
 		Map<String, Object> result = new HashMap<String, Object>();
-		String sql = "SELECT " + StringHelper.implode(", ", fields) + " " + query;
+		String sql = "SELECT " + sqlTemplates.getFieldList(fields, false) + " " + query;
 		List<Object> row = selectRow(sql, param);
 		if (row == null) {
 			return null;
 		}
-		for (int i = 0; i < fields.length; i++) {
-			result.put(SqlHelper.extractFieldName(fields[i]), row.get(i));
+		String[] fieldNames = sqlTemplates.getFieldNames(fields);
+		for (int i = 0; i < fieldNames.length; i++) {
+			result.put(fieldNames[i], row.get(i));
 		}
 		return result;
 	}
@@ -569,8 +1017,8 @@ public class MetaDbImpl implements MetaDb {
 	@Override
 	public final List<List<Object>> selectAll(final String[] fields, final String query)
 			throws SQLException {
-		String sql = "SELECT " + getDistinct() + StringHelper.implodeAndQuote(", ", fields, "`")
-				+ " " + query;
+		String sql = "SELECT " + getDistinct() + sqlTemplates.getFieldList(fields, true) + " "
+				+ query;
 		List<List<Object>> matrix = selectAll(sql);
 		return matrix;
 	}
@@ -594,7 +1042,8 @@ public class MetaDbImpl implements MetaDb {
 	@Override
 	public final List<List<Object>> selectAll(final String[] fields, final String query,
 			final List<?> param) throws SQLException {
-		String sql = "SELECT " + getDistinct() + StringHelper.implode(", ", fields) + " " + query;
+		String sql = "SELECT " + getDistinct() + sqlTemplates.getFieldList(fields, false) + " "
+				+ query;
 		List<List<Object>> matrix = selectAll(sql, param);
 		return matrix;
 	}
@@ -602,7 +1051,8 @@ public class MetaDbImpl implements MetaDb {
 	@Override
 	public final List<List<Object>> selectAll(final String[] fields, final String query,
 			final int param) throws SQLException {
-		String sql = "SELECT " + getDistinct() + StringHelper.implode(", ", fields) + " " + query;
+		String sql = "SELECT " + getDistinct() + sqlTemplates.getFieldList(fields, false) + " "
+				+ query;
 		List<List<Object>> matrix = selectAll(sql, param);
 		return matrix;
 	}
@@ -619,17 +1069,19 @@ public class MetaDbImpl implements MetaDb {
 		Map<String, Object> rowAsHashMap;
 		List<Object> rowAsList;
 		ArrayList<Map<String, Object>> result;
-		String sql = "SELECT " + getDistinct() + StringHelper.implode(", ", fields) + " " + query;
+		String sql = "SELECT " + getDistinct() + sqlTemplates.getFieldList(fields, false) + " "
+				+ query;
 		List<List<Object>> matrix = selectAll(sql);
 		if (matrix == null) {
 			return null;
 		}
+		String[] fieldNames = sqlTemplates.getFieldNames(fields);
 		result = new ArrayList<Map<String, Object>>();
 		for (Iterator<List<Object>> it = matrix.iterator(); it.hasNext();) {
 			rowAsHashMap = new HashMap<String, Object>();
 			rowAsList = it.next();
-			for (int i = 0; i < fields.length; i++) {
-				rowAsHashMap.put(SqlHelper.extractFieldName(fields[i]), rowAsList.get(i));
+			for (int i = 0; i < fieldNames.length; i++) {
+				rowAsHashMap.put(fieldNames[i], rowAsList.get(i));
 			}
 			result.add(rowAsHashMap);
 		}
@@ -642,17 +1094,19 @@ public class MetaDbImpl implements MetaDb {
 		Map<String, Object> rowHM;
 		List<Object> rowAL;
 		ArrayList<Map<String, Object>> result;
-		String sql = "SELECT " + getDistinct() + StringHelper.implode(", ", fields) + " " + query;
+		String sql = "SELECT " + getDistinct() + sqlTemplates.getFieldList(fields, false) + " "
+				+ query;
 		List<List<Object>> matrix = selectAll(sql, param);
 		if (matrix == null) {
 			return null;
 		}
+		String[] fieldNames = sqlTemplates.getFieldNames(fields);
 		result = new ArrayList<Map<String, Object>>();
 		for (Iterator<List<Object>> it = matrix.iterator(); it.hasNext();) {
 			rowHM = new HashMap<String, Object>();
 			rowAL = it.next();
-			for (int i = 0; i < fields.length; i++) {
-				rowHM.put(SqlHelper.extractFieldName(fields[i]), rowAL.get(i));
+			for (int i = 0; i < fieldNames.length; i++) {
+				rowHM.put(fieldNames[i], rowAL.get(i));
 			}
 			result.add(rowHM);
 		}
@@ -677,6 +1131,7 @@ public class MetaDbImpl implements MetaDb {
 	@Override
 	public final void autoCommitTransactions(final boolean autoCommit) throws SQLException {
 		conn.setAutoCommit(autoCommit);
+		inTransaction = !autoCommit;
 	}
 
 	@Override
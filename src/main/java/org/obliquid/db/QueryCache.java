@@ -0,0 +1,402 @@
+package org.obliquid.db;
+
+import java.io.Serializable;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.obliquid.helpers.StringHelper;
+import org.obliquid.util.OCache;
+
+/**
+ * Query results stored in an OCache, shared by the CachingMetaDb instances
+ * using it. Results are keyed by SQL and parameters, and by a version of each
+ * table read by the query: writing to a table moves its version forward, so
+ * the results depending on it are no longer found and expire in the cache.
+ * Since the versions are stored in the OCache too, with memcached the
+ * invalidation is seen by all the servers; a lookup costs one multi-get of
+ * the versions and one get of the result. The results of the old versions
+ * are never read nor removed again, so the OCache must evict or expire its
+ * entries: memcached, or a LocalCache bounded in size, not a MapCache. When
+ * many threads miss the same key at the same time, only one runs the query
+ * and the others wait for its result. Thread safe.
+ * 
+ * @author stivlo
+ */
+public final class QueryCache {
+
+        /** The tag of all the tables. */
+        static final String ALL_TABLES = "*";
+
+        /** Prefix of the cache keys. */
+        private static final String PREFIX = "qc:";
+
+        /** Prefix of the cache keys of the table versions. */
+        private static final String TAG_PREFIX = PREFIX + "t:";
+
+        /** Separates the parts of a key before hashing. */
+        private static final char SEPARATOR = '\u0001';
+
+        /** How many milliseconds in a second (1000). */
+        private static final int MS_IN_A_SEC = 1000;
+
+        /** Table names after FROM and JOIN, with comma separated lists. */
+        private static final Pattern READ = Pattern.compile(
+                        "\\b(?:FROM|JOIN)\\s+([`\\w.]+(?:\\s+(?:AS\\s+)?\\w+)?"
+                                        + "(?:\\s*,\\s*[`\\w.]+(?:\\s+(?:AS\\s+)?\\w+)?)*)",
+                        Pattern.CASE_INSENSITIVE);
+
+        /** The table modified by a statement. */
+        private static final Pattern WRITE = Pattern.compile(
+                        "^\\s*(?:(?:INSERT|REPLACE)\\s+(?:(?:LOW_PRIORITY|HIGH_PRIORITY|DELAYED|IGNORE)\\s+)*"
+                                        + "(?:INTO\\s+)?|UPDATE\\s+(?:(?:LOW_PRIORITY|IGNORE)\\s+)*"
+                                        + "|DELETE\\s+(?:(?:LOW_PRIORITY|QUICK|IGNORE)\\s+)*FROM\\s+"
+                                        + "|(?:TRUNCATE|ALTER|DROP|CREATE)\\s+(?:TABLE\\s+)?)([`\\w.]+)",
+                        Pattern.CASE_INSENSITIVE);
+
+        /** The cache. */
+        private final OCache cache;
+
+        /** Time to live of results, in seconds, unless set per query. */
+        private final int defaultTtl;
+
+        /** Time to live by SQL text. */
+        private final Map<String, Integer> ttlBySql = new ConcurrentHashMap<String, Integer>();
+
+        /** Queries being run, by key. */
+        private final ConcurrentHashMap<String, FutureTask<Object>> loading =
+                        new ConcurrentHashMap<String, FutureTask<Object>>();
+
+        /** Statistics. */
+        private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+                        coalesced = new AtomicLong();
+
+        /**
+         * Create a query cache.
+         * 
+         * @param cacheIn
+         *                stores the results and the table versions, bounded
+         *                in size or expiring its entries
+         * @param defaultTtlIn
+         *                how long results are used, in seconds
+         */
+        public QueryCache(final OCache cacheIn, final int defaultTtlIn) {
+                cache = cacheIn;
+                defaultTtl = defaultTtlIn;
+        }
+
+        /**
+         * Set how long the results of a query are used, overriding the
+         * default.
+         * 
+         * @param sql
+         *                the SQL text, as passed to MetaDb
+         * @param ttlSeconds
+         *                time to live in seconds, 0 not to cache the query
+         */
+        public void setTtl(final String sql, final int ttlSeconds) {
+                ttlBySql.put(sql, ttlSeconds);
+        }
+
+        /**
+         * Return a cached result, or run the query and cache its result.
+         * 
+         * @param <T>
+         *                the type of the result
+         * @param kind
+         *                distinguishes the MetaDb methods returning different
+         *                types for the same SQL
+         * @param sql
+         *                the SQL text
+         * @param param
+         *                the parameters, or null
+         * @param query
+         *                runs the query
+         * @param db
+         *                the MetaDb to run the query with
+         * @return the result
+         * @throws SQLException
+         *                 when the query fails
+         */
+        @SuppressWarnings("unchecked")
+        <T> T get(final String kind, final String sql, final List<?> param, final DbTask<T> query,
+                        final MetaDb db) throws SQLException {
+                Integer ttl = ttlBySql.get(sql);
+                final int ttlSeconds = ttl == null ? defaultTtl : ttl;
+                Set<String> tables = getTablesRead(sql);
+                if (ttlSeconds <= 0 || tables.isEmpty()) {
+                        return query.run(db);
+                }
+                final String key = buildKey(kind, sql, param, tables);
+                Object cached = cache.get(key);
+                if (cached instanceof Entry && !((Entry) cached).isExpired()) {
+                        hits.incrementAndGet();
+                        return (T) ((Entry) cached).value;
+                }
+                misses.incrementAndGet();
+                FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+                        @Override
+                        public Object call() throws SQLException {
+                                T value = query.run(db);
+                                cache.set(key, new Entry(value, ttlSeconds));
+                                return value;
+                        }
+                });
+                FutureTask<Object> running = loading.putIfAbsent(key, task);
+                if (running == null) {
+                        try {
+                                task.run();
+                        } finally {
+                                loading.remove(key, task);
+                        }
+                        running = task;
+                } else {
+                        coalesced.incrementAndGet();
+                }
+                return (T) await(running);
+        }
+
+        /**
+         * Wait for a query run by this or another thread.
+         * 
+         * @param task
+         *                the query
+         * @return its result
+         * @throws SQLException
+         *                 when the query failed
+         */
+        private static Object await(final FutureTask<Object> task) throws SQLException {
+                try {
+                        return task.get();
+                } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a query", ex);
+                } catch (ExecutionException ex) {
+                        if (ex.getCause() instanceof SQLException) {
+                                throw (SQLException) ex.getCause();
+                        }
+                        if (ex.getCause() instanceof RuntimeException) {
+                                throw (RuntimeException) ex.getCause();
+                        }
+                        throw new SQLException(ex.getCause());
+                }
+        }
+
+        /**
+         * Invalidate the results of the queries reading the tables.
+         * 
+         * @param tables
+         *                the tables modified, ALL_TABLES for all
+         */
+        public void invalidate(final Collection<String> tables) {
+                for (String table : tables) {
+                        String tagKey = TAG_PREFIX + table;
+                        long version = System.currentTimeMillis();
+                        Object current = cache.get(tagKey);
+                        if (current instanceof Long && (Long) current >= version) {
+                                version = (Long) current + 1;
+                        }
+                        cache.set(tagKey, version);
+                }
+        }
+
+        /**
+         * Invalidate all the results.
+         */
+        public void invalidateAll() {
+                invalidate(Collections.singleton(ALL_TABLES));
+        }
+
+        /**
+         * Build the key of a result, including the version of each table read.
+         * 
+         * @param kind
+         *                the kind of result
+         * @param sql
+         *                the SQL text
+         * @param param
+         *                the parameters, or null
+         * @param tables
+         *                the tables read
+         * @return the cache key
+         */
+        private String buildKey(final String kind, final String sql, final List<?> param,
+                        final Set<String> tables) {
+                StringBuilder sb = new StringBuilder();
+                sb.append(kind).append(SEPARATOR).append(sql);
+                if (param != null) {
+                        for (Object value : param) {
+                                sb.append(SEPARATOR);
+                                if (value != null) {
+                                        sb.append(value.getClass().getName()).append('=');
+                                }
+                                sb.append(value);
+                        }
+                }
+                for (Object version : getVersions(tables)) {
+                        sb.append(SEPARATOR).append(version);
+                }
+                return PREFIX + StringHelper.computeMd5OfString(sb.toString());
+        }
+
+        /**
+         * Get the version of all the tables and of each table read, with a
+         * single multi-get, creating the missing ones.
+         * 
+         * @param tables
+         *                the tables read
+         * @return the versions, of ALL_TABLES first
+         */
+        private List<Object> getVersions(final Set<String> tables) {
+                List<String> tagKeys = new ArrayList<String>(tables.size() + 1);
+                tagKeys.add(TAG_PREFIX + ALL_TABLES);
+                for (String table : tables) {
+                        tagKeys.add(TAG_PREFIX + table);
+                }
+                Map<String, Object> found = cache.getAll(tagKeys);
+                Map<String, Object> created = new LinkedHashMap<String, Object>();
+                List<Object> versions = new ArrayList<Object>(tagKeys.size());
+                for (String tagKey : tagKeys) {
+                        Object version = found.get(tagKey);
+                        if (version == null) {
+                                version = System.currentTimeMillis();
+                                created.put(tagKey, version);
+                        }
+                        versions.add(version);
+                }
+                if (!created.isEmpty()) {
+                        cache.setAll(created);
+                }
+                return versions;
+        }
+
+        /**
+         * Find the tables read by a query, after FROM and JOIN.
+         * 
+         * @param sql
+         *                the SQL text
+         * @return the table names in lower case, empty if none was found
+         */
+        static Set<String> getTablesRead(final String sql) {
+                Set<String> tables = new LinkedHashSet<String>();
+                Matcher matcher = READ.matcher(sql);
+                while (matcher.find()) {
+                        for (String piece : matcher.group(1).split(",")) {
+                                tables.add(normalise(piece.trim().split("\\s+")[0]));
+                        }
+                }
+                return tables;
+        }
+
+        /**
+         * Find the tables possibly modified by a statement: its target table
+         * and the tables it reads. When the target is not recognised, all the
+         * tables.
+         * 
+         * @param sql
+         *                the SQL text
+         * @return the table names in lower case, or ALL_TABLES
+         */
+        static Set<String> getTablesWritten(final String sql) {
+                Matcher matcher = WRITE.matcher(sql);
+                if (!matcher.find()) {
+                        return Collections.singleton(ALL_TABLES);
+                }
+                Set<String> tables = new LinkedHashSet<String>();
+                tables.add(normalise(matcher.group(1)));
+                tables.addAll(getTablesRead(sql));
+                return tables;
+        }
+
+        /**
+         * Normalise a table name: no backticks, no database, lower case.
+         * 
+         * @param name
+         *                the table name as written in the SQL
+         * @return the normalised name
+         */
+        static String normalise(final String name) {
+                String table = name.replace("`", "");
+                table = table.substring(table.lastIndexOf('.') + 1);
+                return table.toLowerCase(Locale.US);
+        }
+
+        /**
+         * Return the number of results found in the cache.
+         * 
+         * @return cache hits
+         */
+        public long getHits() {
+                return hits.get();
+        }
+
+        /**
+         * Return the number of results not found in the cache.
+         * 
+         * @return cache misses
+         */
+        public long getMisses() {
+                return misses.get();
+        }
+
+        /**
+         * Return the number of misses that waited for the same query run by
+         * another thread instead of running it again.
+         * 
+         * @return coalesced misses
+         */
+        public long getCoalescedMisses() {
+                return coalesced.get();
+        }
+
+        /**
+         * A cached result with its expiry time.
+         */
+        private static final class Entry implements Serializable {
+
+                /** Serial version. */
+                private static final long serialVersionUID = 1L;
+
+                /** The result. */
+                private final Object value;
+
+                /** When the result expires. */
+                private final long expires;
+
+                /**
+                 * Create an entry.
+                 * 
+                 * @param valueIn
+                 *                the result
+                 * @param ttlSeconds
+                 *                time to live in seconds
+                 */
+                private Entry(final Object valueIn, final int ttlSeconds) {
+                        value = valueIn;
+                        expires = System.currentTimeMillis() + (long) ttlSeconds * MS_IN_A_SEC;
+                }
+
+                /**
+                 * @return true if the result is no longer to be used
+                 */
+                private boolean isExpired() {
+                        return System.currentTimeMillis() >= expires;
+                }
+
+        }
+
+}
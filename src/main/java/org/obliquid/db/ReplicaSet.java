@@ -0,0 +1,516 @@
+package org.obliquid.db;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+import org.obliquid.config.AppConfig;
+
+/**
+ * The read replicas of the primary database. MetaDbImpl sends the SELECT
+ * queries that can run on a replica to one of them, chosen round-robin or
+ * by the least number of connections in use, while writes, transactions and
+ * the queries depending on the session stay on the primary. A replica that
+ * can't be connected to, or that fails the periodic health check, is taken
+ * out of rotation until a health check succeeds again; when no replica is
+ * available reads go to the primary.
+ * 
+ * @author stivlo
+ */
+public class ReplicaSet {
+
+        /** How a replica is chosen. */
+        public enum Balancing {
+                /** Each replica in turn. */
+                ROUND_ROBIN,
+                /** The replica with the fewest connections in use. */
+                LEAST_LOADED
+        }
+
+        /** Default interval between health checks in seconds. */
+        public static final int DEFAULT_HEALTH_CHECK_INTERVAL = 10;
+
+        /** Default timeout in seconds for the health check of a connection. */
+        public static final int DEFAULT_VALIDATION_TIMEOUT = 2;
+
+        /** How many milliseconds in a second (1000). */
+        private static final int MS_IN_A_SEC = 1000;
+
+        /** Queries that can run on a replica start with SELECT. */
+        private static final Pattern READ_ONLY = Pattern.compile("^\\s*\\(?\\s*SELECT\\b",
+                        Pattern.CASE_INSENSITIVE);
+
+        /**
+         * Locking reads, session functions and variables need the primary;
+         * SQL_CALC_FOUND_ROWS too, to run with its FOUND_ROWS() on the same
+         * connection.
+         */
+        private static final Pattern NEEDS_PRIMARY = Pattern.compile("\\bFOR\\s+(?:UPDATE|SHARE)\\b"
+                        + "|\\bLOCK\\s+IN\\s+SHARE\\s+MODE\\b|\\bINTO\\b|@|\\bSQL_CALC_FOUND_ROWS\\b"
+                        + "|\\b(?:LAST_INSERT_ID|FOUND_ROWS"
+                        + "|ROW_COUNT|GET_LOCK|RELEASE_LOCK|IS_FREE_LOCK)\\s*\\(",
+                        Pattern.CASE_INSENSITIVE);
+
+        /** The replicas configured from AppConfig, shared by all ConnectionManagers. */
+        private static volatile ReplicaSet singleton = null;
+
+        /** Connection parameters, the URL being per replica. */
+        private final String driver, username, password;
+
+        /** The replicas, in the order they were added. */
+        private final List<Replica> replicas = new CopyOnWriteArrayList<Replica>();
+
+        /** How a replica is chosen. */
+        private volatile Balancing balancing = Balancing.ROUND_ROBIN;
+
+        /** Timeout passed to Connection.isValid() by the health check (seconds). */
+        private int validationTimeout = DEFAULT_VALIDATION_TIMEOUT;
+
+        /** Where the next round-robin search starts. */
+        private final AtomicInteger next = new AtomicInteger();
+
+        /** Runs the health checks. */
+        private Timer healthTimer;
+
+        /** Whether the health check runs periodically. */
+        private volatile boolean checking = false;
+
+        /**
+         * Without the periodic health check, milliseconds after which
+         * choose() checks again a replica out of rotation.
+         */
+        private volatile long recheckDelay = (long) DEFAULT_HEALTH_CHECK_INTERVAL * MS_IN_A_SEC;
+
+        /** Log4j instance. */
+        private static final Logger LOG = Logger.getLogger(ReplicaSet.class);
+
+        /**
+         * Create an empty set of replicas, sharing the driver and credentials
+         * of the primary.
+         * 
+         * @param driverIn
+         *                fully qualified driver class
+         * @param usernameIn
+         *                the connection username
+         * @param passwordIn
+         *                the connection password
+         */
+        public ReplicaSet(final String driverIn, final String usernameIn, final String passwordIn) {
+                driver = driverIn;
+                username = usernameIn;
+                password = passwordIn;
+        }
+
+        /**
+         * Get the replicas configured with the application configuration,
+         * creating them the first time. The optional property dbReplicaUrls
+         * is a comma separated list of connection URLs, none by default;
+         * dbReplicaBalancing is "roundRobin" (default) or "leastLoaded";
+         * dbReplicaHealthCheckInterval is in seconds, 0 disables the periodic
+         * health check: a replica out of rotation is then checked again by the
+         * first choose() after DEFAULT_HEALTH_CHECK_INTERVAL seconds. dbDriver,
+         * dbUsername and dbPassword are the ones of the primary. When
+         * dbUseEmbeddedPool is set each replica has its own
+         * ConnectionPool, sized like the one of the primary.
+         * 
+         * @return the shared ReplicaSet instance
+         */
+        public static ReplicaSet getInstance() {
+                if (singleton != null) {
+                        return singleton;
+                }
+                synchronized (ReplicaSet.class) {
+                        if (singleton != null) { //check again inside synchronized
+                                return singleton;
+                        }
+                        AppConfig conf = AppConfig.getInstance();
+                        ReplicaSet set = new ReplicaSet(conf.getProperty("dbDriver"),
+                                        conf.getProperty("dbUsername"), conf.getProperty("dbPassword"));
+                        String urls = conf.getProperty("dbReplicaUrls");
+                        boolean pooled = conf.getPropertyAsBoolean("dbUseEmbeddedPool", false);
+                        if (urls != null) {
+                                for (String url : urls.split(",")) {
+                                        String replicaUrl = url.trim();
+                                        if (replicaUrl.length() > 0) {
+                                                set.addReplica(replicaUrl, pooled ? createPool(conf, replicaUrl)
+                                                                : null);
+                                        }
+                                }
+                        }
+                        if ("leastLoaded".equals(conf.getProperty("dbReplicaBalancing"))) {
+                                set.setBalancing(Balancing.LEAST_LOADED);
+                        }
+                        set.setValidationTimeout(conf.getPropertyAsInt("dbPoolValidationTimeout",
+                                        DEFAULT_VALIDATION_TIMEOUT));
+                        if (set.size() > 0) {
+                                set.startHealthCheck(conf.getPropertyAsInt("dbReplicaHealthCheckInterval",
+                                                DEFAULT_HEALTH_CHECK_INTERVAL));
+                        }
+                        singleton = set;
+                }
+                return singleton;
+        }
+
+        /**
+         * Create the pool of a replica, configured like the one of the
+         * primary.
+         * 
+         * @param conf
+         *                the application configuration
+         * @param url
+         *                the URL of the replica
+         * @return a ConnectionPool, not started yet
+         */
+        private static ConnectionPool createPool(final AppConfig conf, final String url) {
+                ConnectionPool pool = new ConnectionPool(conf.getProperty("dbDriver"), url,
+                                conf.getProperty("dbUsername"), conf.getProperty("dbPassword"));
+                pool.setMinSize(conf.getPropertyAsInt("dbPoolMinSize", 0));
+                pool.setMaxSize(conf.getPropertyAsInt("dbPoolMaxSize", ConnectionPool.DEFAULT_MAX_SIZE));
+                pool.setIdleTimeout(conf.getPropertyAsInt("dbPoolIdleTimeout",
+                                ConnectionPool.DEFAULT_IDLE_TIMEOUT));
+                pool.setBorrowTimeout(conf.getPropertyAsInt("dbPoolBorrowTimeout",
+                                ConnectionPool.DEFAULT_BORROW_TIMEOUT));
+                pool.setValidationTimeout(conf.getPropertyAsInt("dbPoolValidationTimeout",
+                                ConnectionPool.DEFAULT_VALIDATION_TIMEOUT));
+                return pool;
+        }
+
+        /**
+         * Add a replica.
+         * 
+         * @param url
+         *                connection URL of the replica
+         * @param pool
+         *                pool of connections to the replica, null to open a
+         *                stand-alone connection each time
+         */
+        public final void addReplica(final String url, final ConnectionPool pool) {
+                replicas.add(new Replica(url, pool));
+        }
+
+        /**
+         * Set how a replica is chosen.
+         * 
+         * @param balancingIn
+         *                round-robin or least loaded
+         */
+        public final void setBalancing(final Balancing balancingIn) {
+                balancing = balancingIn;
+        }
+
+        /**
+         * Set the timeout of the health check of a connection.
+         * 
+         * @param validationTimeoutIn
+         *                timeout in seconds
+         */
+        public final void setValidationTimeout(final int validationTimeoutIn) {
+                validationTimeout = validationTimeoutIn;
+        }
+
+        /**
+         * Set how long a replica out of rotation waits to be checked again by
+         * choose(), when the health check doesn't run periodically.
+         * 
+         * @param seconds
+         *                seconds after the failure
+         */
+        public final void setRecheckDelay(final int seconds) {
+                recheckDelay = (long) seconds * MS_IN_A_SEC;
+        }
+
+        /**
+         * Check the health of the replicas periodically, in a daemon thread.
+         * Calling it more than once has no effect.
+         * 
+         * @param intervalSeconds
+         *                seconds between checks, 0 or less not to check
+         */
+        public final synchronized void startHealthCheck(final int intervalSeconds) {
+                if (healthTimer != null || intervalSeconds <= 0) {
+                        return;
+                }
+                healthTimer = new Timer("ReplicaSet-health", true);
+                checking = true;
+                long period = (long) intervalSeconds * MS_IN_A_SEC;
+                healthTimer.schedule(new TimerTask() {
+                        @Override
+                        public void run() {
+                                checkHealth();
+                        }
+                }, period, period);
+        }
+
+        /**
+         * Stop the health check and close the pools of the replicas.
+         */
+        public final synchronized void shutdown() {
+                if (healthTimer != null) {
+                        healthTimer.cancel();
+                        healthTimer = null;
+                        checking = false;
+                }
+                for (Replica replica : replicas) {
+                        if (replica.pool != null) {
+                                replica.pool.shutdown();
+                        }
+                }
+        }
+
+        /**
+         * Check every replica now, taking out of rotation the ones failing and
+         * putting back the ones that recovered.
+         */
+        public final void checkHealth() {
+                for (Replica replica : replicas) {
+                        check(replica);
+                }
+        }
+
+        /**
+         * Check a replica now, taking it out of rotation or putting it back.
+         * 
+         * @param replica
+         *                the replica
+         * @return true if healthy
+         */
+        private boolean check(final Replica replica) {
+                boolean healthy;
+                Connection conn = null;
+                try {
+                        conn = open(replica);
+                        healthy = conn.isValid(validationTimeout);
+                } catch (SQLException ex) {
+                        healthy = false;
+                } finally {
+                        closeQuietly(conn);
+                }
+                if (healthy && !replica.healthy) {
+                        LOG.info("Replica " + replica.url + " is back in rotation");
+                } else if (!healthy && replica.healthy) {
+                        LOG.warn("Replica " + replica.url + " failed the health check");
+                }
+                if (!healthy) {
+                        replica.failedAt = System.currentTimeMillis();
+                }
+                replica.healthy = healthy;
+                return healthy;
+        }
+
+        /**
+         * Whether a replica out of rotation should be checked again by
+         * choose(): only without the periodic health check, once the recheck
+         * delay has passed since it failed.
+         * 
+         * @param replica
+         *                a replica out of rotation
+         * @return true if it should be checked now
+         */
+        private boolean isRecheckDue(final Replica replica) {
+                return !checking && System.currentTimeMillis() - replica.failedAt >= recheckDelay;
+        }
+
+        /**
+         * Choose a healthy replica and count it as in use, until release().
+         * Without the periodic health check, the replicas out of rotation for
+         * longer than the recheck delay are checked again first.
+         * 
+         * @return a replica, null if none is available
+         */
+        final Replica choose() {
+                int size = replicas.size();
+                int start = next.getAndIncrement() & Integer.MAX_VALUE;
+                Replica chosen = null;
+                for (int i = 0; i < size; i++) {
+                        Replica replica = replicas.get((start + i) % size);
+                        if (!replica.healthy && !(isRecheckDue(replica) && check(replica))) {
+                                continue;
+                        }
+                        if (balancing == Balancing.ROUND_ROBIN) {
+                                chosen = replica;
+                                break;
+                        }
+                        if (chosen == null || replica.inUse.get() < chosen.inUse.get()) {
+                                chosen = replica;
+                        }
+                }
+                if (chosen != null) {
+                        chosen.inUse.incrementAndGet();
+                        chosen.borrowed.incrementAndGet();
+                }
+                return chosen;
+        }
+
+        /**
+         * Stop counting a replica returned by choose() as in use.
+         * 
+         * @param replica
+         *                the replica
+         * @param failed
+         *                true to take the replica out of rotation, until the
+         *                next successful health check or recheck
+         */
+        final void release(final Replica replica, final boolean failed) {
+                replica.inUse.decrementAndGet();
+                if (failed && replica.healthy) {
+                        LOG.warn("Replica " + replica.url + " taken out of rotation");
+                        replica.failedAt = System.currentTimeMillis();
+                        replica.healthy = false;
+                }
+        }
+
+        /**
+         * Open a connection to a replica, or borrow it from its pool.
+         * 
+         * @param replica
+         *                the replica
+         * @return a Connection, closed to give it back
+         * @throws SQLException
+         *                 when the connection can't be established
+         */
+        protected Connection open(final Replica replica) throws SQLException {
+                if (replica.pool != null) {
+                        return replica.pool.borrow();
+                }
+                try {
+                        Class.forName(driver);
+                } catch (ClassNotFoundException ex) {
+                        throw new SQLException(ex);
+                }
+                return DriverManager.getConnection(replica.url, username, password);
+        }
+
+        /**
+         * Close a connection, ignoring errors.
+         * 
+         * @param conn
+         *                the connection, can be null
+         */
+        private static void closeQuietly(final Connection conn) {
+                if (conn == null) {
+                        return;
+                }
+                try {
+                        conn.close();
+                } catch (SQLException ex) {
+                        LOG.debug(ex.getMessage());
+                }
+        }
+
+        /**
+         * Whether a query can run on a replica: a SELECT not locking rows and
+         * not depending on the state of the session.
+         * 
+         * @param sql
+         *                the SQL text
+         * @return true if the query can run on a replica
+         */
+        static boolean isReplicaSafe(final String sql) {
+                return READ_ONLY.matcher(sql).find() && !NEEDS_PRIMARY.matcher(sql).find();
+        }
+
+        /**
+         * Return the number of replicas.
+         * 
+         * @return the number of replicas, healthy or not
+         */
+        public final int size() {
+                return replicas.size();
+        }
+
+        /**
+         * Return the number of replicas in rotation.
+         * 
+         * @return the number of healthy replicas
+         */
+        public final int getHealthyCount() {
+                int count = 0;
+                for (Replica replica : replicas) {
+                        if (replica.healthy) {
+                                count++;
+                        }
+                }
+                return count;
+        }
+
+        /**
+         * Return how many times a replica was chosen.
+         * 
+         * @param url
+         *                the URL of the replica
+         * @return the number of connections given out, 0 for an unknown URL
+         */
+        public final long getBorrowedCount(final String url) {
+                for (Replica replica : replicas) {
+                        if (replica.url.equals(url)) {
+                                return replica.borrowed.get();
+                        }
+                }
+                return 0;
+        }
+
+        /**
+         * A replica and its state.
+         */
+        static final class Replica {
+
+                /** Connection URL. */
+                private final String url;
+
+                /** Pool of connections, null for stand-alone connections. */
+                private final ConnectionPool pool;
+
+                /** Whether the replica is in rotation. */
+                private volatile boolean healthy = true;
+
+                /** When the replica was last taken out of rotation, in ms. */
+                private volatile long failedAt;
+
+                /** Connections currently in use. */
+                private final AtomicInteger inUse = new AtomicInteger();
+
+                /** Connections given out since the start. */
+                private final AtomicLong borrowed = new AtomicLong();
+
+                /**
+                 * Create a replica, in rotation.
+                 * 
+                 * @param urlIn
+                 *                connection URL
+                 * @param poolIn
+                 *                pool of connections, or null
+                 */
+                private Replica(final String urlIn, final ConnectionPool poolIn) {
+                        url = urlIn;
+                        pool = poolIn;
+                }
+
+                /**
+                 * Return the connection URL.
+                 * 
+                 * @return the URL
+                 */
+                String getUrl() {
+                        return url;
+                }
+
+                /**
+                 * Whether the connections come from a pool.
+                 * 
+                 * @return true if pooled
+                 */
+                boolean isPooled() {
+                        return pool != null;
+                }
+
+        }
+
+}
@@ -0,0 +1,26 @@
+package org.obliquid.db;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Callback receiving the rows of a streamed query one at a time, see
+ * MetaDb.selectAll(String, List, RowHandler).
+ * 
+ * @author stivlo
+ */
+public interface RowHandler {
+
+        /**
+         * Handle a row of the result. The row is not kept by MetaDb, so it can
+         * be garbage collected as soon as this method returns.
+         * 
+         * @param row
+         *                the values of the current row, in column order
+         * @return true to go on with the next row, false to stop
+         * @throws SQLException
+         *                 to abort the query
+         */
+        boolean handleRow(List<Object> row) throws SQLException;
+
+}
@@ -0,0 +1,327 @@
+package org.obliquid.db;
+
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.obliquid.config.AppConfig;
+
+/**
+ * Hand out ids from blocks reserved in advance (hi/lo), so that the database
+ * is accessed once per block instead of once per id. Ids are handed out from
+ * memory without locking, and when a quarter of the current block is left the
+ * next block is reserved in the background, so callers normally never wait.
+ * Ids are unique and increasing within a block, but the ids left in a block
+ * when the application stops are lost, so sequences have gaps.
+ * 
+ * @author stivlo
+ */
+public final class SequenceAllocator {
+
+        /** Default number of ids reserved at once. */
+        public static final int DEFAULT_BLOCK_SIZE = 100;
+
+        /** The allocator configured from AppConfig. */
+        private static volatile SequenceAllocator singleton = null;
+
+        /** Reserves the blocks. */
+        private final IdBlockSource source;
+
+        /** Runs the reservations. */
+        private final Executor executor;
+
+        /** Block size of sequences without a specific one. */
+        private final int defaultBlockSize;
+
+        /** The sequences by name. */
+        private final ConcurrentMap<String, Sequence> sequences = new ConcurrentHashMap<String, Sequence>();
+
+        /** Block sizes set with setBlockSize(). */
+        private final ConcurrentMap<String, Integer> blockSizes = new ConcurrentHashMap<String, Integer>();
+
+        /** Where per-sequence block sizes are read from, null if not used. */
+        private final AppConfig conf;
+
+        /**
+         * Create an allocator.
+         * 
+         * @param sourceIn
+         *                reserves the blocks
+         * @param executorIn
+         *                runs the reservations in the background
+         * @param defaultBlockSizeIn
+         *                ids reserved at once, unless set per sequence
+         */
+        public SequenceAllocator(final IdBlockSource sourceIn, final Executor executorIn,
+                        final int defaultBlockSizeIn) {
+                this(sourceIn, executorIn, defaultBlockSizeIn, null);
+        }
+
+        /**
+         * Create an allocator reading per-sequence block sizes from AppConfig.
+         * 
+         * @param sourceIn
+         *                reserves the blocks
+         * @param executorIn
+         *                runs the reservations in the background
+         * @param defaultBlockSizeIn
+         *                ids reserved at once, unless set per sequence
+         * @param confIn
+         *                the configuration, or null
+         */
+        private SequenceAllocator(final IdBlockSource sourceIn, final Executor executorIn,
+                        final int defaultBlockSizeIn, final AppConfig confIn) {
+                source = sourceIn;
+                executor = executorIn;
+                defaultBlockSize = checkBlockSize(defaultBlockSizeIn);
+                conf = confIn;
+        }
+
+        /**
+         * Get the allocator reserving blocks from the sequence table (see
+         * SequenceTableBlockSource). The block size is read from the optional
+         * property dbSequenceBlockSize.&lt;sequence&gt;, then from
+         * dbSequenceBlockSize, default DEFAULT_BLOCK_SIZE.
+         * 
+         * @return the shared SequenceAllocator instance
+         */
+        public static SequenceAllocator getInstance() {
+                if (singleton != null) {
+                        return singleton;
+                }
+                synchronized (SequenceAllocator.class) {
+                        if (singleton != null) { //check again inside synchronized
+                                return singleton;
+                        }
+                        AppConfig conf = AppConfig.getInstance();
+                        int blockSize = DEFAULT_BLOCK_SIZE;
+                        if (conf != null) {
+                                blockSize = conf.getPropertyAsInt("dbSequenceBlockSize", DEFAULT_BLOCK_SIZE);
+                        }
+                        ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                                @Override
+                                public Thread newThread(final Runnable runnable) {
+                                        Thread thread = new Thread(runnable, "SequenceAllocator");
+                                        thread.setDaemon(true);
+                                        return thread;
+                                }
+                        });
+                        singleton = new SequenceAllocator(new SequenceTableBlockSource(), executor, blockSize,
+                                        conf);
+                }
+                return singleton;
+        }
+
+        /**
+         * Set the number of ids reserved at once for a sequence. Takes effect
+         * from the next block.
+         * 
+         * @param sequenceName
+         *                the sequence
+         * @param blockSize
+         *                ids reserved at once, at least 1
+         */
+        public void setBlockSize(final String sequenceName, final int blockSize) {
+                blockSizes.put(sequenceName, checkBlockSize(blockSize));
+        }
+
+        /**
+         * Return the number of ids reserved at once for a sequence.
+         * 
+         * @param sequenceName
+         *                the sequence
+         * @return the block size
+         */
+        public int getBlockSize(final String sequenceName) {
+                Integer blockSize = blockSizes.get(sequenceName);
+                if (blockSize != null) {
+                        return blockSize;
+                }
+                if (conf != null) {
+                        return conf.getPropertyAsInt("dbSequenceBlockSize." + sequenceName, defaultBlockSize);
+                }
+                return defaultBlockSize;
+        }
+
+        /**
+         * Return the next id of a sequence. Thread safe, blocks only when the
+         * current block is used up before the next one has been reserved.
+         * 
+         * @param sequenceName
+         *                the sequence
+         * @return a new id
+         * @throws SQLException
+         *                 when a new block can't be reserved
+         */
+        public long nextId(final String sequenceName) throws SQLException {
+                Sequence sequence = sequences.get(sequenceName);
+                if (sequence == null) {
+                        sequence = new Sequence(sequenceName);
+                        Sequence existing = sequences.putIfAbsent(sequenceName, sequence);
+                        if (existing != null) {
+                                sequence = existing;
+                        }
+                }
+                return sequence.next();
+        }
+
+        /**
+         * Validate a block size.
+         * 
+         * @param blockSize
+         *                the block size
+         * @return blockSize
+         */
+        private static int checkBlockSize(final int blockSize) {
+                if (blockSize < 1) {
+                        throw new IllegalArgumentException("blockSize must be at least 1, was " + blockSize);
+                }
+                return blockSize;
+        }
+
+        /**
+         * A range of reserved ids.
+         */
+        private static final class Block {
+
+                /** A block with no ids left. */
+                private static final Block EMPTY = new Block(0, 0);
+
+                /** The next id to hand out. */
+                private final AtomicLong next;
+
+                /** The first id not in the block. */
+                private final long end;
+
+                /** When this id is handed out, the next block is reserved. */
+                private final long refillAt;
+
+                /**
+                 * Create a block.
+                 * 
+                 * @param first
+                 *                first id
+                 * @param size
+                 *                number of ids
+                 */
+                private Block(final long first, final int size) {
+                        next = new AtomicLong(first);
+                        end = first + size;
+                        refillAt = end - Math.max(1, size / 4);
+                }
+
+        }
+
+        /**
+         * The state of one sequence: the block in use and the reservation of
+         * the next one.
+         */
+        private final class Sequence {
+
+                /** The sequence name. */
+                private final String name;
+
+                /** The block ids are handed out from. */
+                private final AtomicReference<Block> current = new AtomicReference<Block>(Block.EMPTY);
+
+                /** The reservation of the next block, null if not started. */
+                private final AtomicReference<FutureTask<Block>> refill =
+                                new AtomicReference<FutureTask<Block>>();
+
+                /**
+                 * Create the state of a sequence.
+                 * 
+                 * @param nameIn
+                 *                the sequence name
+                 */
+                private Sequence(final String nameIn) {
+                        name = nameIn;
+                }
+
+                /**
+                 * Hand out the next id.
+                 * 
+                 * @return a new id
+                 * @throws SQLException
+                 *                 when a new block can't be reserved
+                 */
+                private long next() throws SQLException {
+                        while (true) {
+                                Block block = current.get();
+                                long id = block.next.getAndIncrement();
+                                if (id < block.end) {
+                                        if (id == block.refillAt) { //exactly one thread gets this id
+                                                startRefill();
+                                        }
+                                        return id;
+                                }
+                                FutureTask<Block> task = startRefill();
+                                Block fresh = await(task);
+                                if (current.compareAndSet(block, fresh)) {
+                                        refill.compareAndSet(task, null);
+                                }
+                        }
+                }
+
+                /**
+                 * Start reserving the next block, unless already started.
+                 * 
+                 * @return the reservation in progress
+                 */
+                private FutureTask<Block> startRefill() {
+                        while (true) {
+                                FutureTask<Block> task = refill.get();
+                                if (task != null) {
+                                        return task;
+                                }
+                                task = new FutureTask<Block>(new Callable<Block>() {
+                                        @Override
+                                        public Block call() throws SQLException {
+                                                int blockSize = getBlockSize(name);
+                                                return new Block(source.reserve(name, blockSize), blockSize);
+                                        }
+                                });
+                                if (refill.compareAndSet(null, task)) {
+                                        executor.execute(task);
+                                        return task;
+                                }
+                        }
+                }
+
+                /**
+                 * Wait for a reservation. A failed reservation is discarded so
+                 * that the next call tries again.
+                 * 
+                 * @param task
+                 *                the reservation
+                 * @return the reserved block
+                 * @throws SQLException
+                 *                 when the block couldn't be reserved
+                 */
+                private Block await(final FutureTask<Block> task) throws SQLException {
+                        try {
+                                return task.get();
+                        } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                                throw new SQLException("Interrupted while reserving ids for " + name, ex);
+                        } catch (ExecutionException ex) {
+                                refill.compareAndSet(task, null);
+                                if (ex.getCause() instanceof SQLException) {
+                                        throw (SQLException) ex.getCause();
+                                }
+                                throw new SQLException("Can't reserve ids for " + name, ex.getCause());
+                        }
+                }
+
+        }
+
+}
@@ -0,0 +1,83 @@
+package org.obliquid.db;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reserve blocks of ids from the table used by
+ * MetaDbImpl.newIdUsingSequenceNoCommit():
+ * 
+ * <pre>
+ * CREATE TABLE sequence (
+ *   sequencename VARCHAR(64) NOT NULL PRIMARY KEY,
+ *   nextval BIGINT NOT NULL
+ * )
+ * </pre>
+ * 
+ * A block is reserved with a single UPDATE that adds the block size to
+ * nextval, storing the new value with LAST_INSERT_ID(), so the row is locked
+ * only for the duration of that statement. MySQL specific.
+ * 
+ * @author stivlo
+ */
+public class SequenceTableBlockSource implements IdBlockSource {
+
+        /** Move nextval forward by a block. */
+        private static final String RESERVE = "UPDATE sequence SET nextval=LAST_INSERT_ID(nextval+?) "
+                        + "WHERE sequencename=?";
+
+        /** Create a sequence, with the first block already reserved. */
+        private static final String CREATE = "INSERT INTO sequence(nextval, sequencename) VALUES (?, ?)";
+
+        @Override
+        public final long reserve(final String sequenceName, final int blockSize) throws SQLException {
+                MetaDb db = new MetaDbImpl();
+                try {
+                        db.getConnection();
+                        List<Object> param = new ArrayList<Object>();
+                        param.add(blockSize);
+                        param.add(sequenceName);
+                        if (db.execute(RESERVE, param) == 0 && create(db, sequenceName, blockSize)) {
+                                return 1;
+                        }
+                        long nextval = ((Number) db.selectField("SELECT LAST_INSERT_ID()")).longValue();
+                        return nextval - blockSize;
+                } finally {
+                        db.releaseConnection();
+                }
+        }
+
+        /**
+         * Create a missing sequence, reserving its first block. If another
+         * process creates it first, the block is reserved with the UPDATE.
+         * 
+         * @param db
+         *                a connected MetaDb
+         * @param sequenceName
+         *                the sequence
+         * @param blockSize
+         *                how many ids to reserve
+         * @return true if the sequence was created, false if it was created
+         *         concurrently and the block reserved anyway
+         * @throws SQLException
+         *                 when the block can't be reserved
+         */
+        private boolean create(final MetaDb db, final String sequenceName, final int blockSize)
+                        throws SQLException {
+                List<Object> param = new ArrayList<Object>();
+                param.add(1L + blockSize);
+                param.add(sequenceName);
+                try {
+                        db.execute(CREATE, param);
+                        return true;
+                } catch (SQLException ex) {
+                        param.set(0, blockSize);
+                        if (db.execute(RESERVE, param) == 0) {
+                                throw ex;
+                        }
+                        return false;
+                }
+        }
+
+}
@@ -0,0 +1,345 @@
+package org.obliquid.db;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.obliquid.helpers.SqlHelper;
+import org.obliquid.helpers.StringHelper;
+
+/**
+ * A cache of the SQL text built by the MetaDb helper methods (insert,
+ * update, SELECT with a list of fields), keyed by operation, table and column
+ * names in order, so that repeated calls with the same columns don't join
+ * strings again. For SELECTs the field list and the field names resolved with
+ * SqlHelper.extractFieldName() are cached, the rest of the query being free
+ * text. Thread safe, shared by all the MetaDbImpl instances.
+ * 
+ * @author stivlo
+ */
+public final class SqlTemplateCache {
+
+        /** Default maximum number of templates. */
+        public static final int DEFAULT_MAX_SIZE = 1024;
+
+        /** The cache shared by MetaDbImpl instances. */
+        private static final SqlTemplateCache INSTANCE = new SqlTemplateCache(DEFAULT_MAX_SIZE);
+
+        /** The templates. */
+        private final Map<Key, Template> templates = new ConcurrentHashMap<Key, Template>();
+
+        /**
+         * Maximum number of templates, when exceeded the cache is emptied: the
+         * set of statements used by an application is normally small, so this
+         * only guards against code building column lists dynamically.
+         */
+        private final int maxSize;
+
+        /** Statistics. */
+        private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+        /** The operations. */
+        private enum Operation {
+                /** INSERT INTO t(a, b) VALUES (?,?). */
+                INSERT,
+                /** INSERT DELAYED INTO t(a, b) VALUES (?,?). */
+                INSERT_DELAYED,
+                /** UPDATE t SET `a`=?, `b`=? WHERE k=?. */
+                UPDATE,
+                /** a, b AS c. */
+                SELECT,
+                /** `a`, `b`. */
+                SELECT_QUOTED
+        }
+
+        /**
+         * Create an empty cache.
+         * 
+         * @param maxSizeIn
+         *                maximum number of templates
+         */
+        SqlTemplateCache(final int maxSizeIn) {
+                maxSize = maxSizeIn;
+        }
+
+        /**
+         * Get the cache shared by MetaDbImpl instances.
+         * 
+         * @return the shared SqlTemplateCache
+         */
+        public static SqlTemplateCache getInstance() {
+                return INSTANCE;
+        }
+
+        /**
+         * Get an INSERT statement with a placeholder for each column.
+         * 
+         * @param tablename
+         *                the table
+         * @param columns
+         *                the column names, in the order of the parameters
+         * @param delayed
+         *                true for INSERT DELAYED
+         * @return the parametric SQL
+         */
+        String getInsert(final String tablename, final String[] columns, final boolean delayed) {
+                Operation op = delayed ? Operation.INSERT_DELAYED : Operation.INSERT;
+                Key key = new Key(op, tablename, columns, null);
+                Template template = lookup(key);
+                if (template == null) {
+                        StringBuilder sb = new StringBuilder();
+                        sb.append(delayed ? "INSERT DELAYED INTO " : "INSERT INTO ");
+                        sb.append(tablename);
+                        sb.append("(");
+                        sb.append(StringHelper.implode(", ", columns));
+                        sb.append(") VALUES (");
+                        sb.append(StringHelper.repeatWithSeparator("?", columns.length, ","));
+                        sb.append(")");
+                        template = store(key, new Template(sb.toString(), null));
+                }
+                return template.sql;
+        }
+
+        /**
+         * Get an UPDATE statement setting the fields by primary key.
+         * 
+         * @param tablename
+         *                the table
+         * @param fields
+         *                the fields to set, in the order of the parameters
+         * @param priKeys
+         *                the primary key fields, in the order of the
+         *                parameters after the fields
+         * @return the parametric SQL
+         */
+        String getUpdate(final String tablename, final String[] fields, final String[] priKeys) {
+                Key key = new Key(Operation.UPDATE, tablename, fields, priKeys);
+                Template template = lookup(key);
+                if (template == null) {
+                        String sql = "UPDATE " + tablename + " SET "
+                                        + StringHelper.implodeAndQuote("=?, ", fields, "`") + "=? WHERE "
+                                        + StringHelper.implode("=? AND ", priKeys) + "=?";
+                        template = store(key, new Template(sql, null));
+                }
+                return template.sql;
+        }
+
+        /**
+         * Get the field list of a SELECT, as "a, b AS c", or "`a`, `b`" when
+         * quoted.
+         * 
+         * @param fields
+         *                the field expressions
+         * @param quoted
+         *                whether to quote each field with backticks
+         * @return the field list
+         */
+        String getFieldList(final String[] fields, final boolean quoted) {
+                return getSelect(fields, quoted).sql;
+        }
+
+        /**
+         * Get the names of the fields of a SELECT, as returned by
+         * SqlHelper.extractFieldName().
+         * 
+         * @param fields
+         *                the field expressions
+         * @return the field names, not to be modified
+         */
+        String[] getFieldNames(final String[] fields) {
+                return getSelect(fields, false).fieldNames;
+        }
+
+        /**
+         * Get the template of a SELECT field list.
+         * 
+         * @param fields
+         *                the field expressions
+         * @param quoted
+         *                whether to quote each field with backticks
+         * @return the template
+         */
+        private Template getSelect(final String[] fields, final boolean quoted) {
+                Key key = new Key(quoted ? Operation.SELECT_QUOTED : Operation.SELECT, null, fields, null);
+                Template template = lookup(key);
+                if (template == null) {
+                        String fieldList;
+                        if (quoted) {
+                                fieldList = StringHelper.implodeAndQuote(", ", fields, "`");
+                        } else {
+                                fieldList = StringHelper.implode(", ", fields);
+                        }
+                        String[] fieldNames = new String[fields.length];
+                        for (int i = 0; i < fields.length; i++) {
+                                fieldNames[i] = SqlHelper.extractFieldName(fields[i]);
+                        }
+                        template = store(key, new Template(fieldList, fieldNames));
+                }
+                return template;
+        }
+
+        /**
+         * Find a template, counting hits and misses.
+         * 
+         * @param key
+         *                the key
+         * @return the template or null
+         */
+        private Template lookup(final Key key) {
+                Template template = templates.get(key);
+                if (template == null) {
+                        misses.incrementAndGet();
+                } else {
+                        hits.incrementAndGet();
+                }
+                return template;
+        }
+
+        /**
+         * Store a template, emptying the cache first if it's full.
+         * 
+         * @param key
+         *                the key
+         * @param template
+         *                the template
+         * @return template
+         */
+        private Template store(final Key key, final Template template) {
+                if (templates.size() >= maxSize) {
+                        templates.clear();
+                }
+                templates.put(key.copy(), template);
+                return template;
+        }
+
+        /**
+         * Return the number of templates found in the cache.
+         * 
+         * @return cache hits
+         */
+        public long getHits() {
+                return hits.get();
+        }
+
+        /**
+         * Return the number of templates that had to be built.
+         * 
+         * @return cache misses
+         */
+        public long getMisses() {
+                return misses.get();
+        }
+
+        /**
+         * Return the number of templates cached.
+         * 
+         * @return cached templates
+         */
+        public int size() {
+                return templates.size();
+        }
+
+        /**
+         * The SQL text and the field names of a template.
+         */
+        private static final class Template {
+
+                /** SQL text, or the field list of a SELECT. */
+                private final String sql;
+
+                /** Field names of a SELECT, null otherwise. */
+                private final String[] fieldNames;
+
+                /**
+                 * Create a template.
+                 * 
+                 * @param sqlIn
+                 *                SQL text
+                 * @param fieldNamesIn
+                 *                field names, or null
+                 */
+                private Template(final String sqlIn, final String[] fieldNamesIn) {
+                        sql = sqlIn;
+                        fieldNames = fieldNamesIn;
+                }
+
+        }
+
+        /**
+         * Operation, table and columns identifying a template.
+         */
+        private static final class Key {
+
+                /** The operation. */
+                private final Operation op;
+
+                /** The table, null for SELECT. */
+                private final String table;
+
+                /** The columns, in order. */
+                private final String[] columns;
+
+                /** The primary key columns of an UPDATE, null otherwise. */
+                private final String[] keys;
+
+                /** Precomputed hash code. */
+                private final int hash;
+
+                /**
+                 * Create a key. The arrays are not copied, see copy().
+                 * 
+                 * @param opIn
+                 *                the operation
+                 * @param tableIn
+                 *                the table, or null
+                 * @param columnsIn
+                 *                the columns
+                 * @param keysIn
+                 *                the primary key columns, or null
+                 */
+                private Key(final Operation opIn, final String tableIn, final String[] columnsIn,
+                                final String[] keysIn) {
+                        op = opIn;
+                        table = tableIn;
+                        columns = columnsIn;
+                        keys = keysIn;
+                        int h = op.hashCode();
+                        h = 31 * h + (table == null ? 0 : table.hashCode());
+                        h = 31 * h + Arrays.hashCode(columns);
+                        hash = 31 * h + Arrays.hashCode(keys);
+                }
+
+                /**
+                 * Copy the key before storing it, since callers may reuse the
+                 * arrays.
+                 * 
+                 * @return a Key with its own arrays
+                 */
+                private Key copy() {
+                        return new Key(op, table, columns.clone(), keys == null ? null : keys.clone());
+                }
+
+                @Override
+                public int hashCode() {
+                        return hash;
+                }
+
+                @Override
+                public boolean equals(final Object obj) {
+                        if (this == obj) {
+                                return true;
+                        }
+                        if (!(obj instanceof Key)) {
+                                return false;
+                        }
+                        Key other = (Key) obj;
+                        return hash == other.hash && op == other.op
+                                        && (table == null ? other.table == null : table.equals(other.table))
+                                        && Arrays.equals(columns, other.columns)
+                                        && Arrays.equals(keys, other.keys);
+                }
+
+        }
+
+}
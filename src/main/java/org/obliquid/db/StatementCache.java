@@ -0,0 +1,170 @@
+package org.obliquid.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.obliquid.helpers.SqlHelper;
+
+/**
+ * A LRU cache of PreparedStatements keyed by SQL text, scoped to a single
+ * Connection. A statement is checked out while in use and checked in again
+ * afterwards, so the same SQL used in nested calls gets distinct statements.
+ * When the cache is full the least recently used statement is closed. Not
+ * thread safe, like the MetaDbImpl that owns it.
+ * 
+ * @author stivlo
+ */
+public final class StatementCache {
+
+        /** Default number of statements kept per connection. */
+        public static final int DEFAULT_SIZE = 32;
+
+        /** Idle statements, least recently used first. */
+        private final LinkedHashMap<String, PreparedStatement> statements;
+
+        /** Maximum number of idle statements kept, 0 disables the cache. */
+        private final int maxSize;
+
+        /** Connection the cached statements belong to. */
+        private Connection owner;
+
+        /** Statistics. */
+        private long hits, misses, evictions;
+
+        /**
+         * Create an empty cache.
+         * 
+         * @param maxSizeIn
+         *                maximum number of statements to keep, 0 to disable
+         *                caching
+         */
+        public StatementCache(final int maxSizeIn) {
+                maxSize = maxSizeIn;
+                statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+
+                        /** Serial version. */
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        protected boolean removeEldestEntry(final Map.Entry<String, PreparedStatement> eldest) {
+                                if (size() <= maxSize) {
+                                        return false;
+                                }
+                                evictions++;
+                                SqlHelper.close(eldest.getValue());
+                                return true;
+                        }
+                };
+        }
+
+        /**
+         * Check out a statement for the SQL, reusing a cached one if possible.
+         * The parameters of a reused statement are cleared, so that a missing
+         * parameter is reported by the driver instead of taking the value of
+         * the previous call.
+         * 
+         * @param conn
+         *                the connection to prepare the statement on
+         * @param sql
+         *                parametric SQL
+         * @return a PreparedStatement, to be given back with release()
+         * @throws SQLException
+         *                 when the statement can't be prepared
+         */
+        PreparedStatement prepare(final Connection conn, final String sql) throws SQLException {
+                if (conn != owner) {
+                        clear();
+                        owner = conn;
+                }
+                PreparedStatement stmt = statements.remove(sql);
+                if (stmt != null) {
+                        hits++;
+                        stmt.clearParameters();
+                        return stmt;
+                }
+                misses++;
+                return conn.prepareStatement(sql);
+        }
+
+        /**
+         * Check in a statement obtained with prepare(). It's kept for reuse,
+         * or closed if the cache is disabled or already holds the same SQL.
+         * 
+         * @param sql
+         *                the SQL used to prepare the statement
+         * @param stmt
+         *                the statement, null is ignored
+         */
+        void release(final String sql, final PreparedStatement stmt) {
+                if (stmt == null) {
+                        return;
+                }
+                if (maxSize <= 0 || statements.containsKey(sql)) {
+                        SqlHelper.close(stmt);
+                        return;
+                }
+                statements.put(sql, stmt);
+        }
+
+        /**
+         * Close all cached statements, to be called before releasing the
+         * connection.
+         */
+        void clear() {
+                for (Iterator<PreparedStatement> it = statements.values().iterator(); it.hasNext();) {
+                        SqlHelper.close(it.next());
+                }
+                statements.clear();
+                owner = null;
+        }
+
+        /**
+         * Return the number of statements found in the cache.
+         * 
+         * @return cache hits
+         */
+        public long getHits() {
+                return hits;
+        }
+
+        /**
+         * Return the number of statements that had to be prepared.
+         * 
+         * @return cache misses
+         */
+        public long getMisses() {
+                return misses;
+        }
+
+        /**
+         * Return the number of statements closed to make room for others.
+         * 
+         * @return evictions
+         */
+        public long getEvictions() {
+                return evictions;
+        }
+
+        /**
+         * Return the number of idle statements currently cached.
+         * 
+         * @return cached statements
+         */
+        public int size() {
+                return statements.size();
+        }
+
+        /**
+         * Return the maximum number of cached statements.
+         * 
+         * @return the cache size, 0 if disabled
+         */
+        public int getMaxSize() {
+                return maxSize;
+        }
+
+}
@@ -70,8 +70,7 @@ public final class SqlHelper {
          */
         public static String extractFieldName(final String expression) {
                 String as = " AS ";
-                Locale locale = new Locale("en", "US");
-                int asPos = expression.toUpperCase(locale).lastIndexOf(as);
+                int asPos = expression.toUpperCase(Locale.US).lastIndexOf(as);
                 if (asPos == -1) {
                         return expression.trim();
                 }
@@ -206,11 +205,26 @@ public final class SqlHelper {
                         final List<?> param) throws SQLException {
                 PreparedStatement stmt;
                 stmt = conn.prepareStatement(sql);
+                bindParameters(stmt, param);
+                return stmt;
+        }
+
+        /**
+         * Set all the parameters of a PreparedStatement, in order.
+         * 
+         * @param stmt
+         *                the PreparedStatement, new or reused
+         * @param param
+         *                parameters to be substituted
+         * @throws SQLException
+         *                 when there are DB problems
+         */
+        public static void bindParameters(final PreparedStatement stmt, final List<?> param)
+                        throws SQLException {
                 Iterator<?> it = param.iterator();
                 for (int paramPosition = 1; it.hasNext(); paramPosition++) {
                         SqlHelper.setObjectInStatement(stmt, paramPosition, it.next());
                 }
-                return stmt;
         }
 
         /**
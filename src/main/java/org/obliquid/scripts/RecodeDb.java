@@ -129,16 +129,18 @@ public abstract class RecodeDb {
                 fields.add(fieldName);
                 fields.addAll(priKeys);
                 List<List<Object>> content = db.selectAll(fields, "FROM " + table);
+                List<Map<String, Object>> newValues = new ArrayList<Map<String, Object>>(content.size());
+                List<Map<String, Object>> rowKeys = new ArrayList<Map<String, Object>>(content.size());
                 Iterator<List<Object>> rowIterator = content.iterator();
                 while (rowIterator.hasNext()) {
                         List<Object> row = rowIterator.next();
-                        Map<String, Object> fieldAndValue = recodeFieldAndStoreInMap(fieldName, row.get(0));
+                        newValues.add(recodeFieldAndStoreInMap(fieldName, row.get(0)));
                         //remove the field that was used already to leave only the priKey values
                         row.remove(0);
-                        Map<String, Object> priKeyAndValue = storePrimaryKeyInMap(priKeys, row);
-                        if (!dryRun) {
-                                db.update(table, fieldAndValue, priKeyAndValue);
-                        }
+                        rowKeys.add(storePrimaryKeyInMap(priKeys, row));
+                }
+                if (!dryRun) {
+                        db.updateBatch(table, newValues, rowKeys);
                 }
         }
 
@@ -2,12 +2,12 @@ package org.obliquid.sdb;
 
 import java.math.BigDecimal;
 import java.net.ConnectException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.UUID;
 
@@ -32,7 +32,9 @@ import com.amazonaws.services.simpledb.model.SelectResult;
 
 /**
  * Implementation of the PersistenceInterface for Amazon SimpleDb with the
- * official Amazon SDK.
+ * official Amazon SDK. By default the pages of a query are fetched when the
+ * previous one has been read; with setPrefetch() the next pages of loadAll()
+ * and query() are fetched in the background while the current one is read.
  * 
  * @author stivlo
  */
@@ -47,8 +49,8 @@ public class AmazonSdbHelper implements PersistenceInterface {
     /** The primary key. */
     private String key;
 
-    /** A list of attributes. */
-    private final List<ReplaceableAttribute> attributes;
+    /** The attributes of the current item. */
+    private final AttributeStore attributes = new AttributeStore();
 
     /** */
     private final List<ReplaceableItem> items;
@@ -83,6 +85,27 @@ public class AmazonSdbHelper implements PersistenceInterface {
     /** Whether to use consistent reads or not. */
     private boolean consistent = false;
 
+    /** Items per page requested by loadAll(). */
+    private int pageSize = ITEMS_PER_TIME;
+
+    /** Pages fetched ahead by queries, 0 to fetch each page when needed. */
+    private int prefetchDepth = 0;
+
+    /** The pages being fetched in the background, null when not prefetching. */
+    private PrefetchingScan scan;
+
+    /** Runs the select requests, through the scheduler. */
+    private final SdbSelector selector;
+
+    /** Paces and retries the calls to SimpleDB. */
+    private volatile SdbScheduler scheduler = SdbScheduler.getShared();
+
+    /** The items saved in batch mode. */
+    private final WriteBehindBatch<ReplaceableAttribute> batch;
+
+    /** Whether save() queues the items in the batch. */
+    private boolean batchMode = false;
+
     /**
      * How many items to load per time, this doesn't limit the total results
      * of a query because all result can be retrieved reissuing the same
@@ -90,6 +113,9 @@ public class AmazonSdbHelper implements PersistenceInterface {
      */
     private static final int ITEMS_PER_TIME = 50;
 
+    /** The maximum LIMIT of a SimpleDB select. */
+    public static final int MAX_PAGE_SIZE = 2500;
+
     /**
      * Default constructor.
      * 
@@ -97,20 +123,101 @@ public class AmazonSdbHelper implements PersistenceInterface {
      *             in case of problems
      */
     public AmazonSdbHelper() throws ConnectException {
+        this(createClient());
         System.out.println("new AmazonSdbHelper()");
+    }
+
+    /**
+     * Constructor using the given client.
+     * 
+     * @param sdbIn
+     *            an AmazonSimpleDB client
+     */
+    public AmazonSdbHelper(final AmazonSimpleDB sdbIn) {
+        this(sdbIn, new SdbSelector() {
+            @Override
+            public SelectResult select(final SelectRequest request) {
+                return sdbIn.select(request);
+            }
+        });
+    }
+
+    /**
+     * Constructor running the selects with a selector, for instance a local
+     * stand-in in tests. The selects are paced by the scheduler as the other
+     * calls.
+     * 
+     * @param sdbIn
+     *            an AmazonSimpleDB client
+     * @param selectorIn
+     *            runs the select requests
+     */
+    AmazonSdbHelper(final AmazonSimpleDB sdbIn, final SdbSelector selectorIn) {
+        sdb = sdbIn;
+        selector = new SdbSelector() {
+            @Override
+            public SelectResult select(final SelectRequest request) {
+                return scheduler.select(request.getSelectExpression(),
+                        new SdbScheduler.Call<SelectResult, AmazonClientException>() {
+                            @Override
+                            public SelectResult call() {
+                                return selectorIn.select(request);
+                            }
+                        });
+            }
+        };
+        batch = new WriteBehindBatch<ReplaceableAttribute>(new WriteBehindBatch.Sink<ReplaceableAttribute>() {
+            @Override
+            public void write(final String domainName,
+                    final Map<String, List<ReplaceableAttribute>> batchItems) throws ConnectException {
+                List<ReplaceableItem> request = new ArrayList<ReplaceableItem>(batchItems.size());
+                for (Map.Entry<String, List<ReplaceableAttribute>> entry : batchItems.entrySet()) {
+                    request.add(new ReplaceableItem(entry.getKey(), entry.getValue()));
+                }
+                batchPut(domainName, request);
+            }
+        });
+        items = new ArrayList<ReplaceableItem>();
+        limit = 0;
+        position = 0;
+        bufferPosition = 0;
+        bufferSize = 0;
+    }
+
+    /**
+     * Create the client from the application configuration.
+     * 
+     * @return an AmazonSimpleDB client
+     * @throws ConnectException
+     *             when the configuration is missing
+     */
+    private static AmazonSimpleDB createClient() throws ConnectException {
         try {
-            sdb = ClientFactory.createSimpleDbClient();
-            attributes = new ArrayList<ReplaceableAttribute>();
-            items = new ArrayList<ReplaceableItem>();
-            limit = 0;
-            position = 0;
-            bufferPosition = 0;
-            bufferSize = 0;
+            return ClientFactory.createSimpleDbClient();
         } catch (NoSuchElementException ex) {
             throw new ConnectException(ex.getMessage());
         }
     }
 
+    /**
+     * Fetch the next pages of loadAll() and query() in the background while
+     * the current one is read, for faster scans of whole domains.
+     * 
+     * @param pageSizeIn
+     *            items per page requested by loadAll(), up to MAX_PAGE_SIZE;
+     *            query() uses the LIMIT of its SQL
+     * @param queueDepth
+     *            how many pages to fetch ahead, 0 to fetch each page when
+     *            needed
+     */
+    public final void setPrefetch(final int pageSizeIn, final int queueDepth) {
+        if (pageSizeIn < 1 || pageSizeIn > MAX_PAGE_SIZE || queueDepth < 0) {
+            throw new IllegalArgumentException("Invalid page size or queue depth");
+        }
+        pageSize = pageSizeIn;
+        prefetchDepth = queueDepth;
+    }
+
     @Override
     public final void setDomain(final String domainIn) throws ConnectException {
         attributes.clear();
@@ -127,22 +234,6 @@ public class AmazonSdbHelper implements PersistenceInterface {
         return key;
     }
 
-    /**
-     * Remove an attribute from the current attributes in memory.
-     * 
-     * @param name
-     *            the name of the attribute to be removed
-     */
-    private void removeAttribute(final String name) {
-        ReplaceableAttribute curAttribute;
-        for (Iterator<ReplaceableAttribute> it = attributes.iterator(); it.hasNext();) {
-            curAttribute = it.next();
-            if (curAttribute.getName().equals(name)) {
-                it.remove();
-            }
-        }
-    }
-
     /**
      * Add an attribute, but only if value is not empty.
      * 
@@ -155,20 +246,21 @@ public class AmazonSdbHelper implements PersistenceInterface {
         if (value == null) {
             return;
         }
-        attributes.add(new ReplaceableAttribute(name, value, true));
+        attributes.add(name, value);
     }
 
     @Override
     public final void setAttribute(final String name, final String value) {
-        removeAttribute(name);
-        addAttribute(name, value);
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.set(name, value);
+        }
     }
 
     @Override
     public final void setAttribute(final String name, final Date valueAsDate) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-        String valueAsString = sdf.format(valueAsDate);
-        setAttribute(name, valueAsString);
+        setAttribute(name, SdbEncoding.encodeDate(valueAsDate));
     }
 
     @Override
@@ -184,7 +276,7 @@ public class AmazonSdbHelper implements PersistenceInterface {
 
     @Override
     public final void setAttribute(final String name, final Collection<String> values) {
-        removeAttribute(name);
+        attributes.remove(name);
         for (String value : values) {
             addAttribute(name, value);
         }
@@ -192,34 +284,130 @@ public class AmazonSdbHelper implements PersistenceInterface {
 
     @Override
     public final void setAttribute(final String name, final String[] values) {
-        removeAttribute(name);
+        attributes.remove(name);
         for (String value : values) {
             addAttribute(name, value);
         }
     }
 
+    @Override
+    public final void setEncodedAttribute(final String name, final int value) {
+        setAttribute(name, SdbEncoding.encode(value));
+    }
+
+    @Override
+    public final void setEncodedAttribute(final String name, final long value) {
+        setAttribute(name, SdbEncoding.encode(value));
+    }
+
+    @Override
+    public final void setEncodedAttribute(final String name, final BigDecimal value) {
+        setAttribute(name, SdbEncoding.encode(value));
+    }
+
+    @Override
+    public final void setTimestamp(final String name, final Date value) {
+        setAttribute(name, SdbEncoding.encodeTimestamp(value));
+    }
+
     @Override
     public final void save() throws ConnectException {
+        List<ReplaceableAttribute> toPut = toReplaceableAttributes();
+        if (batchMode) {
+            batch.add(domain, key, toPut);
+            attributes.clear();
+            return;
+        }
         items.clear();
-        items.add(new ReplaceableItem(key, attributes));
+        items.add(new ReplaceableItem(key, toPut));
         // System.out.println("Saving in domain " + domain + " " + items.size() + " items");
         // for (ReplaceableAttribute attribute : attributes) {
         // System.out.println("    " + attribute.getName() + "=" + attribute.getValue());
         // }
+        batchPut(domain, items);
+        attributes.clear();
+    }
+
+    /**
+     * Put items in a domain, through the scheduler.
+     * 
+     * @param domainName
+     *            the domain
+     * @param request
+     *            the items
+     * @throws ConnectException
+     *             when SimpleDB fails, or still throttles after the retries
+     */
+    private void batchPut(final String domainName, final List<ReplaceableItem> request)
+            throws ConnectException {
         try {
-            sdb.batchPutAttributes(new BatchPutAttributesRequest(domain, items));
+            scheduler.execute(domainName, new SdbScheduler.Call<Void, AmazonClientException>() {
+                @Override
+                public Void call() {
+                    sdb.batchPutAttributes(new BatchPutAttributesRequest(domainName, request));
+                    return null;
+                }
+            });
         } catch (AmazonClientException ex) {
-            throw new ConnectException();
+            throw new ConnectException(ex.getMessage());
         }
-        attributes.clear();
+    }
+
+    /**
+     * Set the scheduler pacing and retrying the calls to SimpleDB, by
+     * default the one shared by the helpers.
+     * 
+     * @param schedulerIn
+     *            the scheduler
+     */
+    public final void setScheduler(final SdbScheduler schedulerIn) {
+        scheduler = schedulerIn;
+    }
+
+    /**
+     * Convert the attributes of the current item for the SDK, replacing the
+     * values stored.
+     * 
+     * @return the attributes to put
+     */
+    private List<ReplaceableAttribute> toReplaceableAttributes() {
+        List<ReplaceableAttribute> toPut = new ArrayList<ReplaceableAttribute>(attributes.countValues());
+        for (Map.Entry<String, List<String>> entry : attributes.asMap().entrySet()) {
+            for (String value : entry.getValue()) {
+                toPut.add(new ReplaceableAttribute(entry.getKey(), value, true));
+            }
+        }
+        return toPut;
+    }
+
+    @Override
+    public final void enableBatchMode(final boolean enable) throws ConnectException {
+        batchMode = enable;
+        if (!enable) {
+            batch.flush();
+        }
+    }
+
+    @Override
+    public final void flush() throws ConnectException {
+        batch.flush();
+    }
+
+    /**
+     * Set how long an item saved in batch mode waits before being written,
+     * if the batch doesn't fill up before.
+     * 
+     * @param millis
+     *            milliseconds, by default 1000
+     */
+    public final void setBatchFlushDelay(final long millis) {
+        batch.setFlushDelay(millis);
     }
 
     @Override
     public final String getAttributeAsString(final String name) throws NoSuchElementException {
-        for (ReplaceableAttribute attribute : attributes) {
-            if (attribute.getName().equals(name)) {
-                return attribute.getValue();
-            }
+        if (attributes.contains(name)) {
+            return attributes.getFirst(name);
         }
         if (enableExceptions) {
             throw new NoSuchElementException("Attribute '" + name + "' not found");
@@ -254,15 +442,30 @@ public class AmazonSdbHelper implements PersistenceInterface {
         return new BigDecimal(value);
     }
 
+    @Override
+    public final int getAttributeAsEncodedInt(final String name) throws NoSuchElementException {
+        return SdbEncoding.decodeInt(getAttributeAsString(name));
+    }
+
+    @Override
+    public final long getAttributeAsEncodedLong(final String name) throws NoSuchElementException {
+        return SdbEncoding.decodeLong(getAttributeAsString(name));
+    }
+
+    @Override
+    public final BigDecimal getAttributeAsEncodedBigDecimal(final String name)
+            throws NoSuchElementException {
+        return SdbEncoding.decodeBigDecimal(getAttributeAsString(name));
+    }
+
+    @Override
+    public final Date getAttributeAsTimestamp(final String name) throws NoSuchElementException {
+        return SdbEncoding.decodeTimestamp(getAttributeAsString(name));
+    }
+
     @Override
     public final Collection<String> getAttributeAsCollection(final String name) throws NoSuchElementException {
-        List<String> values = new ArrayList<String>();
-        for (ReplaceableAttribute attribute : attributes) {
-            if (attribute.getName().equals(name)) {
-                values.add(attribute.getValue());
-            }
-        }
-        return values;
+        return new ArrayList<String>(attributes.getAll(name));
     }
 
     @Override
@@ -271,7 +474,7 @@ public class AmazonSdbHelper implements PersistenceInterface {
         if (orderBy.length() > 0) {
             sql += SqlHelper.buildWhereAndOrderByForSdb(orderBy);
         }
-        sql += " LIMIT " + ITEMS_PER_TIME;
+        sql += " LIMIT " + pageSize;
         query(sql);
     }
 
@@ -281,15 +484,58 @@ public class AmazonSdbHelper implements PersistenceInterface {
         loadAll();
     }
 
+    @Override
+    public final ParallelScan scanParallel(final int segments) throws ConnectException {
+        return new ParallelScan(new ParallelScan.Source() {
+            @Override
+            public ParallelScan.Page select(final String sql, final String nextToken)
+                    throws ConnectException {
+                SelectRequest request = new SelectRequest(sql, consistent);
+                if (nextToken != null) {
+                    request.setNextToken(nextToken);
+                }
+                SelectResult result;
+                try {
+                    result = selector.select(request);
+                } catch (AmazonClientException ex) {
+                    throw new ConnectException(ex.getMessage());
+                }
+                Map<String, Map<String, List<String>>> page =
+                        new LinkedHashMap<String, Map<String, List<String>>>();
+                for (Item item : result.getItems()) {
+                    Map<String, List<String>> values = new LinkedHashMap<String, List<String>>();
+                    for (Attribute attribute : item.getAttributes()) {
+                        if (!values.containsKey(attribute.getName())) {
+                            values.put(attribute.getName(), new ArrayList<String>());
+                        }
+                        values.get(attribute.getName()).add(attribute.getValue());
+                    }
+                    page.put(item.getName(), values);
+                }
+                return new ParallelScan.Page(page, result.getNextToken());
+            }
+        }, domain, segments);
+    }
+
     @Override
     public final void consistentQuery(final String sql) throws ConnectException {
         consistent = true;
-        query(sql, null);
+        query(sql);
     }
 
     @Override
     public final void query(final String sql) throws ConnectException {
-        query(sql, null);
+        if (prefetchDepth == 0) {
+            query(sql, null);
+            return;
+        }
+        closeScan();
+        currentQuery = sql;
+        selectResult = null;
+        position = 0;
+        scan = new PrefetchingScan(selector, sql, consistent, prefetchDepth);
+        scan.start();
+        setBuffer(scan.nextPage());
     }
 
     /**
@@ -303,22 +549,49 @@ public class AmazonSdbHelper implements PersistenceInterface {
      *             in case of problems
      */
     public final void query(final String sql, final String nextToken) throws ConnectException {
+        closeScan();
         currentQuery = sql; // we need it to get the next batch of results
         try {
             SelectRequest selectRequest = new SelectRequest(sql, consistent);
             if (nextToken != null) {
                 selectRequest.setNextToken(nextToken);
+            } else {
+                position = 0;
             }
-            selectResult = sdb.select(selectRequest);
-            buffer = selectResult.getItems();
-            position = 0;
-            bufferPosition = 0;
-            bufferSize = buffer.size();
+            selectResult = selector.select(selectRequest);
+            setBuffer(selectResult.getItems());
         } catch (AmazonClientException ex) {
             throw new ConnectException(ex.getMessage());
         }
     }
 
+    /**
+     * Read the items of a page.
+     * 
+     * @param page
+     *            the items, null when there are no more pages
+     */
+    private void setBuffer(final List<Item> page) {
+        if (page == null) {
+            scan = null;
+            buffer = new ArrayList<Item>();
+        } else {
+            buffer = page;
+        }
+        bufferPosition = 0;
+        bufferSize = buffer.size();
+    }
+
+    /**
+     * Stop fetching the pages of the previous query in the background.
+     */
+    private void closeScan() {
+        if (scan != null) {
+            scan.close();
+            scan = null;
+        }
+    }
+
     @Override
     public final String next() {
         Item currentItem = buffer.get(bufferPosition);
@@ -326,7 +599,7 @@ public class AmazonSdbHelper implements PersistenceInterface {
         attributes.clear();
         List<Attribute> currentAttributes = currentItem.getAttributes();
         for (Attribute anAttribute : currentAttributes) {
-            attributes.add(new ReplaceableAttribute(anAttribute.getName(), anAttribute.getValue(), true));
+            attributes.add(anAttribute.getName(), anAttribute.getValue());
         }
         position++;
         bufferPosition++;
@@ -335,18 +608,25 @@ public class AmazonSdbHelper implements PersistenceInterface {
 
     @Override
     public final boolean hasNext() throws ConnectException {
-        if (bufferSize == 0 || (limit != 0 && position >= limit)) {
+        if (limit != 0 && position >= limit) {
+            closeScan();
             return false;
         }
-        if (bufferPosition < bufferSize) {
-            return true;
-        }
-        String nextToken = selectResult.getNextToken();
-        if (nextToken == null || nextToken.trim().length() == 0) {
-            return false;
+        while (bufferPosition >= bufferSize) {
+            if (scan != null) {
+                setBuffer(scan.nextPage());
+                if (scan == null) {
+                    return false;
+                }
+                continue;
+            }
+            String nextToken = selectResult == null ? null : selectResult.getNextToken();
+            if (nextToken == null || nextToken.trim().length() == 0) {
+                return false;
+            }
+            query(currentQuery, nextToken);
         }
-        query(currentQuery, nextToken);
-        return hasNext();
+        return true;
     }
 
     @Override
@@ -362,23 +642,40 @@ public class AmazonSdbHelper implements PersistenceInterface {
 
     @Override
     public final List<String> listDomains() throws ConnectException {
-        return sdb.listDomains().getDomainNames();
+        return scheduler.execute("", new SdbScheduler.Call<List<String>, AmazonClientException>() {
+            @Override
+            public List<String> call() {
+                return sdb.listDomains().getDomainNames();
+            }
+        });
     }
 
     @Override
     public final void createDomain(final String domainName) throws ConnectException {
-        sdb.createDomain(new CreateDomainRequest(domainName));
+        scheduler.execute(domainName, new SdbScheduler.Call<Void, AmazonClientException>() {
+            @Override
+            public Void call() {
+                sdb.createDomain(new CreateDomainRequest(domainName));
+                return null;
+            }
+        });
     }
 
     @Override
     public final void deleteDomain(final String domainName) throws ConnectException {
-        sdb.deleteDomain(new DeleteDomainRequest(domainName));
+        scheduler.execute(domainName, new SdbScheduler.Call<Void, AmazonClientException>() {
+            @Override
+            public Void call() {
+                sdb.deleteDomain(new DeleteDomainRequest(domainName));
+                return null;
+            }
+        });
     }
 
     @Override
     public final void loadByKey(final String keyIn) throws ConnectException, NoSuchElementException {
         String sql = "SELECT * FROM " + domain + " WHERE itemName() = " + StringHelper.quote(keyIn);
-        query(sql);
+        query(sql, null);
         if (hasNext()) {
             next();
         } else {
@@ -388,9 +685,15 @@ public class AmazonSdbHelper implements PersistenceInterface {
 
     @Override
     public final void deleteByKey(final String keyIn) throws ConnectException {
-        DeleteAttributesRequest request = new DeleteAttributesRequest(domain, keyIn);
+        final DeleteAttributesRequest request = new DeleteAttributesRequest(domain, keyIn);
         try {
-            sdb.deleteAttributes(request);
+            scheduler.execute(domain, new SdbScheduler.Call<Void, AmazonClientException>() {
+                @Override
+                public Void call() {
+                    sdb.deleteAttributes(request);
+                    return null;
+                }
+            });
         } catch (AmazonServiceException ex) {
             throw new ConnectException(ex.getMessage());
         } catch (AmazonClientException ex) {
@@ -400,14 +703,7 @@ public class AmazonSdbHelper implements PersistenceInterface {
 
     @Override
     public final String toString() {
-        StringBuffer sb = new StringBuffer();
-        for (ReplaceableAttribute attribute : attributes) {
-            sb.append(attribute.getName());
-            sb.append(": ");
-            sb.append(attribute.getValue());
-            sb.append("\n");
-        }
-        return sb.toString();
+        return attributes.toString();
     }
 
     @Override
@@ -0,0 +1,204 @@
+package org.obliquid.sdb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The attributes of the current item, by name, each with its values in the
+ * order they were added. Setting, reading and removing an attribute doesn't
+ * depend on how many other attributes the item has. The value lists of the
+ * attributes removed or cleared are kept and reused, so that iterating over
+ * the items of a query doesn't allocate new lists for each item. The
+ * attributes are converted to the objects of the client library only when
+ * saved. Not thread safe, as the helpers using it.
+ * 
+ * @author stivlo
+ */
+final class AttributeStore {
+
+        /** The values by attribute name, in insertion order. */
+        private final Map<String, List<String>> buckets = new LinkedHashMap<String, List<String>>();
+
+        /** Empty value lists, to be reused. */
+        private final List<List<String>> spare = new ArrayList<List<String>>();
+
+        /**
+         * Set an attribute to a single value, replacing its previous values.
+         * 
+         * @param name
+         *                the attribute name
+         * @param value
+         *                the value
+         */
+        void set(final String name, final String value) {
+                List<String> bucket = bucketFor(name);
+                bucket.clear();
+                bucket.add(value);
+        }
+
+        /**
+         * Set an attribute to many values, replacing its previous values. With
+         * no values, the attribute is removed.
+         * 
+         * @param name
+         *                the attribute name
+         * @param values
+         *                the values
+         */
+        void set(final String name, final Collection<String> values) {
+                if (values.isEmpty()) {
+                        remove(name);
+                        return;
+                }
+                List<String> bucket = bucketFor(name);
+                bucket.clear();
+                bucket.addAll(values);
+        }
+
+        /**
+         * Add a value to an attribute, keeping its previous values.
+         * 
+         * @param name
+         *                the attribute name
+         * @param value
+         *                the value
+         */
+        void add(final String name, final String value) {
+                bucketFor(name).add(value);
+        }
+
+        /**
+         * Remove an attribute with all its values.
+         * 
+         * @param name
+         *                the attribute name
+         */
+        void remove(final String name) {
+                List<String> bucket = buckets.remove(name);
+                if (bucket != null) {
+                        recycle(bucket);
+                }
+        }
+
+        /**
+         * Whether an attribute has values.
+         * 
+         * @param name
+         *                the attribute name
+         * @return true if it has at least one value
+         */
+        boolean contains(final String name) {
+                return buckets.containsKey(name);
+        }
+
+        /**
+         * Return the first value of an attribute.
+         * 
+         * @param name
+         *                the attribute name
+         * @return the first value added, null if the attribute is missing
+         */
+        String getFirst(final String name) {
+                List<String> bucket = buckets.get(name);
+                return bucket == null ? null : bucket.get(0);
+        }
+
+        /**
+         * Return the values of an attribute. The list is a view, valid until
+         * the attribute is changed.
+         * 
+         * @param name
+         *                the attribute name
+         * @return the values, empty if the attribute is missing
+         */
+        List<String> getAll(final String name) {
+                List<String> bucket = buckets.get(name);
+                if (bucket == null) {
+                        return Collections.emptyList();
+                }
+                return Collections.unmodifiableList(bucket);
+        }
+
+        /**
+         * Return all the attributes, to convert them to the objects of the
+         * client library. The map is a view, valid until the store is changed.
+         * 
+         * @return the values by attribute name
+         */
+        Map<String, List<String>> asMap() {
+                return Collections.unmodifiableMap(buckets);
+        }
+
+        /**
+         * Return the number of values of all the attributes.
+         * 
+         * @return the number of values
+         */
+        int countValues() {
+                int count = 0;
+                for (List<String> bucket : buckets.values()) {
+                        count += bucket.size();
+                }
+                return count;
+        }
+
+        /**
+         * @return true if there are no attributes
+         */
+        boolean isEmpty() {
+                return buckets.isEmpty();
+        }
+
+        /**
+         * Remove all the attributes, keeping their value lists for reuse.
+         */
+        void clear() {
+                for (List<String> bucket : buckets.values()) {
+                        recycle(bucket);
+                }
+                buckets.clear();
+        }
+
+        @Override
+        public String toString() {
+                StringBuilder sb = new StringBuilder();
+                for (Map.Entry<String, List<String>> entry : buckets.entrySet()) {
+                        for (String value : entry.getValue()) {
+                                sb.append(entry.getKey()).append(": ").append(value).append('\n');
+                        }
+                }
+                return sb.toString();
+        }
+
+        /**
+         * Find the value list of an attribute, creating it if missing.
+         * 
+         * @param name
+         *                the attribute name
+         * @return the value list
+         */
+        private List<String> bucketFor(final String name) {
+                List<String> bucket = buckets.get(name);
+                if (bucket == null) {
+                        bucket = spare.isEmpty() ? new ArrayList<String>(1) : spare.remove(spare.size() - 1);
+                        buckets.put(name, bucket);
+                }
+                return bucket;
+        }
+
+        /**
+         * Keep an unused value list for reuse.
+         * 
+         * @param bucket
+         *                the value list
+         */
+        private void recycle(final List<String> bucket) {
+                bucket.clear();
+                spare.add(bucket);
+        }
+
+}
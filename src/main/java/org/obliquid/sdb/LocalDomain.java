@@ -0,0 +1,612 @@
+package org.obliquid.sdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * A domain stored in a local file: an append-only log of the items put and
+ * deleted, memory-mapped, with in memory the position of the last record of
+ * each item and, for each attribute, the items by value. Items are read from
+ * the mapped log, the indexes answer the equality and range predicates of a
+ * select.
+ * <p>
+ * Each record is its length, the CRC32 of its body and the body: the type
+ * (put or delete), the item name and, for puts, all the attributes of the
+ * item after the put. The file grows by chunks filled with zeros, so that the
+ * first zero length marks the end of the log; on opening, a record cut or
+ * corrupted by a crash ends the log too. When the records replaced by later
+ * ones take more than half of the log, the live records are copied to a new
+ * log that replaces the old one.
+ * <p>
+ * The log can't grow over 2GB, the size of a mapped buffer. Thread safe: the
+ * timed flushes of the batches write from a background thread.
+ * 
+ * @author stivlo
+ */
+final class LocalDomain {
+
+        /** Extension of the log files. */
+        static final String EXTENSION = ".log";
+
+        /** Minimum bytes of replaced records before compacting the log. */
+        static final int COMPACT_MIN_BYTES = 1 << 20;
+
+        /** Initial size of a log, and minimum growth. */
+        private static final int CHUNK_BYTES = 1 << 16;
+
+        /** Length and CRC32 before each record body. */
+        private static final int HEADER_BYTES = 8;
+
+        /** Record type of a put. */
+        private static final byte PUT = 1;
+
+        /** Record type of a delete. */
+        private static final byte DELETE = 2;
+
+        /** Encoding of the strings. */
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+
+        /** The log file. */
+        private final File file;
+
+        /** The open log. */
+        private RandomAccessFile raf;
+
+        /** The log mapped in memory, as big as the file. */
+        private MappedByteBuffer log;
+
+        /** Position after the last record. */
+        private int end;
+
+        /** Bytes of the records replaced by later ones, deletes included. */
+        private long deadBytes;
+
+        /** Position of the last put of each item, in item name order. */
+        private final TreeMap<String, Integer> positions = new TreeMap<String, Integer>();
+
+        /** Item names by attribute name and value. */
+        private final Map<String, TreeMap<String, Set<String>>> indexes =
+                        new HashMap<String, TreeMap<String, Set<String>>>();
+
+        /**
+         * Open a log, creating it if missing, and read its index.
+         * 
+         * @param fileIn
+         *                the log file
+         * @throws ConnectException
+         *                 when the file can't be read or written
+         */
+        LocalDomain(final File fileIn) throws ConnectException {
+                file = fileIn;
+                try {
+                        open();
+                } catch (IOException ex) {
+                        throw new ConnectException("Can't open " + file + ": " + ex.getMessage());
+                }
+        }
+
+        /**
+         * Map the log and read its records.
+         * 
+         * @throws IOException
+         *                 when the file can't be read or written
+         */
+        private void open() throws IOException {
+                raf = new RandomAccessFile(file, "rw");
+                long length = raf.length();
+                if (length > Integer.MAX_VALUE) {
+                        throw new IOException("Log larger than 2GB");
+                }
+                map(Math.max(CHUNK_BYTES, (int) length));
+                end = 0;
+                deadBytes = 0;
+                positions.clear();
+                indexes.clear();
+                while (end + HEADER_BYTES <= log.capacity()) {
+                        int bodyLength = log.getInt(end);
+                        if (bodyLength <= 0 || bodyLength > log.capacity() - end - HEADER_BYTES) {
+                                break;
+                        }
+                        byte[] body = new byte[bodyLength];
+                        ByteBuffer view = log.duplicate();
+                        view.position(end + HEADER_BYTES);
+                        view.get(body);
+                        if (crc(body) != log.getInt(end + 4)) {
+                                break;
+                        }
+                        replay(end, ByteBuffer.wrap(body));
+                        end += HEADER_BYTES + bodyLength;
+                }
+        }
+
+        /**
+         * Update the indexes with a record read at opening.
+         * 
+         * @param position
+         *                position of the record
+         * @param body
+         *                the record body
+         */
+        private void replay(final int position, final ByteBuffer body) {
+                byte type = body.get();
+                String key = readString(body);
+                if (type == PUT) {
+                        index(key, position, readAttributes(body));
+                } else {
+                        unindex(key);
+                        deadBytes += HEADER_BYTES + body.capacity();
+                }
+        }
+
+        /**
+         * Map the log file, growing it to a size.
+         * 
+         * @param size
+         *                size of the file and of the mapping
+         * @throws IOException
+         *                 when the file can't be mapped
+         */
+        private void map(final int size) throws IOException {
+                raf.setLength(size);
+                log = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        /**
+         * Put items, each replacing the values of the attributes it has and
+         * keeping its other attributes, as a SimpleDB put with replace.
+         * 
+         * @param items
+         *                the attributes to put by item name
+         * @throws ConnectException
+         *                 when the log can't be written
+         */
+        synchronized void put(final Map<String, Map<String, List<String>>> items) throws ConnectException {
+                checkOpen();
+                for (Map.Entry<String, Map<String, List<String>>> item : items.entrySet()) {
+                        Map<String, List<String>> merged = get(item.getKey());
+                        if (merged == null) {
+                                merged = new LinkedHashMap<String, List<String>>();
+                        }
+                        merged.putAll(item.getValue());
+                        append(PUT, item.getKey(), merged);
+                }
+                force();
+        }
+
+        /**
+         * Delete an item.
+         * 
+         * @param key
+         *                the item name
+         * @throws ConnectException
+         *                 when the log can't be written
+         */
+        synchronized void delete(final String key) throws ConnectException {
+                checkOpen();
+                if (!positions.containsKey(key)) {
+                        return;
+                }
+                append(DELETE, key, null);
+                force();
+        }
+
+        /**
+         * Read an item.
+         * 
+         * @param key
+         *                the item name
+         * @return a copy of its attributes, null if the item doesn't exist
+         */
+        synchronized Map<String, List<String>> get(final String key) {
+                Integer position = positions.get(key);
+                if (position == null) {
+                        return null;
+                }
+                ByteBuffer body = log.duplicate();
+                body.position(position + HEADER_BYTES);
+                body.get();
+                readString(body);
+                return readAttributes(body);
+        }
+
+        /**
+         * @return the names of all the items, in order
+         */
+        synchronized List<String> keys() {
+                return new ArrayList<String>(positions.keySet());
+        }
+
+        /**
+         * @return the number of items
+         */
+        synchronized int size() {
+                return positions.size();
+        }
+
+        /**
+         * Find the items with an attribute value in a range, with the index
+         * of the attribute, or of the item names for "itemName()".
+         * 
+         * @param attribute
+         *                the attribute name
+         * @param from
+         *                the lowest value, null for no lower bound
+         * @param fromInclusive
+         *                whether the lowest value is included
+         * @param to
+         *                the highest value, null for no upper bound
+         * @param toInclusive
+         *                whether the highest value is included
+         * @return the item names found
+         */
+        synchronized Set<String> findRange(final String attribute, final String from,
+                        final boolean fromInclusive, final String to, final boolean toInclusive) {
+                if (LocalSelect.ITEM_NAME.equals(attribute)) {
+                        return new TreeSet<String>(
+                                        range(positions, from, fromInclusive, to, toInclusive).keySet());
+                }
+                Set<String> found = new TreeSet<String>();
+                TreeMap<String, Set<String>> index = indexes.get(attribute);
+                if (index != null) {
+                        for (Set<String> keys : range(index, from, fromInclusive, to, toInclusive).values()) {
+                                found.addAll(keys);
+                        }
+                }
+                return found;
+        }
+
+        /**
+         * Return a range of a sorted map.
+         * 
+         * @param <V>
+         *                the type of the values
+         * @param map
+         *                the map
+         * @param from
+         *                the lowest key, null for no lower bound
+         * @param fromInclusive
+         *                whether the lowest key is included
+         * @param to
+         *                the highest key, null for no upper bound
+         * @param toInclusive
+         *                whether the highest key is included
+         * @return a view of the range, empty when from is after to
+         */
+        private static <V> NavigableMap<String, V> range(final TreeMap<String, V> map, final String from,
+                        final boolean fromInclusive, final String to, final boolean toInclusive) {
+                if (from != null && to != null) {
+                        int cmp = from.compareTo(to);
+                        if (cmp > 0 || cmp == 0 && !(fromInclusive && toInclusive)) {
+                                return new TreeMap<String, V>();
+                        }
+                        return map.subMap(from, fromInclusive, to, toInclusive);
+                }
+                if (from != null) {
+                        return map.tailMap(from, fromInclusive);
+                }
+                if (to != null) {
+                        return map.headMap(to, toInclusive);
+                }
+                return map;
+        }
+
+        /**
+         * Write the log to disk, then compact it when mostly made of replaced
+         * records.
+         * 
+         * @throws ConnectException
+         *                 when the log can't be compacted
+         */
+        private void force() throws ConnectException {
+                log.force();
+                if (deadBytes >= COMPACT_MIN_BYTES && deadBytes > end / 2) {
+                        compact();
+                }
+        }
+
+        /**
+         * Copy the live records to a new log replacing the current one.
+         * 
+         * @throws ConnectException
+         *                 when the new log can't be written; the current one
+         *                 is kept
+         */
+        synchronized void compact() throws ConnectException {
+                checkOpen();
+                File compacted = new File(file.getPath() + ".compact");
+                compacted.delete();
+                LocalDomain copy = new LocalDomain(compacted);
+                try {
+                        for (String key : positions.keySet()) {
+                                copy.append(PUT, key, get(key));
+                        }
+                        copy.log.force();
+                } finally {
+                        copy.close();
+                }
+                close();
+                boolean replaced = compacted.renameTo(file);
+                if (!replaced) {
+                        compacted.delete();
+                }
+                // reopen the log, compacted or not, so that the domain stays usable
+                try {
+                        open();
+                } catch (IOException ex) {
+                        throw new ConnectException("Can't open " + file + ": " + ex.getMessage());
+                }
+                if (!replaced) {
+                        throw new ConnectException("Can't replace " + file + " with its compacted copy");
+                }
+        }
+
+        /**
+         * Close the log; further writes fail.
+         */
+        synchronized void close() {
+                if (raf == null) {
+                        return;
+                }
+                try {
+                        raf.close();
+                } catch (IOException ex) {
+                        // nothing to do, the log was forced at each write
+                }
+                raf = null;
+        }
+
+        /**
+         * Close the log and delete its file.
+         * 
+         * @return true if the file was deleted
+         */
+        synchronized boolean drop() {
+                close();
+                positions.clear();
+                indexes.clear();
+                return file.delete();
+        }
+
+        /**
+         * @return the bytes of the records written
+         */
+        synchronized int getLogBytes() {
+                return end;
+        }
+
+        /**
+         * @throws ConnectException
+         *                 when the log was closed
+         */
+        private void checkOpen() throws ConnectException {
+                if (raf == null) {
+                        throw new ConnectException("Domain " + file.getName() + " closed");
+                }
+        }
+
+        /**
+         * Append a record to the log and update the indexes.
+         * 
+         * @param type
+         *                PUT or DELETE
+         * @param key
+         *                the item name
+         * @param attributes
+         *                all the attributes of the item, null for a delete
+         * @throws ConnectException
+         *                 when the log can't be written
+         */
+        private void append(final byte type, final String key, final Map<String, List<String>> attributes)
+                        throws ConnectException {
+                byte[] body = encode(type, key, attributes);
+                int needed = end + HEADER_BYTES + body.length;
+                if (needed < 0) {
+                        throw new ConnectException("Log " + file + " larger than 2GB");
+                }
+                try {
+                        if (needed > log.capacity()) {
+                                long grown = Math.max((long) needed, (long) log.capacity() * 2);
+                                map((int) Math.min(Integer.MAX_VALUE, grown + CHUNK_BYTES));
+                        }
+                } catch (IOException ex) {
+                        throw new ConnectException("Can't grow " + file + ": " + ex.getMessage());
+                }
+                ByteBuffer view = log.duplicate();
+                view.position(end + 4);
+                view.putInt(crc(body));
+                view.put(body);
+                // the length goes last: until written, the record is not part of the log
+                log.putInt(end, body.length);
+                if (type == PUT) {
+                        index(key, end, attributes);
+                } else {
+                        unindex(key);
+                        deadBytes += HEADER_BYTES + body.length;
+                }
+                end = needed;
+        }
+
+        /**
+         * Point the indexes to the new record of an item.
+         * 
+         * @param key
+         *                the item name
+         * @param position
+         *                position of the record
+         * @param attributes
+         *                all the attributes of the item
+         */
+        private void index(final String key, final int position, final Map<String, List<String>> attributes) {
+                unindex(key);
+                positions.put(key, position);
+                for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+                        TreeMap<String, Set<String>> index = indexes.get(attribute.getKey());
+                        if (index == null) {
+                                index = new TreeMap<String, Set<String>>();
+                                indexes.put(attribute.getKey(), index);
+                        }
+                        for (String value : attribute.getValue()) {
+                                Set<String> keys = index.get(value);
+                                if (keys == null) {
+                                        keys = new TreeSet<String>();
+                                        index.put(value, keys);
+                                }
+                                keys.add(key);
+                        }
+                }
+        }
+
+        /**
+         * Remove the current record of an item from the indexes, counting it
+         * as replaced.
+         * 
+         * @param key
+         *                the item name
+         */
+        private void unindex(final String key) {
+                Map<String, List<String>> old = get(key);
+                if (old == null) {
+                        return;
+                }
+                int position = positions.remove(key);
+                deadBytes += HEADER_BYTES + log.getInt(position);
+                for (Map.Entry<String, List<String>> attribute : old.entrySet()) {
+                        TreeMap<String, Set<String>> index = indexes.get(attribute.getKey());
+                        for (String value : attribute.getValue()) {
+                                Set<String> keys = index.get(value);
+                                keys.remove(key);
+                                if (keys.isEmpty()) {
+                                        index.remove(value);
+                                }
+                        }
+                        if (index.isEmpty()) {
+                                indexes.remove(attribute.getKey());
+                        }
+                }
+        }
+
+        /**
+         * Encode the body of a record.
+         * 
+         * @param type
+         *                PUT or DELETE
+         * @param key
+         *                the item name
+         * @param attributes
+         *                the attributes, null for a delete
+         * @return the body
+         */
+        private static byte[] encode(final byte type, final String key,
+                        final Map<String, List<String>> attributes) {
+                List<byte[]> strings = new ArrayList<byte[]>();
+                strings.add(key.getBytes(UTF8));
+                int size = 1;
+                if (attributes != null) {
+                        size += 4;
+                        for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+                                size += 4;
+                                strings.add(attribute.getKey().getBytes(UTF8));
+                                for (String value : attribute.getValue()) {
+                                        strings.add(value.getBytes(UTF8));
+                                }
+                        }
+                }
+                for (byte[] string : strings) {
+                        size += 4 + string.length;
+                }
+                ByteBuffer body = ByteBuffer.allocate(size);
+                body.put(type);
+                int next = 0;
+                writeString(body, strings.get(next++));
+                if (attributes != null) {
+                        body.putInt(attributes.size());
+                        for (Collection<String> values : attributes.values()) {
+                                writeString(body, strings.get(next++));
+                                body.putInt(values.size());
+                                for (int i = 0; i < values.size(); i++) {
+                                        writeString(body, strings.get(next++));
+                                }
+                        }
+                }
+                return body.array();
+        }
+
+        /**
+         * Read the attributes of a put.
+         * 
+         * @param body
+         *                the record body, positioned after the item name
+         * @return the values by attribute name
+         */
+        private static Map<String, List<String>> readAttributes(final ByteBuffer body) {
+                int count = body.getInt();
+                Map<String, List<String>> attributes = new LinkedHashMap<String, List<String>>();
+                for (int i = 0; i < count; i++) {
+                        String name = readString(body);
+                        int valueCount = body.getInt();
+                        List<String> values = new ArrayList<String>(valueCount);
+                        for (int j = 0; j < valueCount; j++) {
+                                values.add(readString(body));
+                        }
+                        attributes.put(name, values);
+                }
+                return attributes;
+        }
+
+        /**
+         * Write a string, preceded by its length.
+         * 
+         * @param body
+         *                the record body
+         * @param string
+         *                the UTF-8 bytes of the string
+         */
+        private static void writeString(final ByteBuffer body, final byte[] string) {
+                body.putInt(string.length);
+                body.put(string);
+        }
+
+        /**
+         * Read a string written by writeString().
+         * 
+         * @param body
+         *                the record body
+         * @return the string
+         */
+        private static String readString(final ByteBuffer body) {
+                byte[] string = new byte[body.getInt()];
+                body.get(string);
+                return new String(string, UTF8);
+        }
+
+        /**
+         * Compute the checksum of a record body.
+         * 
+         * @param body
+         *                the record body
+         * @return its CRC32
+         */
+        private static int crc(final byte[] body) {
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                return (int) crc.getValue();
+        }
+
+}
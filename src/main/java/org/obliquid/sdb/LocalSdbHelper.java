@@ -0,0 +1,560 @@
+package org.obliquid.sdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+import org.obliquid.config.AppConfig;
+import org.obliquid.helpers.SqlHelper;
+import org.obliquid.helpers.StringHelper;
+
+/**
+ * Implementation of the PersistenceInterface storing the domains in local
+ * files, for tests and for nodes that can't reach SimpleDB. Each domain is a
+ * LocalDomain log in the directory given, and queries are the SimpleDB
+ * select expressions run by LocalSelect, so code written for the other
+ * helpers runs unchanged. All the helpers on the same directory share the
+ * same open domains; the directory must not be used by other processes at
+ * the same time.
+ * 
+ * @author stivlo
+ */
+public class LocalSdbHelper implements PersistenceInterface {
+
+        /** The domains open, by log file. */
+        private static final Map<File, LocalDomain> OPEN = new HashMap<File, LocalDomain>();
+
+        /** Name of the item returned by count(*), as SimpleDB. */
+        static final String COUNT_ITEM = "Domain";
+
+        /** Attribute of the item returned by count(*), as SimpleDB. */
+        static final String COUNT_ATTRIBUTE = "Count";
+
+        /** How many items loadAll() asks per page. */
+        private static final int ITEMS_PER_TIME = 50;
+
+        /** The directory of the domains. */
+        private final File directory;
+
+        /** The domain to operate on. */
+        private String domain;
+
+        /** The primary key. */
+        private String key;
+
+        /** The attributes of the current item. */
+        private final AttributeStore attributes = new AttributeStore();
+
+        /** The order by clause. */
+        private String orderBy = "";
+
+        /** The current query. */
+        private LocalSelect select;
+
+        /** The domain of the current query. */
+        private LocalDomain selected;
+
+        /** The item names found by the current query. */
+        private List<String> found = Collections.emptyList();
+
+        /** The number of items counted by the current query, for count(*). */
+        private int count;
+
+        /** Position inside the query results. */
+        private int position;
+
+        /** Limit to max limit results. */
+        private int limit;
+
+        /** Whether exception should be propagated. */
+        private boolean enableExceptions = true;
+
+        /** The items saved in batch mode, each attribute a name and a value. */
+        private final WriteBehindBatch<String[]> batch;
+
+        /** Whether save() queues the items in the batch. */
+        private boolean batchMode = false;
+
+        /**
+         * Constructor storing the domains in the directory of the localSdbDir
+         * property of the configuration.
+         * 
+         * @throws ConnectException
+         *                 when the directory can't be created
+         */
+        public LocalSdbHelper() throws ConnectException {
+                this(new File(AppConfig.getInstance().getProperty("localSdbDir")));
+        }
+
+        /**
+         * Constructor storing the domains in a directory.
+         * 
+         * @param directoryIn
+         *                the directory, created if missing
+         * @throws ConnectException
+         *                 when the directory can't be created
+         */
+        public LocalSdbHelper(final File directoryIn) throws ConnectException {
+                try {
+                        directory = directoryIn.getCanonicalFile();
+                } catch (IOException ex) {
+                        throw new ConnectException("Invalid directory " + directoryIn);
+                }
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                        throw new ConnectException("Can't create " + directory);
+                }
+                batch = new WriteBehindBatch<String[]>(new WriteBehindBatch.Sink<String[]>() {
+                        @Override
+                        public void write(final String domainName, final Map<String, List<String[]>> items)
+                                        throws ConnectException {
+                                Map<String, Map<String, List<String>>> toPut =
+                                                new LinkedHashMap<String, Map<String, List<String>>>();
+                                for (Map.Entry<String, List<String[]>> item : items.entrySet()) {
+                                        toPut.put(item.getKey(), group(item.getValue()));
+                                }
+                                getDomain(domainName, false).put(toPut);
+                        }
+                });
+        }
+
+        /**
+         * Group the attributes of an item saved in batch mode by name.
+         * 
+         * @param pairs
+         *                the attributes, each a name and a value
+         * @return the values by attribute name
+         */
+        private static Map<String, List<String>> group(final List<String[]> pairs) {
+                Map<String, List<String>> values = new LinkedHashMap<String, List<String>>();
+                for (String[] pair : pairs) {
+                        List<String> list = values.get(pair[0]);
+                        if (list == null) {
+                                list = new ArrayList<String>();
+                                values.put(pair[0], list);
+                        }
+                        list.add(pair[1]);
+                }
+                return values;
+        }
+
+        /**
+         * Return a domain, opening it if needed.
+         * 
+         * @param domainName
+         *                the domain name
+         * @param create
+         *                whether to create the domain if missing
+         * @return the domain
+         * @throws ConnectException
+         *                 when the domain is missing or can't be opened
+         */
+        private LocalDomain getDomain(final String domainName, final boolean create) throws ConnectException {
+                File file = fileOf(domainName);
+                synchronized (OPEN) {
+                        LocalDomain open = OPEN.get(file);
+                        if (open == null) {
+                                if (!create && !file.exists()) {
+                                        throw new ConnectException("No such domain: " + domainName);
+                                }
+                                open = new LocalDomain(file);
+                                OPEN.put(file, open);
+                        }
+                        return open;
+                }
+        }
+
+        /**
+         * Return the log file of a domain.
+         * 
+         * @param domainName
+         *                the domain name
+         * @return the file
+         * @throws ConnectException
+         *                 when the name is not a valid SimpleDB domain name
+         */
+        private File fileOf(final String domainName) throws ConnectException {
+                if (domainName == null || !domainName.matches("[a-zA-Z0-9_.\\-]{3,255}")) {
+                        throw new ConnectException("Invalid domain name: " + domainName);
+                }
+                return new File(directory, domainName + LocalDomain.EXTENSION);
+        }
+
+        @Override
+        public final void setDomain(final String domainIn) throws ConnectException {
+                attributes.clear();
+                domain = domainIn;
+        }
+
+        @Override
+        public final void setKey(final String newKey) throws ConnectException {
+                key = newKey;
+        }
+
+        @Override
+        public final String getKey() {
+                return key;
+        }
+
+        @Override
+        public final void setAttribute(final String name, final String value) {
+                if (value == null) {
+                        attributes.remove(name);
+                } else {
+                        attributes.set(name, value);
+                }
+        }
+
+        @Override
+        public final void setAttribute(final String name, final Date valueAsDate) {
+                setAttribute(name, SdbEncoding.encodeDate(valueAsDate));
+        }
+
+        @Override
+        public final void setAttribute(final String name, final boolean value) {
+                setAttribute(name, value ? "Y" : "N");
+        }
+
+        @Override
+        public final void setAttribute(final String name, final Collection<String> values) {
+                attributes.remove(name);
+                for (String value : values) {
+                        if (value != null) {
+                                attributes.add(name, value);
+                        }
+                }
+        }
+
+        @Override
+        public final void setAttribute(final String name, final String[] values) {
+                setAttribute(name, Arrays.asList(values));
+        }
+
+        @Override
+        public final void setEncodedAttribute(final String name, final int value) {
+                setAttribute(name, SdbEncoding.encode(value));
+        }
+
+        @Override
+        public final void setEncodedAttribute(final String name, final long value) {
+                setAttribute(name, SdbEncoding.encode(value));
+        }
+
+        @Override
+        public final void setEncodedAttribute(final String name, final BigDecimal value) {
+                setAttribute(name, SdbEncoding.encode(value));
+        }
+
+        @Override
+        public final void setTimestamp(final String name, final Date value) {
+                setAttribute(name, SdbEncoding.encodeTimestamp(value));
+        }
+
+        @Override
+        public final void save() throws ConnectException {
+                if (batchMode) {
+                        List<String[]> toPut = new ArrayList<String[]>(attributes.countValues());
+                        for (Map.Entry<String, List<String>> entry : attributes.asMap().entrySet()) {
+                                for (String value : entry.getValue()) {
+                                        toPut.add(new String[] {entry.getKey(), value });
+                                }
+                        }
+                        getDomain(domain, false);
+                        batch.add(domain, key, toPut);
+                } else {
+                        Map<String, List<String>> values = new LinkedHashMap<String, List<String>>();
+                        for (Map.Entry<String, List<String>> entry : attributes.asMap().entrySet()) {
+                                values.put(entry.getKey(), new ArrayList<String>(entry.getValue()));
+                        }
+                        getDomain(domain, false).put(Collections.singletonMap(key, values));
+                }
+                attributes.clear();
+        }
+
+        @Override
+        public final void enableBatchMode(final boolean enable) throws ConnectException {
+                batchMode = enable;
+                if (!enable) {
+                        batch.flush();
+                }
+        }
+
+        @Override
+        public final void flush() throws ConnectException {
+                batch.flush();
+        }
+
+        /**
+         * Set how long an item saved in batch mode waits before being written,
+         * if the batch doesn't fill up before.
+         * 
+         * @param millis
+         *                milliseconds, by default 1000
+         */
+        public final void setBatchFlushDelay(final long millis) {
+                batch.setFlushDelay(millis);
+        }
+
+        /**
+         * Rewrite the log of the current domain with only its live items. Done
+         * automatically when most of the log is made of replaced items.
+         * 
+         * @throws ConnectException
+         *                 when the log can't be rewritten
+         */
+        public final void compact() throws ConnectException {
+                getDomain(domain, false).compact();
+        }
+
+        @Override
+        public final String getAttributeAsString(final String name) throws NoSuchElementException {
+                if (attributes.contains(name)) {
+                        return attributes.getFirst(name);
+                }
+                if (enableExceptions) {
+                        throw new NoSuchElementException("Attribute '" + name + "' not found");
+                }
+                return null;
+        }
+
+        @Override
+        public final int getAttributeAsInt(final String name) throws NoSuchElementException {
+                return Integer.parseInt(getAttributeAsString(name));
+        }
+
+        @Override
+        public final long getAttributeAsLong(final String name) throws NoSuchElementException {
+                return Long.parseLong(getAttributeAsString(name));
+        }
+
+        @Override
+        public final boolean getAttributeAsBoolean(final String name) throws NoSuchElementException {
+                String value = getAttributeAsString(name);
+                if (value == null) {
+                        return false;
+                }
+                return value.equalsIgnoreCase("Y");
+        }
+
+        @Override
+        public final BigDecimal getAttributeAsBigDecimal(final String name) throws NoSuchElementException {
+                return new BigDecimal(getAttributeAsString(name));
+        }
+
+        @Override
+        public final int getAttributeAsEncodedInt(final String name) throws NoSuchElementException {
+                return SdbEncoding.decodeInt(getAttributeAsString(name));
+        }
+
+        @Override
+        public final long getAttributeAsEncodedLong(final String name) throws NoSuchElementException {
+                return SdbEncoding.decodeLong(getAttributeAsString(name));
+        }
+
+        @Override
+        public final BigDecimal getAttributeAsEncodedBigDecimal(final String name)
+                        throws NoSuchElementException {
+                return SdbEncoding.decodeBigDecimal(getAttributeAsString(name));
+        }
+
+        @Override
+        public final Date getAttributeAsTimestamp(final String name) throws NoSuchElementException {
+                return SdbEncoding.decodeTimestamp(getAttributeAsString(name));
+        }
+
+        @Override
+        public final Collection<String> getAttributeAsCollection(final String name)
+                        throws NoSuchElementException {
+                return new ArrayList<String>(attributes.getAll(name));
+        }
+
+        @Override
+        public final String[] getAttributeAsStringArray(final String name) throws NoSuchElementException {
+                Collection<String> values = getAttributeAsCollection(name);
+                return values.toArray(new String[values.size()]);
+        }
+
+        @Override
+        public final void loadAll() throws ConnectException {
+                String sql = "SELECT * FROM " + domain;
+                if (orderBy.length() > 0) {
+                        sql += SqlHelper.buildWhereAndOrderByForSdb(orderBy);
+                }
+                sql += " LIMIT " + ITEMS_PER_TIME;
+                query(sql);
+        }
+
+        @Override
+        public final void loadAll(final int limitIn) throws ConnectException {
+                limit = limitIn;
+                loadAll();
+        }
+
+        @Override
+        public final void query(final String sql) throws ConnectException {
+                LocalSelect parsed;
+                try {
+                        parsed = new LocalSelect(sql);
+                } catch (IllegalArgumentException ex) {
+                        throw new ConnectException("Invalid query: " + ex.getMessage());
+                }
+                selected = getDomain(parsed.getDomain(), false);
+                select = parsed;
+                found = select.run(selected);
+                if (select.isCount()) {
+                        count = found.size();
+                        found = Collections.singletonList(COUNT_ITEM);
+                }
+                position = 0;
+        }
+
+        @Override
+        public final ParallelScan scanParallel(final int segments) throws ConnectException {
+                final LocalDomain scanned = getDomain(domain, false);
+                return new ParallelScan(new ParallelScan.Source() {
+                        @Override
+                        public ParallelScan.Page select(final String sql, final String nextToken)
+                                        throws ConnectException {
+                                LocalSelect segment;
+                                try {
+                                        segment = new LocalSelect(sql);
+                                } catch (IllegalArgumentException ex) {
+                                        throw new ConnectException("Invalid query: " + ex.getMessage());
+                                }
+                                Map<String, Map<String, List<String>>> page =
+                                                new LinkedHashMap<String, Map<String, List<String>>>();
+                                for (String found : segment.run(scanned)) {
+                                        Map<String, List<String>> item = scanned.get(found);
+                                        if (item != null) {
+                                                page.put(found, item);
+                                        }
+                                }
+                                return new ParallelScan.Page(page, null);
+                        }
+                }, domain, segments);
+        }
+
+        /**
+         * The same as query(), since local reads are always consistent.
+         * 
+         * @param sql
+         *                custom SQL SELECT
+         * @throws ConnectException
+         *                 when there are problems executing the query
+         */
+        @Override
+        public final void consistentQuery(final String sql) throws ConnectException {
+                query(sql);
+        }
+
+        @Override
+        public final String next() {
+                key = found.get(position++);
+                attributes.clear();
+                if (select.isCount()) {
+                        attributes.add(COUNT_ATTRIBUTE, String.valueOf(count));
+                        return key;
+                }
+                Map<String, List<String>> item = selected.get(key);
+                if (item != null) {
+                        for (Map.Entry<String, List<String>> entry : select.project(item).entrySet()) {
+                                attributes.set(entry.getKey(), entry.getValue());
+                        }
+                }
+                return key;
+        }
+
+        @Override
+        public final boolean hasNext() throws ConnectException {
+                if (limit != 0 && position >= limit) {
+                        return false;
+                }
+                return position < found.size();
+        }
+
+        @Override
+        public final String generateNewId() throws ConnectException {
+                return UUID.randomUUID().toString();
+        }
+
+        @Override
+        public final void createDomain(final String domainName) throws ConnectException {
+                getDomain(domainName, true);
+        }
+
+        @Override
+        public final void deleteDomain(final String domainName) throws ConnectException {
+                File file = fileOf(domainName);
+                synchronized (OPEN) {
+                        LocalDomain open = OPEN.remove(file);
+                        if (open != null) {
+                                open.drop();
+                        } else {
+                                file.delete();
+                        }
+                }
+        }
+
+        @Override
+        public final List<String> listDomains() throws ConnectException {
+                List<String> domains = new ArrayList<String>();
+                String[] files = directory.list();
+                if (files == null) {
+                        throw new ConnectException("Can't list " + directory);
+                }
+                for (String name : files) {
+                        if (name.endsWith(LocalDomain.EXTENSION)) {
+                                int length = name.length() - LocalDomain.EXTENSION.length();
+                                domains.add(name.substring(0, length));
+                        }
+                }
+                Collections.sort(domains);
+                return domains;
+        }
+
+        @Override
+        public final void deleteByKey(final String keyIn) throws ConnectException {
+                getDomain(domain, false).delete(keyIn);
+        }
+
+        @Override
+        public final void loadByKey(final String keyIn) throws ConnectException, NoSuchElementException {
+                query("SELECT * FROM " + domain + " WHERE itemName() = " + StringHelper.quote(keyIn));
+                if (hasNext()) {
+                        next();
+                } else {
+                        throw new NoSuchElementException();
+                }
+        }
+
+        @Override
+        public final void setOrderBy(final String orderByIn) {
+                if (orderByIn != null) {
+                        orderBy = orderByIn;
+                } else {
+                        orderBy = "";
+                }
+        }
+
+        @Override
+        public final void enableExceptions(final boolean enable) {
+                enableExceptions = enable;
+        }
+
+        @Override
+        public final String toString() {
+                return attributes.toString();
+        }
+
+}
@@ -0,0 +1,791 @@
+package org.obliquid.sdb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+/**
+ * A SimpleDB select expression, parsed to be run on a LocalDomain:
+ * 
+ * <pre>
+ * SELECT * | count(*) | itemName() | attribute, ... FROM domain
+ *         [WHERE predicate] [ORDER BY attribute [ASC | DESC]] [LIMIT n]
+ * </pre>
+ * 
+ * The predicates are the comparisons =, !=, &lt;&gt;, &lt;, &lt;=, &gt;,
+ * &gt;=, [NOT] LIKE, IS [NOT] NULL, BETWEEN and IN of an attribute, of
+ * itemName() or of every(attribute) with quoted values, combined with AND,
+ * OR, NOT and parentheses. As in SimpleDB, values are compared as strings,
+ * and a comparison of a multi-valued attribute is true when true for any of
+ * its values (for all of them with every()). Equality, range, IN and prefix
+ * LIKE comparisons are answered by the indexes of the domain, the others by
+ * reading the items.
+ * <p>
+ * LIMIT is the page size of SimpleDB, which the helpers read past by
+ * following the next tokens, so all the items matching are returned.
+ * 
+ * @author stivlo
+ */
+final class LocalSelect {
+
+        /** The pseudo attribute of the item name. */
+        static final String ITEM_NAME = "itemName()";
+
+        /** Maximum LIMIT, as SimpleDB. */
+        static final int MAX_LIMIT = 2500;
+
+        /** Characters ending a word. */
+        private static final String SYMBOLS = "()=,<>!*'\"`";
+
+        /** The domain. */
+        private final String domain;
+
+        /** Whether the items are counted instead of returned. */
+        private final boolean count;
+
+        /** The attributes returned, null for all. */
+        private final List<String> output;
+
+        /** The predicate, null for all the items. */
+        private final Predicate where;
+
+        /** The attribute sorting the items, null for item name order. */
+        private final String orderBy;
+
+        /** Whether the items are sorted in descending order. */
+        private final boolean descending;
+
+        /** The tokens of the expression, while parsing. */
+        private final List<String> tokens;
+
+        /** The next token, while parsing. */
+        private int next;
+
+        /**
+         * Parse a select expression.
+         * 
+         * @param sql
+         *                the select expression
+         * @throws IllegalArgumentException
+         *                 when the expression is invalid
+         */
+        LocalSelect(final String sql) {
+                tokens = tokenize(sql);
+                expect("SELECT");
+                boolean isCount = false;
+                List<String> names = null;
+                if (accept("*")) {
+                        names = null;
+                } else if (peekIs("count")) {
+                        next++;
+                        expect("(");
+                        expect("*");
+                        expect(")");
+                        isCount = true;
+                } else {
+                        names = new ArrayList<String>();
+                        do {
+                                names.add(name());
+                        } while (accept(","));
+                }
+                count = isCount;
+                output = names;
+                expect("FROM");
+                domain = name();
+                where = accept("WHERE") ? or() : null;
+                String sortBy = null;
+                boolean isDescending = false;
+                if (accept("ORDER")) {
+                        expect("BY");
+                        sortBy = name();
+                        isDescending = accept("DESC");
+                        if (!isDescending) {
+                                accept("ASC");
+                        }
+                }
+                orderBy = sortBy;
+                descending = isDescending;
+                if (accept("LIMIT")) {
+                        String limit = token();
+                        if (!limit.matches("\\d{1,4}") || Integer.parseInt(limit) < 1
+                                        || Integer.parseInt(limit) > MAX_LIMIT) {
+                                throw new IllegalArgumentException("Invalid LIMIT: " + limit);
+                        }
+                }
+                if (next < tokens.size()) {
+                        throw new IllegalArgumentException("Unexpected " + tokens.get(next));
+                }
+        }
+
+        /**
+         * @return the domain
+         */
+        String getDomain() {
+                return domain;
+        }
+
+        /**
+         * @return true for a count(*)
+         */
+        boolean isCount() {
+                return count;
+        }
+
+        /**
+         * Find the items matching, sorted.
+         * 
+         * @param items
+         *                the domain
+         * @return the item names
+         */
+        List<String> run(final LocalDomain items) {
+                Set<String> candidates = where == null ? null : where.candidates(items);
+                List<String> keys = candidates == null ? items.keys() : new ArrayList<String>(candidates);
+                final Map<String, String> sortValues = new LinkedHashMap<String, String>();
+                List<String> found = new ArrayList<String>(keys.size());
+                for (String key : keys) {
+                        Map<String, List<String>> item = items.get(key);
+                        if (item == null || where != null && !where.matches(key, item)) {
+                                continue;
+                        }
+                        found.add(key);
+                        if (orderBy != null) {
+                                List<String> values = valuesOf(orderBy, key, item);
+                                sortValues.put(key, values.isEmpty() ? null : values.get(0));
+                        }
+                }
+                if (orderBy != null) {
+                        Collections.sort(found, new Comparator<String>() {
+                                @Override
+                                public int compare(final String a, final String b) {
+                                        return compareSortValues(sortValues.get(a), sortValues.get(b));
+                                }
+                        });
+                }
+                return found;
+        }
+
+        /**
+         * Compare the values sorting two items, the ones without a value last.
+         * 
+         * @param a
+         *                a value, null if missing
+         * @param b
+         *                a value, null if missing
+         * @return the order of the items
+         */
+        private int compareSortValues(final String a, final String b) {
+                if (a == null || b == null) {
+                        return a == null ? (b == null ? 0 : 1) : -1;
+                }
+                return descending ? b.compareTo(a) : a.compareTo(b);
+        }
+
+        /**
+         * Keep only the attributes returned by the select.
+         * 
+         * @param item
+         *                all the attributes of an item
+         * @return the attributes returned
+         */
+        Map<String, List<String>> project(final Map<String, List<String>> item) {
+                if (output == null) {
+                        return item;
+                }
+                Map<String, List<String>> projected = new LinkedHashMap<String, List<String>>();
+                for (String name : output) {
+                        if (item.containsKey(name)) {
+                                projected.put(name, item.get(name));
+                        }
+                }
+                return projected;
+        }
+
+        /**
+         * Return the values of an attribute.
+         * 
+         * @param attribute
+         *                the attribute name, or ITEM_NAME
+         * @param key
+         *                the item name
+         * @param item
+         *                the attributes of the item
+         * @return the values, empty when missing
+         */
+        private static List<String> valuesOf(final String attribute, final String key,
+                        final Map<String, List<String>> item) {
+                if (ITEM_NAME.equals(attribute)) {
+                        return Collections.singletonList(key);
+                }
+                List<String> values = item.get(attribute);
+                return values == null ? Collections.<String> emptyList() : values;
+        }
+
+        /**
+         * Split an expression in tokens: words, symbols, and quoted strings
+         * and names, kept with their opening quote and without escapes.
+         * 
+         * @param sql
+         *                the expression
+         * @return the tokens
+         */
+        private static List<String> tokenize(final String sql) {
+                List<String> found = new ArrayList<String>();
+                int i = 0;
+                while (i < sql.length()) {
+                        char c = sql.charAt(i);
+                        if (Character.isWhitespace(c)) {
+                                i++;
+                        } else if (c == '\'' || c == '"' || c == '`') {
+                                StringBuilder quoted = new StringBuilder().append(c);
+                                i++;
+                                while (true) {
+                                        if (i >= sql.length()) {
+                                                throw new IllegalArgumentException("Unclosed quote: " + sql);
+                                        }
+                                        if (sql.charAt(i) == c) {
+                                                if (i + 1 < sql.length() && sql.charAt(i + 1) == c) {
+                                                        i++;
+                                                } else {
+                                                        break;
+                                                }
+                                        }
+                                        quoted.append(sql.charAt(i++));
+                                }
+                                i++;
+                                found.add(quoted.toString());
+                        } else if (sql.startsWith("!=", i) || sql.startsWith("<>", i)
+                                        || sql.startsWith("<=", i) || sql.startsWith(">=", i)) {
+                                found.add(sql.substring(i, i + 2));
+                                i += 2;
+                        } else if (SYMBOLS.indexOf(c) >= 0) {
+                                found.add(String.valueOf(c));
+                                i++;
+                        } else {
+                                int start = i;
+                                while (i < sql.length() && !Character.isWhitespace(sql.charAt(i))
+                                                && SYMBOLS.indexOf(sql.charAt(i)) < 0) {
+                                        i++;
+                                }
+                                found.add(sql.substring(start, i));
+                        }
+                }
+                return found;
+        }
+
+        /**
+         * @return the next token, consumed
+         */
+        private String token() {
+                if (next >= tokens.size()) {
+                        throw new IllegalArgumentException("Unexpected end of the expression");
+                }
+                return tokens.get(next++);
+        }
+
+        /**
+         * @param word
+         *                a keyword or symbol
+         * @return true if the next token is the word, ignoring case
+         */
+        private boolean peekIs(final String word) {
+                return next < tokens.size() && tokens.get(next).equalsIgnoreCase(word);
+        }
+
+        /**
+         * Consume the next token if it's a word.
+         * 
+         * @param word
+         *                a keyword or symbol
+         * @return true if consumed
+         */
+        private boolean accept(final String word) {
+                if (peekIs(word)) {
+                        next++;
+                        return true;
+                }
+                return false;
+        }
+
+        /**
+         * Consume a word, which must be next.
+         * 
+         * @param word
+         *                a keyword or symbol
+         */
+        private void expect(final String word) {
+                if (!accept(word)) {
+                        throw new IllegalArgumentException("Expected " + word + " instead of "
+                                        + (next < tokens.size() ? tokens.get(next) : "the end"));
+                }
+        }
+
+        /**
+         * Parse an attribute or domain name, plain, quoted with backquotes or
+         * itemName().
+         * 
+         * @return the name
+         */
+        private String name() {
+                String token = token();
+                if (token.startsWith("`")) {
+                        return token.substring(1);
+                }
+                if (token.length() == 1 && SYMBOLS.indexOf(token.charAt(0)) >= 0 || token.startsWith("'")
+                                || token.startsWith("\"")) {
+                        throw new IllegalArgumentException("Expected a name instead of " + token);
+                }
+                if (token.equalsIgnoreCase("itemName")) {
+                        expect("(");
+                        expect(")");
+                        return ITEM_NAME;
+                }
+                return token;
+        }
+
+        /**
+         * Parse a quoted value.
+         * 
+         * @return the value
+         */
+        private String value() {
+                String token = token();
+                if (!token.startsWith("'") && !token.startsWith("\"")) {
+                        throw new IllegalArgumentException("Expected a quoted value instead of " + token);
+                }
+                return token.substring(1);
+        }
+
+        /**
+         * Parse predicates joined by OR.
+         * 
+         * @return the predicate
+         */
+        private Predicate or() {
+                Predicate left = and();
+                while (accept("OR")) {
+                        left = new Or(left, and());
+                }
+                return left;
+        }
+
+        /**
+         * Parse predicates joined by AND.
+         * 
+         * @return the predicate
+         */
+        private Predicate and() {
+                Predicate left = not();
+                while (accept("AND")) {
+                        left = new And(left, not());
+                }
+                return left;
+        }
+
+        /**
+         * Parse a predicate, possibly negated.
+         * 
+         * @return the predicate
+         */
+        private Predicate not() {
+                if (accept("NOT")) {
+                        return new Not(not());
+                }
+                if (accept("(")) {
+                        Predicate inner = or();
+                        expect(")");
+                        return inner;
+                }
+                return comparison();
+        }
+
+        /**
+         * Parse a comparison.
+         * 
+         * @return the predicate
+         */
+        private Predicate comparison() {
+                boolean every = false;
+                String attribute;
+                if (peekIs("every") && next + 1 < tokens.size() && "(".equals(tokens.get(next + 1))) {
+                        next += 2;
+                        attribute = name();
+                        expect(")");
+                        every = true;
+                } else {
+                        attribute = name();
+                }
+                List<String> values = new ArrayList<String>();
+                Op op;
+                if (accept("IS")) {
+                        op = accept("NOT") ? Op.IS_NOT_NULL : Op.IS_NULL;
+                        expect("NULL");
+                } else if (accept("BETWEEN")) {
+                        op = Op.BETWEEN;
+                        values.add(value());
+                        expect("AND");
+                        values.add(value());
+                } else if (accept("IN")) {
+                        op = Op.IN;
+                        expect("(");
+                        do {
+                                values.add(value());
+                        } while (accept(","));
+                        expect(")");
+                } else if (accept("LIKE")) {
+                        op = Op.LIKE;
+                        values.add(value());
+                } else if (accept("NOT")) {
+                        expect("LIKE");
+                        op = Op.NOT_LIKE;
+                        values.add(value());
+                } else {
+                        op = Op.of(token());
+                        values.add(value());
+                }
+                return new Comparison(attribute, every, op, values);
+        }
+
+        /**
+         * The comparison operators.
+         */
+        private enum Op {
+                /** Comparisons of a value. */
+                EQ, NE, LT, LE, GT, GE, LIKE, NOT_LIKE, BETWEEN, IN,
+                /** Checks of whether the attribute exists. */
+                IS_NULL, IS_NOT_NULL;
+
+                /**
+                 * Find the operator of a symbol.
+                 * 
+                 * @param symbol
+                 *                the symbol
+                 * @return the operator
+                 */
+                static Op of(final String symbol) {
+                        if ("=".equals(symbol)) {
+                                return EQ;
+                        } else if ("!=".equals(symbol) || "<>".equals(symbol)) {
+                                return NE;
+                        } else if ("<".equals(symbol)) {
+                                return LT;
+                        } else if ("<=".equals(symbol)) {
+                                return LE;
+                        } else if (">".equals(symbol)) {
+                                return GT;
+                        } else if (">=".equals(symbol)) {
+                                return GE;
+                        }
+                        throw new IllegalArgumentException("Unknown operator " + symbol);
+                }
+        }
+
+        /**
+         * A condition on the items.
+         */
+        private abstract static class Predicate {
+
+                /**
+                 * Check an item.
+                 * 
+                 * @param key
+                 *                the item name
+                 * @param item
+                 *                the attributes of the item
+                 * @return true if the item matches
+                 */
+                abstract boolean matches(String key, Map<String, List<String>> item);
+
+                /**
+                 * Find with the indexes the items that may match.
+                 * 
+                 * @param items
+                 *                the domain
+                 * @return the item names, including all the ones matching;
+                 *         null when all the items must be checked
+                 */
+                abstract Set<String> candidates(LocalDomain items);
+
+        }
+
+        /**
+         * Two predicates both true.
+         */
+        private static final class And extends Predicate {
+
+                /** The predicates. */
+                private final Predicate left, right;
+
+                /**
+                 * @param leftIn
+                 *                a predicate
+                 * @param rightIn
+                 *                another predicate
+                 */
+                And(final Predicate leftIn, final Predicate rightIn) {
+                        left = leftIn;
+                        right = rightIn;
+                }
+
+                @Override
+                boolean matches(final String key, final Map<String, List<String>> item) {
+                        return left.matches(key, item) && right.matches(key, item);
+                }
+
+                @Override
+                Set<String> candidates(final LocalDomain items) {
+                        Set<String> a = left.candidates(items);
+                        Set<String> b = right.candidates(items);
+                        if (a == null || b == null) {
+                                return a == null ? b : a;
+                        }
+                        Set<String> smaller = a.size() <= b.size() ? a : b;
+                        smaller.retainAll(smaller == a ? b : a);
+                        return smaller;
+                }
+
+        }
+
+        /**
+         * Two predicates, at least one true.
+         */
+        private static final class Or extends Predicate {
+
+                /** The predicates. */
+                private final Predicate left, right;
+
+                /**
+                 * @param leftIn
+                 *                a predicate
+                 * @param rightIn
+                 *                another predicate
+                 */
+                Or(final Predicate leftIn, final Predicate rightIn) {
+                        left = leftIn;
+                        right = rightIn;
+                }
+
+                @Override
+                boolean matches(final String key, final Map<String, List<String>> item) {
+                        return left.matches(key, item) || right.matches(key, item);
+                }
+
+                @Override
+                Set<String> candidates(final LocalDomain items) {
+                        Set<String> a = left.candidates(items);
+                        if (a == null) {
+                                return null;
+                        }
+                        Set<String> b = right.candidates(items);
+                        if (b == null) {
+                                return null;
+                        }
+                        a.addAll(b);
+                        return a;
+                }
+
+        }
+
+        /**
+         * A predicate false.
+         */
+        private static final class Not extends Predicate {
+
+                /** The predicate negated. */
+                private final Predicate negated;
+
+                /**
+                 * @param negatedIn
+                 *                the predicate negated
+                 */
+                Not(final Predicate negatedIn) {
+                        negated = negatedIn;
+                }
+
+                @Override
+                boolean matches(final String key, final Map<String, List<String>> item) {
+                        return !negated.matches(key, item);
+                }
+
+                @Override
+                Set<String> candidates(final LocalDomain items) {
+                        return null;
+                }
+
+        }
+
+        /**
+         * A comparison of an attribute with values.
+         */
+        private static final class Comparison extends Predicate {
+
+                /** The attribute name, or ITEM_NAME. */
+                private final String attribute;
+
+                /** Whether all the values must match, instead of any. */
+                private final boolean every;
+
+                /** The operator. */
+                private final Op op;
+
+                /** The values compared with. */
+                private final List<String> values;
+
+                /** The LIKE pattern, null for the other operators. */
+                private final Pattern like;
+
+                /**
+                 * @param attributeIn
+                 *                the attribute name, or ITEM_NAME
+                 * @param everyIn
+                 *                whether all the values must match
+                 * @param opIn
+                 *                the operator
+                 * @param valuesIn
+                 *                the values compared with
+                 */
+                Comparison(final String attributeIn, final boolean everyIn, final Op opIn,
+                                final List<String> valuesIn) {
+                        attribute = attributeIn;
+                        every = everyIn;
+                        op = opIn;
+                        values = valuesIn;
+                        like = op == Op.LIKE || op == Op.NOT_LIKE ? toPattern(values.get(0)) : null;
+                }
+
+                /**
+                 * Convert a LIKE value to a regular expression, % matching
+                 * any characters.
+                 * 
+                 * @param value
+                 *                the LIKE value
+                 * @return the pattern
+                 */
+                private static Pattern toPattern(final String value) {
+                        StringBuilder regex = new StringBuilder();
+                        for (String part : value.split("%", -1)) {
+                                if (regex.length() > 0) {
+                                        regex.append(".*");
+                                }
+                                regex.append(Pattern.quote(part));
+                        }
+                        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+                }
+
+                @Override
+                boolean matches(final String key, final Map<String, List<String>> item) {
+                        List<String> found = valuesOf(attribute, key, item);
+                        if (op == Op.IS_NULL) {
+                                return found.isEmpty();
+                        }
+                        if (op == Op.IS_NOT_NULL) {
+                                return !found.isEmpty();
+                        }
+                        for (String value : found) {
+                                if (matches(value) != every) {
+                                        return !every;
+                                }
+                        }
+                        return every && !found.isEmpty();
+                }
+
+                /**
+                 * Compare a value of the attribute.
+                 * 
+                 * @param value
+                 *                the value
+                 * @return true if it matches
+                 */
+                private boolean matches(final String value) {
+                        switch (op) {
+                        case EQ:
+                                return value.equals(values.get(0));
+                        case NE:
+                                return !value.equals(values.get(0));
+                        case LT:
+                                return value.compareTo(values.get(0)) < 0;
+                        case LE:
+                                return value.compareTo(values.get(0)) <= 0;
+                        case GT:
+                                return value.compareTo(values.get(0)) > 0;
+                        case GE:
+                                return value.compareTo(values.get(0)) >= 0;
+                        case LIKE:
+                                return like.matcher(value).matches();
+                        case NOT_LIKE:
+                                return !like.matcher(value).matches();
+                        case BETWEEN:
+                                return value.compareTo(values.get(0)) >= 0
+                                                && value.compareTo(values.get(1)) <= 0;
+                        case IN:
+                                return values.contains(value);
+                        default:
+                                throw new IllegalStateException("Not a value comparison: " + op);
+                        }
+                }
+
+                @Override
+                Set<String> candidates(final LocalDomain items) {
+                        String value = values.isEmpty() ? null : values.get(0);
+                        switch (op) {
+                        case EQ:
+                                return items.findRange(attribute, value, true, value, true);
+                        case LT:
+                                return items.findRange(attribute, null, false, value, false);
+                        case LE:
+                                return items.findRange(attribute, null, false, value, true);
+                        case GT:
+                                return items.findRange(attribute, value, false, null, false);
+                        case GE:
+                                return items.findRange(attribute, value, true, null, false);
+                        case BETWEEN:
+                                return items.findRange(attribute, value, true, values.get(1), true);
+                        case IS_NOT_NULL:
+                                return items.findRange(attribute, null, false, null, false);
+                        case IN:
+                                Set<String> found = new TreeSet<String>();
+                                for (String each : values) {
+                                        found.addAll(items.findRange(attribute, each, true, each, true));
+                                }
+                                return found;
+                        case LIKE:
+                                return prefixCandidates(items, value);
+                        default:
+                                return null;
+                        }
+                }
+
+                /**
+                 * Find the items of a LIKE 'prefix%', with the range of the
+                 * values starting with the prefix.
+                 * 
+                 * @param items
+                 *                the domain
+                 * @param value
+                 *                the LIKE value
+                 * @return the item names, null when the value doesn't start
+                 *         with a prefix
+                 */
+                private Set<String> prefixCandidates(final LocalDomain items, final String value) {
+                        int wildcard = value.indexOf('%');
+                        String prefix = wildcard < 0 ? value : value.substring(0, wildcard);
+                        if (prefix.length() == 0) {
+                                return null;
+                        }
+                        char last = prefix.charAt(prefix.length() - 1);
+                        if (last == Character.MAX_VALUE) {
+                                return items.findRange(attribute, prefix, true, null, false);
+                        }
+                        String after = prefix.substring(0, prefix.length() - 1) + (char) (last + 1);
+                        return items.findRange(attribute, prefix, true, after, false);
+                }
+
+        }
+
+}
@@ -0,0 +1,590 @@
+package org.obliquid.sdb;
+
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.obliquid.helpers.StringHelper;
+
+/**
+ * A scan of a whole domain split in segments, ranges of item names each read
+ * by its own chain of next tokens, run in parallel on a bounded pool of
+ * threads. The items of all the segments are merged in a single sequence,
+ * read with hasNext() and next() as the items of a query, or given to a
+ * Sink by run().
+ * 
+ * <pre>
+ * helper.setDomain(&quot;orders&quot;);
+ * ParallelScan scan = helper.scanParallel(8);
+ * scan.setWhere(&quot;status = 'open'&quot;);
+ * scan.run(sink);
+ * </pre>
+ * 
+ * The segments split the item names evenly over an alphabet, by default the
+ * hexadecimal digits of the UUIDs returned by generateNewId(); the split
+ * points can be set for other keys. Item names outside the alphabet are still
+ * read, by the first or last segment. Unordered, the items are returned as
+ * soon as a page of any segment is fetched; ordered, in item name order,
+ * reading the segments one after the other while the next ones are
+ * prefetched. Not thread safe, except for the progress getters.
+ * 
+ * @author stivlo
+ */
+public final class ParallelScan {
+
+        /** Default split alphabet: the characters of the UUID item names. */
+        public static final String DEFAULT_ALPHABET = "0123456789abcdef";
+
+        /** Default maximum number of segments read at the same time. */
+        public static final int DEFAULT_THREADS = 8;
+
+        /** Default number of items per page. */
+        public static final int DEFAULT_PAGE_SIZE = 250;
+
+        /** Pages of a segment fetched and not read yet. */
+        private static final int PAGES_AHEAD = 2;
+
+        /** Milliseconds between checks of whether the scan was closed. */
+        private static final long POLL_MS = 100;
+
+        /**
+         * Runs the select of a page, for the helper of the store.
+         */
+        interface Source {
+
+                /**
+                 * Fetch a page of items.
+                 * 
+                 * @param sql
+                 *                the select expression
+                 * @param nextToken
+                 *                the token of the page, null for the first
+                 * @return the page
+                 * @throws ConnectException
+                 *                 when the page can't be fetched
+                 */
+                Page select(String sql, String nextToken) throws ConnectException;
+
+        }
+
+        /**
+         * Receives the items of a scan, on the thread calling run().
+         */
+        public interface Sink {
+
+                /**
+                 * Receive an item.
+                 * 
+                 * @param key
+                 *                the item name
+                 * @param attributes
+                 *                the values by attribute name
+                 * @throws ConnectException
+                 *                 to stop the scan
+                 */
+                void item(String key, Map<String, List<String>> attributes) throws ConnectException;
+
+                /**
+                 * Receive the end of a segment, after all its items.
+                 * 
+                 * @param segment
+                 *                the segment, from 0
+                 * @param items
+                 *                number of items of the segment
+                 */
+                void segmentDone(int segment, long items);
+
+        }
+
+        /**
+         * A page of items and the token of the next page.
+         */
+        static final class Page {
+
+                /** The items, values by attribute name by item name. */
+                private final Map<String, Map<String, List<String>>> items;
+
+                /** The token of the next page, null or empty for the last. */
+                private final String nextToken;
+
+                /**
+                 * Create a page.
+                 * 
+                 * @param itemsIn
+                 *                the items, in the order they were found
+                 * @param nextTokenIn
+                 *                the token of the next page, null for the last
+                 */
+                Page(final Map<String, Map<String, List<String>>> itemsIn, final String nextTokenIn) {
+                        items = itemsIn;
+                        nextToken = nextTokenIn;
+                }
+
+        }
+
+        /** Fetches the pages. */
+        private final Source source;
+
+        /** The domain. */
+        private final String domain;
+
+        /** Number of segments. */
+        private final int segments;
+
+        /** The first item name of each segment, and null after the last. */
+        private final String[] bounds;
+
+        /** Extra predicate of the items, null for all. */
+        private String where;
+
+        /** Whether the items are returned in item name order. */
+        private boolean ordered = false;
+
+        /** Maximum number of segments read at the same time. */
+        private int threads;
+
+        /** Items per page. */
+        private int pageSize = DEFAULT_PAGE_SIZE;
+
+        /** The segment queues: one per segment when ordered, else one shared. */
+        private List<BlockingQueue<Chunk>> queues;
+
+        /** Runs the segments. */
+        private ExecutorService pool;
+
+        /** Set when the reader doesn't want more items. */
+        private volatile boolean closed = false;
+
+        /** Items fetched by segment. */
+        private final AtomicLongArray fetched;
+
+        /** Segments fetched completely. */
+        private final AtomicInteger segmentsDone = new AtomicInteger();
+
+        /** The segment being read, when ordered; segments ended, unordered. */
+        private int reading = 0;
+
+        /** Items read of each segment. */
+        private final long[] read;
+
+        /** The items of the page being read. */
+        private Iterator<Map.Entry<String, Map<String, List<String>>>> page;
+
+        /** The current item. */
+        private Map.Entry<String, Map<String, List<String>>> current;
+
+        /** Receives the end of the segments, when run() is used. */
+        private Sink sink;
+
+        /**
+         * Create a scan of a domain, not started yet.
+         * 
+         * @param sourceIn
+         *                fetches the pages
+         * @param domainIn
+         *                the domain
+         * @param segmentsIn
+         *                number of segments, at least 1
+         */
+        ParallelScan(final Source sourceIn, final String domainIn, final int segmentsIn) {
+                if (segmentsIn < 1) {
+                        throw new IllegalArgumentException("Invalid number of segments: " + segmentsIn);
+                }
+                source = sourceIn;
+                domain = domainIn;
+                segments = segmentsIn;
+                bounds = new String[segments + 1];
+                setSplitPoints(splitPoints(segments, DEFAULT_ALPHABET));
+                threads = Math.min(segments, DEFAULT_THREADS);
+                fetched = new AtomicLongArray(segments);
+                read = new long[segments];
+        }
+
+        /**
+         * Compute split points dividing the item names evenly over an
+         * alphabet: the first characters for up to alphabet length segments,
+         * more characters for more segments.
+         * 
+         * @param segments
+         *                number of segments
+         * @param alphabet
+         *                the characters of the item names, sorted
+         * @return segments - 1 split points, sorted
+         */
+        public static List<String> splitPoints(final int segments, final String alphabet) {
+                int base = alphabet.length();
+                int digits = 1;
+                long space = base;
+                while (space < segments) {
+                        digits++;
+                        space *= base;
+                }
+                List<String> points = new ArrayList<String>();
+                for (int i = 1; i < segments; i++) {
+                        long position = space * i / segments;
+                        char[] point = new char[digits];
+                        for (int d = digits - 1; d >= 0; d--) {
+                                point[d] = alphabet.charAt((int) (position % base));
+                                position /= base;
+                        }
+                        points.add(new String(point));
+                }
+                return points;
+        }
+
+        /**
+         * Set where the segments are split, for item names not spread over
+         * the default alphabet.
+         * 
+         * @param points
+         *                segments - 1 item names, sorted, each the first of a
+         *                segment
+         */
+        public void setSplitPoints(final List<String> points) {
+                if (points.size() != segments - 1) {
+                        throw new IllegalArgumentException(segments + " segments need " + (segments - 1)
+                                        + " split points");
+                }
+                bounds[0] = "";
+                for (int i = 0; i < points.size(); i++) {
+                        if (points.get(i).compareTo(bounds[i]) <= 0) {
+                                throw new IllegalArgumentException("Split points not sorted: " + points);
+                        }
+                        bounds[i + 1] = points.get(i);
+                }
+                bounds[segments] = null;
+        }
+
+        /**
+         * Read only the items matching a predicate.
+         * 
+         * @param whereIn
+         *                a SimpleDB predicate, null for all the items
+         */
+        public void setWhere(final String whereIn) {
+                where = whereIn;
+        }
+
+        /**
+         * Return the items in item name order, or as soon as fetched.
+         * 
+         * @param orderedIn
+         *                true for item name order, false by default
+         */
+        public void setOrdered(final boolean orderedIn) {
+                ordered = orderedIn;
+        }
+
+        /**
+         * Set how many segments are read at the same time.
+         * 
+         * @param threadsIn
+         *                number of threads, by default the segments up to
+         *                DEFAULT_THREADS
+         */
+        public void setThreads(final int threadsIn) {
+                if (threadsIn < 1) {
+                        throw new IllegalArgumentException("Invalid number of threads: " + threadsIn);
+                }
+                threads = threadsIn;
+        }
+
+        /**
+         * Set the number of items of each select.
+         * 
+         * @param pageSizeIn
+         *                items per page, up to 2500
+         */
+        public void setPageSize(final int pageSizeIn) {
+                if (pageSizeIn < 1 || pageSizeIn > LocalSelect.MAX_LIMIT) {
+                        throw new IllegalArgumentException("Invalid page size: " + pageSizeIn);
+                }
+                pageSize = pageSizeIn;
+        }
+
+        /**
+         * Build the select expression of a segment.
+         * 
+         * @param segment
+         *                the segment, from 0
+         * @return the select expression
+         */
+        String segmentSql(final int segment) {
+                StringBuilder sql = new StringBuilder("SELECT * FROM `").append(domain)
+                                .append("` WHERE itemName() >= ").append(StringHelper.quote(bounds[segment]));
+                if (bounds[segment + 1] != null) {
+                        sql.append(" AND itemName() < ").append(StringHelper.quote(bounds[segment + 1]));
+                }
+                if (where != null) {
+                        sql.append(" AND (").append(where).append(')');
+                }
+                if (ordered) {
+                        sql.append(" ORDER BY itemName()");
+                }
+                return sql.append(" LIMIT ").append(pageSize).toString();
+        }
+
+        /**
+         * Start reading the segments in the background.
+         */
+        public void start() {
+                if (pool != null) {
+                        throw new IllegalStateException("Scan already started");
+                }
+                queues = new ArrayList<BlockingQueue<Chunk>>();
+                if (ordered) {
+                        for (int i = 0; i < segments; i++) {
+                                queues.add(new ArrayBlockingQueue<Chunk>(PAGES_AHEAD));
+                        }
+                } else {
+                        queues.add(new ArrayBlockingQueue<Chunk>(PAGES_AHEAD * segments));
+                }
+                final AtomicInteger count = new AtomicInteger();
+                pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(final Runnable runnable) {
+                                Thread thread = new Thread(runnable, "ParallelScan-"
+                                                + count.incrementAndGet());
+                                thread.setDaemon(true);
+                                return thread;
+                        }
+                });
+                for (int i = 0; i < segments; i++) {
+                        final int segment = i;
+                        pool.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                        fetchSegment(segment);
+                                }
+                        });
+                }
+                pool.shutdown();
+        }
+
+        /**
+         * Fetch the pages of a segment, until the last page, an error or the
+         * scan is closed. The last chunk queued is the end of the segment or
+         * the error, whatever the source throws.
+         * 
+         * @param segment
+         *                the segment
+         */
+        private void fetchSegment(final int segment) {
+                Chunk last = new Chunk(segment, null, "Fetching stopped unexpectedly");
+                try {
+                        String sql = segmentSql(segment);
+                        String nextToken = null;
+                        do {
+                                Page fetchedPage = source.select(sql, nextToken);
+                                fetched.addAndGet(segment, fetchedPage.items.size());
+                                if (!put(new Chunk(segment, fetchedPage.items, null))) {
+                                        return;
+                                }
+                                nextToken = fetchedPage.nextToken;
+                        } while (nextToken != null && nextToken.trim().length() > 0);
+                        segmentsDone.incrementAndGet();
+                        last = new Chunk(segment, null, null);
+                } catch (ConnectException ex) {
+                        last = new Chunk(segment, null, ex.getMessage());
+                } catch (RuntimeException ex) {
+                        last = new Chunk(segment, null, ex.toString());
+                } finally {
+                        put(last);
+                }
+        }
+
+        /**
+         * Queue a chunk, waiting while the queue is full.
+         * 
+         * @param chunk
+         *                the chunk
+         * @return false when the scan was closed
+         */
+        private boolean put(final Chunk chunk) {
+                BlockingQueue<Chunk> queue = queues.get(ordered ? chunk.segment : 0);
+                try {
+                        while (!closed) {
+                                if (queue.offer(chunk, POLL_MS, TimeUnit.MILLISECONDS)) {
+                                        return true;
+                                }
+                        }
+                } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                }
+                return false;
+        }
+
+        /**
+         * Check if there is a next item, waiting for it to be fetched. The
+         * scan is started if it wasn't.
+         * 
+         * @return true in case there are, false at the end or once closed
+         * @throws ConnectException
+         *                 when a page couldn't be fetched; the scan is closed
+         */
+        public boolean hasNext() throws ConnectException {
+                if (closed) {
+                        return false;
+                }
+                if (pool == null) {
+                        start();
+                }
+                while (page == null || !page.hasNext()) {
+                        if (reading >= segments || closed) {
+                                return false;
+                        }
+                        Chunk chunk;
+                        try {
+                                BlockingQueue<Chunk> queue = queues.get(ordered ? reading : 0);
+                                chunk = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                                if (chunk == null) {
+                                        continue;
+                                }
+                        } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                                close();
+                                throw new ConnectException("Interrupted while waiting for a page");
+                        }
+                        if (chunk.error != null) {
+                                close();
+                                throw new ConnectException("Segment " + chunk.segment + ": " + chunk.error);
+                        }
+                        if (chunk.items == null) {
+                                reading++;
+                                if (sink != null) {
+                                        sink.segmentDone(chunk.segment, read[chunk.segment]);
+                                }
+                                page = null;
+                        } else {
+                                read[chunk.segment] += chunk.items.size();
+                                page = chunk.items.entrySet().iterator();
+                        }
+                }
+                return true;
+        }
+
+        /**
+         * Move to the next item.
+         * 
+         * @return the item name
+         */
+        public String next() {
+                current = page.next();
+                return current.getKey();
+        }
+
+        /**
+         * Return the attributes of the current item.
+         * 
+         * @return the values by attribute name
+         */
+        public Map<String, List<String>> getAttributes() {
+                return current.getValue();
+        }
+
+        /**
+         * Read all the items, giving them to a sink on this thread.
+         * 
+         * @param sinkIn
+         *                receives the items and the end of each segment
+         * @throws ConnectException
+         *                 when a page couldn't be fetched, or thrown by the
+         *                 sink; the scan is closed
+         */
+        public void run(final Sink sinkIn) throws ConnectException {
+                sink = sinkIn;
+                try {
+                        while (hasNext()) {
+                                String key = next();
+                                sink.item(key, getAttributes());
+                        }
+                } catch (ConnectException ex) {
+                        close();
+                        throw ex;
+                } finally {
+                        sink = null;
+                }
+        }
+
+        /**
+         * Stop reading the segments, when the rest isn't needed.
+         */
+        public void close() {
+                closed = true;
+                if (pool != null) {
+                        pool.shutdownNow();
+                        for (BlockingQueue<Chunk> queue : queues) {
+                                queue.clear();
+                        }
+                }
+        }
+
+        /**
+         * @return the number of segments
+         */
+        public int getSegments() {
+                return segments;
+        }
+
+        /**
+         * Return the items fetched of a segment so far, for progress reports.
+         * 
+         * @param segment
+         *                the segment, from 0
+         * @return the items fetched
+         */
+        public long getItemsFetched(final int segment) {
+                return fetched.get(segment);
+        }
+
+        /**
+         * @return the number of segments fetched completely
+         */
+        public int getSegmentsDone() {
+                return segmentsDone.get();
+        }
+
+        /**
+         * A page of a segment, its end or its error.
+         */
+        private static final class Chunk {
+
+                /** The segment. */
+                private final int segment;
+
+                /** The items, null for the end or an error. */
+                private final Map<String, Map<String, List<String>>> items;
+
+                /** The error, null if fetched. */
+                private final String error;
+
+                /**
+                 * Create a chunk.
+                 * 
+                 * @param segmentIn
+                 *                the segment
+                 * @param itemsIn
+                 *                the items, null for the end or an error
+                 * @param errorIn
+                 *                the error, null if fetched
+                 */
+                private Chunk(final int segmentIn, final Map<String, Map<String, List<String>>> itemsIn,
+                                final String errorIn) {
+                        segment = segmentIn;
+                        items = itemsIn;
+                        error = errorIn;
+                }
+
+        }
+
+}
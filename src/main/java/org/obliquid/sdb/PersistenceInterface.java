@@ -112,13 +112,89 @@ public interface PersistenceInterface {
         void setAttribute(final String name, final String[] values);
 
         /**
-         * Save changes.
+         * Set an attribute to an int, encoded by SdbEncoding so that range
+         * queries and ORDER BY compare the values as numbers. Quote the
+         * literals of such queries with SdbEncoding.quote(int), and read the
+         * value with getAttributeAsEncodedInt().
+         * 
+         * @param name
+         *                attribute name
+         * @param value
+         *                attribute int value
+         */
+        void setEncodedAttribute(final String name, final int value);
+
+        /**
+         * Set an attribute to a long, encoded by SdbEncoding so that range
+         * queries and ORDER BY compare the values as numbers. Read the value
+         * with getAttributeAsEncodedLong().
+         * 
+         * @param name
+         *                attribute name
+         * @param value
+         *                attribute long value
+         */
+        void setEncodedAttribute(final String name, final long value);
+
+        /**
+         * Set an attribute to a BigDecimal, encoded by SdbEncoding with
+         * SdbEncoding.DEFAULT_SCALE digits after the decimal point, so that
+         * range queries and ORDER BY compare the values as numbers. Read the
+         * value with getAttributeAsEncodedBigDecimal().
+         * 
+         * @param name
+         *                attribute name
+         * @param value
+         *                attribute BigDecimal value
+         * @throws IllegalArgumentException
+         *                 when the value has too many digits to be encoded
+         */
+        void setEncodedAttribute(final String name, final BigDecimal value) throws IllegalArgumentException;
+
+        /**
+         * Set an attribute to a timestamp, stored in UTC as
+         * yyyy-MM-ddTHH:mm:ss.SSSZ, ordered as the time.
+         * 
+         * @param name
+         *                attribute name
+         * @param value
+         *                attribute timestamp value
+         */
+        void setTimestamp(final String name, final Date value);
+
+        /**
+         * Save changes. In batch mode the item is only queued, and written
+         * with other items later.
          * 
          * @throws ConnectException
          *                 when there are problem saving
          */
         void save() throws ConnectException;
 
+        /**
+         * Enable write-behind batching or not (default disabled). In batch
+         * mode save() queues the items, written together in batches of up to
+         * 25 items (the SimpleDB limit) when the batch is full, when the
+         * oldest item has waited the flush delay, or on flush(). Their calls
+         * are retried as any other call, not again as a batch: the items of
+         * a batch failing anyway are dropped, and the error logged by the
+         * timed flushes. Disabling batch mode flushes the items queued.
+         * 
+         * @param enable
+         *                true to batch the saves, false to write each save
+         * @throws ConnectException
+         *                 when the items queued can't be written
+         */
+        void enableBatchMode(boolean enable) throws ConnectException;
+
+        /**
+         * Write the items queued in batch mode now.
+         * 
+         * @throws ConnectException
+         *                 when they can't be written, they are dropped
+         */
+        void flush() throws ConnectException;
+
         /**
          * Get an attribute from the current object. For multi-value attributes
          * only the first value found will be returned.
@@ -181,6 +257,50 @@ public interface PersistenceInterface {
          */
         BigDecimal getAttributeAsBigDecimal(final String name) throws NoSuchElementException;
 
+        /**
+         * Get an attribute set by setEncodedAttribute(String, int).
+         * 
+         * @param name
+         *                name of the attribute
+         * @return the attribute as an int
+         * @throws NoSuchElementException
+         *                 when the attribute can't be found
+         */
+        int getAttributeAsEncodedInt(final String name) throws NoSuchElementException;
+
+        /**
+         * Get an attribute set by setEncodedAttribute(String, long).
+         * 
+         * @param name
+         *                name of the attribute
+         * @return the attribute as a long
+         * @throws NoSuchElementException
+         *                 when the attribute can't be found
+         */
+        long getAttributeAsEncodedLong(final String name) throws NoSuchElementException;
+
+        /**
+         * Get an attribute set by setEncodedAttribute(String, BigDecimal).
+         * 
+         * @param name
+         *                name of the attribute
+         * @return the attribute as a BigDecimal
+         * @throws NoSuchElementException
+         *                 when the attribute can't be found
+         */
+        BigDecimal getAttributeAsEncodedBigDecimal(final String name) throws NoSuchElementException;
+
+        /**
+         * Get an attribute set by setTimestamp().
+         * 
+         * @param name
+         *                name of the attribute
+         * @return the attribute as a Date
+         * @throws NoSuchElementException
+         *                 when the attribute can't be found
+         */
+        Date getAttributeAsTimestamp(final String name) throws NoSuchElementException;
+
         /**
          * Get a multi value attribute and return it as a Collection of String.
          * If the attribute is not multi-valued, it will be returned a
@@ -228,6 +348,19 @@ public interface PersistenceInterface {
          */
         void loadAll(int limit) throws ConnectException;
 
+        /**
+         * Prepare a scan of all the items of the current domain, split in
+         * segments of item names read in parallel. Start it, and read its
+         * items, with the methods of ParallelScan.
+         * 
+         * @param segments
+         *                number of segments
+         * @return the scan, not started
+         * @throws ConnectException
+         *                 when the domain can't be scanned
+         */
+        ParallelScan scanParallel(int segments) throws ConnectException;
+
         /**
          * Execute a custom query with eventual consistency.
          * 
@@ -0,0 +1,233 @@
+package org.obliquid.sdb;
+
+import java.net.ConnectException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+
+/**
+ * The pages of a select, fetched by a background thread following the next
+ * tokens while the reader consumes the pages already fetched. Up to
+ * queueDepth pages wait to be read, and one more is held by the thread
+ * waiting for the reader; the thread gives up when the scan is closed or not
+ * read for IDLE_TIMEOUT_MS. The thread always ends the pages with END or an
+ * error, unless the scan was closed, and the reader checks for a closed scan
+ * while waiting, so that it never waits forever.
+ * 
+ * @author stivlo
+ */
+final class PrefetchingScan {
+
+    /** Milliseconds the fetching thread waits for a reader before giving up. */
+    static final long IDLE_TIMEOUT_MS = 300000;
+
+    /** Milliseconds between checks of whether the scan was closed. */
+    private static final long POLL_MS = 100;
+
+    /** Runs the fetching threads, one per scan, idle threads end after a minute. */
+    private static final ExecutorService FETCHERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(runnable, "PrefetchingScan-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** Marks the end of the pages. */
+    private static final Page END = new Page(null, null);
+
+    /** Runs the requests. */
+    private final SdbSelector selector;
+
+    /** The select expression. */
+    private final String sql;
+
+    /** Whether to use consistent reads. */
+    private final boolean consistent;
+
+    /** The pages fetched and not read yet. */
+    private final BlockingQueue<Page> pages;
+
+    /** Set when the reader doesn't want more pages. */
+    private volatile boolean closed = false;
+
+    /** Set when the fetching thread gave up waiting for the reader. */
+    private volatile boolean abandoned = false;
+
+    /** Set when END or an error was read. */
+    private boolean finished = false;
+
+    /**
+     * Create a scan, not started yet.
+     * 
+     * @param selectorIn
+     *            runs the requests
+     * @param sqlIn
+     *            the select expression, with its LIMIT as page size
+     * @param consistentIn
+     *            whether to use consistent reads
+     * @param queueDepth
+     *            maximum number of pages fetched and not read yet, at least
+     *            1
+     */
+    PrefetchingScan(final SdbSelector selectorIn, final String sqlIn, final boolean consistentIn,
+            final int queueDepth) {
+        selector = selectorIn;
+        sql = sqlIn;
+        consistent = consistentIn;
+        pages = new ArrayBlockingQueue<Page>(queueDepth);
+    }
+
+    /**
+     * Start fetching the pages in the background.
+     */
+    void start() {
+        FETCHERS.execute(new Runnable() {
+            @Override
+            public void run() {
+                fetchAll();
+            }
+        });
+    }
+
+    /**
+     * Return the next page, waiting for it if not fetched yet.
+     * 
+     * @return the items of the page, possibly none; null when there are no
+     *         more pages
+     * @throws ConnectException
+     *             when a request failed, the wait was interrupted or the scan
+     *             was abandoned by the fetching thread
+     */
+    List<Item> nextPage() throws ConnectException {
+        if (finished) {
+            return null;
+        }
+        Page page;
+        try {
+            while ((page = pages.poll(POLL_MS, TimeUnit.MILLISECONDS)) == null) {
+                if (closed) {
+                    finished = true;
+                    if (abandoned) {
+                        throw new ConnectException("Scan not read for " + IDLE_TIMEOUT_MS + " ms, abandoned");
+                    }
+                    return null;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new ConnectException("Interrupted while waiting for a page");
+        }
+        if (page == END) {
+            finished = true;
+            return null;
+        }
+        if (page.error != null) {
+            finished = true;
+            throw new ConnectException(page.error.toString());
+        }
+        return page.items;
+    }
+
+    /**
+     * Stop fetching pages, when the reader doesn't need the rest.
+     */
+    void close() {
+        closed = true;
+        pages.clear();
+    }
+
+    /**
+     * Fetch the pages following the next tokens, until the last page, an
+     * error or the scan is closed. The last page queued is END or the error,
+     * whatever the select throws.
+     */
+    private void fetchAll() {
+        Page last = new Page(null, new IllegalStateException("Prefetching stopped unexpectedly"));
+        try {
+            String nextToken = null;
+            do {
+                SelectRequest request = new SelectRequest(sql, consistent);
+                if (nextToken != null) {
+                    request.setNextToken(nextToken);
+                }
+                SelectResult result = selector.select(request);
+                if (!put(new Page(result.getItems(), null))) {
+                    return;
+                }
+                nextToken = result.getNextToken();
+            } while (nextToken != null && nextToken.trim().length() > 0);
+            last = END;
+        } catch (RuntimeException ex) {
+            last = new Page(null, ex);
+        } finally {
+            put(last);
+        }
+    }
+
+    /**
+     * Queue a page, waiting while the queue is full.
+     * 
+     * @param page
+     *            the page
+     * @return false when the scan was closed or abandoned
+     */
+    private boolean put(final Page page) {
+        long waited = 0;
+        try {
+            while (!closed) {
+                if (pages.offer(page, POLL_MS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+                waited += POLL_MS;
+                if (waited >= IDLE_TIMEOUT_MS) {
+                    abandoned = true;
+                    close();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * A page of items, or the error fetching it.
+     */
+    private static final class Page {
+
+        /** The items. */
+        private final List<Item> items;
+
+        /** The error, null when fetched. */
+        private final RuntimeException error;
+
+        /**
+         * Create a page.
+         * 
+         * @param itemsIn
+         *            the items
+         * @param errorIn
+         *            the error, null when fetched
+         */
+        private Page(final List<Item> itemsIn, final RuntimeException errorIn) {
+            items = itemsIn;
+            error = errorIn;
+        }
+
+    }
+
+}
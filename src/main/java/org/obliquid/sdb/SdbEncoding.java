@@ -0,0 +1,320 @@
+package org.obliquid.sdb;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.obliquid.helpers.StringHelper;
+
+/**
+ * Encode numbers and dates as strings ordered as the values they encode, so
+ * that SimpleDB, which compares strings, can run range queries and sort on
+ * them. Numbers are shifted by an offset, to make them all positive, and
+ * zero padded to a fixed length; timestamps are written in UTC, ISO 8601.
+ * The quote methods encode the literals of a query in the same way:
+ * 
+ * <pre>
+ * &quot;SELECT * FROM orders WHERE total &gt; &quot; + SdbEncoding.quote(new BigDecimal(&quot;9.99&quot;))
+ * </pre>
+ * 
+ * @author stivlo
+ */
+public final class SdbEncoding {
+
+        /** Length of an encoded int. */
+        public static final int INT_LENGTH = 10;
+
+        /** Length of an encoded long. */
+        public static final int LONG_LENGTH = 20;
+
+        /** Digits of an encoded BigDecimal, decimal point excluded. */
+        public static final int DECIMAL_DIGITS = 18;
+
+        /** Digits after the decimal point of a BigDecimal, by default. */
+        public static final int DEFAULT_SCALE = 4;
+
+        /** Added to an int, to make it positive. */
+        private static final long INT_OFFSET = -(long) Integer.MIN_VALUE;
+
+        /** Added to the unscaled value of a BigDecimal, to make it positive. */
+        private static final long DECIMAL_OFFSET = BigInteger.TEN.pow(DECIMAL_DIGITS - 1).longValue();
+
+        /** The largest unscaled value of an encoded BigDecimal. */
+        private static final BigInteger DECIMAL_MAX = BigInteger.valueOf(DECIMAL_OFFSET - 1);
+
+        /** Format of the dates, as setAttribute(String, Date) always wrote them. */
+        private static final ThreadLocal<DateFormat> DATE = new ThreadLocal<DateFormat>() {
+                @Override
+                protected DateFormat initialValue() {
+                        return new SimpleDateFormat("yyyy-MM-dd");
+                }
+        };
+
+        /** Format of the timestamps. */
+        private static final ThreadLocal<DateFormat> TIMESTAMP = new ThreadLocal<DateFormat>() {
+                @Override
+                protected DateFormat initialValue() {
+                        DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+                        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                        return format;
+                }
+        };
+
+        /**
+         * Utility class.
+         */
+        private SdbEncoding() {
+        }
+
+        /**
+         * Encode an int in INT_LENGTH digits.
+         * 
+         * @param value
+         *                the value
+         * @return the encoded value
+         */
+        public static String encode(final int value) {
+                return StringHelper.zeroPad(value + INT_OFFSET, INT_LENGTH);
+        }
+
+        /**
+         * Decode an int encoded by encode(int).
+         * 
+         * @param encoded
+         *                the encoded value
+         * @return the value
+         * @throws NumberFormatException
+         *                 when the value isn't an encoded int
+         */
+        public static int decodeInt(final String encoded) throws NumberFormatException {
+                checkLength(encoded, INT_LENGTH);
+                return (int) (Long.parseLong(encoded) - INT_OFFSET);
+        }
+
+        /**
+         * Encode a long in LONG_LENGTH digits: a 0 for negative numbers,
+         * followed by the value plus 2^63, or a 1 followed by the value.
+         * 
+         * @param value
+         *                the value
+         * @return the encoded value
+         */
+        public static String encode(final long value) {
+                if (value < 0) {
+                        return "0" + StringHelper.zeroPad(value - Long.MIN_VALUE, LONG_LENGTH - 1);
+                }
+                return "1" + StringHelper.zeroPad(value, LONG_LENGTH - 1);
+        }
+
+        /**
+         * Decode a long encoded by encode(long).
+         * 
+         * @param encoded
+         *                the encoded value
+         * @return the value
+         * @throws NumberFormatException
+         *                 when the value isn't an encoded long
+         */
+        public static long decodeLong(final String encoded) throws NumberFormatException {
+                checkLength(encoded, LONG_LENGTH);
+                long value = Long.parseLong(encoded.substring(1));
+                switch (encoded.charAt(0)) {
+                case '0':
+                        return value + Long.MIN_VALUE;
+                case '1':
+                        return value;
+                default:
+                        throw new NumberFormatException("Not an encoded long: " + encoded);
+                }
+        }
+
+        /**
+         * Encode a BigDecimal with DEFAULT_SCALE digits after the decimal
+         * point.
+         * 
+         * @param value
+         *                the value
+         * @return the encoded value
+         * @throws IllegalArgumentException
+         *                 when the value has too many digits
+         */
+        public static String encode(final BigDecimal value) throws IllegalArgumentException {
+                return encode(value, DEFAULT_SCALE);
+        }
+
+        /**
+         * Encode a BigDecimal in DECIMAL_DIGITS digits, scale of them after
+         * the decimal point. Values encoded with the same scale are ordered.
+         * 
+         * @param value
+         *                the value, rounded half even to the scale
+         * @param scale
+         *                digits after the decimal point
+         * @return the encoded value
+         * @throws IllegalArgumentException
+         *                 when the value has too many digits before the
+         *                 decimal point, or the scale is out of range
+         */
+        public static String encode(final BigDecimal value, final int scale) throws IllegalArgumentException {
+                if (scale < 0 || scale >= DECIMAL_DIGITS) {
+                        throw new IllegalArgumentException("Scale out of range: " + scale);
+                }
+                BigInteger unscaled = value.setScale(scale, BigDecimal.ROUND_HALF_EVEN).unscaledValue();
+                if (unscaled.abs().compareTo(DECIMAL_MAX) > 0) {
+                        throw new IllegalArgumentException("BigDecimal attribute overflow for " + value
+                                        + " (scale " + scale + ")");
+                }
+                String digits = StringHelper.zeroPad(unscaled.longValue() + DECIMAL_OFFSET, DECIMAL_DIGITS);
+                if (scale == 0) {
+                        return digits;
+                }
+                int point = DECIMAL_DIGITS - scale;
+                return digits.substring(0, point) + "." + digits.substring(point);
+        }
+
+        /**
+         * Decode a BigDecimal encoded by encode(BigDecimal, int), with the
+         * scale used to encode it.
+         * 
+         * @param encoded
+         *                the encoded value, or null
+         * @return the value, null when encoded is null
+         * @throws NumberFormatException
+         *                 when the value isn't an encoded BigDecimal
+         */
+        public static BigDecimal decodeBigDecimal(final String encoded) throws NumberFormatException {
+                if (encoded == null) {
+                        return null;
+                }
+                int point = encoded.indexOf('.');
+                String digits = encoded;
+                int scale = 0;
+                if (point >= 0) {
+                        digits = encoded.substring(0, point) + encoded.substring(point + 1);
+                        scale = encoded.length() - point - 1;
+                }
+                checkLength(digits, DECIMAL_DIGITS);
+                return BigDecimal.valueOf(Long.parseLong(digits) - DECIMAL_OFFSET, scale);
+        }
+
+        /**
+         * Encode a date as yyyy-MM-dd, in the default time zone.
+         * 
+         * @param value
+         *                the date
+         * @return the encoded date
+         */
+        public static String encodeDate(final Date value) {
+                return DATE.get().format(value);
+        }
+
+        /**
+         * Encode a timestamp as yyyy-MM-ddTHH:mm:ss.SSSZ, in UTC.
+         * 
+         * @param value
+         *                the timestamp
+         * @return the encoded timestamp
+         */
+        public static String encodeTimestamp(final Date value) {
+                return TIMESTAMP.get().format(value);
+        }
+
+        /**
+         * Decode a timestamp encoded by encodeTimestamp().
+         * 
+         * @param encoded
+         *                the encoded timestamp, or null
+         * @return the timestamp, null when encoded is null
+         * @throws IllegalArgumentException
+         *                 when the value isn't an encoded timestamp
+         */
+        public static Date decodeTimestamp(final String encoded) throws IllegalArgumentException {
+                if (encoded == null) {
+                        return null;
+                }
+                try {
+                        return TIMESTAMP.get().parse(encoded);
+                } catch (ParseException ex) {
+                        throw new IllegalArgumentException("Not an encoded timestamp: " + encoded, ex);
+                }
+        }
+
+        /**
+         * Encode and quote an int for a query.
+         * 
+         * @param value
+         *                the value
+         * @return the quoted literal
+         */
+        public static String quote(final int value) {
+                return StringHelper.quote(encode(value));
+        }
+
+        /**
+         * Encode and quote a long for a query.
+         * 
+         * @param value
+         *                the value
+         * @return the quoted literal
+         */
+        public static String quote(final long value) {
+                return StringHelper.quote(encode(value));
+        }
+
+        /**
+         * Encode and quote a BigDecimal with DEFAULT_SCALE for a query.
+         * 
+         * @param value
+         *                the value
+         * @return the quoted literal
+         */
+        public static String quote(final BigDecimal value) {
+                return StringHelper.quote(encode(value));
+        }
+
+        /**
+         * Encode and quote a BigDecimal for a query.
+         * 
+         * @param value
+         *                the value
+         * @param scale
+         *                digits after the decimal point, as in the items
+         * @return the quoted literal
+         */
+        public static String quote(final BigDecimal value, final int scale) {
+                return StringHelper.quote(encode(value, scale));
+        }
+
+        /**
+         * Encode and quote a timestamp for a query.
+         * 
+         * @param value
+         *                the timestamp
+         * @return the quoted literal
+         */
+        public static String quoteTimestamp(final Date value) {
+                return StringHelper.quote(encodeTimestamp(value));
+        }
+
+        /**
+         * Check the length of an encoded value.
+         * 
+         * @param encoded
+         *                the encoded value
+         * @param length
+         *                the expected length
+         * @throws NumberFormatException
+         *                 when null or of another length
+         */
+        private static void checkLength(final String encoded, final int length) throws NumberFormatException {
+                if (encoded == null || encoded.length() != length) {
+                        throw new NumberFormatException("Not an encoded value of " + length + " digits: "
+                                        + encoded);
+                }
+        }
+
+}
@@ -0,0 +1,519 @@
+package org.obliquid.sdb;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.xerox.amazonws.sdb.SDBException;
+
+/**
+ * Paces and retries the SimpleDB calls of the helpers. Each domain has its own
+ * rate limit, adapted AIMD-style: raised by a step after each call accepted,
+ * halved after each call throttled by SimpleDB (ServiceUnavailable,
+ * RequestThrottled, HTTP 503). Throttled calls, and calls failed with a
+ * transient error (InternalError, other HTTP 5xx, IO errors), are retried
+ * with jittered exponential backoff; any other error is thrown to the caller
+ * at once, as thrown by the client library. The clients don't retry by
+ * themselves, so that this is the only retry policy of the helpers and sees
+ * every throttling. The helpers share getShared() by default,
+ * so that all the calls of the JVM to a domain are paced together. Thread
+ * safe.
+ * 
+ * @author stivlo
+ */
+public class SdbScheduler {
+
+        /** Default calls per second of a domain, before adapting. */
+        public static final double DEFAULT_INITIAL_RATE = 25;
+
+        /** Default minimum calls per second of a domain. */
+        public static final double DEFAULT_MIN_RATE = 1;
+
+        /** Default maximum calls per second of a domain. */
+        public static final double DEFAULT_MAX_RATE = 500;
+
+        /** Default rate increase after each call accepted. */
+        public static final double DEFAULT_RATE_STEP = 1;
+
+        /** Default number of retries of a throttled or failed call. */
+        public static final int DEFAULT_MAX_RETRIES = 5;
+
+        /** Default wait before the first retry, doubled at each retry. */
+        public static final long DEFAULT_BACKOFF_MS = 100;
+
+        /** Maximum wait between two retries. */
+        private static final long MAX_BACKOFF_MS = 10000;
+
+        /** Error codes of SimpleDB meaning that the call was throttled. */
+        private static final String[] THROTTLING_CODES = {"ServiceUnavailable", "RequestThrottled",
+                        "Throttling" };
+
+        /** Error codes of SimpleDB meaning that the call failed transiently. */
+        private static final String[] TRANSIENT_CODES = {"InternalError", "ServiceFailure" };
+
+        /** HTTP status of a throttled call. */
+        private static final int SERVICE_UNAVAILABLE = 503;
+
+        /** Lowest HTTP status of a server error. */
+        private static final int SERVER_ERROR = 500;
+
+        /** The domain of a select expression. */
+        private static final Pattern FROM = Pattern.compile("(?i)\\bFROM\\s+`?([\\w.\\-]+)");
+
+        /** The scheduler shared by the helpers. */
+        private static final SdbScheduler SHARED = new SdbScheduler();
+
+        /**
+         * A call to SimpleDB.
+         * 
+         * @param <T>
+         *                the type of the result
+         * @param <E>
+         *                the checked exception of the client library
+         */
+        public interface Call<T, E extends Exception> {
+
+                /**
+                 * Make the call.
+                 * 
+                 * @return the result
+                 * @throws E
+                 *                 when the call fails
+                 */
+                T call() throws E;
+
+        }
+
+        /** The rate limits, by domain. */
+        private final ConcurrentHashMap<String, Limiter> limiters = new ConcurrentHashMap<String, Limiter>();
+
+        /** Rate of a new domain. */
+        private volatile double initialRate = DEFAULT_INITIAL_RATE;
+
+        /** Limits of the rate of a domain. */
+        private volatile double minRate = DEFAULT_MIN_RATE, maxRate = DEFAULT_MAX_RATE;
+
+        /** Rate increase after each call accepted. */
+        private volatile double rateStep = DEFAULT_RATE_STEP;
+
+        /** Retries of a throttled or failed call. */
+        private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+
+        /** Wait before the first retry. */
+        private volatile long backoff = DEFAULT_BACKOFF_MS;
+
+        /** Statistics. */
+        private final AtomicLong accepted = new AtomicLong(), throttled = new AtomicLong(),
+                        transientErrors = new AtomicLong(), retried = new AtomicLong(),
+                        failed = new AtomicLong();
+
+        /**
+         * Return the scheduler shared by the helpers.
+         * 
+         * @return the shared instance
+         */
+        public static SdbScheduler getShared() {
+                return SHARED;
+        }
+
+        /**
+         * Set the rates of the domains.
+         * 
+         * @param initial
+         *                calls per second of a domain not called yet
+         * @param min
+         *                minimum calls per second, reached after throttling
+         * @param max
+         *                maximum calls per second
+         * @param step
+         *                calls per second added after each call accepted
+         */
+        public final void setRates(final double initial, final double min, final double max,
+                        final double step) {
+                if (min <= 0 || initial < min || max < initial || step < 0) {
+                        throw new IllegalArgumentException("Invalid rates");
+                }
+                initialRate = initial;
+                minRate = min;
+                maxRate = max;
+                rateStep = step;
+        }
+
+        /**
+         * Set how a throttled or transiently failed call is retried.
+         * 
+         * @param maxRetriesIn
+         *                retries before giving up, 0 not to retry
+         * @param backoffMillis
+         *                wait before the first retry, doubled at each retry
+         */
+        public final void setRetries(final int maxRetriesIn, final long backoffMillis) {
+                if (maxRetriesIn < 0 || backoffMillis < 0) {
+                        throw new IllegalArgumentException("Invalid retries or backoff");
+                }
+                maxRetries = maxRetriesIn;
+                backoff = backoffMillis;
+        }
+
+        /**
+         * Make a call within the rate of its domain, retrying it while
+         * throttled or failing transiently.
+         * 
+         * @param <T>
+         *                the type of the result
+         * @param <E>
+         *                the checked exception of the client library
+         * @param domain
+         *                the domain called, "" for calls not on a domain
+         * @param call
+         *                the call
+         * @return the result of the call
+         * @throws E
+         *                 thrown by the call; when throttled or failing
+         *                 transiently, the last exception after the retries
+         */
+        public final <T, E extends Exception> T execute(final String domain, final Call<T, E> call) throws E {
+                Limiter limiter = limiterOf(domain == null ? "" : domain);
+                for (int attempt = 0;; attempt++) {
+                        pause(limiter.reserve(nanoTime()));
+                        T result;
+                        try {
+                                result = call.call();
+                        } catch (RuntimeException ex) {
+                                this.<E>handleError(limiter, ex, attempt);
+                                continue;
+                        } catch (Exception ex) {
+                                this.<E>handleError(limiter, ex, attempt);
+                                continue;
+                        }
+                        limiter.increase();
+                        accepted.incrementAndGet();
+                        return result;
+                }
+        }
+
+        /**
+         * Make a select within the rate of the domain in its FROM.
+         * 
+         * @param <T>
+         *                the type of the result
+         * @param <E>
+         *                the checked exception of the client library
+         * @param sql
+         *                the select expression
+         * @param call
+         *                the call
+         * @return the result of the call
+         * @throws E
+         *                 thrown by the call
+         */
+        public final <T, E extends Exception> T select(final String sql, final Call<T, E> call) throws E {
+                Matcher matcher = FROM.matcher(sql);
+                return execute(matcher.find() ? matcher.group(1) : "", call);
+        }
+
+        /**
+         * Decide what to do with the error of a call: throw it, or wait
+         * before the retry when throttled or failed transiently, slowing down
+         * the domain only when throttled.
+         * 
+         * @param <E>
+         *                the checked exception of the client library
+         * @param limiter
+         *                the rate limit of the domain
+         * @param ex
+         *                the error
+         * @param attempt
+         *                the attempt failed, from 0
+         * @throws E
+         *                 the error, when not retried
+         */
+        @SuppressWarnings("unchecked")
+        private <E extends Exception> void handleError(final Limiter limiter, final Exception ex,
+                        final int attempt) throws E {
+                if (isThrottling(ex)) {
+                        throttled.incrementAndGet();
+                        limiter.decrease();
+                } else if (isTransient(ex)) {
+                        transientErrors.incrementAndGet();
+                } else {
+                        failed.incrementAndGet();
+                        throw (E) ex;
+                }
+                if (attempt >= maxRetries) {
+                        failed.incrementAndGet();
+                        throw (E) ex;
+                }
+                retried.incrementAndGet();
+                try {
+                        sleep(TimeUnit.MILLISECONDS.toNanos(backoffBefore(attempt)));
+                } catch (InterruptedException interrupted) {
+                        Thread.currentThread().interrupt();
+                        failed.incrementAndGet();
+                        throw (E) ex;
+                }
+        }
+
+        /**
+         * Check whether an error means that SimpleDB throttled the call.
+         * 
+         * @param ex
+         *                the error of a call
+         * @return true when the call can be retried later
+         */
+        protected boolean isThrottling(final Exception ex) {
+                if (ex instanceof AmazonServiceException) {
+                        AmazonServiceException service = (AmazonServiceException) ex;
+                        return service.getStatusCode() == SERVICE_UNAVAILABLE
+                                        || containsCode(service.getErrorCode(), THROTTLING_CODES);
+                }
+                if (ex instanceof SDBException) {
+                        return containsCode(ex.getMessage(), THROTTLING_CODES);
+                }
+                return false;
+        }
+
+        /**
+         * Check whether an error is transient, other than throttling: a server
+         * error of SimpleDB or an IO error reaching it.
+         * 
+         * @param ex
+         *                the error of a call
+         * @return true when the call can be retried at once
+         */
+        protected boolean isTransient(final Exception ex) {
+                if (ex instanceof AmazonServiceException) {
+                        AmazonServiceException service = (AmazonServiceException) ex;
+                        return service.getStatusCode() >= SERVER_ERROR
+                                        || containsCode(service.getErrorCode(), TRANSIENT_CODES);
+                }
+                if (ex instanceof SDBException && containsCode(ex.getMessage(), TRANSIENT_CODES)) {
+                        return true;
+                }
+                if (ex instanceof AmazonClientException || ex instanceof SDBException) {
+                        for (Throwable cause = ex.getCause(); cause != null; cause = cause.getCause()) {
+                                if (cause instanceof IOException) {
+                                        return true;
+                                }
+                        }
+                }
+                return false;
+        }
+
+        /**
+         * Check whether an error code, or a message with the code, is one of
+         * some codes.
+         * 
+         * @param code
+         *                the code or message, possibly null
+         * @param codes
+         *                the codes looked for
+         * @return true if it contains one of the codes
+         */
+        private static boolean containsCode(final String code, final String[] codes) {
+                if (code == null) {
+                        return false;
+                }
+                for (String candidate : codes) {
+                        if (code.contains(candidate)) {
+                                return true;
+                        }
+                }
+                return false;
+        }
+
+        /**
+         * Compute the wait before a retry: the backoff doubled at each
+         * attempt, up to MAX_BACKOFF_MS, with a random part so that clients
+         * throttled together don't retry together.
+         * 
+         * @param attempt
+         *                the attempt that failed, from 0
+         * @return milliseconds to wait
+         */
+        private long backoffBefore(final int attempt) {
+                long wait = Math.min(MAX_BACKOFF_MS, backoff << Math.min(attempt, 20));
+                return wait / 2 + (long) (Math.random() * (wait / 2 + 1));
+        }
+
+        /**
+         * Wait for the time reserved for a call.
+         * 
+         * @param nanos
+         *                nanoseconds to wait
+         */
+        private void pause(final long nanos) {
+                if (nanos <= 0) {
+                        return;
+                }
+                try {
+                        sleep(nanos);
+                } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                }
+        }
+
+        /**
+         * Return the rate limit of a domain, creating it if missing.
+         * 
+         * @param domain
+         *                the domain
+         * @return the limit
+         */
+        private Limiter limiterOf(final String domain) {
+                Limiter limiter = limiters.get(domain);
+                if (limiter == null) {
+                        Limiter created = new Limiter(initialRate);
+                        limiter = limiters.putIfAbsent(domain, created);
+                        if (limiter == null) {
+                                limiter = created;
+                        }
+                }
+                return limiter;
+        }
+
+        /**
+         * Return the current rate of a domain.
+         * 
+         * @param domain
+         *                the domain
+         * @return calls per second allowed
+         */
+        public final double getRate(final String domain) {
+                Limiter limiter = limiters.get(domain);
+                return limiter == null ? initialRate : limiter.getRate();
+        }
+
+        /**
+         * @return the number of calls accepted by SimpleDB
+         */
+        public final long getAccepted() {
+                return accepted.get();
+        }
+
+        /**
+         * @return the number of calls throttled by SimpleDB, retried or not
+         */
+        public final long getThrottled() {
+                return throttled.get();
+        }
+
+        /**
+         * @return the number of calls failed with a transient error, retried
+         *         or not
+         */
+        public final long getTransientErrors() {
+                return transientErrors.get();
+        }
+
+        /**
+         * @return the number of retries of throttled or failed calls
+         */
+        public final long getRetried() {
+                return retried.get();
+        }
+
+        /**
+         * @return the number of calls failed, with other errors or after the
+         *         retries
+         */
+        public final long getFailed() {
+                return failed.get();
+        }
+
+        @Override
+        public final String toString() {
+                return "accepted: " + accepted + ", throttled: " + throttled + ", transient errors: "
+                                + transientErrors + ", retried: " + retried + ", failed: " + failed;
+        }
+
+        /**
+         * Return the current time, overridden by tests.
+         * 
+         * @return the time in nanoseconds
+         */
+        protected long nanoTime() {
+                return System.nanoTime();
+        }
+
+        /**
+         * Wait, overridden by tests.
+         * 
+         * @param nanos
+         *                nanoseconds to wait
+         * @throws InterruptedException
+         *                 when interrupted
+         */
+        protected void sleep(final long nanos) throws InterruptedException {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+
+        /**
+         * The adaptive rate limit of a domain: calls are spaced by the inverse
+         * of the rate, so that bursts are spread.
+         */
+        private final class Limiter {
+
+                /** Calls per second. */
+                private double rate;
+
+                /** When the next call may start, in nanoseconds. */
+                private long nextFree;
+
+                /** Whether nextFree was set. */
+                private boolean started = false;
+
+                /**
+                 * @param rateIn
+                 *                the initial rate
+                 */
+                private Limiter(final double rateIn) {
+                        rate = rateIn;
+                }
+
+                /**
+                 * Reserve the time of a call.
+                 * 
+                 * @param now
+                 *                the current time
+                 * @return nanoseconds to wait before the call
+                 */
+                private synchronized long reserve(final long now) {
+                        if (!started || nextFree < now) {
+                                nextFree = now;
+                                started = true;
+                        }
+                        long wait = nextFree - now;
+                        nextFree += (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+                        return wait;
+                }
+
+                /**
+                 * Raise the rate after a call accepted.
+                 */
+                private synchronized void increase() {
+                        rate = Math.min(maxRate, rate + rateStep);
+                }
+
+                /**
+                 * Halve the rate after a call throttled.
+                 */
+                private synchronized void decrease() {
+                        rate = Math.max(minRate, rate / 2);
+                }
+
+                /**
+                 * @return calls per second
+                 */
+                private synchronized double getRate() {
+                        return rate;
+                }
+
+        }
+
+}
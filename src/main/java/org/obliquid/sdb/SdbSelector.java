@@ -0,0 +1,24 @@
+package org.obliquid.sdb;
+
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+
+/**
+ * Runs a SimpleDB select request, normally with the AmazonSimpleDB client;
+ * tests use a local stand-in instead.
+ * 
+ * @author stivlo
+ */
+interface SdbSelector {
+
+    /**
+     * Run a select request, returning a page of items.
+     * 
+     * @param request
+     *            the select expression, with the next token of the previous
+     *            page if any
+     * @return the items and the next token, null or empty on the last page
+     */
+    SelectResult select(SelectRequest request);
+
+}
@@ -2,11 +2,11 @@ package org.obliquid.sdb;
 
 import java.math.BigDecimal;
 import java.net.ConnectException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -45,10 +45,8 @@ public class SimpleDbHelper implements PersistenceInterface {
          */
         private Domain domain;
 
-        /**
-         * A list of ItemAttribute.
-         */
-        private List<ItemAttribute> attributes;
+        /** The attributes of the current item. */
+        private final AttributeStore attributes = new AttributeStore();
 
         /**
          * This class provides an interface with the Amazon SDB service. It
@@ -102,8 +100,14 @@ public class SimpleDbHelper implements PersistenceInterface {
          */
         private static final int ITEMS_PER_TIME = 50;
 
-        /** How many times to retry before giving up. */
-        private static final int MAX_RETRIES = 5;
+        /** Paces and retries the calls to SimpleDB. */
+        private volatile SdbScheduler scheduler = SdbScheduler.getShared();
+
+        /** The items saved in batch mode. */
+        private final WriteBehindBatch<ItemAttribute> batch;
+
+        /** Whether save() queues the items in the batch. */
+        private boolean batchMode = false;
 
         /**
          * Default Constructor.
@@ -113,8 +117,16 @@ public class SimpleDbHelper implements PersistenceInterface {
                 boolean isSecure = true;
                 sdb = new SimpleDB(conf.getProperty("awsAccessKey"), conf.getProperty("awsSecretKey"),
                                 isSecure);
-                sdb.setMaxRetries(MAX_RETRIES);
-                attributes = new ArrayList<ItemAttribute>();
+                // the scheduler retries the throttled and transiently failed calls, with backoff
+                sdb.setMaxRetries(0);
+                batch = new WriteBehindBatch<ItemAttribute>(new WriteBehindBatch.Sink<ItemAttribute>() {
+                        @Override
+                        public void write(final String domainName,
+                                        final Map<String, List<ItemAttribute>> items)
+                                        throws ConnectException {
+                                batchPut(domainName, items);
+                        }
+                });
                 bufferKeys = null;
                 limit = 0;
                 position = 0;
@@ -122,6 +134,32 @@ public class SimpleDbHelper implements PersistenceInterface {
                 bufferSize = 0;
         }
 
+        /**
+         * Put items in a domain, through the scheduler.
+         * 
+         * @param domainName
+         *                the domain
+         * @param items
+         *                the attributes of each item
+         * @throws ConnectException
+         *                 when SimpleDB fails, or still throttles after the
+         *                 retries
+         */
+        private void batchPut(final String domainName, final Map<String, List<ItemAttribute>> items)
+                        throws ConnectException {
+                try {
+                        scheduler.execute(domainName, new SdbScheduler.Call<Void, SDBException>() {
+                                @Override
+                                public Void call() throws SDBException {
+                                        sdb.getDomain(domainName).batchPutAttributes(items);
+                                        return null;
+                                }
+                        });
+                } catch (SDBException ex) {
+                        throw new ConnectException(ex.getMessage());
+                }
+        }
+
         /**
          * Set the domain to operate on.
          * 
@@ -168,22 +206,6 @@ public class SimpleDbHelper implements PersistenceInterface {
                 }
         }
 
-        /**
-         * Remove an attribute from the current attributes in memory.
-         * 
-         * @param name
-         *                the name of the attribute to be removed
-         */
-        private void removeAttribute(final String name) {
-                ItemAttribute curAttribute;
-                for (Iterator<ItemAttribute> it = attributes.iterator(); it.hasNext();) {
-                        curAttribute = it.next();
-                        if (curAttribute.getName().equals(name)) {
-                                it.remove();
-                        }
-                }
-        }
-
         /**
          * Replace or create an attribute in the current object.
          * 
@@ -194,8 +216,7 @@ public class SimpleDbHelper implements PersistenceInterface {
          */
         @Override
         public final void setAttribute(final String name, final String value) {
-                removeAttribute(name);
-                attributes.add(new ItemAttribute(name, value, true));
+                attributes.set(name, value);
         }
 
         @Override
@@ -211,25 +232,37 @@ public class SimpleDbHelper implements PersistenceInterface {
 
         @Override
         public final void setAttribute(final String name, final Date valueAsDate) {
-                SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
-                String valueAsString = sdf.format(valueAsDate);
-                setAttribute(name, valueAsString);
+                setAttribute(name, SdbEncoding.encodeDate(valueAsDate));
         }
 
         @Override
         public final void setAttribute(final String name, final Collection<String> values) {
-                removeAttribute(name);
-                for (String value : values) {
-                        attributes.add(new ItemAttribute(name, value, true));
-                }
+                attributes.set(name, values);
         }
 
         @Override
         public final void setAttribute(final String name, final String[] values) {
-                removeAttribute(name);
-                for (String value : values) {
-                        attributes.add(new ItemAttribute(name, value, true));
-                }
+                attributes.set(name, Arrays.asList(values));
+        }
+
+        @Override
+        public final void setEncodedAttribute(final String name, final int value) {
+                setAttribute(name, SdbEncoding.encode(value));
+        }
+
+        @Override
+        public final void setEncodedAttribute(final String name, final long value) {
+                setAttribute(name, SdbEncoding.encode(value));
+        }
+
+        @Override
+        public final void setEncodedAttribute(final String name, final BigDecimal value) {
+                setAttribute(name, SdbEncoding.encode(value));
+        }
+
+        @Override
+        public final void setTimestamp(final String name, final Date value) {
+                setAttribute(name, SdbEncoding.encodeTimestamp(value));
         }
 
         /**
@@ -240,14 +273,66 @@ public class SimpleDbHelper implements PersistenceInterface {
          */
         @Override
         public final void save() throws ConnectException {
+                final List<ItemAttribute> toPut = toItemAttributes();
+                if (batchMode) {
+                        batch.add(domain.getName(), key, toPut);
+                        attributes.clear();
+                        return;
+                }
                 try {
-                        item.putAttributes(attributes);
+                        scheduler.execute(domain.getName(), new SdbScheduler.Call<Void, SDBException>() {
+                                @Override
+                                public Void call() throws SDBException {
+                                        item.putAttributes(toPut);
+                                        return null;
+                                }
+                        });
                         attributes.clear();
                 } catch (SDBException ex) {
                         throw new ConnectException(ex.getMessage());
                 }
         }
 
+        /**
+         * Convert the attributes of the current item for Typica, replacing the
+         * values stored.
+         * 
+         * @return the attributes to put
+         */
+        private List<ItemAttribute> toItemAttributes() {
+                List<ItemAttribute> toPut = new ArrayList<ItemAttribute>(attributes.countValues());
+                for (Map.Entry<String, List<String>> entry : attributes.asMap().entrySet()) {
+                        for (String value : entry.getValue()) {
+                                toPut.add(new ItemAttribute(entry.getKey(), value, true));
+                        }
+                }
+                return toPut;
+        }
+
+        @Override
+        public final void enableBatchMode(final boolean enable) throws ConnectException {
+                batchMode = enable;
+                if (!enable) {
+                        batch.flush();
+                }
+        }
+
+        @Override
+        public final void flush() throws ConnectException {
+                batch.flush();
+        }
+
+        /**
+         * Set how long an item saved in batch mode waits before being
+         * written, if the batch doesn't fill up before.
+         * 
+         * @param millis
+         *                milliseconds, by default 1000
+         */
+        public final void setBatchFlushDelay(final long millis) {
+                batch.setFlushDelay(millis);
+        }
+
         @Override
         public final void loadAll() throws ConnectException {
                 this.limit = 0; //unlimited
@@ -272,10 +357,8 @@ public class SimpleDbHelper implements PersistenceInterface {
 
         @Override
         public final String getAttributeAsString(final String name) throws NoSuchElementException {
-                for (ItemAttribute attribute : attributes) {
-                        if (attribute.getName().equals(name)) {
-                                return attribute.getValue();
-                        }
+                if (attributes.contains(name)) {
+                        return attributes.getFirst(name);
                 }
                 if (enableExceptions) {
                         throw new NoSuchElementException("Attribute '" + name + "' not found");
@@ -310,16 +393,31 @@ public class SimpleDbHelper implements PersistenceInterface {
                 return new BigDecimal(value);
         }
 
+        @Override
+        public final int getAttributeAsEncodedInt(final String name) throws NoSuchElementException {
+                return SdbEncoding.decodeInt(getAttributeAsString(name));
+        }
+
+        @Override
+        public final long getAttributeAsEncodedLong(final String name) throws NoSuchElementException {
+                return SdbEncoding.decodeLong(getAttributeAsString(name));
+        }
+
+        @Override
+        public final BigDecimal getAttributeAsEncodedBigDecimal(final String name)
+                        throws NoSuchElementException {
+                return SdbEncoding.decodeBigDecimal(getAttributeAsString(name));
+        }
+
+        @Override
+        public final Date getAttributeAsTimestamp(final String name) throws NoSuchElementException {
+                return SdbEncoding.decodeTimestamp(getAttributeAsString(name));
+        }
+
         @Override
         public final Collection<String> getAttributeAsCollection(final String name)
                         throws NoSuchElementException {
-                List<String> values = new ArrayList<String>();
-                for (ItemAttribute attribute : attributes) {
-                        if (attribute.getName().equals(name)) {
-                                values.add(attribute.getValue());
-                        }
-                }
-                return values;
+                return new ArrayList<String>(attributes.getAll(name));
         }
 
         @Override
@@ -347,12 +445,51 @@ public class SimpleDbHelper implements PersistenceInterface {
         @Override
         public final String next() {
                 key = (String) bufferKeys[bufferPosition];
-                attributes = buffer.get(key);
+                attributes.clear();
+                for (ItemAttribute attribute : buffer.get(key)) {
+                        attributes.add(attribute.getName(), attribute.getValue());
+                }
                 position++;
                 bufferPosition++;
                 return key;
         }
 
+        @Override
+        public final ParallelScan scanParallel(final int segments) throws ConnectException {
+                if (domain == null) {
+                        throw new ConnectException("No domain set");
+                }
+                final Domain scanned = domain;
+                return new ParallelScan(new ParallelScan.Source() {
+                        @Override
+                        public ParallelScan.Page select(final String sql, final String nextToken)
+                                        throws ConnectException {
+                                QueryWithAttributesResult result;
+                                try {
+                                        result = selectItems(scanned, sql, nextToken, consistent);
+                                } catch (SDBException ex) {
+                                        throw new ConnectException(ex.getMessage() + "\n         " + sql);
+                                }
+                                Map<String, Map<String, List<String>>> page =
+                                                new LinkedHashMap<String, Map<String, List<String>>>();
+                                for (Map.Entry<String, List<ItemAttribute>> item : result.getItems()
+                                                .entrySet()) {
+                                        Map<String, List<String>> values =
+                                                        new LinkedHashMap<String, List<String>>();
+                                        for (ItemAttribute attribute : item.getValue()) {
+                                                String name = attribute.getName();
+                                                if (!values.containsKey(name)) {
+                                                        values.put(name, new ArrayList<String>());
+                                                }
+                                                values.get(name).add(attribute.getValue());
+                                        }
+                                        page.put(item.getKey(), values);
+                                }
+                                return new ParallelScan.Page(page, result.getNextToken());
+                        }
+                }, domain.getName(), segments);
+        }
+
         @Override
         public final void consistentQuery(final String sql) throws ConnectException {
                 consistent = true;
@@ -386,7 +523,7 @@ public class SimpleDbHelper implements PersistenceInterface {
         private void query(final String sql, final String nextToken) throws ConnectException {
                 try {
                         currentQuery = sql; //we need it to get the next batch of results
-                        queryResult = domain.selectItems(sql, nextToken, consistent);
+                        queryResult = selectItems(domain, sql, nextToken, consistent);
                         buffer = queryResult.getItems();
                         bufferKeys = buffer.keySet().toArray();
                         position = 0;
@@ -398,6 +535,44 @@ public class SimpleDbHelper implements PersistenceInterface {
                 }
         }
 
+        /**
+         * Run a select, through the scheduler.
+         * 
+         * @param selected
+         *                the domain
+         * @param sql
+         *                the query to execute
+         * @param nextToken
+         *                the token to get the next batch of results, or null
+         * @param consistentRead
+         *                whether the read is consistent
+         * @return the page of results
+         * @throws SDBException
+         *                 when SimpleDB fails, or still throttles after the
+         *                 retries
+         */
+        private QueryWithAttributesResult selectItems(final Domain selected, final String sql,
+                        final String nextToken, final boolean consistentRead) throws SDBException {
+                return scheduler.execute(selected.getName(),
+                                new SdbScheduler.Call<QueryWithAttributesResult, SDBException>() {
+                                        @Override
+                                        public QueryWithAttributesResult call() throws SDBException {
+                                                return selected.selectItems(sql, nextToken, consistentRead);
+                                        }
+                                });
+        }
+
+        /**
+         * Set the scheduler pacing and retrying the calls to SimpleDB, by
+         * default the one shared by the helpers.
+         * 
+         * @param schedulerIn
+         *                the scheduler
+         */
+        public final void setScheduler(final SdbScheduler schedulerIn) {
+                scheduler = schedulerIn;
+        }
+
         /**
          * List the available domains.
          * 
@@ -409,7 +584,13 @@ public class SimpleDbHelper implements PersistenceInterface {
         public final List<String> listDomains() throws ConnectException {
                 List<String> domainList = new ArrayList<String>();
                 try {
-                        List<Domain> domainListTypica = sdb.listDomains().getDomainList();
+                        List<Domain> domainListTypica = scheduler.execute("",
+                                        new SdbScheduler.Call<List<Domain>, SDBException>() {
+                                                @Override
+                                                public List<Domain> call() throws SDBException {
+                                                        return sdb.listDomains().getDomainList();
+                                                }
+                                        });
                         for (Domain aDomain : domainListTypica) {
                                 domainList.add(aDomain.getName());
                         }
@@ -422,7 +603,12 @@ public class SimpleDbHelper implements PersistenceInterface {
         @Override
         public final void createDomain(final String domainName) throws ConnectException {
                 try {
-                        sdb.createDomain(domainName);
+                        scheduler.execute(domainName, new SdbScheduler.Call<Domain, SDBException>() {
+                                @Override
+                                public Domain call() throws SDBException {
+                                        return sdb.createDomain(domainName);
+                                }
+                        });
                 } catch (SDBException ex) {
                         throw new ConnectException(ex.getMessage());
                 }
@@ -431,7 +617,13 @@ public class SimpleDbHelper implements PersistenceInterface {
         @Override
         public final void deleteDomain(final String domainName) throws ConnectException {
                 try {
-                        sdb.deleteDomain(domainName);
+                        scheduler.execute(domainName, new SdbScheduler.Call<Void, SDBException>() {
+                                @Override
+                                public Void call() throws SDBException {
+                                        sdb.deleteDomain(domainName);
+                                        return null;
+                                }
+                        });
                 } catch (SDBException ex) {
                         throw new ConnectException(ex.getMessage());
                 }
@@ -0,0 +1,239 @@
+package org.obliquid.sdb;
+
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The items saved in batch mode, waiting to be written together with a
+ * single batch put. The pending items are written when they reach the
+ * SimpleDB limit of MAX_ITEMS per batch, when the oldest has waited the flush
+ * delay, or on flush(). A batch is not retried here, since the sinks of the
+ * helpers put it through SdbScheduler, which already retries the throttled
+ * and transiently failed calls; when a batch fails anyway its items are
+ * dropped, not tried again, and the error is thrown to the caller of flush()
+ * or logged by the timed flush. Thread safe, since the timed flushes run on a
+ * background thread.
+ * 
+ * @param <A>
+ *                the attribute type of the client library
+ * @author stivlo
+ */
+final class WriteBehindBatch<A> {
+
+        /** Maximum number of items in a SimpleDB batch put. */
+        static final int MAX_ITEMS = 25;
+
+        /** Default milliseconds an item waits before being written. */
+        static final long DEFAULT_FLUSH_DELAY_MS = 1000;
+
+        /** A logger instance. */
+        private static final Logger LOG = Logger.getLogger(WriteBehindBatch.class);
+
+        /** Runs the timed flushes of all the batches. */
+        private static final ScheduledExecutorService TIMER = Executors
+                        .newSingleThreadScheduledExecutor(new ThreadFactory() {
+                                @Override
+                                public Thread newThread(final Runnable runnable) {
+                                        Thread thread = new Thread(runnable, "WriteBehindBatch");
+                                        thread.setDaemon(true);
+                                        return thread;
+                                }
+                        });
+
+        /**
+         * Writes a batch of items.
+         * 
+         * @param <A>
+         *                the attribute type of the client library
+         */
+        interface Sink<A> {
+
+                /**
+                 * Write items with a single batch put.
+                 * 
+                 * @param domain
+                 *                the domain
+                 * @param items
+                 *                the attributes by item name, at most MAX_ITEMS
+                 * @throws ConnectException
+                 *                 when the batch can't be written
+                 */
+                void write(String domain, Map<String, List<A>> items) throws ConnectException;
+
+        }
+
+        /** Writes the batches. */
+        private final Sink<A> sink;
+
+        /** The domain of the pending items. */
+        private String domain;
+
+        /** The pending items, by item name. */
+        private final Map<String, List<A>> pending = new LinkedHashMap<String, List<A>>();
+
+        /** The timed flush of the pending items, null when none. */
+        private ScheduledFuture<?> timedFlush;
+
+        /** Milliseconds an item waits before being written. */
+        private volatile long flushDelay = DEFAULT_FLUSH_DELAY_MS;
+
+        /** Statistics. */
+        private final AtomicLong batches = new AtomicLong(), itemsWritten = new AtomicLong(),
+                        failures = new AtomicLong(), itemsDropped = new AtomicLong();
+
+        /**
+         * Create an empty batch.
+         * 
+         * @param sinkIn
+         *                writes the batches
+         */
+        WriteBehindBatch(final Sink<A> sinkIn) {
+                sink = sinkIn;
+        }
+
+        /**
+         * Set how long an item waits before being written.
+         * 
+         * @param millis
+         *                milliseconds after the first pending item was saved
+         */
+        void setFlushDelay(final long millis) {
+                if (millis < 1) {
+                        throw new IllegalArgumentException("Invalid flush delay: " + millis);
+                }
+                flushDelay = millis;
+        }
+
+        /**
+         * Add an item, writing the pending items first when the batch is full,
+         * is for another domain, or already has the same item.
+         * 
+         * @param domainIn
+         *                the domain
+         * @param key
+         *                the item name
+         * @param attributes
+         *                the attributes to put, copied
+         * @throws ConnectException
+         *                 when the pending items can't be written and are
+         *                 dropped; the item is dropped with them when it
+         *                 filled the batch, and not added when it was to go
+         *                 in the next one
+         */
+        synchronized void add(final String domainIn, final String key, final List<A> attributes)
+                        throws ConnectException {
+                if (pending.size() >= MAX_ITEMS || pending.containsKey(key)
+                                || !pending.isEmpty() && !domainIn.equals(domain)) {
+                        flush();
+                }
+                domain = domainIn;
+                pending.put(key, new ArrayList<A>(attributes));
+                if (pending.size() >= MAX_ITEMS) {
+                        flush();
+                } else if (timedFlush == null) {
+                        scheduleFlush();
+                }
+        }
+
+        /**
+         * Write the pending items after the flush delay.
+         */
+        private void scheduleFlush() {
+                timedFlush = TIMER.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                                flushInBackground();
+                        }
+                }, flushDelay, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Write the pending items.
+         * 
+         * @throws ConnectException
+         *                 when the batch can't be written; its items are
+         *                 dropped
+         */
+        synchronized void flush() throws ConnectException {
+                if (timedFlush != null) {
+                        timedFlush.cancel(false);
+                        timedFlush = null;
+                }
+                if (pending.isEmpty()) {
+                        return;
+                }
+                Map<String, List<A>> items = new LinkedHashMap<String, List<A>>(pending);
+                pending.clear();
+                try {
+                        sink.write(domain, items);
+                } catch (ConnectException ex) {
+                        failures.incrementAndGet();
+                        itemsDropped.addAndGet(items.size());
+                        ConnectException dropped = new ConnectException("Can't write " + items.size()
+                                        + " items to " + domain + ", dropped " + items.keySet() + ": "
+                                        + ex.getMessage());
+                        dropped.initCause(ex);
+                        throw dropped;
+                }
+                batches.incrementAndGet();
+                itemsWritten.addAndGet(items.size());
+        }
+
+        /**
+         * The timed flush: errors are logged, the items are dropped.
+         */
+        private synchronized void flushInBackground() {
+                try {
+                        flush();
+                } catch (ConnectException ex) {
+                        LOG.error(ex.getMessage());
+                }
+        }
+
+        /**
+         * @return the number of items waiting to be written
+         */
+        synchronized int getPending() {
+                return pending.size();
+        }
+
+        /**
+         * @return the number of batches written
+         */
+        long getBatches() {
+                return batches.get();
+        }
+
+        /**
+         * @return the number of items written
+         */
+        long getItemsWritten() {
+                return itemsWritten.get();
+        }
+
+        /**
+         * @return the number of flushes failed
+         */
+        long getFailures() {
+                return failures.get();
+        }
+
+        /**
+         * @return the number of items dropped by the flushes failed
+         */
+        long getItemsDropped() {
+                return itemsDropped.get();
+        }
+
+}
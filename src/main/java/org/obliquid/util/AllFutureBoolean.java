@@ -0,0 +1,85 @@
+package org.obliquid.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A Future that is true when all the Futures it groups are true, for the
+ * operations on many keys sent to the cache at once.
+ * 
+ * @author stivlo
+ * 
+ */
+final class AllFutureBoolean implements Future<Boolean> {
+
+        /** The operations. */
+        private final List<Future<Boolean>> futures;
+
+        /**
+         * Group operations.
+         * 
+         * @param futuresIn
+         *                the operations, a null element counts as failed
+         */
+        AllFutureBoolean(final List<Future<Boolean>> futuresIn) {
+                futures = new ArrayList<Future<Boolean>>(futuresIn);
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+                boolean cancelled = false;
+                for (Future<Boolean> future : futures) {
+                        if (future != null) {
+                                cancelled |= future.cancel(mayInterruptIfRunning);
+                        }
+                }
+                return cancelled;
+        }
+
+        @Override
+        public Boolean get() throws InterruptedException, ExecutionException {
+                boolean result = true;
+                for (Future<Boolean> future : futures) {
+                        result &= future != null && Boolean.TRUE.equals(future.get());
+                }
+                return result;
+        }
+
+        @Override
+        public Boolean get(final long timeout, final TimeUnit unit) throws InterruptedException,
+                        ExecutionException, TimeoutException {
+                long deadline = System.nanoTime() + unit.toNanos(timeout);
+                boolean result = true;
+                for (Future<Boolean> future : futures) {
+                        long left = Math.max(0, deadline - System.nanoTime());
+                        result &= future != null
+                                        && Boolean.TRUE.equals(future.get(left, TimeUnit.NANOSECONDS));
+                }
+                return result;
+        }
+
+        @Override
+        public boolean isCancelled() {
+                for (Future<Boolean> future : futures) {
+                        if (future != null && future.isCancelled()) {
+                                return true;
+                        }
+                }
+                return false;
+        }
+
+        @Override
+        public boolean isDone() {
+                for (Future<Boolean> future : futures) {
+                        if (future != null && !future.isDone()) {
+                                return false;
+                        }
+                }
+                return true;
+        }
+
+}
@@ -0,0 +1,416 @@
+package org.obliquid.util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Lock-free counters about the use of a cache, grouped by key prefix: hits,
+ * misses, sets and a histogram of the time spent by each operation. The
+ * prefix of a key is its start up to the first ':' included, "" for the keys
+ * without one. One miss every missTraceSampling is logged at debug level with
+ * its key, to find out what is missing without logging every miss. All the
+ * methods are thread safe and never block.
+ * 
+ * @author stivlo
+ */
+public final class CacheMetrics {
+
+        /** Default number of misses for each one logged. */
+        public static final int DEFAULT_MISS_TRACE_SAMPLING = 1000;
+
+        /**
+         * Upper bounds (exclusive, in microseconds) of the latency histogram
+         * buckets. The last bucket counts everything from 100 milliseconds on.
+         */
+        private static final long[] LATENCY_BUCKET_BOUNDS = { 10, 100, 1000, 10000, 100000 };
+
+        /** Maximum number of prefixes counted separately. */
+        static final int MAX_PREFIXES = 256;
+
+        /** The prefix counting the keys over MAX_PREFIXES. */
+        static final String OTHER_PREFIX = "*";
+
+        /** Separates the prefix from the rest of a key. */
+        private static final char PREFIX_SEPARATOR = ':';
+
+        /** Nanoseconds in a microsecond. */
+        private static final long NANOS_IN_A_US = 1000L;
+
+        /** A logger instance. */
+        private static final Logger LOG = Logger.getLogger(CacheMetrics.class);
+
+        /** Counters by prefix. */
+        private final ConcurrentMap<String, Counters> byPrefix = new ConcurrentHashMap<String, Counters>();
+
+        /** Misses counted for sampling. */
+        private final AtomicLong missesSeen = new AtomicLong();
+
+        /** Misses for each one logged, 0 not to log them. */
+        private volatile int missTraceSampling = DEFAULT_MISS_TRACE_SAMPLING;
+
+        /**
+         * Set how many misses there are for each one logged at debug level.
+         * 
+         * @param sampling
+         *                1 to log every miss, 0 to log none
+         */
+        public void setMissTraceSampling(final int sampling) {
+                if (sampling < 0) {
+                        throw new IllegalArgumentException("Invalid sampling: " + sampling);
+                }
+                missTraceSampling = sampling;
+        }
+
+        /**
+         * Record a get.
+         * 
+         * @param key
+         *                the key looked up
+         * @param hit
+         *                whether the value was found
+         * @param nanos
+         *                the time spent in nanoseconds
+         */
+        public void recordGet(final String key, final boolean hit, final long nanos) {
+                Counters counters = countersFor(key);
+                if (hit) {
+                        counters.hits.incrementAndGet();
+                } else {
+                        counters.misses.incrementAndGet();
+                        traceMiss(key);
+                }
+                counters.record(nanos);
+        }
+
+        /**
+         * Record a value looked up by a bulk get, whose time is recorded once
+         * by recordBulk().
+         * 
+         * @param key
+         *                the key looked up
+         * @param hit
+         *                whether the value was found
+         */
+        public void recordLookup(final String key, final boolean hit) {
+                Counters counters = countersFor(key);
+                if (hit) {
+                        counters.hits.incrementAndGet();
+                } else {
+                        counters.misses.incrementAndGet();
+                        traceMiss(key);
+                }
+        }
+
+        /**
+         * Record a set or a delete.
+         * 
+         * @param key
+         *                the key written
+         * @param nanos
+         *                the time spent in nanoseconds
+         */
+        public void recordSet(final String key, final long nanos) {
+                Counters counters = countersFor(key);
+                counters.sets.incrementAndGet();
+                counters.record(nanos);
+        }
+
+        /**
+         * Record the time of a bulk operation under the prefix of its first
+         * key.
+         * 
+         * @param key
+         *                the first key, null when there were none
+         * @param nanos
+         *                the time spent in nanoseconds
+         */
+        public void recordBulk(final String key, final long nanos) {
+                if (key != null) {
+                        countersFor(key).record(nanos);
+                }
+        }
+
+        /**
+         * Return the counters of each prefix, sorted by prefix. The values
+         * don't change when the cache is used afterwards.
+         * 
+         * @return snapshots by prefix
+         */
+        public Map<String, Snapshot> snapshot() {
+                Map<String, Snapshot> result = new TreeMap<String, Snapshot>();
+                for (Map.Entry<String, Counters> entry : byPrefix.entrySet()) {
+                        result.put(entry.getKey(), entry.getValue().snapshot());
+                }
+                return Collections.unmodifiableMap(result);
+        }
+
+        /**
+         * Return the counters of all the prefixes added together.
+         * 
+         * @return a snapshot of the whole cache
+         */
+        public Snapshot total() {
+                Counters total = new Counters();
+                for (Counters counters : byPrefix.values()) {
+                        total.hits.addAndGet(counters.hits.get());
+                        total.misses.addAndGet(counters.misses.get());
+                        total.sets.addAndGet(counters.sets.get());
+                        total.totalNanos.addAndGet(counters.totalNanos.get());
+                        for (int i = 0; i < total.histogram.length(); i++) {
+                                total.histogram.addAndGet(i, counters.histogram.get(i));
+                        }
+                }
+                return total.snapshot();
+        }
+
+        /**
+         * Forget all the counters.
+         */
+        public void reset() {
+                byPrefix.clear();
+        }
+
+        /**
+         * Return the upper bounds of the latency histogram buckets, in
+         * microseconds. Bucket i counts operations shorter than bound i (and
+         * not shorter than bound i-1), the last bucket counts all longer ones.
+         * 
+         * @return a copy of the bucket bounds
+         */
+        public static long[] getLatencyBucketBounds() {
+                return LATENCY_BUCKET_BOUNDS.clone();
+        }
+
+        @Override
+        public String toString() {
+                StringBuilder sb = new StringBuilder();
+                for (Map.Entry<String, Snapshot> entry : snapshot().entrySet()) {
+                        if (sb.length() > 0) {
+                                sb.append('\n');
+                        }
+                        sb.append(entry.getKey().length() == 0 ? "(none)" : entry.getKey());
+                        sb.append(' ').append(entry.getValue());
+                }
+                return sb.toString();
+        }
+
+        /**
+         * Find the prefix of a key.
+         * 
+         * @param key
+         *                the key
+         * @return its start up to the first ':' included, "" if there is
+         *         none
+         */
+        static String prefixOf(final String key) {
+                if (key == null) {
+                        return "";
+                }
+                int end = key.indexOf(PREFIX_SEPARATOR);
+                return end < 0 ? "" : key.substring(0, end + 1);
+        }
+
+        /**
+         * Find the counters of the prefix of a key, creating them the first
+         * time. Past MAX_PREFIXES, the new prefixes share OTHER_PREFIX.
+         * 
+         * @param key
+         *                the key
+         * @return the counters
+         */
+        private Counters countersFor(final String key) {
+                String prefix = prefixOf(key);
+                Counters counters = byPrefix.get(prefix);
+                if (counters == null) {
+                        if (byPrefix.size() >= MAX_PREFIXES) {
+                                prefix = OTHER_PREFIX;
+                        }
+                        Counters created = new Counters();
+                        counters = byPrefix.putIfAbsent(prefix, created);
+                        if (counters == null) {
+                                counters = created;
+                        }
+                }
+                return counters;
+        }
+
+        /**
+         * Log a miss, if it's the one sampled.
+         * 
+         * @param key
+         *                the key not found
+         */
+        private void traceMiss(final String key) {
+                int sampling = missTraceSampling;
+                if (sampling > 0 && missesSeen.incrementAndGet() % sampling == 0 && LOG.isDebugEnabled()) {
+                        LOG.debug("Cache miss (1 every " + sampling + "): " + key);
+                }
+        }
+
+        /**
+         * The counters of a prefix.
+         */
+        private static final class Counters {
+
+                /** Values found, not found, and sets or deletes. */
+                private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+                                sets = new AtomicLong();
+
+                /** Total time spent, in nanoseconds. */
+                private final AtomicLong totalNanos = new AtomicLong();
+
+                /** Latency histogram, one slot more than the bounds. */
+                private final AtomicLongArray histogram = new AtomicLongArray(
+                                LATENCY_BUCKET_BOUNDS.length + 1);
+
+                /**
+                 * Record the time of an operation.
+                 * 
+                 * @param nanos
+                 *                the time spent in nanoseconds
+                 */
+                private void record(final long nanos) {
+                        totalNanos.addAndGet(nanos);
+                        long us = nanos / NANOS_IN_A_US;
+                        int bucket = 0;
+                        while (bucket < LATENCY_BUCKET_BOUNDS.length && us >= LATENCY_BUCKET_BOUNDS[bucket]) {
+                                bucket++;
+                        }
+                        histogram.incrementAndGet(bucket);
+                }
+
+                /**
+                 * @return the current values
+                 */
+                private Snapshot snapshot() {
+                        long[] copy = new long[histogram.length()];
+                        for (int i = 0; i < copy.length; i++) {
+                                copy[i] = histogram.get(i);
+                        }
+                        return new Snapshot(hits.get(), misses.get(), sets.get(), totalNanos.get(), copy);
+                }
+
+        }
+
+        /**
+         * The counters of a prefix at a point in time.
+         */
+        public static final class Snapshot {
+
+                /** Values found. */
+                private final long hits;
+
+                /** Values not found. */
+                private final long misses;
+
+                /** Sets and deletes. */
+                private final long sets;
+
+                /** Total time spent, in nanoseconds. */
+                private final long totalNanos;
+
+                /** Latency histogram. */
+                private final long[] histogram;
+
+                /**
+                 * Create a snapshot.
+                 * 
+                 * @param hitsIn
+                 *                values found
+                 * @param missesIn
+                 *                values not found
+                 * @param setsIn
+                 *                sets and deletes
+                 * @param totalNanosIn
+                 *                total time spent in nanoseconds
+                 * @param histogramIn
+                 *                latency histogram
+                 */
+                private Snapshot(final long hitsIn, final long missesIn, final long setsIn,
+                                final long totalNanosIn, final long[] histogramIn) {
+                        hits = hitsIn;
+                        misses = missesIn;
+                        sets = setsIn;
+                        totalNanos = totalNanosIn;
+                        histogram = histogramIn;
+                }
+
+                /**
+                 * @return the number of values found
+                 */
+                public long getHits() {
+                        return hits;
+                }
+
+                /**
+                 * @return the number of values not found
+                 */
+                public long getMisses() {
+                        return misses;
+                }
+
+                /**
+                 * @return the number of sets and deletes
+                 */
+                public long getSets() {
+                        return sets;
+                }
+
+                /**
+                 * Return the share of the values found.
+                 * 
+                 * @return hits / (hits + misses), 0 when nothing was read
+                 */
+                public double getHitRatio() {
+                        long reads = hits + misses;
+                        return reads == 0 ? 0 : (double) hits / reads;
+                }
+
+                /**
+                 * @return the total time spent, in microseconds
+                 */
+                public long getTotalMicros() {
+                        return totalNanos / NANOS_IN_A_US;
+                }
+
+                /**
+                 * Return the latency histogram, with one element more than
+                 * getLatencyBucketBounds().
+                 * 
+                 * @return operations per bucket
+                 */
+                public long[] getLatencyHistogram() {
+                        return histogram.clone();
+                }
+
+                @Override
+                public String toString() {
+                        StringBuilder sb = new StringBuilder();
+                        sb.append("hits=").append(hits);
+                        sb.append(" misses=").append(misses);
+                        sb.append(" sets=").append(sets);
+                        sb.append(" latency=");
+                        for (int i = 0; i < histogram.length; i++) {
+                                if (i > 0) {
+                                        sb.append(',');
+                                }
+                                if (i < LATENCY_BUCKET_BOUNDS.length) {
+                                        sb.append("<").append(LATENCY_BUCKET_BOUNDS[i]).append("us:");
+                                } else {
+                                        sb.append(">=").append(LATENCY_BUCKET_BOUNDS[i - 1]).append("us:");
+                                }
+                                sb.append(histogram[i]);
+                        }
+                        return sb.toString();
+                }
+
+        }
+
+}
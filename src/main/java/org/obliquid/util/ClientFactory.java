@@ -42,12 +42,16 @@ public final class ClientFactory {
         }
 
         /**
-         * Create an AmazonSimpleDB client properly configured.
+         * Create an AmazonSimpleDB client properly configured. The client
+         * doesn't retry failed calls: SdbScheduler retries them, so that it
+         * sees every throttling.
          * 
          * @return an AmazonSimpleDB client
          */
         public static AmazonSimpleDB createSimpleDbClient() {
-                return new AmazonSimpleDBClient(createAwsCredentials(), createClientConfiguration());
+                ClientConfiguration clientConf = createClientConfiguration();
+                clientConf.setMaxErrorRetry(0);
+                return new AmazonSimpleDBClient(createAwsCredentials(), clientConf);
         }
 
         /**
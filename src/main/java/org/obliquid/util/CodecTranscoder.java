@@ -0,0 +1,83 @@
+package org.obliquid.util;
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+import org.obliquid.util.codec.CacheCodec;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * Stores the values in memcached encoded by a CacheCodec. The values are
+ * marked with their own flags, so the ones written before by the default
+ * spymemcached transcoder are still decoded by it.
+ * 
+ * @author stivlo
+ */
+final class CodecTranscoder implements Transcoder<Object> {
+
+    /** Flags of the values encoded by the codec. */
+    static final int CODEC_FLAGS = 0x4000;
+
+    /** A logger instance. */
+    private static final Logger LOG = Logger.getLogger(CodecTranscoder.class);
+
+    /** The codec. */
+    private final CacheCodec codec;
+
+    /** Decodes the values written by the default transcoder. */
+    private final SerializingTranscoder fallback = new SerializingTranscoder();
+
+    /**
+     * Create a transcoder.
+     * 
+     * @param codecIn
+     *            the codec encoding the values
+     */
+    CodecTranscoder(final CacheCodec codecIn) {
+        codec = codecIn;
+    }
+
+    @Override
+    public boolean asyncDecode(final CachedData data) {
+        return false;
+    }
+
+    @Override
+    public CachedData encode(final Object value) {
+        try {
+            return new CachedData(CODEC_FLAGS, codec.encode(value), getMaxSize());
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Can't encode a " + value.getClass().getName(), ex);
+        }
+    }
+
+    /**
+     * Decode a value. A value that can't be decoded, for instance because its
+     * class changed, is logged and treated as missing.
+     * 
+     * @param data
+     *            the data read from memcached
+     * @return the value, null if it can't be decoded
+     */
+    @Override
+    public Object decode(final CachedData data) {
+        if (data.getFlags() != CODEC_FLAGS) {
+            return fallback.decode(data);
+        }
+        try {
+            return codec.decode(data.getData());
+        } catch (IOException ex) {
+            LOG.warn("Can't decode a cached value with " + codec.getName() + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public int getMaxSize() {
+        return CachedData.MAX_SIZE;
+    }
+
+}
@@ -0,0 +1,61 @@
+package org.obliquid.util;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A synchronous Future, for the in-memory caches that compute the result
+ * before returning it, so fast that creating a thread would be an unnecessary
+ * overhead.
+ * 
+ * @param <T>
+ *                the type of the result
+ * @author stivlo
+ * 
+ */
+public class FakeFuture<T> implements Future<T> {
+
+        /**
+         * Result of the computation that is known at instantiation time.
+         */
+        private final T computationResult;
+
+        /**
+         * Build a new immutable FakeFuture with the result already known.
+         * 
+         * @param result
+         *                the result already known
+         */
+        public FakeFuture(final T result) {
+                this.computationResult = result;
+        }
+
+        @Override
+        public final boolean cancel(final boolean mayInterruptIfRunning) {
+                return false; // task can't be cancelled: already completed
+        }
+
+        @Override
+        public final T get() throws InterruptedException, ExecutionException {
+                return computationResult;
+        }
+
+        @Override
+        public final T get(final long timeout, final TimeUnit unit) throws InterruptedException,
+                        ExecutionException, TimeoutException {
+                return computationResult;
+        }
+
+        @Override
+        public final boolean isCancelled() {
+                return false; // not cancelled, in fact it can't be cancelled
+        }
+
+        @Override
+        public final boolean isDone() {
+                return true; // always already done after construction
+        }
+
+}
@@ -0,0 +1,134 @@
+package org.obliquid.util;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Counts the use of any OCache implementation in a CacheMetrics: hits,
+ * misses and latency by key prefix, and a sample of the keys missed.
+ * 
+ * <pre>
+ * InstrumentedCache cache = new InstrumentedCache(memCache);
+ * ...
+ * LOG.info(cache.getMetrics());
+ * </pre>
+ * 
+ * The time of getAll() and setAll() is recorded once under the prefix of
+ * their first key, their hits and misses key by key. getAsync() doesn't wait
+ * for the value, so it's counted neither as a hit nor as a miss.
+ * 
+ * @author stivlo
+ */
+public final class InstrumentedCache implements OCache {
+
+        /** The cache measured. */
+        private final OCache cache;
+
+        /** The counters. */
+        private final CacheMetrics metrics;
+
+        /**
+         * Measure a cache with new counters.
+         * 
+         * @param cacheIn
+         *                the cache measured
+         */
+        public InstrumentedCache(final OCache cacheIn) {
+                this(cacheIn, new CacheMetrics());
+        }
+
+        /**
+         * Measure a cache with the given counters, possibly shared with other
+         * caches.
+         * 
+         * @param cacheIn
+         *                the cache measured
+         * @param metricsIn
+         *                the counters
+         */
+        public InstrumentedCache(final OCache cacheIn, final CacheMetrics metricsIn) {
+                cache = cacheIn;
+                metrics = metricsIn;
+        }
+
+        @Override
+        public Future<Boolean> set(final String key, final Object o) {
+                long start = System.nanoTime();
+                Future<Boolean> result = cache.set(key, o);
+                metrics.recordSet(key, System.nanoTime() - start);
+                return result;
+        }
+
+        @Override
+        public Object get(final String key) {
+                long start = System.nanoTime();
+                Object value = cache.get(key);
+                metrics.recordGet(key, value != null, System.nanoTime() - start);
+                return value;
+        }
+
+        @Override
+        public Future<Boolean> delete(final String key) {
+                long start = System.nanoTime();
+                Future<Boolean> result = cache.delete(key);
+                metrics.recordSet(key, System.nanoTime() - start);
+                return result;
+        }
+
+        @Override
+        public Map<String, Object> getAll(final Collection<String> keys) {
+                long start = System.nanoTime();
+                Map<String, Object> found = cache.getAll(keys);
+                metrics.recordBulk(first(keys), System.nanoTime() - start);
+                for (String key : keys) {
+                        metrics.recordLookup(key, found.get(key) != null);
+                }
+                return found;
+        }
+
+        @Override
+        public Future<Boolean> setAll(final Map<String, ?> values) {
+                long start = System.nanoTime();
+                Future<Boolean> result = cache.setAll(values);
+                metrics.recordBulk(first(values.keySet()), System.nanoTime() - start);
+                return result;
+        }
+
+        @Override
+        public Future<Object> getAsync(final String key) {
+                return cache.getAsync(key);
+        }
+
+        /**
+         * Return the counters.
+         * 
+         * @return the metrics of this cache
+         */
+        public CacheMetrics getMetrics() {
+                return metrics;
+        }
+
+        /**
+         * Return the cache measured.
+         * 
+         * @return the wrapped cache
+         */
+        public OCache getCache() {
+                return cache;
+        }
+
+        /**
+         * Return the first key of a collection.
+         * 
+         * @param keys
+         *                the keys
+         * @return the first key, null if empty
+         */
+        private static String first(final Collection<String> keys) {
+                Iterator<String> it = keys.iterator();
+                return it.hasNext() ? it.next() : null;
+        }
+
+}
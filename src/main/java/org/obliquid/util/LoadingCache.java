@@ -0,0 +1,421 @@
+package org.obliquid.util;
+
+import java.io.Serializable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Get-or-compute on top of an OCache, instead of the "get, on null compute,
+ * then set" done by each caller. When many threads miss the same key at the
+ * same time, only one runs the loader and the others wait for its value.
+ * Values are stored with their own expiry time, so that:
+ * <ul>
+ * <li>a value read when close to its expiry (refresh-ahead, by default in the
+ * last 20% of its time to live) is returned at once and reloaded in the
+ * background;</li>
+ * <li>a value read after its expiry but within the stale time is returned
+ * at once too, while it's reloaded in the background.</li>
+ * </ul>
+ * Only one load of a key runs at a time on this server. A failed background
+ * reload is logged and the old value kept until it's too stale. Thread safe.
+ * 
+ * <pre>
+ * LoadingCache cache = new LoadingCache(memCache);
+ * Page page = cache.getOrLoad(&quot;page:&quot; + id, new Callable&lt;Page&gt;() {
+ *         public Page call() throws SQLException {
+ *                 return loadPage(id);
+ *         }
+ * }, 300);
+ * </pre>
+ * 
+ * @author stivlo
+ */
+public class LoadingCache {
+
+        /** Default share of the time to live after which a value is reloaded in the background. */
+        public static final int DEFAULT_REFRESH_AHEAD_PERCENT = 80;
+
+        /** Default number of threads reloading values in the background. */
+        public static final int DEFAULT_REFRESH_THREADS = 2;
+
+        /** Maximum number of background reloads waiting. */
+        private static final int REFRESH_QUEUE_SIZE = 1000;
+
+        /** How many milliseconds in a second (1000). */
+        private static final int MS_IN_A_SEC = 1000;
+
+        /** A logger instance. */
+        private static final Logger LOG = Logger.getLogger(LoadingCache.class);
+
+        /** Stores the values. */
+        private final OCache cache;
+
+        /** Runs the background reloads. */
+        private final Executor refresher;
+
+        /** Loads being run on this server, by key. */
+        private final ConcurrentHashMap<String, FutureTask<Object>> loading =
+                        new ConcurrentHashMap<String, FutureTask<Object>>();
+
+        /** Share of the time to live after which a value is reloaded in the background. */
+        private volatile int refreshAheadPercent = DEFAULT_REFRESH_AHEAD_PERCENT;
+
+        /** Milliseconds an expired value is still returned while it's reloaded. */
+        private volatile long staleMillis = 0;
+
+        /** Statistics. */
+        private final AtomicLong hits = new AtomicLong(), loads = new AtomicLong(),
+                        coalesced = new AtomicLong(), refreshes = new AtomicLong(),
+                        staleHits = new AtomicLong(), failures = new AtomicLong();
+
+        /**
+         * Load values into a cache, reloading them in the background with
+         * DEFAULT_REFRESH_THREADS daemon threads.
+         * 
+         * @param cacheIn
+         *                stores the values
+         */
+        public LoadingCache(final OCache cacheIn) {
+                this(cacheIn, createRefresher(DEFAULT_REFRESH_THREADS));
+        }
+
+        /**
+         * Load values into a cache, reloading them in the background with an
+         * executor.
+         * 
+         * @param cacheIn
+         *                stores the values
+         * @param refresherIn
+         *                runs the background reloads
+         */
+        public LoadingCache(final OCache cacheIn, final Executor refresherIn) {
+                cache = cacheIn;
+                refresher = refresherIn;
+        }
+
+        /**
+         * Set when a value is reloaded in the background before it expires.
+         * 
+         * @param percent
+         *                share of the time to live after which a value read is
+         *                reloaded, 100 to reload only expired values
+         */
+        public final void setRefreshAheadPercent(final int percent) {
+                if (percent < 1 || percent > 100) {
+                        throw new IllegalArgumentException("Invalid refresh-ahead percent: " + percent);
+                }
+                refreshAheadPercent = percent;
+        }
+
+        /**
+         * Set for how long an expired value is still returned while it's
+         * reloaded in the background.
+         * 
+         * @param staleSeconds
+         *                seconds after the expiry, 0 to always wait for the
+         *                reload of an expired value
+         */
+        public final void setStaleSeconds(final int staleSeconds) {
+                if (staleSeconds < 0) {
+                        throw new IllegalArgumentException("Invalid stale seconds: " + staleSeconds);
+                }
+                staleMillis = (long) staleSeconds * MS_IN_A_SEC;
+        }
+
+        /**
+         * Return the value of a key, loading it when it's missing or expired.
+         * A null value returned by the loader is cached too.
+         * 
+         * @param <T>
+         *                the type of the value
+         * @param key
+         *                the key
+         * @param loader
+         *                computes the value
+         * @param ttlSeconds
+         *                seconds the value is used after being loaded
+         * @return the value
+         * @throws ExecutionException
+         *                 wrapping the checked exception thrown by the loader
+         */
+        @SuppressWarnings("unchecked")
+        public final <T> T getOrLoad(final String key, final Callable<T> loader, final int ttlSeconds)
+                        throws ExecutionException {
+                long now = now();
+                Object cached = cache.get(key);
+                if (cached instanceof Entry) {
+                        Entry entry = (Entry) cached;
+                        if (now < entry.refreshAt) {
+                                hits.incrementAndGet();
+                                return (T) entry.value;
+                        }
+                        if (now < entry.expires) {
+                                hits.incrementAndGet();
+                                refresh(key, loader, ttlSeconds);
+                                return (T) entry.value;
+                        }
+                        if (now < entry.expires + staleMillis) {
+                                staleHits.incrementAndGet();
+                                refresh(key, loader, ttlSeconds);
+                                return (T) entry.value;
+                        }
+                }
+                FutureTask<Object> task = newLoad(key, loader, ttlSeconds);
+                FutureTask<Object> running = loading.putIfAbsent(key, task);
+                if (running == null) {
+                        loads.incrementAndGet();
+                        try {
+                                task.run();
+                        } finally {
+                                loading.remove(key, task);
+                        }
+                        running = task;
+                } else {
+                        coalesced.incrementAndGet();
+                }
+                return (T) await(running);
+        }
+
+        /**
+         * Remove the value of a key, so that the next read loads it again.
+         * 
+         * @param key
+         *                the key
+         */
+        public final void invalidate(final String key) {
+                cache.delete(key);
+        }
+
+        /**
+         * Reload a value in the background, unless it's being loaded already.
+         * 
+         * @param key
+         *                the key
+         * @param loader
+         *                computes the value
+         * @param ttlSeconds
+         *                seconds the value is used after being loaded
+         */
+        private void refresh(final String key, final Callable<?> loader, final int ttlSeconds) {
+                final FutureTask<Object> task = newLoad(key, loader, ttlSeconds);
+                if (loading.putIfAbsent(key, task) != null) {
+                        return;
+                }
+                refreshes.incrementAndGet();
+                try {
+                        refresher.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                        try {
+                                                task.run();
+                                                task.get();
+                                        } catch (InterruptedException ex) {
+                                                Thread.currentThread().interrupt();
+                                        } catch (ExecutionException ex) {
+                                                LOG.warn("Can't reload " + key + ": " + ex.getCause());
+                                        } finally {
+                                                loading.remove(key, task);
+                                        }
+                                }
+                        });
+                } catch (RejectedExecutionException ex) {
+                        loading.remove(key, task);
+                }
+        }
+
+        /**
+         * Create the load of a key: run the loader and store its value.
+         * 
+         * @param key
+         *                the key
+         * @param loader
+         *                computes the value
+         * @param ttlSeconds
+         *                seconds the value is used after being loaded
+         * @return the load, not started
+         */
+        private FutureTask<Object> newLoad(final String key, final Callable<?> loader, final int ttlSeconds) {
+                return new FutureTask<Object>(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                                Object value;
+                                try {
+                                        value = loader.call();
+                                } catch (Exception ex) {
+                                        failures.incrementAndGet();
+                                        throw ex;
+                                }
+                                long loaded = now();
+                                long ttl = (long) ttlSeconds * MS_IN_A_SEC;
+                                cache.set(key, new Entry(value, loaded + ttl * refreshAheadPercent / 100,
+                                                loaded + ttl));
+                                return value;
+                        }
+                });
+        }
+
+        /**
+         * Wait for a load run by this or another thread.
+         * 
+         * @param task
+         *                the load
+         * @return its value
+         * @throws ExecutionException
+         *                 wrapping the checked exception thrown by the loader
+         */
+        private static Object await(final FutureTask<Object> task) throws ExecutionException {
+                try {
+                        return task.get();
+                } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new ExecutionException("Interrupted while waiting for a load", ex);
+                } catch (ExecutionException ex) {
+                        if (ex.getCause() instanceof RuntimeException) {
+                                throw (RuntimeException) ex.getCause();
+                        }
+                        if (ex.getCause() instanceof Error) {
+                                throw (Error) ex.getCause();
+                        }
+                        throw ex;
+                }
+        }
+
+        /**
+         * Create the default executor of the background reloads. When its
+         * queue is full, the reload is skipped and tried again by a later
+         * read.
+         * 
+         * @param threads
+         *                number of threads
+         * @return a bounded executor
+         */
+        private static Executor createRefresher(final int threads) {
+                final AtomicInteger count = new AtomicInteger();
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                new ArrayBlockingQueue<Runnable>(REFRESH_QUEUE_SIZE), new ThreadFactory() {
+                                        @Override
+                                        public Thread newThread(final Runnable runnable) {
+                                                Thread thread = new Thread(runnable, "LoadingCache-"
+                                                                + count.incrementAndGet());
+                                                thread.setDaemon(true);
+                                                return thread;
+                                        }
+                                }, new ThreadPoolExecutor.AbortPolicy());
+                pool.allowCoreThreadTimeOut(true);
+                return pool;
+        }
+
+        /**
+         * Return the number of values found fresh, including the ones also
+         * reloaded ahead.
+         * 
+         * @return hits
+         */
+        public final long getHits() {
+                return hits.get();
+        }
+
+        /**
+         * Return the number of values returned after their expiry while being
+         * reloaded.
+         * 
+         * @return stale hits
+         */
+        public final long getStaleHits() {
+                return staleHits.get();
+        }
+
+        /**
+         * Return the number of loads the readers waited for.
+         * 
+         * @return loads
+         */
+        public final long getLoads() {
+                return loads.get();
+        }
+
+        /**
+         * Return the number of misses that waited for the same load run by
+         * another thread instead of running it again.
+         * 
+         * @return coalesced misses
+         */
+        public final long getCoalescedMisses() {
+                return coalesced.get();
+        }
+
+        /**
+         * Return the number of background reloads started.
+         * 
+         * @return refreshes
+         */
+        public final long getRefreshes() {
+                return refreshes.get();
+        }
+
+        /**
+         * Return the number of loads failed, in the foreground or background.
+         * 
+         * @return failures
+         */
+        public final long getFailures() {
+                return failures.get();
+        }
+
+        /**
+         * Return the current time, overridden by tests.
+         * 
+         * @return the time in milliseconds
+         */
+        protected long now() {
+                return System.currentTimeMillis();
+        }
+
+        /**
+         * A value with the times it must be reloaded.
+         */
+        private static final class Entry implements Serializable {
+
+                /** Serial version. */
+                private static final long serialVersionUID = 1L;
+
+                /** The value. */
+                private final Object value;
+
+                /** When the value is reloaded in the background on read. */
+                private final long refreshAt;
+
+                /** When the value expires. */
+                private final long expires;
+
+                /**
+                 * Create an entry.
+                 * 
+                 * @param valueIn
+                 *                the value
+                 * @param refreshAtIn
+                 *                when to reload it in the background
+                 * @param expiresIn
+                 *                when it expires
+                 */
+                private Entry(final Object valueIn, final long refreshAtIn, final long expiresIn) {
+                        value = valueIn;
+                        refreshAt = refreshAtIn;
+                        expires = expiresIn;
+                }
+
+        }
+
+}
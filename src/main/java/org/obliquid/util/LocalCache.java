@@ -0,0 +1,473 @@
+package org.obliquid.util;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In process implementation of the OCache interface, safe to share between
+ * threads. Keys are spread over segments, each one with its own lock, so
+ * threads using different segments don't wait for each other. The number of
+ * entries is bounded: each segment evicts with segmented LRU, where new
+ * entries wait in a probation area and are promoted to the protected area
+ * when they're read again, so a scan of keys read only once doesn't push out
+ * the keys in frequent use. Entries can also expire a fixed time after they
+ * were set (TTL) or after they were last read (idle). Expired entries are
+ * removed when found, or by cleanUp().
+ * 
+ * @author stivlo
+ */
+public class LocalCache implements OCache {
+
+        /** Default maximum number of entries. */
+        public static final int DEFAULT_MAX_SIZE = 10000;
+
+        /** Default number of segments. */
+        public static final int DEFAULT_CONCURRENCY = 16;
+
+        /** Share of a segment reserved to the entries read more than once. */
+        private static final int PROTECTED_PERCENT = 80;
+
+        /** Minimum number of entries per segment, when there are few entries. */
+        private static final int MIN_SEGMENT_SIZE = 8;
+
+        /** How many milliseconds in a second (1000). */
+        private static final int MS_IN_A_SEC = 1000;
+
+        /** The segments, a power of two. */
+        private final Segment[] segments;
+
+        /** Time to live and maximum idle time in milliseconds, 0 for none. */
+        private final long ttl, idle;
+
+        /** Statistics. */
+        private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+                        evictions = new AtomicLong(), expirations = new AtomicLong();
+
+        /**
+         * Create a cache holding up to DEFAULT_MAX_SIZE entries, with no
+         * expiry.
+         */
+        public LocalCache() {
+                this(DEFAULT_MAX_SIZE, 0, 0);
+        }
+
+        /**
+         * Create a cache.
+         * 
+         * @param maxSize
+         *                maximum number of entries, divided between the
+         *                segments
+         * @param ttlSeconds
+         *                seconds an entry is kept after being set, 0 for no
+         *                limit
+         * @param idleSeconds
+         *                seconds an entry is kept after being last read, 0 for
+         *                no limit
+         */
+        public LocalCache(final int maxSize, final int ttlSeconds, final int idleSeconds) {
+                this(maxSize, ttlSeconds, idleSeconds, DEFAULT_CONCURRENCY);
+        }
+
+        /**
+         * Create a cache.
+         * 
+         * @param maxSize
+         *                maximum number of entries, divided between the
+         *                segments
+         * @param ttlSeconds
+         *                seconds an entry is kept after being set, 0 for no
+         *                limit
+         * @param idleSeconds
+         *                seconds an entry is kept after being last read, 0 for
+         *                no limit
+         * @param concurrency
+         *                expected number of threads using the cache at once,
+         *                the number of segments
+         */
+        public LocalCache(final int maxSize, final int ttlSeconds, final int idleSeconds,
+                        final int concurrency) {
+                if (maxSize < 1 || ttlSeconds < 0 || idleSeconds < 0 || concurrency < 1) {
+                        throw new IllegalArgumentException("Invalid cache size, expiry or concurrency");
+                }
+                int count = Integer.highestOneBit(Math.min(concurrency,
+                                Math.max(1, maxSize / MIN_SEGMENT_SIZE)));
+                segments = new Segment[count];
+                for (int i = 0; i < count; i++) {
+                        segments[i] = new Segment(maxSize / count + (i < maxSize % count ? 1 : 0));
+                }
+                ttl = (long) ttlSeconds * MS_IN_A_SEC;
+                idle = (long) idleSeconds * MS_IN_A_SEC;
+        }
+
+        @Override
+        public final Future<Boolean> set(final String key, final Object object) {
+                if (key == null) {
+                        return new FakeFutureBoolean(false);
+                }
+                if (object == null) {
+                        segmentFor(key).remove(key);
+                } else {
+                        segmentFor(key).put(key, new Entry(object, now()));
+                }
+                return new FakeFutureBoolean(true);
+        }
+
+        @Override
+        public final Object get(final String key) {
+                Object value = null;
+                if (key != null) {
+                        value = segmentFor(key).get(key, now());
+                }
+                if (value == null) {
+                        misses.incrementAndGet();
+                } else {
+                        hits.incrementAndGet();
+                }
+                return value;
+        }
+
+        @Override
+        public final Future<Boolean> delete(final String key) {
+                boolean removed = key != null && segmentFor(key).remove(key);
+                return new FakeFutureBoolean(removed);
+        }
+
+        @Override
+        public final Map<String, Object> getAll(final Collection<String> keys) {
+                Map<String, Object> found = new LinkedHashMap<String, Object>();
+                for (String key : keys) {
+                        Object value = get(key);
+                        if (value != null) {
+                                found.put(key, value);
+                        }
+                }
+                return found;
+        }
+
+        @Override
+        public final Future<Boolean> setAll(final Map<String, ?> values) {
+                boolean result = true;
+                for (Map.Entry<String, ?> entry : values.entrySet()) {
+                        result &= entry.getKey() != null;
+                        set(entry.getKey(), entry.getValue());
+                }
+                return new FakeFutureBoolean(result);
+        }
+
+        @Override
+        public final Future<Object> getAsync(final String key) {
+                return new FakeFuture<Object>(get(key));
+        }
+
+        /**
+         * Remove all the entries.
+         */
+        public final void clear() {
+                for (Segment segment : segments) {
+                        segment.clear();
+                }
+        }
+
+        /**
+         * Remove the expired entries now, instead of when they're found.
+         */
+        public final void cleanUp() {
+                long now = now();
+                for (Segment segment : segments) {
+                        segment.cleanUp(now);
+                }
+        }
+
+        /**
+         * Return the number of entries, including the expired ones not
+         * removed yet.
+         * 
+         * @return the number of entries
+         */
+        public final int size() {
+                int size = 0;
+                for (Segment segment : segments) {
+                        size += segment.size();
+                }
+                return size;
+        }
+
+        /**
+         * Return the number of values found.
+         * 
+         * @return cache hits
+         */
+        public final long getHits() {
+                return hits.get();
+        }
+
+        /**
+         * Return the number of values not found, or found expired.
+         * 
+         * @return cache misses
+         */
+        public final long getMisses() {
+                return misses.get();
+        }
+
+        /**
+         * Return the number of entries removed to keep the cache within its
+         * maximum size.
+         * 
+         * @return evictions
+         */
+        public final long getEvictions() {
+                return evictions.get();
+        }
+
+        /**
+         * Return the number of entries removed because expired.
+         * 
+         * @return expirations
+         */
+        public final long getExpirations() {
+                return expirations.get();
+        }
+
+        /**
+         * Return the current time, overridden by tests.
+         * 
+         * @return the time in milliseconds
+         */
+        protected long now() {
+                return System.currentTimeMillis();
+        }
+
+        /**
+         * Find the segment of a key.
+         * 
+         * @param key
+         *                the key, not null
+         * @return its segment
+         */
+        private Segment segmentFor(final String key) {
+                int hash = key.hashCode();
+                hash ^= hash >>> 16;
+                return segments[hash & (segments.length - 1)];
+        }
+
+        /**
+         * Whether an entry expired.
+         * 
+         * @param entry
+         *                the entry
+         * @param now
+         *                the current time
+         * @return true if it expired
+         */
+        private boolean isExpired(final Entry entry, final long now) {
+                return ttl > 0 && now - entry.written >= ttl || idle > 0 && now - entry.accessed >= idle;
+        }
+
+        /**
+         * A value with the times it was set and last read.
+         */
+        private static final class Entry {
+
+                /** The value. */
+                private final Object value;
+
+                /** When the value was set. */
+                private final long written;
+
+                /** When the value was last read, or set. */
+                private long accessed;
+
+                /**
+                 * Create an entry.
+                 * 
+                 * @param valueIn
+                 *                the value
+                 * @param now
+                 *                the current time
+                 */
+                private Entry(final Object valueIn, final long now) {
+                        value = valueIn;
+                        written = now;
+                        accessed = now;
+                }
+
+        }
+
+        /**
+         * A part of the cache with its own lock and segmented LRU. Both areas
+         * are LinkedHashMaps in access order, the least recently used first.
+         */
+        private final class Segment {
+
+                /** Entries read at most once since they were set. */
+                private final LinkedHashMap<String, Entry> probation =
+                                new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+                /** Entries read more than once. */
+                private final LinkedHashMap<String, Entry> protectedArea =
+                                new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+                /** Maximum number of entries. */
+                private final int capacity;
+
+                /** Maximum number of entries in the protected area. */
+                private final int protectedCapacity;
+
+                /**
+                 * Create an empty segment.
+                 * 
+                 * @param capacityIn
+                 *                maximum number of entries
+                 */
+                private Segment(final int capacityIn) {
+                        capacity = capacityIn;
+                        protectedCapacity = (int) ((long) capacityIn * PROTECTED_PERCENT / 100);
+                }
+
+                /**
+                 * Read a value, promoting it to the protected area.
+                 * 
+                 * @param key
+                 *                the key
+                 * @param now
+                 *                the current time
+                 * @return the value, null if missing or expired
+                 */
+                private synchronized Object get(final String key, final long now) {
+                        Entry entry = protectedArea.get(key);
+                        boolean promote = false;
+                        if (entry == null) {
+                                entry = probation.get(key);
+                                promote = true;
+                        }
+                        if (entry == null) {
+                                return null;
+                        }
+                        if (isExpired(entry, now)) {
+                                remove(key);
+                                expirations.incrementAndGet();
+                                return null;
+                        }
+                        entry.accessed = now;
+                        if (promote) {
+                                probation.remove(key);
+                                protectedArea.put(key, entry);
+                                if (protectedArea.size() > protectedCapacity) {
+                                        Map.Entry<String, Entry> eldest = protectedArea.entrySet().iterator()
+                                                        .next();
+                                        protectedArea.remove(eldest.getKey());
+                                        probation.put(eldest.getKey(), eldest.getValue());
+                                }
+                        }
+                        return entry.value;
+                }
+
+                /**
+                 * Set a value, evicting the least recently used entries when
+                 * full.
+                 * 
+                 * @param key
+                 *                the key
+                 * @param entry
+                 *                the value
+                 */
+                private synchronized void put(final String key, final Entry entry) {
+                        if (protectedArea.containsKey(key)) {
+                                protectedArea.put(key, entry);
+                                return;
+                        }
+                        probation.put(key, entry);
+                        removeEldestIfExpired(probation, entry.written);
+                        removeEldestIfExpired(protectedArea, entry.written);
+                        while (probation.size() + protectedArea.size() > capacity) {
+                                LinkedHashMap<String, Entry> area = probation.isEmpty() ? protectedArea
+                                                : probation;
+                                area.remove(area.keySet().iterator().next());
+                                evictions.incrementAndGet();
+                        }
+                }
+
+                /**
+                 * Remove the least recently used entry of an area when
+                 * expired, so that entries no longer read leave the cache
+                 * before it's full.
+                 * 
+                 * @param area
+                 *                probation or protected
+                 * @param now
+                 *                the current time
+                 */
+                private void removeEldestIfExpired(final LinkedHashMap<String, Entry> area,
+                                final long now) {
+                        if (area.isEmpty()) {
+                                return;
+                        }
+                        Map.Entry<String, Entry> eldest = area.entrySet().iterator().next();
+                        if (isExpired(eldest.getValue(), now)) {
+                                area.remove(eldest.getKey());
+                                expirations.incrementAndGet();
+                        }
+                }
+
+                /**
+                 * Remove a key.
+                 * 
+                 * @param key
+                 *                the key
+                 * @return true if it was found
+                 */
+                private synchronized boolean remove(final String key) {
+                        return probation.remove(key) != null | protectedArea.remove(key) != null;
+                }
+
+                /**
+                 * Remove the expired entries.
+                 * 
+                 * @param now
+                 *                the current time
+                 */
+                private synchronized void cleanUp(final long now) {
+                        cleanUp(probation, now);
+                        cleanUp(protectedArea, now);
+                }
+
+                /**
+                 * Remove the expired entries of an area.
+                 * 
+                 * @param area
+                 *                probation or protected
+                 * @param now
+                 *                the current time
+                 */
+                private void cleanUp(final LinkedHashMap<String, Entry> area, final long now) {
+                        for (Iterator<Entry> it = area.values().iterator(); it.hasNext();) {
+                                if (isExpired(it.next(), now)) {
+                                        it.remove();
+                                        expirations.incrementAndGet();
+                                }
+                        }
+                }
+
+                /**
+                 * Remove all the entries.
+                 */
+                private synchronized void clear() {
+                        probation.clear();
+                        protectedArea.clear();
+                }
+
+                /**
+                 * @return the number of entries
+                 */
+                private synchronized int size() {
+                        return probation.size() + protectedArea.size();
+                }
+
+        }
+
+}
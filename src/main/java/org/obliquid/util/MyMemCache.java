@@ -1,56 +1,166 @@
 package org.obliquid.util;
 
 import java.io.IOException;
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.obliquid.config.AppConfig;
+import org.obliquid.util.codec.CacheCodec;
+import org.obliquid.util.codec.CompactCodec;
+import org.obliquid.util.codec.CompressingCodec;
+import org.obliquid.util.codec.TimedCodec;
 
 import net.spy.memcached.AddrUtil;
-import net.spy.memcached.BinaryConnectionFactory;
+import net.spy.memcached.ConnectionFactory;
+import net.spy.memcached.ConnectionFactoryBuilder;
+import net.spy.memcached.DefaultHashAlgorithm;
+import net.spy.memcached.FailureMode;
 import net.spy.memcached.MemcachedClient;
 
 /**
  * MemCached implementation of OCache interface. spy.memcached is declared as
  * thread safe, so we don't have to worry about multiple threads using the same
- * client at the same time. Requires a running memcached server.
+ * client at the same time; more clients, each with its own connections and I/O
+ * thread, spread the load of many threads. Keys are distributed over the
+ * memcached servers with ketama consistent hashing, so adding or removing a
+ * server moves only a small part of the keys; the keys of a server that is
+ * down go to the next server on the ring until it's back. Values are encoded
+ * by a CacheCodec, by default CompactCodec compressing the large values.
+ * Wrap it in an InstrumentedCache to count hits, misses and latency.
+ * Requires a running memcached server.
  * 
  */
 public final class MyMemCache implements OCache {
 
+    /** How a client is chosen for each operation. */
+    public enum ClientSelection {
+        /** Each thread always uses the same client, with no shared state. */
+        THREAD_AFFINE,
+        /** Each operation uses the next client. */
+        ROUND_ROBIN
+    }
+
+    /** Default number of clients. */
+    public static final int DEFAULT_CLIENTS = 4;
+
     /** A prefix to avoid id clashes from different applications. */
     private final String namespace;
 
     /** An array of MemcachedClient. */
     private MemcachedClient[] m = null;
 
-    /** How many clients to use. */
-    private static final int MAX_CONN = 4;
+    /** How a client is chosen. */
+    private final ClientSelection selection;
+
+    /** The next client for round-robin selection. */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /** Time to live of the values in seconds. */
+    private final int timeToLiveInSeconds;
 
-    /** Generates pseudo-random integers. */
-    private Random random = new Random();
+    /** The codec encoding the values, timed. */
+    private final TimedCodec codec;
 
     /** A logger instance. */
     private static final Logger LOG = Logger.getLogger(MyMemCache.class);
 
     /**
-     * Private constructor creating MAX_CONN clients (each one starts a
-     * thread and opens a connection to memCached server).
+     * Constructor creating DEFAULT_CLIENTS clients (each one starts a thread
+     * and opens a connection to each memCached server), chosen by thread.
      * 
      * @param namespaceIn
      *            namespace prefix to avoid conflicts
      * @param memcachedAddressAndPort
-     *            on localhost normally will be "127.0.0.1:11211"
+     *            on localhost normally will be "127.0.0.1:11211", more
+     *            servers are separated by spaces
      */
     public MyMemCache(final String namespaceIn, final String memcachedAddressAndPort) {
+        this(namespaceIn, memcachedAddressAndPort, DEFAULT_CLIENTS, ClientSelection.THREAD_AFFINE);
+    }
+
+    /**
+     * Constructor creating the given number of clients (each one starts a
+     * thread and opens a connection to each memCached server).
+     * 
+     * @param namespaceIn
+     *            namespace prefix to avoid conflicts
+     * @param memcachedAddressAndPort
+     *            on localhost normally will be "127.0.0.1:11211", more
+     *            servers are separated by spaces
+     * @param clients
+     *            how many clients to create, at least 1
+     * @param selectionIn
+     *            how a client is chosen for each operation
+     */
+    public MyMemCache(final String namespaceIn, final String memcachedAddressAndPort, final int clients,
+            final ClientSelection selectionIn) {
+        this(namespaceIn, memcachedAddressAndPort, clients, selectionIn, new CompressingCodec(
+                new CompactCodec(), CompressingCodec.DEFAULT_THRESHOLD));
+    }
+
+    /**
+     * Constructor creating the given number of clients, encoding the values
+     * with a codec. The time to live of the values is read once from the
+     * memcachedTtl property.
+     * 
+     * @param namespaceIn
+     *            namespace prefix to avoid conflicts
+     * @param memcachedAddressAndPort
+     *            on localhost normally will be "127.0.0.1:11211", more
+     *            servers are separated by spaces
+     * @param clients
+     *            how many clients to create, at least 1
+     * @param selectionIn
+     *            how a client is chosen for each operation
+     * @param codecIn
+     *            the codec encoding the values
+     */
+    public MyMemCache(final String namespaceIn, final String memcachedAddressAndPort, final int clients,
+            final ClientSelection selectionIn, final CacheCodec codecIn) {
+        this(namespaceIn, memcachedAddressAndPort, clients, selectionIn, codecIn, AppConfig.getInstance()
+                .getPropertyAsInt("memcachedTtl"));
+    }
+
+    /**
+     * Constructor creating the given number of clients, encoding the values
+     * with a codec and keeping them for the given time.
+     * 
+     * @param namespaceIn
+     *            namespace prefix to avoid conflicts
+     * @param memcachedAddressAndPort
+     *            on localhost normally will be "127.0.0.1:11211", more
+     *            servers are separated by spaces
+     * @param clients
+     *            how many clients to create, at least 1
+     * @param selectionIn
+     *            how a client is chosen for each operation
+     * @param codecIn
+     *            the codec encoding the values
+     * @param ttlSeconds
+     *            time to live of the values in seconds, 0 for no expiry
+     */
+    public MyMemCache(final String namespaceIn, final String memcachedAddressAndPort, final int clients,
+            final ClientSelection selectionIn, final CacheCodec codecIn, final int ttlSeconds) {
+        if (clients < 1) {
+            throw new IllegalArgumentException("At least one client is needed: " + clients);
+        }
         namespace = namespaceIn;
-        m = new MemcachedClient[MAX_CONN];
-        for (int i = 0; i <= MAX_CONN - 1; i++) {
+        selection = selectionIn;
+        codec = new TimedCodec(codecIn);
+        timeToLiveInSeconds = ttlSeconds;
+        m = new MemcachedClient[clients];
+        for (int i = 0; i < clients; i++) {
             MemcachedClient c;
             try {
-                c = new MemcachedClient(new BinaryConnectionFactory(), AddrUtil.getAddresses(memcachedAddressAndPort));
+                c = new MemcachedClient(createConnectionFactory(codec),
+                        AddrUtil.getAddresses(memcachedAddressAndPort));
             } catch (IOException ex) {
                 throw new RejectedExecutionException(ex);
             }
@@ -58,6 +168,22 @@ public final class MyMemCache implements OCache {
         }
     }
 
+    /**
+     * Create the configuration of a client: binary protocol, ketama consistent
+     * hashing, the keys of a server marked dead redistributed to the others,
+     * and the values encoded by a codec.
+     * 
+     * @param codecIn
+     *            the codec encoding the values
+     * @return a ConnectionFactory
+     */
+    private static ConnectionFactory createConnectionFactory(final CacheCodec codecIn) {
+        return new ConnectionFactoryBuilder().setProtocol(ConnectionFactoryBuilder.Protocol.BINARY)
+                .setLocatorType(ConnectionFactoryBuilder.Locator.CONSISTENT)
+                .setHashAlg(DefaultHashAlgorithm.KETAMA_HASH).setFailureMode(FailureMode.Redistribute)
+                .setTranscoder(new CodecTranscoder(codecIn)).setDaemon(true).build();
+    }
+
     /**
      * Shut down all the memcached clients created. Call it after use, for
      * instance with a destruction callback from the Spring Framework.
@@ -70,7 +196,7 @@ public final class MyMemCache implements OCache {
             return;
         }
         LOG.debug("Shutting down memcached");
-        for (int i = 0; i <= MAX_CONN - 1; i++) {
+        for (int i = 0; i < m.length; i++) {
             if (m[i] != null) {
                 m[i].shutdown();
             }
@@ -79,18 +205,13 @@ public final class MyMemCache implements OCache {
 
     @Override
     public Future<Boolean> set(final String key, final Object o) {
-        int timeToLiveInSeconds = AppConfig.getInstance().getPropertyAsInt("memcachedTtl");
         Future<Boolean> result = getCache().set(namespace + key, timeToLiveInSeconds, o);
         return result;
     }
 
     @Override
     public Object get(final String key) {
-        Object object = getCache().get(namespace + key);
-        if (object == null) {
-            System.out.println("Cache MISS KEY: " + key);
-        }
-        return object;
+        return getCache().get(namespace + key);
     }
 
     @Override
@@ -99,15 +220,82 @@ public final class MyMemCache implements OCache {
     }
 
     /**
-     * Return a random MemcachedClient from the pool.
+     * Get many values with a single multi-get request per server.
+     * 
+     * @param keys
+     *            the keys to look up
+     * @return the values found by key, the keys not found are missing
+     */
+    @Override
+    public Map<String, Object> getAll(final Collection<String> keys) {
+        List<String> namespacedKeys = new ArrayList<String>(keys.size());
+        for (String key : keys) {
+            namespacedKeys.add(namespace + key);
+        }
+        Map<String, Object> found = getCache().getBulk(namespacedKeys);
+        Map<String, Object> result = new HashMap<String, Object>(found.size() * 2);
+        for (Map.Entry<String, Object> entry : found.entrySet()) {
+            result.put(entry.getKey().substring(namespace.length()), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Set many values. The requests are queued on the same client without
+     * waiting for the replies, so they're pipelined on its connection.
+     * 
+     * @param values
+     *            the objects to be set by key
+     * @return a Future Boolean, true if all the values were set
+     */
+    @Override
+    public Future<Boolean> setAll(final Map<String, ?> values) {
+        MemcachedClient client = getCache();
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(values.size());
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            results.add(client.set(namespace + entry.getKey(), timeToLiveInSeconds, entry.getValue()));
+        }
+        return new AllFutureBoolean(results);
+    }
+
+    @Override
+    public Future<Object> getAsync(final String key) {
+        return getCache().asyncGet(namespace + key);
+    }
+
+    /**
+     * Return the number of memcached servers currently reachable.
+     * 
+     * @return the number of available servers
+     */
+    public int getAvailableServerCount() {
+        return m[0].getAvailableServers().size();
+    }
+
+    /**
+     * Return the codec encoding the values, with the time spent and the bytes
+     * written.
+     * 
+     * @return the codec
+     */
+    public TimedCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Return a MemcachedClient from the pool, the one of the current thread or
+     * the next one.
      * 
      * @return a MemcachedClient instance
      */
     private MemcachedClient getCache() {
-        MemcachedClient c = null;
-        int i = random.nextInt(MAX_CONN);
-        c = m[i];
-        return c;
+        int i;
+        if (selection == ClientSelection.THREAD_AFFINE) {
+            i = (int) (Thread.currentThread().getId() % m.length);
+        } else {
+            i = (next.getAndIncrement() & Integer.MAX_VALUE) % m.length;
+        }
+        return m[i];
     }
 
 }
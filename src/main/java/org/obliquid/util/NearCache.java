@@ -0,0 +1,461 @@
+package org.obliquid.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Two level implementation of the OCache interface: a bounded LocalCache in
+ * front of a shared cache, normally MyMemCache, so that the keys read often
+ * on this server don't need a round trip to memcached every time. Sets and
+ * deletes go to both levels. Values are kept locally only for a short time,
+ * because a change made by another server is seen here only when the local
+ * copy expires: choose the local TTL as the staleness you can accept, per key
+ * prefix if needed. A value read from the shared cache is kept locally only
+ * if no write to a key of its stripe started or was still in flight while it
+ * was read, since the sets and deletes of the shared cache may be
+ * asynchronous.
+ * 
+ * <pre>
+ * OCache cache = new NearCache(new MyMemCache(&quot;app:&quot;, &quot;127.0.0.1:11211&quot;), 10000, 5);
+ * </pre>
+ * 
+ * @author stivlo
+ */
+public class NearCache implements OCache {
+
+        /** Number of stripes counting the writes, a power of two. */
+        private static final int STRIPES = 64;
+
+        /** How many milliseconds in a second (1000). */
+        private static final int MS_IN_A_SEC = 1000;
+
+        /** The local level. */
+        private final LocalCache local;
+
+        /** The shared level. */
+        private final OCache remote;
+
+        /** Local time to live in seconds, unless set per prefix. */
+        private final int defaultTtl;
+
+        /** Local time to live by key prefix. */
+        private final Map<String, Integer> ttlByPrefix = new ConcurrentHashMap<String, Integer>();
+
+        /**
+         * Writes by stripe of keys, counted when they start and when they are
+         * seen completed, to detect a write during a remote get.
+         */
+        private final AtomicLongArray writes = new AtomicLongArray(STRIPES);
+
+        /** Writes by stripe of keys not seen completed yet. */
+        private final AtomicIntegerArray inFlight = new AtomicIntegerArray(STRIPES);
+
+        /** The remote writes not seen completed yet, by stripe of keys. */
+        private final List<Queue<Future<Boolean>>> pendingWrites = new ArrayList<Queue<Future<Boolean>>>(
+                        STRIPES);
+
+        /** Statistics. */
+        private final AtomicLong localHits = new AtomicLong(), remoteHits = new AtomicLong(),
+                        misses = new AtomicLong();
+
+        /**
+         * Create a near cache.
+         * 
+         * @param remoteIn
+         *                the shared cache
+         * @param localMaxSize
+         *                maximum number of values kept locally
+         * @param localTtlSeconds
+         *                seconds a value is used locally before reading it
+         *                again from the shared cache, 0 not to keep values
+         *                locally unless set per prefix
+         */
+        public NearCache(final OCache remoteIn, final int localMaxSize, final int localTtlSeconds) {
+                remote = remoteIn;
+                local = new LocalCache(localMaxSize, 0, 0);
+                defaultTtl = localTtlSeconds;
+                for (int i = 0; i < STRIPES; i++) {
+                        pendingWrites.add(new ConcurrentLinkedQueue<Future<Boolean>>());
+                }
+        }
+
+        /**
+         * Set the local time to live of the keys starting with a prefix. When
+         * more prefixes match, the longest one is used.
+         * 
+         * @param prefix
+         *                the start of the keys
+         * @param ttlSeconds
+         *                seconds a value is used locally, 0 not to keep these
+         *                keys locally
+         */
+        public final void setLocalTtl(final String prefix, final int ttlSeconds) {
+                ttlByPrefix.put(prefix, ttlSeconds);
+        }
+
+        @Override
+        public final Future<Boolean> set(final String key, final Object o) {
+                if (key == null) {
+                        return new FakeFutureBoolean(false);
+                }
+                setLocal(key, o);
+                Future<Boolean> written;
+                try {
+                        written = remote.set(key, o);
+                } catch (RuntimeException ex) {
+                        endWrite(stripe(key));
+                        throw ex;
+                }
+                return trackWrite(key, written);
+        }
+
+        @Override
+        public final Object get(final String key) {
+                if (key == null) {
+                        return null;
+                }
+                Object value = getLocal(key);
+                if (value != null) {
+                        return value;
+                }
+                long writesBefore = writes.get(stripe(key));
+                value = remote.get(key);
+                if (value == null) {
+                        misses.incrementAndGet();
+                        return null;
+                }
+                remoteHits.incrementAndGet();
+                keepLocally(key, value, writesBefore);
+                return value;
+        }
+
+        /**
+         * Find a value kept locally and not expired, counting the local hit.
+         * 
+         * @param key
+         *                the key, not null
+         * @return the value, null if not found locally
+         */
+        private Object getLocal(final String key) {
+                Object cached = local.get(key);
+                if (cached instanceof Local) {
+                        Local entry = (Local) cached;
+                        if (now() < entry.expires) {
+                                localHits.incrementAndGet();
+                                return entry.value;
+                        }
+                        local.delete(key);
+                }
+                return null;
+        }
+
+        /**
+         * Set or remove the local value of a key being written, counting the
+         * write as started and in flight until isWriting() sees it completed.
+         * 
+         * @param key
+         *                the key, not null
+         * @param o
+         *                the new value, null when deleted
+         */
+        private void setLocal(final String key, final Object o) {
+                int stripe = stripe(key);
+                inFlight.incrementAndGet(stripe);
+                writes.incrementAndGet(stripe);
+                int ttl = getLocalTtl(key);
+                if (ttl > 0 && o != null) {
+                        local.set(key, new Local(o, now() + (long) ttl * MS_IN_A_SEC));
+                } else {
+                        local.delete(key);
+                }
+        }
+
+        /**
+         * Keep locally a value read from the shared cache, unless a key of its
+         * stripe was written meanwhile or is still being written.
+         * 
+         * @param key
+         *                the key
+         * @param value
+         *                the value read
+         * @param writesBefore
+         *                the write counter of the key before reading
+         */
+        private void keepLocally(final String key, final Object value, final long writesBefore) {
+                int ttl = getLocalTtl(key);
+                int stripe = stripe(key);
+                if (ttl > 0 && !isWriting(stripe) && writes.get(stripe) == writesBefore) {
+                        local.set(key, new Local(value, now() + (long) ttl * MS_IN_A_SEC));
+                }
+        }
+
+        /**
+         * Remember a remote write in flight, to be seen completed later by
+         * isWriting().
+         * 
+         * @param key
+         *                the key written
+         * @param written
+         *                the result of the remote write
+         * @return the result of the remote write
+         */
+        private Future<Boolean> trackWrite(final String key, final Future<Boolean> written) {
+                int stripe = stripe(key);
+                pendingWrites.get(stripe).add(written);
+                isWriting(stripe);
+                return written;
+        }
+
+        /**
+         * Check whether a write to a key of a stripe is in flight, counting
+         * again the writes seen completed, so that a remote get that started
+         * during one of them doesn't keep its value locally.
+         * 
+         * @param stripe
+         *                the stripe
+         * @return true if a write is in flight
+         */
+        private boolean isWriting(final int stripe) {
+                Queue<Future<Boolean>> queue = pendingWrites.get(stripe);
+                for (Future<Boolean> written : queue) {
+                        if (written.isDone() && queue.remove(written)) {
+                                endWrite(stripe);
+                        }
+                }
+                return inFlight.get(stripe) > 0;
+        }
+
+        /**
+         * Count a write of a stripe as completed.
+         * 
+         * @param stripe
+         *                the stripe
+         */
+        private void endWrite(final int stripe) {
+                writes.incrementAndGet(stripe);
+                inFlight.decrementAndGet(stripe);
+        }
+
+        @Override
+        public final Future<Boolean> delete(final String key) {
+                if (key == null) {
+                        return new FakeFutureBoolean(false);
+                }
+                setLocal(key, null);
+                Future<Boolean> written;
+                try {
+                        written = remote.delete(key);
+                } catch (RuntimeException ex) {
+                        endWrite(stripe(key));
+                        throw ex;
+                }
+                return trackWrite(key, written);
+        }
+
+        /**
+         * Get many values, asking the shared cache at once only for the ones
+         * not found locally.
+         * 
+         * @param keys
+         *                the keys to look up
+         * @return the values found by key, the keys not found are missing
+         */
+        @Override
+        public final Map<String, Object> getAll(final Collection<String> keys) {
+                Map<String, Object> found = new LinkedHashMap<String, Object>();
+                List<String> missing = new ArrayList<String>();
+                for (String key : keys) {
+                        Object value = getLocal(key);
+                        if (value == null) {
+                                missing.add(key);
+                        } else {
+                                found.put(key, value);
+                        }
+                }
+                if (missing.isEmpty()) {
+                        return found;
+                }
+                long[] writesBefore = new long[missing.size()];
+                for (int i = 0; i < writesBefore.length; i++) {
+                        writesBefore[i] = writes.get(stripe(missing.get(i)));
+                }
+                Map<String, Object> remoteValues = remote.getAll(missing);
+                for (int i = 0; i < writesBefore.length; i++) {
+                        String key = missing.get(i);
+                        Object value = remoteValues.get(key);
+                        if (value == null) {
+                                misses.incrementAndGet();
+                        } else {
+                                remoteHits.incrementAndGet();
+                                keepLocally(key, value, writesBefore[i]);
+                                found.put(key, value);
+                        }
+                }
+                return found;
+        }
+
+        @Override
+        public final Future<Boolean> setAll(final Map<String, ?> values) {
+                List<String> keys = new ArrayList<String>();
+                for (Map.Entry<String, ?> entry : values.entrySet()) {
+                        if (entry.getKey() != null) {
+                                setLocal(entry.getKey(), entry.getValue());
+                                keys.add(entry.getKey());
+                        }
+                }
+                Future<Boolean> written;
+                try {
+                        written = remote.setAll(values);
+                } catch (RuntimeException ex) {
+                        for (String key : keys) {
+                                endWrite(stripe(key));
+                        }
+                        throw ex;
+                }
+                for (String key : keys) {
+                        trackWrite(key, written);
+                }
+                return written;
+        }
+
+        /**
+         * Get a value without waiting for it. A value found locally is
+         * returned at once; a value read from the shared cache isn't kept
+         * locally.
+         * 
+         * @param key
+         *                the key to look up
+         * @return a Future with the value, null if not found
+         */
+        @Override
+        public final Future<Object> getAsync(final String key) {
+                Object value = key == null ? null : getLocal(key);
+                if (value != null) {
+                        return new FakeFuture<Object>(value);
+                }
+                return remote.getAsync(key);
+        }
+
+        /**
+         * Forget the values kept locally, for instance after a change the
+         * other servers have made is known.
+         */
+        public final void clearLocal() {
+                local.clear();
+        }
+
+        /**
+         * Return the number of values found locally.
+         * 
+         * @return local hits
+         */
+        public final long getLocalHits() {
+                return localHits.get();
+        }
+
+        /**
+         * Return the number of values found in the shared cache.
+         * 
+         * @return remote hits
+         */
+        public final long getRemoteHits() {
+                return remoteHits.get();
+        }
+
+        /**
+         * Return the number of values not found in either level.
+         * 
+         * @return misses
+         */
+        public final long getMisses() {
+                return misses.get();
+        }
+
+        /**
+         * Return the number of values kept locally, including the expired
+         * ones.
+         * 
+         * @return local size
+         */
+        public final int getLocalSize() {
+                return local.size();
+        }
+
+        /**
+         * Return the current time, overridden by tests.
+         * 
+         * @return the time in milliseconds
+         */
+        protected long now() {
+                return System.currentTimeMillis();
+        }
+
+        /**
+         * Find the local time to live of a key.
+         * 
+         * @param key
+         *                the key
+         * @return seconds, 0 not to keep it locally
+         */
+        private int getLocalTtl(final String key) {
+                int ttl = defaultTtl;
+                int longest = -1;
+                for (Map.Entry<String, Integer> entry : ttlByPrefix.entrySet()) {
+                        String prefix = entry.getKey();
+                        if (prefix.length() > longest && key.startsWith(prefix)) {
+                                ttl = entry.getValue();
+                                longest = prefix.length();
+                        }
+                }
+                return ttl;
+        }
+
+        /**
+         * Find the stripe of the write counter of a key.
+         * 
+         * @param key
+         *                the key
+         * @return the stripe
+         */
+        private static int stripe(final String key) {
+                int hash = key.hashCode();
+                return (hash ^ hash >>> 16) & (STRIPES - 1);
+        }
+
+        /**
+         * A value kept locally, with its expiry time.
+         */
+        private static final class Local {
+
+                /** The value. */
+                private final Object value;
+
+                /** When the value must be read again from the shared cache. */
+                private final long expires;
+
+                /**
+                 * Create a local value.
+                 * 
+                 * @param valueIn
+                 *                the value
+                 * @param expiresIn
+                 *                the expiry time in milliseconds
+                 */
+                private Local(final Object valueIn, final long expiresIn) {
+                        value = valueIn;
+                        expires = expiresIn;
+                }
+
+        }
+
+}
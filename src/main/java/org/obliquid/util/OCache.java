@@ -1,5 +1,7 @@
 package org.obliquid.util;
 
+import java.util.Collection;
+import java.util.Map;
 import java.util.concurrent.Future;
 
 /**
@@ -40,4 +42,35 @@ public interface OCache {
          */
         Future<Boolean> delete(String key);
 
+        /**
+         * Get many values at once, with a single round trip when the cache is
+         * remote.
+         * 
+         * @param keys
+         *                the keys to look up
+         * @return the values found by key, the keys not found are missing
+         */
+        Map<String, Object> getAll(Collection<String> keys);
+
+        /**
+         * Set many values at once, sending them together when the cache is
+         * remote.
+         * 
+         * @param values
+         *                the objects to be set by key
+         * @return a Future Boolean, true if all the values were set
+         */
+        Future<Boolean> setAll(Map<String, ?> values);
+
+        /**
+         * Get a value without waiting for it, so that other work can be done
+         * meanwhile.
+         * 
+         * @param key
+         *                the key to look up
+         * @return a Future with the Object retrieved from the cache, null if
+         *         not found
+         */
+        Future<Object> getAsync(String key);
+
 }
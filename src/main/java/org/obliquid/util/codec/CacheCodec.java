@@ -0,0 +1,43 @@
+package org.obliquid.util.codec;
+
+import java.io.IOException;
+
+/**
+ * Turns cached values into bytes and back, for the OCache implementations
+ * storing values out of process, such as MyMemCache. Implementations must be
+ * thread safe.
+ * 
+ * @author stivlo
+ */
+public interface CacheCodec {
+
+        /**
+         * Return a short name, used in statistics and logs.
+         * 
+         * @return the name of the codec
+         */
+        String getName();
+
+        /**
+         * Encode a value.
+         * 
+         * @param value
+         *                the value, can be null
+         * @return the encoded bytes
+         * @throws IOException
+         *                 when the value can't be encoded
+         */
+        byte[] encode(Object value) throws IOException;
+
+        /**
+         * Decode a value encoded by the same codec.
+         * 
+         * @param data
+         *                the encoded bytes
+         * @return the value
+         * @throws IOException
+         *                 when the bytes can't be decoded
+         */
+        Object decode(byte[] data) throws IOException;
+
+}
@@ -0,0 +1,444 @@
+package org.obliquid.util.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.obliquid.datatype.DataType;
+
+/**
+ * A compact binary encoding of the values usually cached: strings, numbers,
+ * dates, byte arrays, lists and maps of them such as the List&lt;List&lt;Object&gt;&gt;
+ * returned by MetaDb.selectAll(), and the DataType implementations. Each value
+ * is a one byte tag followed by its data, integers and lengths written in as
+ * few bytes as possible. Lists are decoded as ArrayList and maps as
+ * LinkedHashMap, so only those (and HashMap, Arrays.asList()) are encoded this
+ * way; any other value is written with Java serialization.
+ * 
+ * @author stivlo
+ */
+public final class CompactCodec implements CacheCodec {
+
+        /** Tags of the encoded types. */
+        private static final int NULL = 0, STRING = 1, INTEGER = 2, LONG = 3, DOUBLE = 4, FLOAT = 5,
+                        SHORT = 6, BYTE = 7, TRUE = 8, FALSE = 9, CHARACTER = 10, BIG_DECIMAL = 11,
+                        BIG_INTEGER = 12, DATE = 13, SQL_DATE = 14, SQL_TIME = 15, TIMESTAMP = 16, BYTES = 17,
+                        LIST = 18, MAP = 19, DATA_TYPE = 20, SERIALIZED = 21;
+
+        /** The class of the lists returned by Arrays.asList(). */
+        private static final Class<?> ARRAYS_LIST = Arrays.asList().getClass();
+
+        /** Whether a DataType class can be rebuilt with its public no-argument constructor. */
+        private static final Map<Class<?>, Boolean> REBUILDABLE = new ConcurrentHashMap<Class<?>, Boolean>();
+
+        /** Encodes the values of other types. */
+        private final JavaSerializationCodec serialization = new JavaSerializationCodec();
+
+        @Override
+        public String getName() {
+                return "compact";
+        }
+
+        @Override
+        public byte[] encode(final Object value) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                write(out, value);
+                out.flush();
+                return bytes.toByteArray();
+        }
+
+        @Override
+        public Object decode(final byte[] data) throws IOException {
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+                Object value = read(in);
+                if (in.read() != -1) {
+                        throw new IOException("Unexpected data after the value");
+                }
+                return value;
+        }
+
+        /**
+         * Write a value with its tag.
+         * 
+         * @param out
+         *                where to write
+         * @param value
+         *                the value
+         * @throws IOException
+         *                 when the value can't be written
+         */
+        private void write(final DataOutputStream out, final Object value) throws IOException {
+                if (value == null) {
+                        out.write(NULL);
+                } else if (value instanceof String) {
+                        out.write(STRING);
+                        writeString(out, (String) value);
+                } else if (value instanceof Integer) {
+                        out.write(INTEGER);
+                        writeVarLong(out, zigZag((Integer) value));
+                } else if (value instanceof Long) {
+                        out.write(LONG);
+                        writeVarLong(out, zigZag((Long) value));
+                } else if (value instanceof Double) {
+                        out.write(DOUBLE);
+                        out.writeDouble((Double) value);
+                } else if (value instanceof Float) {
+                        out.write(FLOAT);
+                        out.writeFloat((Float) value);
+                } else if (value instanceof Short) {
+                        out.write(SHORT);
+                        out.writeShort((Short) value);
+                } else if (value instanceof Byte) {
+                        out.write(BYTE);
+                        out.write((Byte) value);
+                } else if (value instanceof Boolean) {
+                        out.write((Boolean) value ? TRUE : FALSE);
+                } else if (value instanceof Character) {
+                        out.write(CHARACTER);
+                        out.writeChar((Character) value);
+                } else if (value.getClass() == BigDecimal.class) {
+                        BigDecimal decimal = (BigDecimal) value;
+                        out.write(BIG_DECIMAL);
+                        writeVarLong(out, zigZag(decimal.scale()));
+                        writeBytes(out, decimal.unscaledValue().toByteArray());
+                } else if (value.getClass() == BigInteger.class) {
+                        out.write(BIG_INTEGER);
+                        writeBytes(out, ((BigInteger) value).toByteArray());
+                } else if (value.getClass() == Timestamp.class) {
+                        Timestamp timestamp = (Timestamp) value;
+                        out.write(TIMESTAMP);
+                        writeVarLong(out, zigZag(timestamp.getTime()));
+                        writeVarLong(out, timestamp.getNanos());
+                } else if (value.getClass() == java.sql.Date.class) {
+                        out.write(SQL_DATE);
+                        writeVarLong(out, zigZag(((Date) value).getTime()));
+                } else if (value.getClass() == Time.class) {
+                        out.write(SQL_TIME);
+                        writeVarLong(out, zigZag(((Date) value).getTime()));
+                } else if (value.getClass() == Date.class) {
+                        out.write(DATE);
+                        writeVarLong(out, zigZag(((Date) value).getTime()));
+                } else if (value instanceof byte[]) {
+                        out.write(BYTES);
+                        writeBytes(out, (byte[]) value);
+                } else if (value.getClass() == ArrayList.class || value.getClass() == ARRAYS_LIST) {
+                        List<?> list = (List<?>) value;
+                        out.write(LIST);
+                        writeVarLong(out, list.size());
+                        for (Object element : list) {
+                                write(out, element);
+                        }
+                } else if (value.getClass() == HashMap.class || value.getClass() == LinkedHashMap.class) {
+                        Map<?, ?> map = (Map<?, ?>) value;
+                        out.write(MAP);
+                        writeVarLong(out, map.size());
+                        for (Map.Entry<?, ?> entry : map.entrySet()) {
+                                write(out, entry.getKey());
+                                write(out, entry.getValue());
+                        }
+                } else if (value instanceof DataType<?> && isRebuildable(value.getClass())) {
+                        DataType<?> dataType = (DataType<?>) value;
+                        out.write(DATA_TYPE);
+                        writeString(out, value.getClass().getName());
+                        if (dataType.isAssigned()) {
+                                out.write(TRUE);
+                                write(out, dataType.getData());
+                        } else {
+                                out.write(FALSE);
+                        }
+                } else {
+                        out.write(SERIALIZED);
+                        writeBytes(out, serialization.encode(value));
+                }
+        }
+
+        /**
+         * Read a value with its tag.
+         * 
+         * @param in
+         *                where to read from
+         * @return the value
+         * @throws IOException
+         *                 when the data is not valid
+         */
+        private Object read(final DataInputStream in) throws IOException {
+                int tag = in.readUnsignedByte();
+                switch (tag) {
+                case NULL:
+                        return null;
+                case STRING:
+                        return readString(in);
+                case INTEGER:
+                        return (int) unZigZag(readVarLong(in));
+                case LONG:
+                        return unZigZag(readVarLong(in));
+                case DOUBLE:
+                        return in.readDouble();
+                case FLOAT:
+                        return in.readFloat();
+                case SHORT:
+                        return in.readShort();
+                case BYTE:
+                        return in.readByte();
+                case TRUE:
+                        return Boolean.TRUE;
+                case FALSE:
+                        return Boolean.FALSE;
+                case CHARACTER:
+                        return in.readChar();
+                case BIG_DECIMAL:
+                        int scale = (int) unZigZag(readVarLong(in));
+                        return new BigDecimal(new BigInteger(readBytes(in)), scale);
+                case BIG_INTEGER:
+                        return new BigInteger(readBytes(in));
+                case TIMESTAMP:
+                        Timestamp timestamp = new Timestamp(unZigZag(readVarLong(in)));
+                        timestamp.setNanos((int) readVarLong(in));
+                        return timestamp;
+                case SQL_DATE:
+                        return new java.sql.Date(unZigZag(readVarLong(in)));
+                case SQL_TIME:
+                        return new Time(unZigZag(readVarLong(in)));
+                case DATE:
+                        return new Date(unZigZag(readVarLong(in)));
+                case BYTES:
+                        return readBytes(in);
+                case LIST:
+                        int size = readLength(in);
+                        List<Object> list = new ArrayList<Object>(size);
+                        for (int i = 0; i < size; i++) {
+                                list.add(read(in));
+                        }
+                        return list;
+                case MAP:
+                        int entries = readLength(in);
+                        Map<Object, Object> map = new LinkedHashMap<Object, Object>(entries * 2);
+                        for (int i = 0; i < entries; i++) {
+                                map.put(read(in), read(in));
+                        }
+                        return map;
+                case DATA_TYPE:
+                        return readDataType(in);
+                case SERIALIZED:
+                        return serialization.decode(readBytes(in));
+                default:
+                        throw new IOException("Unknown tag " + tag);
+                }
+        }
+
+        /**
+         * Read a DataType, rebuilding it with its no-argument constructor and
+         * setData().
+         * 
+         * @param in
+         *                where to read from
+         * @return the DataType
+         * @throws IOException
+         *                 when the class is not a DataType or the data is
+         *                 not valid
+         */
+        @SuppressWarnings("unchecked")
+        private Object readDataType(final DataInputStream in) throws IOException {
+                String className = readString(in);
+                boolean assigned = in.readUnsignedByte() == TRUE;
+                try {
+                        // not initialized: the name comes from the data, it may be any class
+                        Class<?> type = Class.forName(className, false, CompactCodec.class.getClassLoader());
+                        if (!DataType.class.isAssignableFrom(type) || !isRebuildable(type)) {
+                                throw new IOException(className + " is not a rebuildable DataType");
+                        }
+                        DataType<Object> dataType = (DataType<Object>) type.newInstance();
+                        if (assigned) {
+                                dataType.setData(read(in));
+                        }
+                        return dataType;
+                } catch (ClassNotFoundException ex) {
+                        throw new IOException(ex);
+                } catch (InstantiationException ex) {
+                        throw new IOException(ex);
+                } catch (IllegalAccessException ex) {
+                        throw new IOException(ex);
+                } catch (IllegalArgumentException ex) {
+                        throw new IOException(ex);
+                }
+        }
+
+        /**
+         * Whether a DataType class has a public no-argument constructor.
+         * 
+         * @param type
+         *                the class
+         * @return true if it can be rebuilt by readDataType()
+         */
+        private static boolean isRebuildable(final Class<?> type) {
+                Boolean rebuildable = REBUILDABLE.get(type);
+                if (rebuildable == null) {
+                        rebuildable = Modifier.isPublic(type.getModifiers())
+                                        && !Modifier.isAbstract(type.getModifiers());
+                        try {
+                                Constructor<?> constructor = type.getConstructor();
+                                rebuildable &= Modifier.isPublic(constructor.getModifiers());
+                        } catch (NoSuchMethodException ex) {
+                                rebuildable = false;
+                        }
+                        REBUILDABLE.put(type, rebuildable);
+                }
+                return rebuildable;
+        }
+
+        /**
+         * Write a string as its UTF-8 length and bytes.
+         * 
+         * @param out
+         *                where to write
+         * @param value
+         *                the string
+         * @throws IOException
+         *                 in case of problems
+         */
+        private static void writeString(final DataOutputStream out, final String value) throws IOException {
+                writeBytes(out, value.getBytes("UTF-8"));
+        }
+
+        /**
+         * Read a string written by writeString().
+         * 
+         * @param in
+         *                where to read from
+         * @return the string
+         * @throws IOException
+         *                 in case of problems
+         */
+        private static String readString(final DataInputStream in) throws IOException {
+                return new String(readBytes(in), "UTF-8");
+        }
+
+        /**
+         * Write bytes with their length.
+         * 
+         * @param out
+         *                where to write
+         * @param value
+         *                the bytes
+         * @throws IOException
+         *                 in case of problems
+         */
+        private static void writeBytes(final DataOutputStream out, final byte[] value) throws IOException {
+                writeVarLong(out, value.length);
+                out.write(value);
+        }
+
+        /**
+         * Read bytes written by writeBytes().
+         * 
+         * @param in
+         *                where to read from
+         * @return the bytes
+         * @throws IOException
+         *                 in case of problems
+         */
+        private static byte[] readBytes(final DataInputStream in) throws IOException {
+                byte[] value = new byte[readLength(in)];
+                in.readFully(value);
+                return value;
+        }
+
+        /**
+         * Read a length, checking it's not negative or too large.
+         * 
+         * @param in
+         *                where to read from
+         * @return the length
+         * @throws IOException
+         *                 when the length is not valid
+         */
+        private static int readLength(final DataInputStream in) throws IOException {
+                long length = readVarLong(in);
+                if (length < 0 || length > in.available()) {
+                        throw new IOException("Invalid length " + length);
+                }
+                return (int) length;
+        }
+
+        /**
+         * Write a non negative number 7 bits at a time, the high bit set when
+         * more bytes follow.
+         * 
+         * @param out
+         *                where to write
+         * @param value
+         *                the number
+         * @throws IOException
+         *                 in case of problems
+         */
+        private static void writeVarLong(final DataOutputStream out, final long value) throws IOException {
+                long rest = value;
+                while ((rest & ~0x7FL) != 0) {
+                        out.write((int) (rest & 0x7F) | 0x80);
+                        rest >>>= 7;
+                }
+                out.write((int) rest);
+        }
+
+        /**
+         * Read a number written by writeVarLong().
+         * 
+         * @param in
+         *                where to read from
+         * @return the number
+         * @throws IOException
+         *                 in case of problems
+         */
+        private static long readVarLong(final DataInputStream in) throws IOException {
+                long value = 0;
+                for (int shift = 0; shift < 64; shift += 7) {
+                        int b = in.readUnsignedByte();
+                        value |= (long) (b & 0x7F) << shift;
+                        if ((b & 0x80) == 0) {
+                                return value;
+                        }
+                }
+                throw new IOException("Malformed number");
+        }
+
+        /**
+         * Map signed numbers to non negative ones, small in absolute value
+         * staying small.
+         * 
+         * @param value
+         *                a signed number
+         * @return the number for writeVarLong()
+         */
+        private static long zigZag(final long value) {
+                return value << 1 ^ value >> 63;
+        }
+
+        /**
+         * Reverse zigZag().
+         * 
+         * @param value
+         *                the number read
+         * @return the signed number
+         */
+        private static long unZigZag(final long value) {
+                return value >>> 1 ^ -(value & 1);
+        }
+
+}
@@ -0,0 +1,151 @@
+package org.obliquid.util.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the values encoded by another codec when they're larger than a
+ * threshold, with Deflate at its fastest level. Small values are stored as
+ * they are, since compressing them costs time and saves little. The first
+ * byte tells whether the rest is compressed.
+ * 
+ * @author stivlo
+ */
+public final class CompressingCodec implements CacheCodec {
+
+        /** Default size in bytes above which values are compressed. */
+        public static final int DEFAULT_THRESHOLD = 16384;
+
+        /** Header of values stored as they are. */
+        private static final byte STORED = 0;
+
+        /** Header of compressed values. */
+        private static final byte DEFLATED = 1;
+
+        /** Size of the buffer used when compressing. */
+        private static final int BUFFER_SIZE = 8192;
+
+        /** The codec encoding the values. */
+        private final CacheCodec codec;
+
+        /** Values larger than this, in bytes, are compressed. */
+        private final int threshold;
+
+        /**
+         * Compress the values encoded by a codec.
+         * 
+         * @param codecIn
+         *                the codec encoding the values
+         * @param thresholdIn
+         *                values larger than this, in bytes, are compressed
+         */
+        public CompressingCodec(final CacheCodec codecIn, final int thresholdIn) {
+                codec = codecIn;
+                threshold = thresholdIn;
+        }
+
+        @Override
+        public String getName() {
+                return codec.getName() + "+deflate";
+        }
+
+        @Override
+        public byte[] encode(final Object value) throws IOException {
+                byte[] encoded = codec.encode(value);
+                if (encoded.length > threshold) {
+                        byte[] compressed = deflate(encoded);
+                        if (compressed.length < encoded.length) {
+                                return compressed;
+                        }
+                }
+                byte[] stored = new byte[encoded.length + 1];
+                stored[0] = STORED;
+                System.arraycopy(encoded, 0, stored, 1, encoded.length);
+                return stored;
+        }
+
+        @Override
+        public Object decode(final byte[] data) throws IOException {
+                if (data.length == 0) {
+                        throw new IOException("Empty value");
+                }
+                if (data[0] == STORED) {
+                        return codec.decode(Arrays.copyOfRange(data, 1, data.length));
+                }
+                if (data[0] != DEFLATED) {
+                        throw new IOException("Unknown header " + data[0]);
+                }
+                return codec.decode(inflate(data));
+        }
+
+        /**
+         * Compress bytes, with the header and the original length in front.
+         * 
+         * @param encoded
+         *                the bytes
+         * @return the compressed bytes
+         */
+        private static byte[] deflate(final byte[] encoded) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(encoded.length / 2);
+                out.write(DEFLATED);
+                for (int shift = 24; shift >= 0; shift -= 8) {
+                        out.write(encoded.length >>> shift);
+                }
+                Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+                try {
+                        deflater.setInput(encoded);
+                        deflater.finish();
+                        byte[] buffer = new byte[BUFFER_SIZE];
+                        while (!deflater.finished()) {
+                                int count = deflater.deflate(buffer);
+                                out.write(buffer, 0, count);
+                        }
+                } finally {
+                        deflater.end();
+                }
+                return out.toByteArray();
+        }
+
+        /**
+         * Uncompress bytes produced by deflate().
+         * 
+         * @param data
+         *                the compressed bytes, with the header
+         * @return the original bytes
+         * @throws IOException
+         *                 when the data is corrupted
+         */
+        private static byte[] inflate(final byte[] data) throws IOException {
+                final int headerLength = 5;
+                if (data.length < headerLength) {
+                        throw new IOException("Truncated value");
+                }
+                int length = 0;
+                for (int i = 1; i < headerLength; i++) {
+                        length = length << 8 | data[i] & 0xff;
+                }
+                byte[] result = new byte[length];
+                Inflater inflater = new Inflater();
+                try {
+                        inflater.setInput(data, headerLength, data.length - headerLength);
+                        int done = 0;
+                        while (done < length) {
+                                int count = inflater.inflate(result, done, length - done);
+                                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                                        throw new IOException("Truncated value");
+                                }
+                                done += count;
+                        }
+                } catch (DataFormatException ex) {
+                        throw new IOException(ex);
+                } finally {
+                        inflater.end();
+                }
+                return result;
+        }
+
+}
@@ -0,0 +1,42 @@
+package org.obliquid.util.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Standard Java serialization, for any Serializable value.
+ * 
+ * @author stivlo
+ */
+public final class JavaSerializationCodec implements CacheCodec {
+
+        @Override
+        public String getName() {
+                return "java";
+        }
+
+        @Override
+        public byte[] encode(final Object value) throws IOException {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ObjectOutputStream out = new ObjectOutputStream(bytes);
+                out.writeObject(value);
+                out.close();
+                return bytes.toByteArray();
+        }
+
+        @Override
+        public Object decode(final byte[] data) throws IOException {
+                ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+                try {
+                        return in.readObject();
+                } catch (ClassNotFoundException ex) {
+                        throw new IOException(ex);
+                } finally {
+                        in.close();
+                }
+        }
+
+}
@@ -0,0 +1,128 @@
+package org.obliquid.util.codec;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the time spent by a codec and the bytes it produces. Wrap each
+ * codec of a chain to see where the time goes.
+ * 
+ * @author stivlo
+ */
+public final class TimedCodec implements CacheCodec {
+
+        /** The codec measured. */
+        private final CacheCodec codec;
+
+        /** Statistics. */
+        private final AtomicLong encodes = new AtomicLong(), encodeNanos = new AtomicLong(),
+                        encodedBytes = new AtomicLong(), decodes = new AtomicLong(),
+                        decodeNanos = new AtomicLong(), errors = new AtomicLong();
+
+        /**
+         * Measure a codec.
+         * 
+         * @param codecIn
+         *                the codec
+         */
+        public TimedCodec(final CacheCodec codecIn) {
+                codec = codecIn;
+        }
+
+        @Override
+        public String getName() {
+                return codec.getName();
+        }
+
+        @Override
+        public byte[] encode(final Object value) throws IOException {
+                long start = System.nanoTime();
+                try {
+                        byte[] data = codec.encode(value);
+                        encodedBytes.addAndGet(data.length);
+                        return data;
+                } catch (IOException ex) {
+                        errors.incrementAndGet();
+                        throw ex;
+                } finally {
+                        encodeNanos.addAndGet(System.nanoTime() - start);
+                        encodes.incrementAndGet();
+                }
+        }
+
+        @Override
+        public Object decode(final byte[] data) throws IOException {
+                long start = System.nanoTime();
+                try {
+                        return codec.decode(data);
+                } catch (IOException ex) {
+                        errors.incrementAndGet();
+                        throw ex;
+                } finally {
+                        decodeNanos.addAndGet(System.nanoTime() - start);
+                        decodes.incrementAndGet();
+                }
+        }
+
+        /**
+         * Return the number of values encoded.
+         * 
+         * @return encodes
+         */
+        public long getEncodeCount() {
+                return encodes.get();
+        }
+
+        /**
+         * Return the total time spent encoding.
+         * 
+         * @return nanoseconds
+         */
+        public long getEncodeNanos() {
+                return encodeNanos.get();
+        }
+
+        /**
+         * Return the total size of the encoded values.
+         * 
+         * @return bytes
+         */
+        public long getEncodedBytes() {
+                return encodedBytes.get();
+        }
+
+        /**
+         * Return the number of values decoded.
+         * 
+         * @return decodes
+         */
+        public long getDecodeCount() {
+                return decodes.get();
+        }
+
+        /**
+         * Return the total time spent decoding.
+         * 
+         * @return nanoseconds
+         */
+        public long getDecodeNanos() {
+                return decodeNanos.get();
+        }
+
+        /**
+         * Return the number of values that couldn't be encoded or decoded.
+         * 
+         * @return errors
+         */
+        public long getErrorCount() {
+                return errors.get();
+        }
+
+        @Override
+        public String toString() {
+                return getName() + ": " + encodes + " encoded in " + encodeNanos.get() / 1000 + "us ("
+                                + encodedBytes + " bytes), " + decodes + " decoded in " + decodeNanos.get()
+                                / 1000 + "us, " + errors + " errors";
+        }
+
+}
@@ -0,0 +1,125 @@
+package org.obliquid.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Class under test: AsyncMetaDb, with fake MetaDb instances.
+ * 
+ * @author stivlo
+ * 
+ */
+public class AsyncMetaDbShould {
+
+        /** Number of fake connections released. */
+        private final AtomicInteger released = new AtomicInteger();
+
+        /** The instance under test, with fake MetaDb connections. */
+        private final AsyncMetaDb async = new AsyncMetaDb(4, 4) {
+                @Override
+                protected MetaDb connect() {
+                        return (MetaDb) Proxy.newProxyInstance(MetaDb.class.getClassLoader(),
+                                        new Class<?>[] { MetaDb.class }, new InvocationHandler() {
+                                                @Override
+                                                public Object invoke(final Object proxy, final Method method,
+                                                                final Object[] args) {
+                                                        if (method.getName().equals("releaseConnection")) {
+                                                                released.incrementAndGet();
+                                                        } else if (method.getName().equals("selectField")) {
+                                                                return args[0];
+                                                        }
+                                                        return null;
+                                                }
+                                        });
+                }
+        };
+
+        /**
+         * Stop the threads.
+         */
+        @After
+        public final void tearDown() {
+                async.shutdown();
+        }
+
+        /**
+         * Fan-out tasks run concurrently and results come back in order.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void runTasksConcurrently() throws SQLException {
+                final CountDownLatch allStarted = new CountDownLatch(3);
+                List<DbTask<Object>> tasks = new ArrayList<DbTask<Object>>();
+                for (int i = 0; i < 3; i++) {
+                        final String sql = "SELECT " + i;
+                        tasks.add(new DbTask<Object>() {
+                                @Override
+                                public Object run(final MetaDb db) throws SQLException {
+                                        allStarted.countDown();
+                                        try {
+                                                //only completes if the three tasks run at the same time
+                                                if (!allStarted.await(5, TimeUnit.SECONDS)) {
+                                                        throw new SQLException("not concurrent");
+                                                }
+                                        } catch (InterruptedException ex) {
+                                                throw new SQLException(ex);
+                                        }
+                                        return db.selectField(sql);
+                                }
+                        });
+                }
+                List<Object> results = async.invokeAll(tasks);
+                assertEquals(Arrays.<Object> asList("SELECT 0", "SELECT 1", "SELECT 2"), results);
+                assertEquals(3, released.get());
+        }
+
+        /**
+         * The exception of a failed task is rethrown, and its connection is
+         * released anyway.
+         */
+        @Test
+        public final void reportFailures() {
+                List<DbTask<Object>> tasks = new ArrayList<DbTask<Object>>();
+                tasks.add(new DbTask<Object>() {
+                        @Override
+                        public Object run(final MetaDb db) throws SQLException {
+                                throw new SQLException("broken");
+                        }
+                });
+                try {
+                        async.invokeAll(tasks);
+                        fail("the task should fail");
+                } catch (SQLException ex) {
+                        assertEquals("broken", ex.getMessage());
+                }
+                assertEquals(1, released.get());
+        }
+
+        /**
+         * The shortcut methods run the query in the background.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void selectInTheBackground() throws SQLException {
+                assertEquals("SELECT 1", AsyncMetaDb.getResult(async.selectField("SELECT 1", null)));
+        }
+
+}
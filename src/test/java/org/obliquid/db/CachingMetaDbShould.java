@@ -0,0 +1,173 @@
+package org.obliquid.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.obliquid.util.LocalCache;
+
+/**
+ * Class under test: CachingMetaDb and QueryCache, with a fake MetaDb.
+ * 
+ * @author stivlo
+ * 
+ */
+public class CachingMetaDbShould {
+
+        /** Number of queries run by the fake MetaDb. */
+        private final AtomicInteger queries = new AtomicInteger();
+
+        /** Released when the fake queries may complete. */
+        private CountDownLatch slowQuery = new CountDownLatch(0);
+
+        /** The shared cache. */
+        private final QueryCache queryCache = new QueryCache(new LocalCache(), 60);
+
+        /** The instance under test. */
+        private final CachingMetaDb db = new CachingMetaDb(fakeMetaDb(), queryCache);
+
+        /**
+         * The same query with the same parameters is run once.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void runTheSameQueryOnce() throws SQLException {
+                String sql = "SELECT name FROM person WHERE id=?";
+                assertEquals(1, db.selectField(sql, 7));
+                assertEquals(1, db.selectField(sql, 7));
+                assertEquals(2, db.selectField(sql, 8));
+                assertEquals(2, queries.get());
+                assertEquals(1, queryCache.getHits());
+        }
+
+        /**
+         * Writing to a table invalidates the queries reading it, and only
+         * them.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void invalidateQueriesReadingAWrittenTable() throws SQLException {
+                String people = "SELECT p.name, a.city FROM person p JOIN address a ON a.id=p.address_id";
+                String invoices = "SELECT total FROM invoice";
+                db.selectAll(people);
+                db.selectAll(invoices);
+                Map<String, Object> fields = new HashMap<String, Object>();
+                fields.put("city", "Rome");
+                db.update("address", fields, "id", 1);
+                db.selectAll(people);
+                db.selectAll(invoices);
+                assertEquals(3, queries.get());
+        }
+
+        /**
+         * Queries are not cached inside a transaction.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void notCacheInsideTransactions() throws SQLException {
+                db.autoCommitTransactions(false);
+                db.selectField("SELECT COUNT(*) FROM person");
+                db.selectField("SELECT COUNT(*) FROM person");
+                db.commitTransaction();
+                assertEquals(2, queries.get());
+        }
+
+        /**
+         * Threads missing the same key wait for a single query.
+         * 
+         * @throws InterruptedException
+         *                 in case of problems
+         */
+        @Test
+        public final void runConcurrentMissesOnce() throws InterruptedException {
+                slowQuery = new CountDownLatch(1);
+                final QueryCache sharedCache = new QueryCache(new LocalCache(), 60);
+                final AtomicInteger errors = new AtomicInteger();
+                Thread[] threads = new Thread[4];
+                for (int i = 0; i < threads.length; i++) {
+                        threads[i] = new Thread() {
+                                @Override
+                                public void run() {
+                                        try {
+                                                new CachingMetaDb(fakeMetaDb(), sharedCache)
+                                                                .selectRow("SELECT * FROM person", (List<?>) null);
+                                        } catch (SQLException ex) {
+                                                errors.incrementAndGet();
+                                        }
+                                }
+                        };
+                        threads[i].start();
+                }
+                while (sharedCache.getMisses() < threads.length) {
+                        Thread.sleep(1);
+                }
+                slowQuery.countDown();
+                for (Thread thread : threads) {
+                        thread.join();
+                }
+                assertEquals(0, errors.get());
+                assertEquals(1, queries.get());
+                assertEquals(threads.length - 1, sharedCache.getCoalescedMisses());
+        }
+
+        /**
+         * Tables are found after FROM and JOIN, and in write statements.
+         */
+        @Test
+        public final void findTheTablesOfAStatement() {
+                assertEquals(Arrays.asList("person", "address", "city"), new ArrayList<String>(
+                                QueryCache.getTablesRead("SELECT * FROM `db`.person p, address AS a "
+                                                + "LEFT JOIN city c ON c.id=a.city_id WHERE p.id IN (1, 2)")));
+                assertEquals(Arrays.asList("person"),
+                                new ArrayList<String>(QueryCache.getTablesWritten("UPDATE person SET x=1")));
+                assertEquals(Arrays.asList("person", "old_person"), new ArrayList<String>(QueryCache
+                                .getTablesWritten("INSERT IGNORE INTO person SELECT * FROM old_person")));
+                assertTrue(QueryCache.getTablesWritten("CALL refresh()").contains(QueryCache.ALL_TABLES));
+        }
+
+        /**
+         * Create a fake MetaDb whose queries return a counter.
+         * 
+         * @return a MetaDb
+         */
+        private MetaDb fakeMetaDb() {
+                return (MetaDb) Proxy.newProxyInstance(MetaDb.class.getClassLoader(), new Class<?>[] { MetaDb.class },
+                                new InvocationHandler() {
+                                        @Override
+                                        public Object invoke(final Object proxy, final Method method,
+                                                        final Object[] args) throws InterruptedException {
+                                                if (method.getName().startsWith("select")) {
+                                                        slowQuery.await();
+                                                        Integer count = queries.incrementAndGet();
+                                                        if (method.getReturnType().equals(List.class)) {
+                                                                return Arrays.asList(count);
+                                                        }
+                                                        return count;
+                                                }
+                                                if (method.getReturnType().equals(int.class)) {
+                                                        return 1;
+                                                }
+                                                return null;
+                                        }
+                                });
+        }
+
+}
@@ -0,0 +1,198 @@
+package org.obliquid.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Class under test: ColumnarResult, read from a fake ResultSet.
+ * 
+ * @author stivlo
+ * 
+ */
+public class ColumnarResultShould {
+
+        /** Column labels of the fake result. */
+        private static final String[] NAMES = { "id", "total", "price", "country", "created" };
+
+        /** Column classes of the fake result. */
+        private static final String[] CLASSES = { Integer.class.getName(), Long.class.getName(),
+                        Double.class.getName(), String.class.getName(), Date.class.getName() };
+
+        /** Rows of the fake result. */
+        private static final Object[][] ROWS = {
+                        { 1, 10000000000L, 1.5, "IT", new Date(0) },
+                        { 2, null, null, "UK", null },
+                        { 3, 7L, 2.25, new String("IT"), new Date(1) } };
+
+        /**
+         * All values are read back as getObject() would return them.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void keepValuesAndNulls() throws SQLException {
+                ColumnarResult result = ColumnarResult.fromResultSet(fakeResultSet());
+                assertEquals(3, result.size());
+                assertEquals(5, result.getColumnCount());
+                for (int row = 0; row < ROWS.length; row++) {
+                        assertEquals(Arrays.asList(ROWS[row]), result.getRowAsList(row));
+                }
+                assertTrue(result.isNull(1, 1));
+                assertFalse(result.isNull(1, 0));
+                assertNull(result.get(1, 2));
+                assertEquals(10000000000L, result.getLong(0, 1));
+                assertEquals(0, result.getInt(1, 1));
+        }
+
+        /**
+         * Rows can be read by column name.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void readRowsByName() throws SQLException {
+                ColumnarResult result = ColumnarResult.fromResultSet(fakeResultSet());
+                ColumnarResult.Row row = result.getRow(2);
+                assertEquals(3, row.getInt("id"));
+                assertEquals(7L, row.getLong("total"));
+                assertEquals(2.25, row.getDouble("price"), 0);
+                assertEquals("IT", row.getString("country"));
+                assertEquals(new Date(1), row.get("created"));
+                assertEquals(3, result.getColumnIndex("country"));
+        }
+
+        /**
+         * Equal strings are stored once.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void shareEqualStrings() throws SQLException {
+                ColumnarResult result = ColumnarResult.fromResultSet(fakeResultSet());
+                assertSame(result.get(0, 3), result.get(2, 3));
+        }
+
+        /**
+         * A String column of mostly distinct values, kept in a plain array
+         * once detected, still returns all its values and nulls.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void keepDistinctStrings() throws SQLException {
+                Object[][] rows = new Object[200][];
+                for (int i = 0; i < rows.length; i++) {
+                        String country = null;
+                        if (i < 50) {
+                                country = "IT";
+                        } else if (i % 10 != 0) {
+                                country = "C" + i;
+                        }
+                        rows[i] = new Object[] {i, (long) i, (double) i, country, null };
+                }
+                ColumnarResult result = ColumnarResult.fromResultSet(fakeResultSet(rows));
+                assertEquals(200, result.size());
+                for (int i = 0; i < rows.length; i++) {
+                        assertEquals(rows[i][3], result.get(i, 3));
+                }
+        }
+
+        /**
+         * Unknown columns are rejected.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test(expected = IllegalArgumentException.class)
+        public final void rejectUnknownColumns() throws SQLException {
+                ColumnarResult.fromResultSet(fakeResultSet()).getRow(0).get("missing");
+        }
+
+        /**
+         * Build a fake ResultSet over ROWS.
+         * 
+         * @return a ResultSet positioned before the first row
+         */
+        private static ResultSet fakeResultSet() {
+                return fakeResultSet(ROWS);
+        }
+
+        /**
+         * Build a fake ResultSet.
+         * 
+         * @param rows
+         *                the values of the rows, in the columns NAMES
+         * @return a ResultSet positioned before the first row
+         */
+        private static ResultSet fakeResultSet(final Object[][] rows) {
+                final ResultSetMetaData meta = (ResultSetMetaData) Proxy.newProxyInstance(
+                                ResultSetMetaData.class.getClassLoader(), new Class<?>[] { ResultSetMetaData.class },
+                                new InvocationHandler() {
+                                        @Override
+                                        public Object invoke(final Object proxy, final Method method,
+                                                        final Object[] args) {
+                                                String name = method.getName();
+                                                if (name.equals("getColumnCount")) {
+                                                        return NAMES.length;
+                                                } else if (name.equals("getColumnLabel")) {
+                                                        return NAMES[(Integer) args[0] - 1];
+                                                } else if (name.equals("getColumnClassName")) {
+                                                        return CLASSES[(Integer) args[0] - 1];
+                                                }
+                                                return null;
+                                        }
+                                });
+                return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                                new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+
+                                        /** Current row. */
+                                        private int row = -1;
+
+                                        /** Whether the last value read was NULL. */
+                                        private boolean wasNull;
+
+                                        @Override
+                                        public Object invoke(final Object proxy, final Method method,
+                                                        final Object[] args) {
+                                                String name = method.getName();
+                                                if (name.equals("getMetaData")) {
+                                                        return meta;
+                                                } else if (name.equals("next")) {
+                                                        row++;
+                                                        return row < rows.length;
+                                                } else if (name.equals("wasNull")) {
+                                                        return wasNull;
+                                                }
+                                                Object value = rows[row][(Integer) args[0] - 1];
+                                                wasNull = value == null;
+                                                if (name.equals("getInt")) {
+                                                        return wasNull ? 0 : (Integer) value;
+                                                } else if (name.equals("getLong")) {
+                                                        return wasNull ? 0L : (Long) value;
+                                                } else if (name.equals("getDouble")) {
+                                                        return wasNull ? 0.0 : (Double) value;
+                                                }
+                                                return value;
+                                        }
+                                });
+        }
+
+}
@@ -0,0 +1,63 @@
+package org.obliquid.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Class under test: ConnectionMetrics.
+ * 
+ * @author stivlo
+ * 
+ */
+public class ConnectionMetricsShould {
+
+        /** Nanoseconds in a millisecond. */
+        private static final long MS = 1000000L;
+
+        /** A fresh set of counters. */
+        private ConnectionMetrics metrics = new ConnectionMetrics();
+
+        /**
+         * The peak is the maximum number of connections borrowed at the same
+         * time.
+         */
+        @Test
+        public final void rememberThePeakOfBorrowedConnections() {
+                metrics.recordBorrowed();
+                metrics.recordBorrowed();
+                metrics.recordReturned();
+                metrics.recordBorrowed();
+                metrics.recordReturned();
+                metrics.recordReturned();
+                assertEquals(0, metrics.getBorrowedConnections());
+                assertEquals(2, metrics.getPeakBorrowedConnections());
+                assertEquals(3, metrics.getTotalBorrows());
+        }
+
+        /**
+         * Wait times are counted in the right bucket.
+         */
+        @Test
+        public final void countWaitTimesInBuckets() {
+                metrics.recordWait(0);
+                metrics.recordWait(5 * MS);
+                metrics.recordWait(10 * MS);
+                metrics.recordWait(50000 * MS);
+                assertArrayEquals(new long[] { 1, 1, 1, 0, 0, 1 }, metrics.getWaitHistogram());
+                assertEquals(50015, metrics.getTotalWaitMillis());
+        }
+
+        /**
+         * Open connections go up and down with opened and closed.
+         */
+        @Test
+        public final void countOpenConnections() {
+                metrics.recordOpened();
+                metrics.recordOpened();
+                metrics.recordClosed();
+                assertEquals(1, metrics.getOpenConnections());
+        }
+
+}
@@ -0,0 +1,246 @@
+package org.obliquid.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Class under test: ConnectionPool, with a fake in-memory JDBC driver.
+ * 
+ * @author stivlo
+ * 
+ */
+public class ConnectionPoolShould {
+
+        /** The pool under test. */
+        private ConnectionPool pool;
+
+        /**
+         * Create a small pool on the fake driver.
+         */
+        @Before
+        public final void setUp() {
+                pool = new ConnectionPool(FakeDriver.class.getName(), FakeDriver.URL, "user", "password");
+                pool.setMaxSize(2);
+                pool.setIdleTimeout(0);
+                pool.setBorrowTimeout(50);
+        }
+
+        /**
+         * Close all the pooled connections.
+         */
+        @After
+        public final void tearDown() {
+                pool.shutdown();
+        }
+
+        /**
+         * A connection given back is handed out again.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void reuseAConnectionGivenBack() throws SQLException {
+                Connection first = pool.borrow();
+                String physical = first.toString();
+                first.close();
+                assertTrue(first.isClosed());
+                Connection second = pool.borrow();
+                assertEquals(physical, second.toString());
+                assertEquals(1, pool.getSize());
+                second.close();
+        }
+
+        /**
+         * When maxSize connections are borrowed, the next borrow times out.
+         * 
+         * @throws SQLException
+         *                 expected
+         */
+        @Test(expected = SQLException.class)
+        public final void timeOutWhenAllConnectionsAreBorrowed() throws SQLException {
+                pool.borrow();
+                pool.borrow();
+                pool.borrow();
+        }
+
+        /**
+         * An idle connection that is no longer valid is replaced on borrow.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void replaceInvalidConnectionsOnBorrow() throws SQLException {
+                Connection first = pool.borrow();
+                String physical = first.toString();
+                first.close();
+                FakeDriver.lastOpened.valid = false;
+                Connection second = pool.borrow();
+                assertFalse(physical.equals(second.toString()));
+                assertEquals(1, pool.getSize());
+                second.close();
+        }
+
+        /**
+         * A pending transaction is rolled back when the connection is given
+         * back.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void rollBackPendingTransactionsWhenGivenBack() throws SQLException {
+                Connection conn = pool.borrow();
+                conn.setAutoCommit(false);
+                conn.close();
+                assertTrue(FakeDriver.lastOpened.rolledBack);
+                assertTrue(FakeDriver.lastOpened.autoCommit);
+        }
+
+        /**
+         * Idle connections past the idle timeout are closed.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void evictIdleConnections() throws SQLException {
+                Connection first = pool.borrow();
+                Connection second = pool.borrow();
+                assertNotSame(first, second);
+                first.close();
+                second.close();
+                assertEquals(2, pool.getIdleCount());
+                pool.evictIdleConnections();
+                assertEquals(0, pool.getIdleCount());
+                assertEquals(0, pool.getSize());
+                assertSame(Boolean.TRUE, FakeDriver.lastOpened.closed);
+        }
+
+        /**
+         * State of a fake connection.
+         */
+        static final class FakeConnectionState implements InvocationHandler {
+
+                /** Whether the connection was physically closed. */
+                private Boolean closed = Boolean.FALSE;
+
+                /** Whether isValid() succeeds. */
+                private boolean valid = true;
+
+                /** Auto commit mode. */
+                private boolean autoCommit = true;
+
+                /** Whether rollback() was called. */
+                private boolean rolledBack = false;
+
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("close")) {
+                                closed = Boolean.TRUE;
+                        } else if (name.equals("isClosed")) {
+                                return closed;
+                        } else if (name.equals("isValid")) {
+                                return valid;
+                        } else if (name.equals("getAutoCommit")) {
+                                return autoCommit;
+                        } else if (name.equals("setAutoCommit")) {
+                                autoCommit = (Boolean) args[0];
+                        } else if (name.equals("rollback")) {
+                                rolledBack = true;
+                        } else if (name.equals("toString")) {
+                                return "FakeConnection@" + System.identityHashCode(this);
+                        }
+                        return null;
+                }
+
+        }
+
+        /**
+         * A JDBC driver returning fake connections.
+         */
+        public static final class FakeDriver implements Driver {
+
+                /** The URL accepted by this driver. */
+                static final String URL = "jdbc:fake:pool";
+
+                /** The last connection opened. */
+                private static FakeConnectionState lastOpened;
+
+                static {
+                        try {
+                                DriverManager.registerDriver(new FakeDriver());
+                        } catch (SQLException ex) {
+                                throw new IllegalStateException(ex);
+                        }
+                }
+
+                @Override
+                public Connection connect(final String url, final Properties info) throws SQLException {
+                        if (!acceptsURL(url)) {
+                                return null;
+                        }
+                        lastOpened = new FakeConnectionState();
+                        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                        new Class<?>[] { Connection.class }, lastOpened);
+                }
+
+                @Override
+                public boolean acceptsURL(final String url) {
+                        return URL.equals(url);
+                }
+
+                @Override
+                public DriverPropertyInfo[] getPropertyInfo(final String url, final Properties info) {
+                        return new DriverPropertyInfo[0];
+                }
+
+                @Override
+                public int getMajorVersion() {
+                        return 1;
+                }
+
+                @Override
+                public int getMinorVersion() {
+                        return 0;
+                }
+
+                @Override
+                public boolean jdbcCompliant() {
+                        return false;
+                }
+
+                /**
+                 * Required by JDBC 4.1.
+                 * 
+                 * @return never
+                 * @throws SQLFeatureNotSupportedException
+                 *                 always
+                 */
+                public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+                        throw new SQLFeatureNotSupportedException();
+                }
+
+        }
+
+}
@@ -5,6 +5,11 @@ import static org.junit.Assert.assertEquals;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -98,6 +103,59 @@ public class MetaDbShould {
                 db.rollbackTransaction();
         }
 
+        /**
+         * Stream the rows of a query to a RowHandler, stopping when it asks
+         * to.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void streamRowsToHandler() throws SQLException {
+                final List<Object> ids = new ArrayList<Object>();
+                List<Object> param = new ArrayList<Object>();
+                param.add(10);
+                int rowCount = db.selectAll("SELECT address_id FROM address WHERE address_id<=? "
+                                + "ORDER BY address_id", param, new RowHandler() {
+                        @Override
+                        public boolean handleRow(final List<Object> row) {
+                                ids.add(row.get(0));
+                                return ids.size() < 5;
+                        }
+                });
+                assertEquals(5, rowCount);
+                assertEquals(5, ids.size());
+        }
+
+        /**
+         * Update many rows in a batch, getting the count of each row.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void updateRowsInBatches() throws SQLException {
+                List<Map<String, Object>> fields = new ArrayList<Map<String, Object>>();
+                List<Map<String, Object>> priKeys = new ArrayList<Map<String, Object>>();
+                for (int id = 1; id <= 3; id++) {
+                        Map<String, Object> field = new HashMap<String, Object>();
+                        field.put("city_id", 3);
+                        fields.add(field);
+                        Map<String, Object> priKey = new HashMap<String, Object>();
+                        priKey.put("address_id", id);
+                        priKeys.add(priKey);
+                }
+                db.autoCommitTransactions(false);
+                db.setBatchSize(2);
+                int[] counts = db.updateBatch("address", fields, priKeys);
+                db.rollbackTransaction();
+                db.setBatchSize(MetaDb.DEFAULT_BATCH_SIZE);
+                assertEquals(3, counts.length);
+                for (int count : counts) {
+                        assertTrue(count == 1 || count == Statement.SUCCESS_NO_INFO);
+                }
+        }
+
         //@Test
         //public final void retrieveBlob() throws SQLException {
         //ResultSet res = db.executeRawQuery(
@@ -0,0 +1,146 @@
+package org.obliquid.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Class under test: ReplicaSet, with fake connections.
+ * 
+ * @author stivlo
+ * 
+ */
+public class ReplicaSetShould {
+
+        /** URLs of the replicas that are down. */
+        private final Set<String> down = new HashSet<String>();
+
+        /** The instance under test, with three replicas. */
+        private final ReplicaSet replicas = new ReplicaSet(null, null, null) {
+                @Override
+                protected Connection open(final Replica replica) throws SQLException {
+                        final String url = replica.getUrl();
+                        if (down.contains(url)) {
+                                throw new SQLException("Connection refused: " + url);
+                        }
+                        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                        new Class<?>[] { Connection.class }, new InvocationHandler() {
+                                                @Override
+                                                public Object invoke(final Object proxy, final Method method,
+                                                                final Object[] args) {
+                                                        if (method.getName().equals("isValid")) {
+                                                                return !down.contains(url);
+                                                        }
+                                                        return null;
+                                                }
+                                        });
+                }
+        };
+
+        {
+                replicas.addReplica("a", null);
+                replicas.addReplica("b", null);
+                replicas.addReplica("c", null);
+        }
+
+        /**
+         * Round-robin chooses each replica in turn.
+         */
+        @Test
+        public final void chooseEachReplicaInTurn() {
+                for (int i = 0; i < 6; i++) {
+                        replicas.release(replicas.choose(), false);
+                }
+                assertEquals(2, replicas.getBorrowedCount("a"));
+                assertEquals(2, replicas.getBorrowedCount("b"));
+                assertEquals(2, replicas.getBorrowedCount("c"));
+        }
+
+        /**
+         * Least loaded chooses the replica with fewer connections in use.
+         */
+        @Test
+        public final void chooseTheLeastLoadedReplica() {
+                replicas.setBalancing(ReplicaSet.Balancing.LEAST_LOADED);
+                ReplicaSet.Replica first = replicas.choose();
+                ReplicaSet.Replica second = replicas.choose();
+                replicas.release(first, false);
+                ReplicaSet.Replica third = replicas.choose();
+                ReplicaSet.Replica fourth = replicas.choose();
+                assertFalse(first == second);
+                assertFalse(third == second || fourth == second);
+                assertFalse(third == fourth);
+        }
+
+        /**
+         * Replicas failing are taken out of rotation, and put back when the
+         * health check succeeds.
+         */
+        @Test
+        public final void skipUnhealthyReplicas() {
+                down.add("b");
+                replicas.checkHealth();
+                assertEquals(2, replicas.getHealthyCount());
+                for (int i = 0; i < 4; i++) {
+                        replicas.release(replicas.choose(), false);
+                }
+                assertEquals(0, replicas.getBorrowedCount("b"));
+                ReplicaSet.Replica replica = replicas.choose();
+                replicas.release(replica, true);
+                assertEquals(1, replicas.getHealthyCount());
+                down.add("a");
+                down.add("c");
+                replicas.checkHealth();
+                assertNull(replicas.choose());
+                down.clear();
+                replicas.checkHealth();
+                assertEquals(3, replicas.getHealthyCount());
+        }
+
+        /**
+         * Without the periodic health check, a replica taken out of rotation
+         * is checked again by choose() after the recheck delay.
+         */
+        @Test
+        public final void recheckFailedReplicasWithoutHealthCheck() {
+                for (int i = 0; i < 3; i++) {
+                        replicas.release(replicas.choose(), true);
+                }
+                assertEquals(0, replicas.getHealthyCount());
+                assertNull(replicas.choose());
+                replicas.setRecheckDelay(0);
+                down.add("a");
+                down.add("c");
+                ReplicaSet.Replica replica = replicas.choose();
+                assertEquals("b", replica.getUrl());
+                assertEquals(1, replicas.getHealthyCount());
+                replicas.release(replica, false);
+        }
+
+        /**
+         * Only plain SELECTs go to a replica.
+         */
+        @Test
+        public final void sendOnlyPlainSelectsToReplicas() {
+                assertTrue(ReplicaSet.isReplicaSafe("SELECT * FROM person WHERE id=?"));
+                assertTrue(ReplicaSet.isReplicaSafe(" (select id FROM a) UNION (SELECT id FROM b)"));
+                assertFalse(ReplicaSet.isReplicaSafe("SELECT LAST_INSERT_ID()"));
+                assertFalse(ReplicaSet.isReplicaSafe("SELECT nextval FROM sequence WHERE id=? FOR UPDATE"));
+                assertFalse(ReplicaSet.isReplicaSafe("SELECT @rank := @rank + 1 FROM person"));
+                assertFalse(ReplicaSet.isReplicaSafe("SELECT SQL_CALC_FOUND_ROWS * FROM person LIMIT 10"));
+                assertFalse(ReplicaSet.isReplicaSafe("UPDATE person SET name=?"));
+                assertFalse(ReplicaSet.isReplicaSafe("SHOW TABLES"));
+        }
+
+}
@@ -0,0 +1,146 @@
+package org.obliquid.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Class under test: SequenceAllocator, with an in-memory block source.
+ * 
+ * @author stivlo
+ * 
+ */
+public class SequenceAllocatorShould {
+
+        /** Runs the reservations. */
+        private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        /** Number of blocks reserved. */
+        private final AtomicInteger reservations = new AtomicInteger();
+
+        /** Whether the source fails. */
+        private volatile boolean failing = false;
+
+        /** A block source counting in memory. */
+        private final IdBlockSource source = new IdBlockSource() {
+
+                /** The next id not reserved. */
+                private final AtomicLong nextval = new AtomicLong(1);
+
+                @Override
+                public long reserve(final String sequenceName, final int blockSize) throws SQLException {
+                        if (failing) {
+                                throw new SQLException("down");
+                        }
+                        reservations.incrementAndGet();
+                        return nextval.getAndAdd(blockSize);
+                }
+        };
+
+        /**
+         * Stop the executor.
+         */
+        @After
+        public final void tearDown() {
+                executor.shutdownNow();
+        }
+
+        /**
+         * Ids are consecutive and reserved once per block.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void reserveIdsInBlocks() throws SQLException {
+                SequenceAllocator allocator = new SequenceAllocator(source, executor, 10);
+                for (long expected = 1; expected <= 25; expected++) {
+                        assertEquals(expected, allocator.nextId("invoice"));
+                }
+                assertTrue(reservations.get() >= 3 && reservations.get() <= 4);
+        }
+
+        /**
+         * The block size can be set per sequence.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void useTheBlockSizeOfEachSequence() throws SQLException {
+                SequenceAllocator allocator = new SequenceAllocator(source, executor, 10);
+                allocator.setBlockSize("order", 1000);
+                allocator.nextId("order");
+                assertEquals(1000, allocator.getBlockSize("order"));
+                assertEquals(10, allocator.getBlockSize("invoice"));
+                assertEquals(1001, allocator.nextId("invoice"));
+        }
+
+        /**
+         * Concurrent threads never get the same id.
+         * 
+         * @throws InterruptedException
+         *                 in case of problems
+         */
+        @Test
+        public final void handOutUniqueIdsToConcurrentThreads() throws InterruptedException {
+                final SequenceAllocator allocator = new SequenceAllocator(source, executor, 7);
+                final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+                final int threads = 8, perThread = 500;
+                final AtomicInteger errors = new AtomicInteger();
+                Thread[] workers = new Thread[threads];
+                for (int i = 0; i < threads; i++) {
+                        workers[i] = new Thread() {
+                                @Override
+                                public void run() {
+                                        try {
+                                                for (int j = 0; j < perThread; j++) {
+                                                        ids.add(allocator.nextId("invoice"));
+                                                }
+                                        } catch (SQLException ex) {
+                                                errors.incrementAndGet();
+                                        }
+                                }
+                        };
+                        workers[i].start();
+                }
+                for (Thread worker : workers) {
+                        worker.join();
+                }
+                assertEquals(0, errors.get());
+                assertEquals(threads * perThread, ids.size());
+        }
+
+        /**
+         * A failed reservation is reported and retried on the next call.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void retryAfterAFailedReservation() throws SQLException {
+                SequenceAllocator allocator = new SequenceAllocator(source, executor, 10);
+                failing = true;
+                try {
+                        allocator.nextId("invoice");
+                        fail("the reservation should fail");
+                } catch (SQLException ex) {
+                        assertEquals("down", ex.getMessage());
+                }
+                failing = false;
+                assertEquals(1, allocator.nextId("invoice"));
+        }
+
+}
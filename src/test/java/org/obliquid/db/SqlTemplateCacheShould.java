@@ -0,0 +1,72 @@
+package org.obliquid.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+/**
+ * Class under test: SqlTemplateCache.
+ * 
+ * @author stivlo
+ * 
+ */
+public class SqlTemplateCacheShould {
+
+        /** The cache under test. */
+        private SqlTemplateCache cache = new SqlTemplateCache(2);
+
+        /**
+         * Build the same SQL of the MetaDb helpers.
+         */
+        @Test
+        public final void buildSql() {
+                String[] columns = { "id", "name" };
+                assertEquals("INSERT INTO person(id, name) VALUES (?,?)", cache.getInsert("person", columns, false));
+                assertEquals("INSERT DELAYED INTO person(id, name) VALUES (?,?)",
+                                cache.getInsert("person", columns, true));
+                assertEquals("UPDATE person SET `name`=? WHERE id=?",
+                                cache.getUpdate("person", new String[] { "name" }, new String[] { "id" }));
+                assertEquals("`id`, `name`", cache.getFieldList(columns, true));
+                assertArrayEquals(new Object[] { "id", "how_many" },
+                                cache.getFieldNames(new String[] { "id", "COUNT(*) AS how_many" }));
+        }
+
+        /**
+         * The second call with the same columns is a hit, even with another
+         * array.
+         */
+        @Test
+        public final void reuseTemplates() {
+                String first = cache.getInsert("person", new String[] { "id", "name" }, false);
+                String second = cache.getInsert("person", new String[] { "id", "name" }, false);
+                assertSame(first, second);
+                assertEquals(1, cache.getHits());
+                assertEquals(1, cache.getMisses());
+        }
+
+        /**
+         * Changing the array passed in doesn't change the cached template.
+         */
+        @Test
+        public final void copyTheKeys() {
+                String[] columns = { "id", "name" };
+                cache.getInsert("person", columns, false);
+                columns[1] = "surname";
+                assertEquals("INSERT INTO person(id, surname) VALUES (?,?)",
+                                cache.getInsert("person", columns, false));
+        }
+
+        /**
+         * The cache is emptied when full.
+         */
+        @Test
+        public final void stayBounded() {
+                for (int i = 0; i < 5; i++) {
+                        cache.getFieldList(new String[] { "f" + i }, false);
+                }
+                assertEquals(1, cache.size());
+        }
+
+}
@@ -0,0 +1,132 @@
+package org.obliquid.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.junit.Test;
+
+/**
+ * Class under test: StatementCache, with fake connections and statements.
+ * 
+ * @author stivlo
+ * 
+ */
+public class StatementCacheShould {
+
+        /** Number of statements closed. */
+        private int closed = 0;
+
+        /** Number of clearParameters() calls. */
+        private int cleared = 0;
+
+        /** A fake connection preparing fake statements. */
+        private Connection conn = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                        new Class<?>[] { Connection.class }, new InvocationHandler() {
+                                @Override
+                                public Object invoke(final Object proxy, final Method method,
+                                                final Object[] args) {
+                                        if (method.getName().equals("prepareStatement")) {
+                                                return newStatement();
+                                        }
+                                        return null;
+                                }
+                        });
+
+        /**
+         * Create a fake statement counting close() calls.
+         * 
+         * @return a PreparedStatement
+         */
+        private PreparedStatement newStatement() {
+                return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                                new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+                                        @Override
+                                        public Object invoke(final Object proxy, final Method method,
+                                                        final Object[] args) {
+                                                if (method.getName().equals("close")) {
+                                                        closed++;
+                                                }
+                                                if (method.getName().equals("clearParameters")) {
+                                                        cleared++;
+                                                }
+                                                if (method.getName().equals("hashCode")) {
+                                                        return System.identityHashCode(proxy);
+                                                }
+                                                if (method.getName().equals("equals")) {
+                                                        return proxy == args[0];
+                                                }
+                                                return null;
+                                        }
+                                });
+        }
+
+        /**
+         * A statement given back is reused for the same SQL, with its
+         * parameters cleared.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void reuseStatementsForTheSameSql() throws SQLException {
+                StatementCache cache = new StatementCache(2);
+                PreparedStatement first = cache.prepare(conn, "SELECT 1");
+                cache.release("SELECT 1", first);
+                PreparedStatement second = cache.prepare(conn, "SELECT 1");
+                assertSame(first, second);
+                assertEquals(1, cache.getHits());
+                assertEquals(1, cache.getMisses());
+                assertEquals(1, cleared);
+        }
+
+        /**
+         * A statement in use is not handed out twice.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void notShareAStatementInUse() throws SQLException {
+                StatementCache cache = new StatementCache(2);
+                PreparedStatement outer = cache.prepare(conn, "SELECT 1");
+                PreparedStatement inner = cache.prepare(conn, "SELECT 1");
+                assertNotSame(outer, inner);
+                cache.release("SELECT 1", inner);
+                cache.release("SELECT 1", outer);
+                assertEquals(1, cache.size());
+                assertEquals(1, closed);
+        }
+
+        /**
+         * The least recently used statement is closed when the cache is full.
+         * 
+         * @throws SQLException
+         *                 in case of problems
+         */
+        @Test
+        public final void closeTheLeastRecentlyUsedStatement() throws SQLException {
+                StatementCache cache = new StatementCache(2);
+                PreparedStatement stmt1 = cache.prepare(conn, "SELECT 1");
+                PreparedStatement stmt2 = cache.prepare(conn, "SELECT 2");
+                PreparedStatement stmt3 = cache.prepare(conn, "SELECT 3");
+                cache.release("SELECT 1", stmt1);
+                cache.release("SELECT 2", stmt2);
+                cache.release("SELECT 3", stmt3);
+                assertEquals(2, cache.size());
+                assertEquals(1, cache.getEvictions());
+                assertEquals(1, closed);
+                assertNotSame(stmt1, cache.prepare(conn, "SELECT 1"));
+                cache.clear();
+                assertEquals(0, cache.size());
+                assertEquals(3, closed);
+        }
+
+}
@@ -16,15 +16,36 @@ import org.obliquid.datatype.VatPercentImplShould;
 import org.obliquid.datatype.companytaxid.ItalianCompanyTaxIdShould;
 import org.obliquid.date.DateBuilderShould;
 import org.obliquid.date.DateHelperShould;
+import org.obliquid.db.AsyncMetaDbShould;
+import org.obliquid.db.CachingMetaDbShould;
+import org.obliquid.db.ColumnarResultShould;
+import org.obliquid.db.ConnectionMetricsShould;
+import org.obliquid.db.ConnectionPoolShould;
 import org.obliquid.db.DbNullShould;
+import org.obliquid.db.ReplicaSetShould;
+import org.obliquid.db.SequenceAllocatorShould;
+import org.obliquid.db.SqlTemplateCacheShould;
+import org.obliquid.db.StatementCacheShould;
 import org.obliquid.ec2.Ec2TagShould;
 import org.obliquid.helpers.BdHelperShould;
 import org.obliquid.helpers.SqlHelperShould;
 import org.obliquid.helpers.StringHelperShould;
+import org.obliquid.sdb.AmazonSdbHelperShould;
+import org.obliquid.sdb.AttributeStoreShould;
+import org.obliquid.sdb.LocalSdbHelperShould;
+import org.obliquid.sdb.ParallelScanShould;
+import org.obliquid.sdb.SdbEncodingShould;
+import org.obliquid.sdb.SdbSchedulerShould;
+import org.obliquid.sdb.WriteBehindBatchShould;
+import org.obliquid.util.InstrumentedCacheShould;
+import org.obliquid.util.LoadingCacheShould;
+import org.obliquid.util.LocalCacheShould;
 import org.obliquid.util.MapCacheShould;
 import org.obliquid.util.MyImageShould;
+import org.obliquid.util.NearCacheShould;
 import org.obliquid.util.StopWatchShould;
 import org.obliquid.util.WgetShould;
+import org.obliquid.util.codec.CompactCodecShould;
 
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
@@ -50,9 +71,25 @@ import org.junit.runners.Suite.SuiteClasses;
                 //org.obliquid.date
                 DateHelperShould.class, DateBuilderShould.class,
 
+                //org.obliquid.db
+                ConnectionPoolShould.class, ConnectionMetricsShould.class, StatementCacheShould.class,
+                ColumnarResultShould.class, SqlTemplateCacheShould.class,
+                SequenceAllocatorShould.class, AsyncMetaDbShould.class, CachingMetaDbShould.class,
+                ReplicaSetShould.class,
+
+                //org.obliquid.sdb
+                AmazonSdbHelperShould.class, AttributeStoreShould.class, LocalSdbHelperShould.class,
+                ParallelScanShould.class, SdbEncodingShould.class, SdbSchedulerShould.class,
+                WriteBehindBatchShould.class,
+
+                //org.obliquid.util.codec
+                CompactCodecShould.class,
+
                 //other uncategorised tests
                 StopWatchShould.class, DbNullShould.class, BdHelperShould.class, Ec2TagShould.class,
                 WgetShould.class, ItalianCompanyTaxIdShould.class, MapCacheShould.class,
+                LocalCacheShould.class, NearCacheShould.class, InstrumentedCacheShould.class,
+                LoadingCacheShould.class,
                 MyImageShould.class })
 public class SuiteForNonDb {
 
@@ -0,0 +1,160 @@
+package org.obliquid.sdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+
+/**
+ * Class under test: AmazonSdbHelper scans, with a local stand-in for
+ * SimpleDB.
+ * 
+ * @author stivlo
+ * 
+ */
+public class AmazonSdbHelperShould {
+
+        /** The stand-in, with 120 items. */
+        private final LocalSdbSelector local = new LocalSdbSelector(120);
+
+        /** The instance under test. */
+        private final AmazonSdbHelper helper = new AmazonSdbHelper(null, local);
+
+        /**
+         * Read all the items of the current query.
+         * 
+         * @return the keys read
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        private List<String> readAll() throws ConnectException {
+                List<String> keys = new ArrayList<String>();
+                while (helper.hasNext()) {
+                        keys.add(helper.next());
+                        assertEquals(String.valueOf(keys.size() - 1), helper.getAttributeAsString("n"));
+                }
+                return keys;
+        }
+
+        /**
+         * Without prefetching, all the pages are read one after the other.
+         * 
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        @Test
+        public final void scanAllPages() throws ConnectException {
+                helper.setDomain("items");
+                helper.loadAll();
+                List<String> keys = readAll();
+                assertEquals(120, keys.size());
+                assertEquals("item119", keys.get(119));
+                assertEquals(3, local.getRequests());
+        }
+
+        /**
+         * With prefetching, the items are the same, with the configured page
+         * size.
+         * 
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        @Test
+        public final void scanAllPagesWithPrefetch() throws ConnectException {
+                helper.setPrefetch(25, 2);
+                helper.setDomain("items");
+                helper.loadAll();
+                List<String> keys = readAll();
+                assertEquals(120, keys.size());
+                assertEquals("item000", keys.get(0));
+                assertEquals("item119", keys.get(119));
+                assertEquals(5, local.getRequests());
+        }
+
+        /**
+         * The next pages are fetched while the first one is read: the queue
+         * depth, and one more waiting for room in the queue. Reading a page
+         * makes room for one more request.
+         * 
+         * @throws Exception
+         *                 in case of problems
+         */
+        @Test
+        public final void fetchAheadUpToQueueDepth() throws Exception {
+                CountDownLatch fetched = local.expectRequests(5);
+                helper.setPrefetch(10, 3);
+                helper.setDomain("items");
+                helper.loadAll();
+                assertTrue(helper.hasNext());
+                assertTrue(fetched.await(10, TimeUnit.SECONDS));
+                assertEquals(5, local.getRequests());
+                CountDownLatch oneMore = local.expectRequests(1);
+                for (int i = 0; i < 10; i++) {
+                        helper.next();
+                }
+                assertTrue(helper.hasNext());
+                assertTrue(oneMore.await(10, TimeUnit.SECONDS));
+                assertEquals(6, local.getRequests());
+        }
+
+        /**
+         * A scan stops at the limit.
+         * 
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        @Test
+        public final void stopAtLimit() throws ConnectException {
+                helper.setPrefetch(25, 1);
+                helper.setDomain("items");
+                helper.loadAll(30);
+                assertEquals(30, readAll().size());
+                assertFalse(helper.hasNext());
+        }
+
+        /**
+         * A page that can't be fetched is reported to the reader.
+         * 
+         * @throws ConnectException
+         *                 expected
+         */
+        @Test(expected = ConnectException.class)
+        public final void reportFailedPages() throws ConnectException {
+                local.failAt(2);
+                helper.setPrefetch(50, 2);
+                helper.setDomain("items");
+                helper.loadAll();
+                readAll();
+        }
+
+        /**
+         * Any runtime error of a select is reported to the reader, instead of
+         * leaving it waiting.
+         * 
+         * @throws ConnectException
+         *                 expected
+         */
+        @Test(expected = ConnectException.class)
+        public final void reportUnexpectedErrors() throws ConnectException {
+                AmazonSdbHelper failing = new AmazonSdbHelper(null, new SdbSelector() {
+                        @Override
+                        public SelectResult select(final SelectRequest request) {
+                                throw new IllegalStateException("Unexpected");
+                        }
+                });
+                failing.setPrefetch(50, 2);
+                failing.setDomain("items");
+                failing.loadAll();
+        }
+
+}
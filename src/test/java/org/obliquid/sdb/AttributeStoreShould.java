@@ -0,0 +1,92 @@
+package org.obliquid.sdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Class under test: AttributeStore.
+ * 
+ * @author stivlo
+ * 
+ */
+public class AttributeStoreShould {
+
+        /** The instance under test. */
+        private final AttributeStore store = new AttributeStore();
+
+        /**
+         * Setting an attribute replaces all its previous values.
+         */
+        @Test
+        public final void replaceValuesOnSet() {
+                store.add("color", "red");
+                store.add("color", "blue");
+                store.set("color", "green");
+                assertEquals(Arrays.asList("green"), store.getAll("color"));
+                assertEquals(1, store.countValues());
+        }
+
+        /**
+         * Adding keeps the values of an attribute in the order they were added.
+         */
+        @Test
+        public final void keepManyValuesInOrder() {
+                store.add("tag", "b");
+                store.add("size", "10");
+                store.add("tag", "a");
+                assertEquals(Arrays.asList("b", "a"), store.getAll("tag"));
+                assertEquals("b", store.getFirst("tag"));
+                assertEquals("tag: b\ntag: a\nsize: 10\n", store.toString());
+        }
+
+        /**
+         * A removed attribute, or one set to no values, is missing.
+         */
+        @Test
+        public final void removeAttributes() {
+                store.set("a", "1");
+                store.set("b", Arrays.asList("2", "3"));
+                store.remove("a");
+                store.set("b", Collections.<String> emptyList());
+                assertFalse(store.contains("a"));
+                assertFalse(store.contains("b"));
+                assertNull(store.getFirst("a"));
+                assertTrue(store.getAll("b").isEmpty());
+                assertTrue(store.isEmpty());
+        }
+
+        /**
+         * After a clear, the store is reused for the next item without
+         * keeping any value of the previous one.
+         */
+        @Test
+        public final void reuseAfterClear() {
+                for (int item = 0; item < 3; item++) {
+                        store.clear();
+                        store.add("n", Integer.toString(item));
+                        store.add("n", "x");
+                        assertEquals(Arrays.asList(Integer.toString(item), "x"), store.getAll("n"));
+                        assertEquals(2, store.countValues());
+                }
+        }
+
+        /**
+         * Many attributes are found by name.
+         */
+        @Test
+        public final void findAmongManyAttributes() {
+                for (int i = 0; i < 256; i++) {
+                        store.set("attr" + i, "v" + i);
+                }
+                assertEquals("v200", store.getFirst("attr200"));
+                assertEquals(256, store.asMap().size());
+        }
+
+}
@@ -0,0 +1,286 @@
+package org.obliquid.sdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Class under test: LocalSdbHelper, with its LocalDomain logs and
+ * LocalSelect queries, in a temporary directory.
+ * 
+ * @author stivlo
+ * 
+ */
+public class LocalSdbHelperShould {
+
+        /** The directory of the domains. */
+        private File directory;
+
+        /** The instance under test. */
+        private LocalSdbHelper helper;
+
+        /**
+         * Create the directory and a domain of people.
+         * 
+         * @throws IOException
+         *                 when the directory can't be created
+         */
+        @Before
+        public final void setUp() throws IOException {
+                directory = File.createTempFile("LocalSdbHelperShould", "");
+                directory.delete();
+                helper = new LocalSdbHelper(directory);
+                helper.createDomain("people");
+                helper.setDomain("people");
+                save("p1", "Anna", "30", "red", "blue");
+                save("p2", "Bruno", "25", "green");
+                save("p3", "Carla", "41", "red");
+                save("p4", "Dario", "19");
+        }
+
+        /**
+         * Delete the domains and the directory.
+         * 
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        @After
+        public final void tearDown() throws ConnectException {
+                for (String domain : helper.listDomains()) {
+                        helper.deleteDomain(domain);
+                }
+                directory.delete();
+        }
+
+        /**
+         * Save a person.
+         * 
+         * @param key
+         *                the item name
+         * @param name
+         *                the name
+         * @param age
+         *                the age, zero padded
+         * @param colors
+         *                the favourite colors
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        private void save(final String key, final String name, final String age, final String... colors)
+                        throws ConnectException {
+                helper.setKey(key);
+                helper.setAttribute("name", name);
+                helper.setAttribute("age", age);
+                helper.setAttribute("color", colors);
+                helper.save();
+        }
+
+        /**
+         * Run a query and read the keys found.
+         * 
+         * @param sql
+         *                the query
+         * @return the keys
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        private List<String> keys(final String sql) throws ConnectException {
+                helper.query(sql);
+                List<String> keys = new ArrayList<String>();
+                while (helper.hasNext()) {
+                        keys.add(helper.next());
+                }
+                return keys;
+        }
+
+        /**
+         * A put replaces the attributes it has and keeps the others, as in
+         * SimpleDB.
+         * 
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        @Test
+        public final void replaceOnlyTheAttributesPut() throws ConnectException {
+                helper.setKey("p1");
+                helper.setAttribute("age", "31");
+                helper.save();
+                helper.loadByKey("p1");
+                assertEquals("Anna", helper.getAttributeAsString("name"));
+                assertEquals(31, helper.getAttributeAsInt("age"));
+                assertEquals(Arrays.asList("red", "blue"), helper.getAttributeAsCollection("color"));
+        }
+
+        /**
+         * Equality, range, IN, LIKE and boolean predicates select the same
+         * items with or without the indexes.
+         * 
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        @Test
+        public final void selectWithPredicates() throws ConnectException {
+                assertEquals(Arrays.asList("p1", "p3"), keys("SELECT * FROM people WHERE color = 'red'"));
+                assertEquals(Arrays.asList("p1", "p2"),
+                                keys("SELECT * FROM people WHERE age BETWEEN '20' AND '30'"));
+                assertEquals(Arrays.asList("p2", "p4"), keys("select * from people where age < '30' "
+                                + "and not color = 'red' or name in ('Bruno', 'Dario') limit 10"));
+                assertEquals(Arrays.asList("p3"), keys("SELECT * FROM people WHERE name LIKE 'Car%'"));
+                assertEquals(Arrays.asList("p4"), keys("SELECT * FROM people WHERE color IS NULL"));
+                assertEquals(Arrays.asList("p3"), keys("SELECT * FROM people WHERE every(color) = 'red'"));
+                assertEquals(Arrays.asList("p2", "p3"),
+                                keys("SELECT * FROM people WHERE itemName() > 'p1' AND age > '20'"));
+        }
+
+        /**
+         * ORDER BY sorts the items, count(*) counts them and an attribute
+         * list returns only those attributes.
+         * 
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        @Test
+        public final void sortCountAndProject() throws ConnectException {
+                helper.setOrderBy("age DESC");
+                helper.loadAll();
+                List<String> keys = new ArrayList<String>();
+                while (helper.hasNext()) {
+                        keys.add(helper.next());
+                }
+                assertEquals(Arrays.asList("p3", "p1", "p2", "p4"), keys);
+                helper.query("SELECT count(*) FROM people WHERE age >= '25'");
+                assertTrue(helper.hasNext());
+                helper.next();
+                assertEquals(3, helper.getAttributeAsInt(LocalSdbHelper.COUNT_ATTRIBUTE));
+                helper.query("SELECT name FROM people WHERE itemName() = 'p2'");
+                helper.next();
+                helper.enableExceptions(false);
+                assertEquals("Bruno", helper.getAttributeAsString("name"));
+                assertNull(helper.getAttributeAsString("age"));
+        }
+
+        /**
+         * Encoded numbers and timestamps are compared as the values by range
+         * queries and ORDER BY, with the literals encoded by SdbEncoding.
+         * 
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        @Test
+        public final void compareEncodedValues() throws ConnectException {
+                int[] balances = {-50, 7, 1200, -3 };
+                for (int i = 0; i < balances.length; i++) {
+                        helper.setKey("p" + (i + 1));
+                        helper.setEncodedAttribute("balance", balances[i]);
+                        helper.setEncodedAttribute("price", new BigDecimal(balances[i]).movePointLeft(1));
+                        helper.setTimestamp("seen", new Date(balances[i] * 1000L));
+                        helper.save();
+                }
+                assertEquals(Arrays.asList("p2", "p3"), keys("SELECT * FROM people WHERE balance > "
+                                + SdbEncoding.quote(-3)));
+                assertEquals(Arrays.asList("p1", "p4"), keys("SELECT * FROM people WHERE price < "
+                                + SdbEncoding.quote(BigDecimal.ZERO)));
+                assertEquals(Arrays.asList("p4", "p2"), keys("SELECT * FROM people WHERE seen BETWEEN "
+                                + SdbEncoding.quoteTimestamp(new Date(-3000)) + " AND "
+                                + SdbEncoding.quoteTimestamp(new Date(7000)) + " ORDER BY seen"));
+                helper.loadByKey("p1");
+                assertEquals(-50, helper.getAttributeAsEncodedInt("balance"));
+                assertEquals(new BigDecimal("-5.0000"), helper.getAttributeAsEncodedBigDecimal("price"));
+                assertEquals(new Date(-50000), helper.getAttributeAsTimestamp("seen"));
+        }
+
+        /**
+         * Deleted and replaced items are found correctly after reopening the
+         * log, which ends at a record cut by a crash.
+         * 
+         * @throws IOException
+         *                 in case of problems
+         */
+        @Test
+        public final void recoverTheLog() throws IOException {
+                helper.deleteByKey("p2");
+                helper.setKey("p3");
+                helper.setAttribute("color", Collections.singletonList("black"));
+                helper.save();
+                File log = new File(directory, "people" + LocalDomain.EXTENSION);
+                LocalDomain current = new LocalDomain(log);
+                int end = current.getLogBytes();
+                current.close();
+                RandomAccessFile raf = new RandomAccessFile(log, "rw");
+                raf.seek(end);
+                raf.writeInt(1000);
+                raf.writeInt(12345);
+                raf.close();
+                LocalDomain reopened = new LocalDomain(log);
+                assertEquals(Arrays.asList("p1", "p3", "p4"), reopened.keys());
+                assertEquals(Arrays.asList("black"), reopened.get("p3").get("color"));
+                assertEquals(end, reopened.getLogBytes());
+                assertEquals(1, reopened.findRange("color", "black", true, "black", true).size());
+                reopened.close();
+        }
+
+        /**
+         * A log made mostly of replaced records is compacted.
+         * 
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        @Test
+        public final void compactTheLog() throws ConnectException {
+                File log = new File(directory, "compacted" + LocalDomain.EXTENSION);
+                LocalDomain domain = new LocalDomain(log);
+                char[] filler = new char[1000];
+                Arrays.fill(filler, 'x');
+                Map<String, Map<String, List<String>>> item =
+                                new LinkedHashMap<String, Map<String, List<String>>>();
+                int writes = LocalDomain.COMPACT_MIN_BYTES / filler.length * 2;
+                for (int i = 0; i < writes; i++) {
+                        Map<String, List<String>> values = new LinkedHashMap<String, List<String>>();
+                        values.put("text", Arrays.asList(new String(filler)));
+                        values.put("n", Arrays.asList(String.valueOf(i)));
+                        item.put("item" + (i % 3), values);
+                        domain.put(item);
+                        item.clear();
+                }
+                assertTrue(domain.getLogBytes() < LocalDomain.COMPACT_MIN_BYTES);
+                assertEquals(3, domain.size());
+                String last = "item" + ((writes - 1) % 3);
+                assertEquals(String.valueOf(writes - 1), domain.get(last).get("n").get(0));
+                domain.drop();
+        }
+
+        /**
+         * In batch mode the items are written on flush.
+         * 
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        @Test
+        public final void writeBatchesOnFlush() throws ConnectException {
+                helper.enableBatchMode(true);
+                save("p5", "Elena", "52", "white");
+                assertFalse(keys("SELECT * FROM people").contains("p5"));
+                helper.flush();
+                assertTrue(keys("SELECT * FROM people").contains("p5"));
+                helper.enableBatchMode(false);
+        }
+
+}
@@ -0,0 +1,106 @@
+package org.obliquid.sdb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.simpledb.model.Attribute;
+import com.amazonaws.services.simpledb.model.Item;
+import com.amazonaws.services.simpledb.model.SelectRequest;
+import com.amazonaws.services.simpledb.model.SelectResult;
+
+/**
+ * A local stand-in for SimpleDB selects: returns its items in pages of the
+ * LIMIT of the query, the next token being the position of the next page.
+ * 
+ * @author stivlo
+ * 
+ */
+class LocalSdbSelector implements SdbSelector {
+
+        /** The LIMIT of a query. */
+        private static final Pattern LIMIT = Pattern.compile("LIMIT (\\d+)");
+
+        /** Default page size, as SimpleDB. */
+        private static final int DEFAULT_LIMIT = 100;
+
+        /** The items. */
+        private final List<Item> items = new ArrayList<Item>();
+
+        /** Requests received. */
+        private final AtomicInteger requests = new AtomicInteger();
+
+        /** The request failing, counting from 1, 0 for none. */
+        private volatile int failingRequest = 0;
+
+        /** Counted down at each request, for the tests waiting for requests. */
+        private volatile CountDownLatch expected = new CountDownLatch(0);
+
+        /**
+         * Create a stand-in with items named item000, item001 and so on, each
+         * with an attribute n holding its number.
+         * 
+         * @param count
+         *                number of items
+         */
+        LocalSdbSelector(final int count) {
+                for (int i = 0; i < count; i++) {
+                        List<Attribute> attributes = new ArrayList<Attribute>();
+                        attributes.add(new Attribute("n", String.valueOf(i)));
+                        items.add(new Item(String.format("item%03d", i), attributes));
+                }
+        }
+
+        /**
+         * Make a request fail.
+         * 
+         * @param request
+         *                the request failing, counting from 1
+         */
+        final void failAt(final int request) {
+                failingRequest = request;
+        }
+
+        /**
+         * Expect more requests, to wait for them without sleeping.
+         * 
+         * @param count
+         *                number of requests expected from now
+         * @return a latch reaching zero when they are received
+         */
+        final CountDownLatch expectRequests(final int count) {
+                expected = new CountDownLatch(count);
+                return expected;
+        }
+
+        /**
+         * @return the number of requests received
+         */
+        final int getRequests() {
+                return requests.get();
+        }
+
+        @Override
+        public SelectResult select(final SelectRequest request) {
+                int number = requests.incrementAndGet();
+                expected.countDown();
+                if (number == failingRequest) {
+                        throw new AmazonClientException("Service unavailable");
+                }
+                Matcher matcher = LIMIT.matcher(request.getSelectExpression());
+                int limit = matcher.find() ? Integer.parseInt(matcher.group(1)) : DEFAULT_LIMIT;
+                int from = request.getNextToken() == null ? 0 : Integer.parseInt(request.getNextToken());
+                int to = Math.min(items.size(), from + limit);
+                SelectResult result = new SelectResult();
+                result.setItems(new ArrayList<Item>(items.subList(from, to)));
+                if (to < items.size()) {
+                        result.setNextToken(String.valueOf(to));
+                }
+                return result;
+        }
+
+}
@@ -0,0 +1,200 @@
+package org.obliquid.sdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Class under test: ParallelScan, with a LocalSdbHelper as SimpleDB
+ * stand-in.
+ * 
+ * @author stivlo
+ * 
+ */
+public class ParallelScanShould {
+
+        /** Number of items in the domain. */
+        private static final int ITEMS = 200;
+
+        /** The directory of the domain. */
+        private File directory;
+
+        /** The stand-in. */
+        private LocalSdbHelper helper;
+
+        /** The item names saved. */
+        private final List<String> saved = new ArrayList<String>();
+
+        /**
+         * Create a domain of items with UUID names.
+         * 
+         * @throws IOException
+         *                 when the directory can't be created
+         */
+        @Before
+        public final void setUp() throws IOException {
+                directory = File.createTempFile("ParallelScanShould", "");
+                directory.delete();
+                helper = new LocalSdbHelper(directory);
+                helper.createDomain("scanned");
+                helper.setDomain("scanned");
+                for (int i = 0; i < ITEMS; i++) {
+                        String key = helper.generateNewId();
+                        helper.setKey(key);
+                        helper.setAttribute("n", String.valueOf(i % 2));
+                        helper.save();
+                        saved.add(key);
+                }
+                Collections.sort(saved);
+        }
+
+        /**
+         * Delete the domain and the directory.
+         * 
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        @After
+        public final void tearDown() throws ConnectException {
+                helper.deleteDomain("scanned");
+                directory.delete();
+        }
+
+        /**
+         * The split points divide the alphabet evenly, with more characters
+         * when there are more segments than characters.
+         */
+        @Test
+        public final void splitTheAlphabet() {
+                assertEquals(Arrays.asList("4", "8", "c"),
+                                ParallelScan.splitPoints(4, ParallelScan.DEFAULT_ALPHABET));
+                List<String> points = ParallelScan.splitPoints(20, ParallelScan.DEFAULT_ALPHABET);
+                assertEquals(19, points.size());
+                assertEquals("0c", points.get(0));
+                assertEquals("f3", points.get(18));
+        }
+
+        /**
+         * Unordered, every item is read once, from all the segments.
+         * 
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        @Test
+        public final void readEveryItemOnce() throws ConnectException {
+                ParallelScan scan = helper.scanParallel(8);
+                scan.setThreads(3);
+                List<String> keys = new ArrayList<String>();
+                while (scan.hasNext()) {
+                        keys.add(scan.next());
+                        assertEquals(1, scan.getAttributes().get("n").size());
+                }
+                assertEquals(ITEMS, keys.size());
+                assertEquals(new HashSet<String>(saved), new HashSet<String>(keys));
+                assertEquals(8, scan.getSegmentsDone());
+        }
+
+        /**
+         * A closed scan has no more items, instead of waiting for them.
+         * 
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        @Test
+        public final void endWhenClosed() throws ConnectException {
+                ParallelScan scan = helper.scanParallel(4);
+                assertTrue(scan.hasNext());
+                scan.close();
+                assertFalse(scan.hasNext());
+        }
+
+        /**
+         * Ordered, the items come in item name order and the segments end one
+         * after the other; the predicate filters the items.
+         * 
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        @Test
+        public final void readInOrderWithProgress() throws ConnectException {
+                ParallelScan scan = helper.scanParallel(5);
+                scan.setOrdered(true);
+                scan.setWhere("n = '1'");
+                final List<String> keys = new ArrayList<String>();
+                final List<Integer> segmentsDone = new ArrayList<Integer>();
+                final long[] total = new long[1];
+                scan.run(new ParallelScan.Sink() {
+                        @Override
+                        public void item(final String key, final Map<String, List<String>> attributes) {
+                                assertEquals("1", attributes.get("n").get(0));
+                                keys.add(key);
+                        }
+
+                        @Override
+                        public void segmentDone(final int segment, final long items) {
+                                segmentsDone.add(segment);
+                                total[0] += items;
+                        }
+                });
+                assertEquals(ITEMS / 2, keys.size());
+                List<String> sorted = new ArrayList<String>(keys);
+                Collections.sort(sorted);
+                assertEquals(sorted, keys);
+                assertEquals(Arrays.asList(0, 1, 2, 3, 4), segmentsDone);
+                assertEquals(ITEMS / 2, total[0]);
+        }
+
+        /**
+         * The pages of a segment are followed by next token, and the error of
+         * a segment is reported to the reader.
+         */
+        @Test
+        public final void followTokensAndReportErrors() {
+                final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+                ParallelScan scan = new ParallelScan(new ParallelScan.Source() {
+                        @Override
+                        public ParallelScan.Page select(final String sql, final String nextToken)
+                                        throws ConnectException {
+                                requests.add(sql + " / " + nextToken);
+                                if (sql.contains("itemName() >= '8'")) {
+                                        throw new ConnectException("Service unavailable");
+                                }
+                                Map<String, Map<String, List<String>>> items =
+                                                new LinkedHashMap<String, Map<String, List<String>>>();
+                                items.put(sql + nextToken, new LinkedHashMap<String, List<String>>());
+                                return new ParallelScan.Page(items, nextToken == null ? "next" : null);
+                        }
+                }, "scanned", 2);
+                scan.setOrdered(true);
+                int read = 0;
+                try {
+                        while (scan.hasNext()) {
+                                scan.next();
+                                read++;
+                        }
+                        fail("The error of the second segment should be thrown");
+                } catch (ConnectException ex) {
+                        assertTrue(ex.getMessage().contains("Service unavailable"));
+                }
+                assertEquals(2, read);
+                assertTrue(requests.contains("SELECT * FROM `scanned` WHERE itemName() >= '' "
+                                + "AND itemName() < '8' ORDER BY itemName() LIMIT 250 / next"));
+        }
+
+}
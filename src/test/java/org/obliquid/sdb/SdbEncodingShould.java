@@ -0,0 +1,112 @@
+package org.obliquid.sdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Class under test: SdbEncoding.
+ * 
+ * @author stivlo
+ * 
+ */
+public class SdbEncodingShould {
+
+        /**
+         * Check that the encoded values sort as the values.
+         * 
+         * @param encoded
+         *                the encoded values, in the order of the values
+         */
+        private static void assertOrdered(final List<String> encoded) {
+                List<String> sorted = new ArrayList<String>(encoded);
+                Collections.sort(sorted);
+                assertEquals(encoded, sorted);
+        }
+
+        /**
+         * Ints of any sign are encoded in the same length, ordered, and
+         * decoded back.
+         */
+        @Test
+        public final void encodeInts() {
+                int[] values = {Integer.MIN_VALUE, -1000, -1, 0, 1, 9, 10, 1000, Integer.MAX_VALUE };
+                List<String> encoded = new ArrayList<String>();
+                for (int value : values) {
+                        String string = SdbEncoding.encode(value);
+                        assertEquals(SdbEncoding.INT_LENGTH, string.length());
+                        assertEquals(value, SdbEncoding.decodeInt(string));
+                        encoded.add(string);
+                }
+                assertOrdered(encoded);
+                assertEquals("2147483648", SdbEncoding.encode(0));
+                assertEquals("'2147483658'", SdbEncoding.quote(10));
+        }
+
+        /**
+         * Longs of any sign are encoded in the same length, ordered, and
+         * decoded back.
+         */
+        @Test
+        public final void encodeLongs() {
+                long[] values = {Long.MIN_VALUE, -1L << 40, -1, 0, 1, 1L << 40, Long.MAX_VALUE };
+                List<String> encoded = new ArrayList<String>();
+                for (long value : values) {
+                        String string = SdbEncoding.encode(value);
+                        assertEquals(SdbEncoding.LONG_LENGTH, string.length());
+                        assertEquals(value, SdbEncoding.decodeLong(string));
+                        encoded.add(string);
+                }
+                assertOrdered(encoded);
+        }
+
+        /**
+         * BigDecimals of any sign are rounded to the scale, ordered, and
+         * decoded back; too many digits are refused.
+         */
+        @Test
+        public final void encodeBigDecimals() {
+                String[] values = {"-99999.9999", "-1.5", "-0.0001", "0", "0.00005", "1.25", "10",
+                        "12345.6789" };
+                List<String> encoded = new ArrayList<String>();
+                for (String value : values) {
+                        String string = SdbEncoding.encode(new BigDecimal(value));
+                        assertEquals(SdbEncoding.DECIMAL_DIGITS + 1, string.length());
+                        encoded.add(string);
+                }
+                assertOrdered(encoded);
+                assertEquals(new BigDecimal("-1.5000"), SdbEncoding.decodeBigDecimal(encoded.get(1)));
+                assertEquals(new BigDecimal("0.0000"), SdbEncoding.decodeBigDecimal(encoded.get(4)));
+                assertEquals(new BigDecimal("-3"), SdbEncoding.decodeBigDecimal(
+                                SdbEncoding.encode(new BigDecimal("-3"), 0)));
+                assertNull(SdbEncoding.decodeBigDecimal(null));
+                try {
+                        SdbEncoding.encode(new BigDecimal("1E+13"));
+                        fail("Overflow should be refused");
+                } catch (IllegalArgumentException ex) {
+                        assertTrue(ex.getMessage().contains("overflow"));
+                }
+        }
+
+        /**
+         * Timestamps are written in UTC and decoded back.
+         */
+        @Test
+        public final void encodeTimestamps() {
+                Date epoch = new Date(0);
+                assertEquals("1970-01-01T00:00:00.000Z", SdbEncoding.encodeTimestamp(epoch));
+                Date now = new Date();
+                assertEquals(now, SdbEncoding.decodeTimestamp(SdbEncoding.encodeTimestamp(now)));
+                assertEquals("'1970-01-01T00:00:00.000Z'", SdbEncoding.quoteTimestamp(epoch));
+        }
+
+}
@@ -0,0 +1,204 @@
+package org.obliquid.sdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.xerox.amazonws.sdb.SDBException;
+
+/**
+ * Class under test: SdbScheduler, with a clock that advances only when the
+ * scheduler sleeps.
+ * 
+ * @author stivlo
+ * 
+ */
+public class SdbSchedulerShould {
+
+        /** Nanoseconds in a second. */
+        private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+        /** The current time of the fake clock. */
+        private long now;
+
+        /** The nanoseconds slept. */
+        private long slept;
+
+        /** The instance under test. */
+        private SdbScheduler scheduler;
+
+        /**
+         * Create a scheduler on the fake clock.
+         */
+        @Before
+        public final void setUp() {
+                now = 0;
+                slept = 0;
+                scheduler = new SdbScheduler() {
+                        @Override
+                        protected long nanoTime() {
+                                return now;
+                        }
+
+                        @Override
+                        protected void sleep(final long nanos) {
+                                now += nanos;
+                                slept += nanos;
+                        }
+                };
+                scheduler.setRates(10, 1, 20, 1);
+                scheduler.setRetries(3, 100);
+        }
+
+        /**
+         * Create a throttling error of the SDK.
+         * 
+         * @return the error
+         */
+        private static AmazonServiceException throttling() {
+                AmazonServiceException ex = new AmazonServiceException("Service Unavailable");
+                ex.setErrorCode("ServiceUnavailable");
+                ex.setStatusCode(503);
+                return ex;
+        }
+
+        /**
+         * A call throttled twice is retried after a backoff, and the rate of
+         * its domain is halved each time.
+         */
+        @Test
+        public final void retryThrottledCalls() {
+                final int[] calls = new int[1];
+                SdbScheduler.Call<String, AmazonClientException> call =
+                                new SdbScheduler.Call<String, AmazonClientException>() {
+                                        @Override
+                                        public String call() {
+                                                calls[0]++;
+                                                if (calls[0] <= 2) {
+                                                        throw throttling();
+                                                }
+                                                return "done";
+                                        }
+                                };
+                String result = scheduler.execute("items", call);
+                assertEquals("done", result);
+                assertEquals(3, calls[0]);
+                assertEquals(1, scheduler.getAccepted());
+                assertEquals(2, scheduler.getThrottled());
+                assertEquals(2, scheduler.getRetried());
+                assertEquals(0, scheduler.getFailed());
+                assertEquals(10.0 / 2 / 2 + 1, scheduler.getRate("items"), 0.001);
+                assertTrue(slept >= TimeUnit.MILLISECONDS.toNanos(50 + 100));
+        }
+
+        /**
+         * Other errors are thrown at once, and after the retries the last
+         * throttling error is thrown.
+         */
+        @Test
+        public final void throwOtherErrorsAndGiveUp() {
+                final SDBException denied = new SDBException("AuthFailure");
+                try {
+                        scheduler.execute("items", new SdbScheduler.Call<Void, SDBException>() {
+                                @Override
+                                public Void call() throws SDBException {
+                                        throw denied;
+                                }
+                        });
+                        fail("The error should be thrown");
+                } catch (SDBException ex) {
+                        assertSame(denied, ex);
+                }
+                assertEquals(0, scheduler.getRetried());
+                try {
+                        scheduler.execute("items", new SdbScheduler.Call<Void, SDBException>() {
+                                @Override
+                                public Void call() throws SDBException {
+                                        throw new SDBException("Error 503: RequestThrottled");
+                                }
+                        });
+                        fail("The error should be thrown after the retries");
+                } catch (SDBException ex) {
+                        assertTrue(ex.getMessage().contains("RequestThrottled"));
+                }
+                assertEquals(4, scheduler.getThrottled());
+                assertEquals(3, scheduler.getRetried());
+                assertEquals(2, scheduler.getFailed());
+                assertEquals(1, scheduler.getRate("items"), 0.001);
+        }
+
+        /**
+         * Server and IO errors are retried after a backoff, without slowing
+         * down the domain.
+         */
+        @Test
+        public final void retryTransientErrorsAtTheSameRate() {
+                final int[] calls = new int[1];
+                SdbScheduler.Call<String, AmazonClientException> call =
+                                new SdbScheduler.Call<String, AmazonClientException>() {
+                                        @Override
+                                        public String call() {
+                                                calls[0]++;
+                                                if (calls[0] == 1) {
+                                                        AmazonServiceException ex =
+                                                                        new AmazonServiceException("Internal");
+                                                        ex.setErrorCode("InternalError");
+                                                        ex.setStatusCode(500);
+                                                        throw ex;
+                                                }
+                                                if (calls[0] == 2) {
+                                                        throw new AmazonClientException("Unable to execute",
+                                                                        new IOException("Connection reset"));
+                                                }
+                                                return "done";
+                                        }
+                                };
+                assertEquals("done", scheduler.execute("items", call));
+                assertEquals(3, calls[0]);
+                assertEquals(0, scheduler.getThrottled());
+                assertEquals(2, scheduler.getTransientErrors());
+                assertEquals(2, scheduler.getRetried());
+                assertEquals(0, scheduler.getFailed());
+                assertEquals(11, scheduler.getRate("items"), 0.001);
+                assertTrue(slept >= TimeUnit.MILLISECONDS.toNanos(50 + 100));
+        }
+
+        /**
+         * The calls of a domain are spaced by the inverse of its rate, which
+         * grows with the calls accepted; other domains are not slowed.
+         */
+        @Test
+        public final void paceTheCallsOfEachDomain() {
+                SdbScheduler.Call<Void, RuntimeException> call =
+                                new SdbScheduler.Call<Void, RuntimeException>() {
+                                        @Override
+                                        public Void call() {
+                                                return null;
+                                        }
+                                };
+                for (int i = 0; i < 10; i++) {
+                        scheduler.execute("paced", call);
+                }
+                assertEquals(20, scheduler.getRate("paced"), 0.001);
+                long expected = 0;
+                for (int rate = 10; rate < 19; rate++) {
+                        expected += SECOND / rate;
+                }
+                assertEquals(expected, slept);
+                scheduler.execute("other", call);
+                assertEquals(expected, slept);
+                scheduler.select("SELECT * FROM `other` WHERE a = '1'", call);
+                assertEquals(12, scheduler.getRate("other"), 0.001);
+                assertEquals(12, scheduler.getAccepted());
+        }
+
+}
@@ -0,0 +1,152 @@
+package org.obliquid.sdb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Class under test: WriteBehindBatch, with a local stub writing the batches.
+ * 
+ * @author stivlo
+ * 
+ */
+public class WriteBehindBatchShould {
+
+        /** Sizes of the batches written. */
+        private final List<Integer> written = new ArrayList<Integer>();
+
+        /** Number of writes failing before the stub succeeds. */
+        private final AtomicInteger failing = new AtomicInteger();
+
+        /** The instance under test. */
+        private final WriteBehindBatch<String> batch = new WriteBehindBatch<String>(
+                        new WriteBehindBatch.Sink<String>() {
+                                @Override
+                                public void write(final String domain, final Map<String, List<String>> items)
+                                                throws ConnectException {
+                                        if (failing.getAndDecrement() > 0) {
+                                                throw new ConnectException("Service unavailable");
+                                        }
+                                        synchronized (written) {
+                                                written.add(items.size());
+                                        }
+                                }
+                        });
+
+        /**
+         * Add items named item0, item1 and so on.
+         * 
+         * @param count
+         *                number of items
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        private void addItems(final int count) throws ConnectException {
+                for (int i = 0; i < count; i++) {
+                        batch.add("domain", "item" + i, Arrays.asList("a=" + i));
+                }
+        }
+
+        /**
+         * Items are written 25 at a time, the rest on flush().
+         * 
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        @Test
+        public final void writeFullBatches() throws ConnectException {
+                addItems(1010);
+                assertEquals(40, written.size());
+                assertEquals(10, batch.getPending());
+                batch.flush();
+                assertEquals(41, batch.getBatches());
+                assertEquals(1010, batch.getItemsWritten());
+                assertEquals(Integer.valueOf(25), written.get(0));
+                assertEquals(Integer.valueOf(10), written.get(40));
+        }
+
+        /**
+         * Items are written after the flush delay.
+         * 
+         * @throws Exception
+         *                 in case of problems
+         */
+        @Test
+        public final void writeAfterTheDelay() throws Exception {
+                batch.setFlushDelay(20);
+                addItems(3);
+                for (int i = 0; i < 200 && batch.getBatches() == 0; i++) {
+                        Thread.sleep(10);
+                }
+                assertEquals(1, batch.getBatches());
+                assertEquals(0, batch.getPending());
+        }
+
+        /**
+         * Saving again an item pending writes the batch first, since a batch
+         * can't have the same item twice.
+         * 
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        @Test
+        public final void writeBeforeSavingAnItemAgain() throws ConnectException {
+                addItems(2);
+                addItems(1);
+                assertEquals(Arrays.asList(2), written);
+                assertEquals(1, batch.getPending());
+        }
+
+        /**
+         * The items of a failed batch are dropped, and the next items are
+         * written.
+         * 
+         * @throws ConnectException
+         *                 in case of problems
+         */
+        @Test
+        public final void dropTheItemsOfFailedBatches() throws ConnectException {
+                failing.set(1);
+                addItems(5);
+                try {
+                        batch.flush();
+                        fail("ConnectException expected");
+                } catch (ConnectException ex) {
+                        assertEquals(0, batch.getPending());
+                }
+                assertEquals(1, batch.getFailures());
+                assertEquals(5, batch.getItemsDropped());
+                addItems(2);
+                batch.flush();
+                assertEquals(Arrays.asList(2), written);
+        }
+
+        /**
+         * A failed timed flush is not scheduled again.
+         * 
+         * @throws Exception
+         *                 in case of problems
+         */
+        @Test
+        public final void notRescheduleFailedTimedFlushes() throws Exception {
+                batch.setFlushDelay(10);
+                failing.set(1);
+                addItems(3);
+                for (int i = 0; i < 200 && batch.getFailures() == 0; i++) {
+                        Thread.sleep(10);
+                }
+                assertEquals(0, batch.getPending());
+                Thread.sleep(50);
+                assertEquals(1, batch.getFailures());
+                assertEquals(0, written.size());
+        }
+
+}
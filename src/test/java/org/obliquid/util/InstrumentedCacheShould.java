@@ -0,0 +1,88 @@
+package org.obliquid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Class under test InstrumentedCache, with CacheMetrics.
+ * 
+ * @author stivlo
+ * 
+ */
+public class InstrumentedCacheShould {
+
+        /**
+         * The cache under test, measuring a MapCache.
+         */
+        private final InstrumentedCache cache = new InstrumentedCache(new MapCache());
+
+        /**
+         * Hits, misses and sets are counted by key prefix.
+         */
+        @Test
+        public final void countByPrefix() {
+                cache.set("user:1", "a");
+                cache.set("page:home", "b");
+                assertEquals("a", cache.get("user:1"));
+                assertNull(cache.get("user:2"));
+                assertNull(cache.get("nocolon"));
+                cache.delete("page:home");
+                Map<String, CacheMetrics.Snapshot> snapshot = cache.getMetrics().snapshot();
+                assertEquals(Arrays.asList("", "page:", "user:"), Arrays.asList(snapshot.keySet().toArray()));
+                CacheMetrics.Snapshot users = snapshot.get("user:");
+                assertEquals(1, users.getHits());
+                assertEquals(1, users.getMisses());
+                assertEquals(1, users.getSets());
+                assertEquals(0.5, users.getHitRatio(), 0.001);
+                assertEquals(2, snapshot.get("page:").getSets());
+                assertEquals(1, snapshot.get("").getMisses());
+                CacheMetrics.Snapshot total = cache.getMetrics().total();
+                assertEquals(1, total.getHits());
+                assertEquals(2, total.getMisses());
+                assertEquals(3, total.getSets());
+        }
+
+        /**
+         * Every operation timed falls in one bucket of the latency histogram.
+         */
+        @Test
+        public final void recordLatency() {
+                cache.set("k:1", "v");
+                cache.get("k:1");
+                cache.getAll(Arrays.asList("k:1", "k:2"));
+                long[] histogram = cache.getMetrics().snapshot().get("k:").getLatencyHistogram();
+                assertEquals(CacheMetrics.getLatencyBucketBounds().length + 1, histogram.length);
+                long operations = 0;
+                for (long count : histogram) {
+                        operations += count;
+                }
+                assertEquals(3, operations);
+                CacheMetrics.Snapshot snapshot = cache.getMetrics().snapshot().get("k:");
+                assertEquals(2, snapshot.getHits());
+                assertEquals(1, snapshot.getMisses());
+        }
+
+        /**
+         * A snapshot doesn't change afterwards, and new prefixes past the
+         * limit share one counter.
+         */
+        @Test
+        public final void keepSnapshotsAndBoundPrefixes() {
+                cache.get("a:1");
+                CacheMetrics.Snapshot before = cache.getMetrics().snapshot().get("a:");
+                cache.get("a:1");
+                assertEquals(1, before.getMisses());
+                for (int i = 0; i < CacheMetrics.MAX_PREFIXES + 10; i++) {
+                        cache.get("p" + i + ":x");
+                }
+                Map<String, CacheMetrics.Snapshot> snapshot = cache.getMetrics().snapshot();
+                assertEquals(CacheMetrics.MAX_PREFIXES + 1, snapshot.size());
+                assertEquals(11, snapshot.get(CacheMetrics.OTHER_PREFIX).getMisses());
+        }
+
+}
@@ -0,0 +1,200 @@
+package org.obliquid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Class under test LoadingCache.
+ * 
+ * @author stivlo
+ * 
+ */
+public class LoadingCacheShould {
+
+        /**
+         * The current time of the cache under test.
+         */
+        private long time = 1000000L;
+
+        /**
+         * Runs the background reloads in the calling thread.
+         */
+        private final Executor inline = new Executor() {
+                @Override
+                public void execute(final Runnable command) {
+                        command.run();
+                }
+        };
+
+        /**
+         * The cache under test, with a clock set by the tests.
+         */
+        private final LoadingCache cache = new LoadingCache(new MapCache(), inline) {
+                @Override
+                protected long now() {
+                        return time;
+                }
+        };
+
+        /**
+         * Counts its calls and returns "v" followed by the count.
+         */
+        private final AtomicInteger calls = new AtomicInteger();
+
+        /**
+         * A loader returning "v1", "v2" and so on.
+         */
+        private final Callable<String> counting = new Callable<String>() {
+                @Override
+                public String call() {
+                        return "v" + calls.incrementAndGet();
+                }
+        };
+
+        /**
+         * A value is loaded once and then found.
+         * 
+         * @throws ExecutionException
+         *                 in case of problems
+         */
+        @Test
+        public final void loadOnce() throws ExecutionException {
+                assertEquals("v1", cache.getOrLoad("k", counting, 10));
+                assertEquals("v1", cache.getOrLoad("k", counting, 10));
+                assertEquals(1, calls.get());
+                assertEquals(1, cache.getHits());
+                time += 10000;
+                assertEquals("v2", cache.getOrLoad("k", counting, 10));
+                assertEquals(2, cache.getLoads());
+        }
+
+        /**
+         * Threads missing the same key at once wait for a single load.
+         * 
+         * @throws InterruptedException
+         *                 in case of problems
+         */
+        @Test
+        public final void coalesceConcurrentMisses() throws InterruptedException {
+                final CountDownLatch started = new CountDownLatch(1);
+                final CountDownLatch release = new CountDownLatch(1);
+                final Callable<String> slow = new Callable<String>() {
+                        @Override
+                        public String call() throws InterruptedException {
+                                started.countDown();
+                                release.await();
+                                return "v" + calls.incrementAndGet();
+                        }
+                };
+                final List<Object> results = new ArrayList<Object>();
+                List<Thread> threads = new ArrayList<Thread>();
+                for (int i = 0; i < 8; i++) {
+                        Thread thread = new Thread() {
+                                @Override
+                                public void run() {
+                                        try {
+                                                Object value = cache.getOrLoad("hot", slow, 10);
+                                                synchronized (results) {
+                                                        results.add(value);
+                                                }
+                                        } catch (ExecutionException ex) {
+                                                throw new IllegalStateException(ex);
+                                        }
+                                }
+                        };
+                        threads.add(thread);
+                        thread.start();
+                }
+                assertTrue(started.await(5, TimeUnit.SECONDS));
+                while (cache.getCoalescedMisses() < 7) {
+                        Thread.sleep(5);
+                }
+                release.countDown();
+                for (Thread thread : threads) {
+                        thread.join();
+                }
+                assertEquals(1, calls.get());
+                assertEquals(8, results.size());
+                for (Object value : results) {
+                        assertEquals("v1", value);
+                }
+        }
+
+        /**
+         * A value read close to its expiry is returned and reloaded.
+         * 
+         * @throws ExecutionException
+         *                 in case of problems
+         */
+        @Test
+        public final void refreshAhead() throws ExecutionException {
+                cache.getOrLoad("k", counting, 10);
+                time += 9000;
+                assertEquals("v1", cache.getOrLoad("k", counting, 10));
+                assertEquals(1, cache.getRefreshes());
+                assertEquals("v2", cache.getOrLoad("k", counting, 10));
+                assertEquals(2, calls.get());
+        }
+
+        /**
+         * An expired value is returned within the stale time while it's
+         * reloaded, and not afterwards.
+         * 
+         * @throws ExecutionException
+         *                 in case of problems
+         */
+        @Test
+        public final void serveStaleWhileRefreshing() throws ExecutionException {
+                cache.setStaleSeconds(5);
+                cache.setRefreshAheadPercent(100);
+                cache.getOrLoad("k", counting, 10);
+                time += 12000;
+                assertEquals("v1", cache.getOrLoad("k", counting, 10));
+                assertEquals(1, cache.getStaleHits());
+                assertEquals("v2", cache.getOrLoad("k", counting, 10));
+                time += 16000;
+                assertEquals("v3", cache.getOrLoad("k", counting, 10));
+                assertEquals(1, cache.getStaleHits());
+        }
+
+        /**
+         * A failed load is reported to the reader, a failed reload keeps the
+         * old value.
+         * 
+         * @throws ExecutionException
+         *                 in case of problems
+         */
+        @Test
+        public final void reportFailures() throws ExecutionException {
+                Callable<String> failing = new Callable<String>() {
+                        @Override
+                        public String call() throws IOException {
+                                throw new IOException("down");
+                        }
+                };
+                try {
+                        cache.getOrLoad("k", failing, 10);
+                        throw new AssertionError("ExecutionException expected");
+                } catch (ExecutionException ex) {
+                        assertTrue(ex.getCause() instanceof IOException);
+                }
+                cache.getOrLoad("k", counting, 10);
+                time += 9000;
+                assertEquals("v1", cache.getOrLoad("k", failing, 10));
+                assertEquals("v1", cache.getOrLoad("k", counting, 10));
+                assertEquals(2, cache.getFailures());
+        }
+
+}
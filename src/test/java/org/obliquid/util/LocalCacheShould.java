@@ -0,0 +1,131 @@
+package org.obliquid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Class under test LocalCache.
+ * 
+ * @author stivlo
+ * 
+ */
+public class LocalCacheShould {
+
+        /** The time seen by the caches under test. */
+        private long time = 0;
+
+        /**
+         * Create a cache with the test clock.
+         * 
+         * @param maxSize
+         *                maximum number of entries
+         * @param ttlSeconds
+         *                time to live
+         * @param idleSeconds
+         *                maximum idle time
+         * @return a cache with a single segment
+         */
+        private LocalCache createCache(final int maxSize, final int ttlSeconds, final int idleSeconds) {
+                return new LocalCache(maxSize, ttlSeconds, idleSeconds, 1) {
+                        @Override
+                        protected long now() {
+                                return time;
+                        }
+                };
+        }
+
+        /**
+         * Keys read more than once survive a scan of keys read once.
+         */
+        @Test
+        public final void keepFrequentlyReadKeysDuringAScan() {
+                LocalCache cache = createCache(10, 0, 0);
+                cache.set("hot", "value");
+                cache.get("hot");
+                for (int i = 0; i < 100; i++) {
+                        cache.set("scan" + i, i);
+                        cache.get("hot");
+                }
+                assertEquals("value", cache.get("hot"));
+                assertNull(cache.get("scan0"));
+                assertEquals(99, cache.get("scan99"));
+                assertEquals(10, cache.size());
+                assertEquals(91, cache.getEvictions());
+        }
+
+        /**
+         * Entries expire a fixed time after being set.
+         */
+        @Test
+        public final void expireEntriesAfterTheirTtl() {
+                LocalCache cache = createCache(10, 5, 0);
+                cache.set("key", "value");
+                time = 4999;
+                assertEquals("value", cache.get("key"));
+                time = 5000;
+                assertNull(cache.get("key"));
+                assertEquals(1, cache.getExpirations());
+                assertEquals(1, cache.getHits());
+                assertEquals(1, cache.getMisses());
+        }
+
+        /**
+         * Entries expire when not read for the idle time, and are removed by
+         * cleanUp().
+         */
+        @Test
+        public final void expireIdleEntries() {
+                LocalCache cache = createCache(10, 0, 2);
+                cache.set("read", 1);
+                cache.set("unread", 2);
+                time = 1500;
+                assertEquals(1, cache.get("read"));
+                time = 3000;
+                cache.cleanUp();
+                assertEquals(1, cache.size());
+                assertEquals(1, cache.get("read"));
+        }
+
+        /**
+         * Many threads can use the cache at once, and its size stays bounded.
+         * 
+         * @throws InterruptedException
+         *                 when interrupted
+         */
+        @Test
+        public final void staySafeAndBoundedWithManyThreads() throws InterruptedException {
+                final LocalCache cache = new LocalCache(1000, 0, 0);
+                final AtomicInteger errors = new AtomicInteger();
+                Thread[] threads = new Thread[8];
+                for (int t = 0; t < threads.length; t++) {
+                        final int offset = t * 10000;
+                        threads[t] = new Thread() {
+                                @Override
+                                public void run() {
+                                        for (int i = 0; i < 10000; i++) {
+                                                String key = Integer.toString(offset + i % 2000);
+                                                cache.set(key, i);
+                                                Object value = cache.get(key);
+                                                if (value != null && !(value instanceof Integer)) {
+                                                        errors.incrementAndGet();
+                                                }
+                                                cache.delete(Integer.toString(offset + i % 300));
+                                        }
+                                }
+                        };
+                        threads[t].start();
+                }
+                for (Thread thread : threads) {
+                        thread.join();
+                }
+                assertEquals(0, errors.get());
+                assertTrue(cache.size() <= 1000);
+                assertTrue(cache.getEvictions() > 0);
+        }
+
+}
@@ -5,6 +5,9 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertEquals;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
@@ -93,4 +96,28 @@ public class MapCacheShould {
                 assertFalse(result.get());
         }
 
+        /**
+         * Setting and getting many objects at once.
+         * 
+         * @throws InterruptedException
+         *                 Thrown when a thread is waiting, sleeping, or
+         *                 otherwise occupied, and the thread is interrupted,
+         *                 either before or during the activity.
+         * @throws ExecutionException
+         *                 Exception thrown when attempting to retrieve the
+         *                 result of a task that aborted by throwing an
+         *                 exception.
+         */
+        @Test
+        public final void beAbleToSetAndGetManyObjects() throws InterruptedException, ExecutionException {
+                Map<String, Object> values = new HashMap<String, Object>();
+                values.put("one", 1);
+                values.put("two", 2);
+                assertTrue(cache.setAll(values).get());
+                Map<String, Object> found = cache.getAll(Arrays.asList("one", "two", "three"));
+                assertEquals(values, found);
+                assertEquals(2, cache.getAsync("two").get());
+                assertNull(cache.getAsync("three").get());
+        }
+
 }
@@ -0,0 +1,231 @@
+package org.obliquid.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Test;
+
+/**
+ * Class under test NearCache, in front of a fake memcached.
+ * 
+ * @author stivlo
+ * 
+ */
+public class NearCacheShould {
+
+        /** The time seen by the cache under test. */
+        private long time = 0;
+
+        /** Stands for memcached, shared by all the servers. */
+        private final FakeMemcached memcached = new FakeMemcached();
+
+        /** The instance under test, keeping values locally for 5 seconds. */
+        private final NearCache cache = createCache();
+
+        /**
+         * Create a near cache with the test clock, in front of the fake
+         * memcached.
+         * 
+         * @return a NearCache
+         */
+        private NearCache createCache() {
+                return new NearCache(memcached, 100, 5) {
+                        @Override
+                        protected long now() {
+                                return time;
+                        }
+                };
+        }
+
+        /**
+         * Values read again are found locally, until they expire.
+         */
+        @Test
+        public final void readValuesLocallyUntilTheyExpire() {
+                memcached.set("key", "value");
+                assertEquals("value", cache.get("key"));
+                assertEquals("value", cache.get("key"));
+                assertEquals(1, memcached.gets);
+                time = 5000;
+                assertEquals("value", cache.get("key"));
+                assertEquals(2, memcached.gets);
+                assertEquals(1, cache.getLocalHits());
+                assertEquals(2, cache.getRemoteHits());
+        }
+
+        /**
+         * Sets and deletes go to both levels.
+         */
+        @Test
+        public final void writeThroughToMemcached() {
+                cache.set("key", "value");
+                assertEquals("value", memcached.get("key"));
+                assertEquals("value", cache.get("key"));
+                assertEquals(0, cache.getRemoteHits());
+                cache.delete("key");
+                assertNull(memcached.get("key"));
+                assertNull(cache.get("key"));
+                assertEquals(1, cache.getMisses());
+        }
+
+        /**
+         * A change made by another server is seen when the local value
+         * expires, or at once for the keys not kept locally.
+         */
+        @Test
+        public final void seeChangesOfOtherServersAfterTheLocalTtl() {
+                NearCache other = createCache();
+                cache.setLocalTtl("live:", 0);
+                cache.set("key", "old");
+                cache.set("live:key", "old");
+                other.set("key", "new");
+                other.set("live:key", "new");
+                assertEquals("old", cache.get("key"));
+                assertEquals("new", cache.get("live:key"));
+                time = 5000;
+                assertEquals("new", cache.get("key"));
+        }
+
+        /**
+         * A multi-get asks memcached only for the keys not found locally,
+         * with one request.
+         */
+        @Test
+        public final void getManyValuesWithOneRemoteRequest() {
+                Map<String, Object> values = new HashMap<String, Object>();
+                values.put("a", 1);
+                values.put("b", 2);
+                memcached.setAll(values);
+                cache.set("c", 3);
+                Map<String, Object> found = cache.getAll(Arrays.asList("a", "b", "c", "d"));
+                assertEquals(3, found.size());
+                assertEquals(2, found.get("b"));
+                assertEquals(1, memcached.gets);
+                assertEquals(3, cache.getAll(Arrays.asList("a", "b", "c")).size());
+                assertEquals(1, memcached.gets);
+                assertEquals(1, cache.getMisses());
+        }
+
+        /**
+         * A value read from memcached while a set or delete of the key is
+         * still in flight is not kept locally, since it may be the old one.
+         */
+        @Test
+        public final void notKeepOldValuesReadDuringAWrite() {
+                memcached.set("key", "old");
+                memcached.delayWrites = true;
+                cache.set("key", "new");
+                cache.clearLocal();
+                assertEquals("old", cache.get("key"));
+                memcached.completeWrites();
+                assertEquals("new", cache.get("key"));
+                memcached.delayWrites = true;
+                cache.delete("key");
+                cache.clearLocal();
+                assertEquals("new", cache.get("key"));
+                memcached.completeWrites();
+                assertNull(cache.get("key"));
+        }
+
+        /**
+         * A fake memcached counting the gets, whose writes can be delayed as
+         * the asynchronous writes of memcached.
+         */
+        private static final class FakeMemcached implements OCache {
+
+                /** The values. */
+                private final MapCache store = new MapCache();
+
+                /** Number of gets, a getAll counting as one. */
+                private int gets = 0;
+
+                /** Whether the writes wait for completeWrites(). */
+                private boolean delayWrites = false;
+
+                /** The writes delayed. */
+                private final List<FutureTask<Boolean>> delayed = new ArrayList<FutureTask<Boolean>>();
+
+                /**
+                 * Make a write, or delay it.
+                 * 
+                 * @param write
+                 *                the write
+                 * @return the result of the write, not done while delayed
+                 */
+                private Future<Boolean> write(final Callable<Boolean> write) {
+                        FutureTask<Boolean> task = new FutureTask<Boolean>(write);
+                        if (delayWrites) {
+                                delayed.add(task);
+                        } else {
+                                task.run();
+                        }
+                        return task;
+                }
+
+                /**
+                 * Make the writes delayed, and stop delaying them.
+                 */
+                private void completeWrites() {
+                        delayWrites = false;
+                        for (FutureTask<Boolean> task : delayed) {
+                                task.run();
+                        }
+                        delayed.clear();
+                }
+
+                @Override
+                public Future<Boolean> set(final String key, final Object o) {
+                        return write(new Callable<Boolean>() {
+                                @Override
+                                public Boolean call() throws Exception {
+                                        return store.set(key, o).get();
+                                }
+                        });
+                }
+
+                @Override
+                public Object get(final String key) {
+                        gets++;
+                        return store.get(key);
+                }
+
+                @Override
+                public Future<Boolean> delete(final String key) {
+                        return write(new Callable<Boolean>() {
+                                @Override
+                                public Boolean call() throws Exception {
+                                        return store.delete(key).get();
+                                }
+                        });
+                }
+
+                @Override
+                public Map<String, Object> getAll(final Collection<String> keys) {
+                        gets++;
+                        return store.getAll(keys);
+                }
+
+                @Override
+                public Future<Boolean> setAll(final Map<String, ?> values) {
+                        return store.setAll(values);
+                }
+
+                @Override
+                public Future<Object> getAsync(final String key) {
+                        gets++;
+                        return store.getAsync(key);
+                }
+
+        }
+
+}
@@ -0,0 +1,183 @@
+package org.obliquid.util.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.junit.Test;
+import org.obliquid.datatype.impl.BooleanTypeImpl;
+
+/**
+ * Class under test CompactCodec, with CompressingCodec and TimedCodec.
+ * 
+ * @author stivlo
+ * 
+ */
+public class CompactCodecShould {
+
+        /**
+         * The codec under test.
+         */
+        private final CompactCodec codec = new CompactCodec();
+
+        /** Whether NotADataType was initialized. */
+        private static boolean initialized = false;
+
+        /**
+         * A class that is not a DataType, recording its initialization.
+         */
+        public static final class NotADataType {
+                static {
+                        initialized = true;
+                }
+        }
+
+        /**
+         * Encode and decode a value.
+         * 
+         * @param value
+         *                the value
+         * @return the value decoded
+         * @throws IOException
+         *                 in case of problems
+         */
+        private Object roundTrip(final Object value) throws IOException {
+                return codec.decode(codec.encode(value));
+        }
+
+        /**
+         * Simple values are decoded equal to the original.
+         * 
+         * @throws IOException
+         *                 in case of problems
+         */
+        @Test
+        public final void decodeSimpleValues() throws IOException {
+                Timestamp timestamp = new Timestamp(1318000000123L);
+                timestamp.setNanos(123456789);
+                Object[] values = { "\u00e0bc", "", Integer.MIN_VALUE, -1, 0, Long.MAX_VALUE, 3.25, 1.5f,
+                                (short) -7, (byte) 9, true, false, 'x', new BigDecimal("-12345.6789"),
+                                new Date(1318000000000L), new java.sql.Date(1318000000000L), timestamp, };
+                for (Object value : values) {
+                        assertEquals(value, roundTrip(value));
+                }
+                assertNull(roundTrip(null));
+                assertArrayEquals(new byte[] { 1, 2, 3 }, (byte[]) roundTrip(new byte[] { 1, 2, 3 }));
+        }
+
+        /**
+         * A table of rows as returned by selectAll(), and a map, keep their
+         * contents and order, and take less space than Java serialization.
+         * 
+         * @throws IOException
+         *                 in case of problems
+         */
+        @Test
+        public final void decodeTablesAndMaps() throws IOException {
+                List<List<Object>> table = new ArrayList<List<Object>>();
+                for (int i = 0; i < 100; i++) {
+                        table.add(Arrays.<Object> asList(i, "name" + i, new BigDecimal(i + ".50"), null));
+                }
+                assertEquals(table, roundTrip(table));
+                assertTrue(codec.encode(table).length < new JavaSerializationCodec().encode(table).length);
+                Map<String, Object> map = new LinkedHashMap<String, Object>();
+                map.put("b", 1L);
+                map.put("a", table.get(0));
+                assertEquals(new ArrayList<String>(map.keySet()),
+                                new ArrayList<Object>(((Map<?, ?>) roundTrip(map)).keySet()));
+                assertEquals(map, roundTrip(map));
+        }
+
+        /**
+         * DataType instances are rebuilt, other classes are serialized.
+         * 
+         * @throws IOException
+         *                 in case of problems
+         */
+        @Test
+        public final void decodeDataTypesAndOtherClasses() throws IOException {
+                BooleanTypeImpl flag = new BooleanTypeImpl();
+                flag.setData(true);
+                BooleanTypeImpl decoded = (BooleanTypeImpl) roundTrip(flag);
+                assertTrue(decoded.getData());
+                assertFalse(((BooleanTypeImpl) roundTrip(new BooleanTypeImpl())).isAssigned());
+                assertEquals(Locale.ITALY, roundTrip(Locale.ITALY));
+        }
+
+        /**
+         * A class named in the data that is not a DataType is refused without
+         * being initialized.
+         * 
+         * @throws IOException
+         *                 in case of problems
+         */
+        @Test
+        public final void refuseOtherClassesAsDataTypes() throws IOException {
+                String dataTypeName = BooleanTypeImpl.class.getName();
+                byte[] encoded = codec.encode(new BooleanTypeImpl());
+                byte[] name = codec.encode(dataTypeName);
+                byte[] otherName = codec.encode(NotADataType.class.getName());
+                byte[] forged = new byte[encoded.length - name.length + otherName.length];
+                forged[0] = encoded[0];
+                System.arraycopy(otherName, 1, forged, 1, otherName.length - 1);
+                System.arraycopy(encoded, name.length, forged, otherName.length,
+                                encoded.length - name.length);
+                try {
+                        codec.decode(forged);
+                        fail("A class that is not a DataType should be refused");
+                } catch (IOException ex) {
+                        assertTrue(ex.getMessage().contains("not a rebuildable DataType"));
+                }
+                assertFalse(initialized);
+        }
+
+        /**
+         * Large values are compressed, small ones stored, and both decoded;
+         * the timed codec counts the calls.
+         * 
+         * @throws IOException
+         *                 in case of problems
+         */
+        @Test
+        public final void compressLargeValues() throws IOException {
+                TimedCodec timed = new TimedCodec(new CompressingCodec(codec, 100));
+                StringBuilder large = new StringBuilder();
+                for (int i = 0; i < 1000; i++) {
+                        large.append("repeated ");
+                }
+                byte[] encoded = timed.encode(large.toString());
+                assertTrue(encoded.length < large.length() / 10);
+                assertEquals(large.toString(), timed.decode(encoded));
+                assertEquals("small", timed.decode(timed.encode("small")));
+                assertEquals("compact+deflate", timed.getName());
+                assertEquals(2, timed.getEncodeCount());
+                assertEquals(2, timed.getDecodeCount());
+                assertEquals(0, timed.getErrorCount());
+        }
+
+        /**
+         * Corrupted data is reported with an IOException.
+         * 
+         * @throws IOException
+         *                 expected
+         */
+        @Test(expected = IOException.class)
+        public final void rejectCorruptedData() throws IOException {
+                codec.decode(new byte[] { 1, 100, 'a' });
+        }
+
+}